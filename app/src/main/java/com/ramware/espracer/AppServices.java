@@ -0,0 +1,73 @@
+package com.ramware.espracer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Process-wide singletons shared by the activities. */
+final class AppServices {
+    private static DeviceRegistry deviceRegistry;
+    private static ExecutorService fileExecutor;
+    private static BluetoothAdapter bluetoothAdapter;
+    private static boolean bluetoothAdapterLooked;
+    private static volatile Set<BluetoothDevice> prefetchedBondedDevices;
+
+    private AppServices() {
+    }
+
+    /** The registry of known cars; its first use starts loading it in the background. */
+    static synchronized DeviceRegistry deviceRegistry(Context context) {
+        if (deviceRegistry == null) {
+            ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "DeviceRegistry");
+                thread.setDaemon(true);
+                return thread;
+            });
+            File file = new File(context.getApplicationContext().getFilesDir(), "devices.tsv");
+            deviceRegistry = new DeviceRegistry(new FileDeviceStore(file), executor);
+            deviceRegistry.load(null);
+        }
+        return deviceRegistry;
+    }
+
+    /** One background thread for file writes the UI asks for, such as stats exports. */
+    static synchronized ExecutorService fileExecutor() {
+        if (fileExecutor == null) {
+            fileExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "FileWriter");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return fileExecutor;
+    }
+
+    /** The Bluetooth adapter, or null if the device has none; looked up once per process. */
+    static synchronized BluetoothAdapter bluetoothAdapter(Context context) {
+        if (!bluetoothAdapterLooked) {
+            BluetoothManager manager = (BluetoothManager) context.getApplicationContext()
+                    .getSystemService(Context.BLUETOOTH_SERVICE);
+            bluetoothAdapter = manager != null ? manager.getAdapter() : null;
+            bluetoothAdapterLooked = true;
+        }
+        return bluetoothAdapter;
+    }
+
+    /** Bonded devices read off the main thread during startup. */
+    static void setPrefetchedBondedDevices(Set<BluetoothDevice> devices) {
+        prefetchedBondedDevices = devices;
+    }
+
+    /** The bonded devices read during startup, once; null if there are none or they were already taken. */
+    static Set<BluetoothDevice> takePrefetchedBondedDevices() {
+        Set<BluetoothDevice> devices = prefetchedBondedDevices;
+        prefetchedBondedDevices = null;
+        return devices;
+    }
+}
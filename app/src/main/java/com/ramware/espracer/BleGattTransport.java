@@ -0,0 +1,266 @@
+package com.ramware.espracer;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+
+/**
+ * BLE link using the Nordic UART service layout that ESP32 BLE serial sketches
+ * expose: frames go out as write-without-response on the RX characteristic and
+ * come back as notifications on the TX characteristic. The link runs at high
+ * connection priority for the shortest connection interval.
+ */
+@SuppressLint("MissingPermission")
+public class BleGattTransport implements Transport {
+    public static final UUID SERVICE_UUID = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+    public static final UUID RX_CHARACTERISTIC_UUID = UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E");
+    public static final UUID TX_CHARACTERISTIC_UUID = UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
+    private static final UUID CLIENT_CONFIG_UUID = UUID.fromString("00002902-0000-1000-8000-00805F9B34FB");
+    private static final int REQUESTED_MTU = 64;
+    private static final int RECEIVE_BUFFER_SIZE = 4096;
+
+    private final Context context;
+    private final BluetoothDevice device;
+    private final TransportMetrics metrics = new TransportMetrics();
+    private final BytePipe received = new BytePipe(RECEIVE_BUFFER_SIZE);
+    // the GATT layer takes exactly one write at a time
+    private final Semaphore writePermit = new Semaphore(1);
+    // one reusable array per frame length, since the GATT API wants exact-size values
+    private final byte[][] sendBuffers = new byte[Protocol.MAX_FRAME_LENGTH + 1][];
+
+    private volatile BluetoothGatt gatt;
+    private volatile BluetoothGattCharacteristic rxCharacteristic;
+    private volatile boolean closed;
+    private volatile int gattStatus = BluetoothGatt.GATT_SUCCESS;
+    private volatile CountDownLatch pendingStep;
+
+    public BleGattTransport(Context context, BluetoothDevice device) {
+        this.context = context.getApplicationContext();
+        this.device = device;
+    }
+
+    @Override
+    public void open() throws IOException {
+        long start = System.nanoTime();
+        CountDownLatch step = beginStep();
+        gatt = device.connectGatt(context, false, callback, BluetoothDevice.TRANSPORT_LE);
+        if (gatt == null) {
+            throw new IOException("connectGatt failed");
+        }
+        awaitStep(step, "connect");
+
+        gatt.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+        step = beginStep();
+        gatt.requestMtu(REQUESTED_MTU);
+        awaitStep(step, "mtu");
+
+        step = beginStep();
+        if (!gatt.discoverServices()) {
+            throw new IOException("discoverServices failed");
+        }
+        awaitStep(step, "discover");
+
+        BluetoothGattService service = gatt.getService(SERVICE_UUID);
+        if (service == null) {
+            throw new IOException("ESPRacer service not found");
+        }
+        BluetoothGattCharacteristic rx = service.getCharacteristic(RX_CHARACTERISTIC_UUID);
+        BluetoothGattCharacteristic tx = service.getCharacteristic(TX_CHARACTERISTIC_UUID);
+        if (rx == null || tx == null) {
+            throw new IOException("UART characteristics not found");
+        }
+        rx.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        rxCharacteristic = rx;
+
+        gatt.setCharacteristicNotification(tx, true);
+        BluetoothGattDescriptor config = tx.getDescriptor(CLIENT_CONFIG_UUID);
+        if (config != null) {
+            step = beginStep();
+            writeDescriptor(config, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            awaitStep(step, "notify");
+        }
+        metrics.recordOpen(System.nanoTime() - start);
+    }
+
+    @Override
+    public void send(byte[] data, int offset, int length) throws IOException {
+        BluetoothGatt g = gatt;
+        BluetoothGattCharacteristic rx = rxCharacteristic;
+        if (g == null || rx == null || closed) {
+            throw new IOException("transport is not open");
+        }
+        byte[] value = sendBuffers[length];
+        if (value == null) {
+            value = new byte[length];
+            sendBuffers[length] = value;
+        }
+        System.arraycopy(data, offset, value, 0, length);
+
+        long start = System.nanoTime();
+        try {
+            writePermit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+        if (!writeCharacteristic(g, rx, value)) {
+            writePermit.release();
+            metrics.recordSendError();
+            throw new IOException("characteristic write rejected");
+        }
+        metrics.recordSend(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public int receive(byte[] buffer, int offset, int length) throws IOException {
+        int read = received.read(buffer, offset, length);
+        if (read > 0) {
+            metrics.recordReceive(read);
+        }
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return received.available();
+    }
+
+    @Override
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        CountDownLatch step = pendingStep;
+        if (step != null) {
+            step.countDown();
+        }
+        received.close();
+        writePermit.release();
+        BluetoothGatt g = gatt;
+        if (g != null) {
+            g.disconnect();
+            g.close();
+        }
+    }
+
+    private CountDownLatch beginStep() {
+        CountDownLatch step = new CountDownLatch(1);
+        pendingStep = step;
+        return step;
+    }
+
+    private void awaitStep(CountDownLatch step, String name) throws IOException {
+        try {
+            step.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted during " + name, e);
+        }
+        if (closed) {
+            throw new IOException("closed during " + name);
+        }
+        if (gattStatus != BluetoothGatt.GATT_SUCCESS) {
+            throw new IOException(name + " failed with GATT status " + gattStatus);
+        }
+    }
+
+    private void completeStep(int status) {
+        gattStatus = status;
+        CountDownLatch step = pendingStep;
+        if (step != null) {
+            step.countDown();
+        }
+    }
+
+    // false if the stack didn't queue the write
+    @SuppressWarnings("deprecation")
+    private static boolean writeCharacteristic(BluetoothGatt g, BluetoothGattCharacteristic characteristic, byte[] value) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            return g.writeCharacteristic(characteristic, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE)
+                    == BluetoothGatt.GATT_SUCCESS;
+        }
+        characteristic.setValue(value);
+        return g.writeCharacteristic(characteristic);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            gatt.writeDescriptor(descriptor, value);
+        } else {
+            descriptor.setValue(value);
+            gatt.writeDescriptor(descriptor);
+        }
+    }
+
+    private void onNotification(byte[] value) {
+        if (value != null) {
+            received.offer(value, 0, value.length);
+        }
+    }
+
+    private final BluetoothGattCallback callback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt g, int status, int newState) {
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                completeStep(status);
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                // fail whatever is pending and let readers see the end of the stream
+                completeStep(status == BluetoothGatt.GATT_SUCCESS ? BluetoothGatt.GATT_FAILURE : status);
+                received.close();
+                writePermit.release();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt g, int mtu, int status) {
+            // a refused MTU still leaves a working link at the default size
+            completeStep(BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt g, int status) {
+            completeStep(status);
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt g, BluetoothGattDescriptor descriptor, int status) {
+            completeStep(status);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt g, BluetoothGattCharacteristic characteristic, int status) {
+            writePermit.release();
+        }
+
+        @Override
+        public void onCharacteristicChanged(@NonNull BluetoothGatt g, @NonNull BluetoothGattCharacteristic characteristic,
+                                            @NonNull byte[] value) {
+            onNotification(value);
+        }
+
+        // only called below API 33
+        @Override
+        @SuppressWarnings("deprecation")
+        public void onCharacteristicChanged(BluetoothGatt g, BluetoothGattCharacteristic characteristic) {
+            onNotification(characteristic.getValue());
+        }
+    };
+}
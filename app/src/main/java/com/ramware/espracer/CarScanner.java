@@ -0,0 +1,278 @@
+package com.ramware.espracer;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Looks for cars on both radios at once. The BLE scan is filtered in the
+ * controller on the car's UART service UUID, so only cars wake the app. Classic
+ * discovery finds cars on the serial link, which do not advertise over BLE, and
+ * is filtered by name prefix. Bonded cars are listed straight away. Results are
+ * deduplicated in a {@link DeviceIndex} and reach the listener in batches of at
+ * most one per {@link #BATCH_INTERVAL_MS}.
+ *
+ * <p>All calls and callbacks happen on the main thread. Callers must hold the
+ * Bluetooth scan and connect permissions.
+ */
+@SuppressLint("MissingPermission")
+public class CarScanner {
+    public static final String DEFAULT_NAME_PREFIX = "ESPRacer";
+    static final long BATCH_INTERVAL_MS = 100;
+    private static final long BLE_SCAN_DURATION_MS = 10000;
+
+    public interface Listener {
+        void onScanStarted();
+
+        void onDevicesChanged(List<ScannedDevice> devices);
+
+        /** The first car heard over the air in this scan; bonded cars listed up front don't count. */
+        void onFirstCar(ScannedDevice device, long elapsedMs);
+
+        void onScanFinished(int deviceCount);
+
+        void onScanFailed(String message);
+    }
+
+    private final Context context;
+    private final BluetoothAdapter adapter;
+    private final Listener listener;
+    private final DeviceIndex index;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable dispatch = this::dispatch;
+    private final Runnable stopBleScan = this::stopBleScan;
+
+    private boolean bleScanning;
+    private boolean classicDiscovering;
+    private boolean receiverRegistered;
+    private boolean dispatchPending;
+    private long scanStartMs;
+    private long firstCarLatencyMs = -1;
+
+    private final ScanCallback scanCallback = new ScanCallback() {
+        @Override
+        public void onScanResult(int callbackType, ScanResult result) {
+            BluetoothDevice device = result.getDevice();
+            String name = result.getScanRecord() != null ? result.getScanRecord().getDeviceName() : null;
+            onSighting(device.getAddress(), name != null ? name : device.getName(), result.getRssi(), true);
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (ScanResult result : results) {
+                onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, result);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            bleScanning = false;
+            Log.w("WARN", "BLE scan failed: " + errorCode);
+            finishIfDone();
+        }
+    };
+
+    private final BroadcastReceiver discoveryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (BluetoothDevice.ACTION_FOUND.equals(action)) {
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                if (device == null) {
+                    return;
+                }
+                String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                onSighting(device.getAddress(), name != null ? name : device.getName(),
+                        rssi == Short.MIN_VALUE ? ScannedDevice.RSSI_UNKNOWN : rssi, false);
+            } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+                classicDiscovering = false;
+                finishIfDone();
+            }
+        }
+    };
+
+    /** {@code namePrefix} filters names from classic discovery and bonding; null or empty lists every device. */
+    public CarScanner(Context context, BluetoothAdapter adapter, String namePrefix, Listener listener) {
+        this.context = context;
+        this.adapter = adapter;
+        this.listener = listener;
+        this.index = new DeviceIndex(namePrefix);
+    }
+
+    public void startScan() {
+        if (adapter == null) {
+            listener.onScanFailed("Bluetooth adapter is not available");
+            return;
+        }
+        if (!adapter.isEnabled()) {
+            listener.onScanFailed("Bluetooth is not enabled");
+            return;
+        }
+        stopScan();
+        index.clear();
+        scanStartMs = SystemClock.elapsedRealtime();
+        firstCarLatencyMs = -1;
+        addBondedDevices();
+
+        BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+        if (scanner != null) {
+            ScanFilter filter = new ScanFilter.Builder()
+                    .setServiceUuid(new ParcelUuid(BleGattTransport.SERVICE_UUID))
+                    .build();
+            ScanSettings settings = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                    .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                    .build();
+            scanner.startScan(Collections.singletonList(filter), settings, scanCallback);
+            bleScanning = true;
+            handler.postDelayed(stopBleScan, BLE_SCAN_DURATION_MS);
+        }
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        context.registerReceiver(discoveryReceiver, filter);
+        receiverRegistered = true;
+        classicDiscovering = adapter.startDiscovery();
+
+        if (!bleScanning && !classicDiscovering) {
+            stopScan();
+            listener.onScanFailed("Failed to start discovery");
+            return;
+        }
+        listener.onScanStarted();
+        dispatch();
+    }
+
+    /** Lists the bonded cars without scanning. */
+    public void listBondedDevices() {
+        listBondedDevices(null);
+    }
+
+    /** Lists the bonded cars without scanning, from {@code prefetched} if the caller already read them. */
+    public void listBondedDevices(Set<BluetoothDevice> prefetched) {
+        if (adapter == null || !adapter.isEnabled()) {
+            return;
+        }
+        addBondedDevices(prefetched != null ? prefetched : adapter.getBondedDevices());
+        dispatch();
+    }
+
+    private void addBondedDevices() {
+        addBondedDevices(adapter.getBondedDevices());
+    }
+
+    private void addBondedDevices(Set<BluetoothDevice> bonded) {
+        if (bonded == null) {
+            return;
+        }
+        for (BluetoothDevice device : bonded) {
+            if (index.matches(device.getName())) {
+                index.update(device.getAddress(), device.getName(), ScannedDevice.RSSI_UNKNOWN, true, false);
+            }
+        }
+    }
+
+    public void stopScan() {
+        handler.removeCallbacks(stopBleScan);
+        handler.removeCallbacks(dispatch);
+        dispatchPending = false;
+        if (bleScanning) {
+            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if (scanner != null) {
+                scanner.stopScan(scanCallback);
+            }
+            bleScanning = false;
+        }
+        if (classicDiscovering) {
+            adapter.cancelDiscovery();
+            classicDiscovering = false;
+        }
+        if (receiverRegistered) {
+            context.unregisterReceiver(discoveryReceiver);
+            receiverRegistered = false;
+        }
+    }
+
+    public boolean isScanning() {
+        return bleScanning || classicDiscovering;
+    }
+
+    public ScannedDevice getDevice(String address) {
+        return index.get(address);
+    }
+
+    /** Time from {@link #startScan()} to the first car heard, or -1 if none yet. */
+    public long getFirstCarLatencyMs() {
+        return firstCarLatencyMs;
+    }
+
+    private void onSighting(String address, String name, int rssi, boolean ble) {
+        // the BLE results already passed the service UUID filter in the controller
+        if (!ble && !index.matches(name)) {
+            return;
+        }
+        ScannedDevice previous = index.get(address);
+        if (!index.update(address, name, rssi, false, ble)) {
+            return;
+        }
+        if (firstCarLatencyMs < 0 && (previous == null || previous.getRssi() == ScannedDevice.RSSI_UNKNOWN)) {
+            firstCarLatencyMs = SystemClock.elapsedRealtime() - scanStartMs;
+            listener.onFirstCar(index.get(address), firstCarLatencyMs);
+        }
+        if (!dispatchPending) {
+            dispatchPending = true;
+            handler.postDelayed(dispatch, BATCH_INTERVAL_MS);
+        }
+    }
+
+    private void dispatch() {
+        dispatchPending = false;
+        if (index.isDirty()) {
+            listener.onDevicesChanged(index.takeSnapshot());
+        }
+    }
+
+    private void stopBleScan() {
+        if (bleScanning) {
+            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if (scanner != null) {
+                scanner.stopScan(scanCallback);
+            }
+            bleScanning = false;
+        }
+        finishIfDone();
+    }
+
+    private void finishIfDone() {
+        if (isScanning()) {
+            return;
+        }
+        if (receiverRegistered) {
+            context.unregisterReceiver(discoveryReceiver);
+            receiverRegistered = false;
+        }
+        handler.removeCallbacks(dispatch);
+        dispatch();
+        listener.onScanFinished(index.size());
+    }
+}
@@ -2,37 +2,105 @@ package com.ramware.espracer;
 
 import android.Manifest;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothSocket;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
+import android.graphics.Color;
+import android.hardware.SensorManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 import android.view.MotionEvent;
+import android.view.View;
 import android.widget.Button;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.EdgeToEdge;
+import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.graphics.Insets;
 import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.UUID;
+import java.io.Writer;
 import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * The driving screen. The link itself lives in {@link ControlService}; this
+ * activity attaches to it as a client, so recreating it (the orientation switch
+ * does) doesn't reconnect.
+ */
 public class ControlActivity extends AppCompatActivity {
-    private static final UUID ESP32_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    private BluetoothSocket socket;
-    private OutputStream outputStream;
+    private TextView connectionStateView;
+    // every finger merged into one vehicle state, only touched on the UI thread
+    private final InputState input = new InputState();
+    // null until the service is bound
+    private ControlSession session;
+    private ControlService controlService;
+    private boolean bound;
+    private final Handler overlayHandler = new Handler(Looper.getMainLooper());
+    private Runnable overlayUpdater;
+    private Runnable telemetryUpdater;
+    private Runnable healthUpdater;
+    private BluetoothDevice device;
+    private TransportType transportType;
+    private String overlayLabel;
+    private boolean showTelemetryPlot;
+    private TiltSteering tiltSteering;
+    private TiltInput tiltInput;
+    private int tiltSampleRateHz;
+    private ManeuverScript maneuverScript;
 
     private static final int REQUEST_BLUETOOTH_PERMISSION = 1;
+    static final String PROTOCOL_LEGACY = "legacy";
+    static final String PROTOCOL_FRAMED = "framed";
+    static final String JOYSTICK_DIGITAL = "digital";
+    static final String JOYSTICK_ANALOG = "analog";
+    static final String DEFAULT_MANEUVER_SCRIPT = "forward 800ms, right 300ms, stop";
+    static final String STEERING_JOYSTICK = "joystick";
+    static final String STEERING_TILT = "tilt";
+    private static final int TILT_CALIBRATION_SAMPLES = 50;
+    private static final long OVERLAY_REFRESH_MS = 500;
+    private static final long TELEMETRY_WINDOW_MS = 10000;
+
+    private final ControlService.Client client = new ControlService.Client() {
+        @Override
+        public void onStateChanged(ConnectionManager.State state) {
+            connectionStateView.setText(getString(R.string.connection_state, state.name()));
+        }
+
+        @Override
+        public void onSendError() {
+            Toast.makeText(ControlActivity.this, "Error sending command", Toast.LENGTH_SHORT).show();
+        }
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            controlService = ((ControlService.LocalBinder) binder).getService();
+            onSessionAttached(controlService.attach(device, transportType, client));
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            controlService = null;
+            session = null;
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -57,51 +125,56 @@ public class ControlActivity extends AppCompatActivity {
         Log.i("ORIENTATION: ", "onCreate: ControlActivity");
 
         String deviceAddress = getIntent().getStringExtra("DEVICE_ADDRESS");
-        BluetoothManager bluetoothmanager = (BluetoothManager) getApplicationContext().getSystemService(Context.BLUETOOTH_SERVICE);
-        BluetoothDevice device = bluetoothmanager.getAdapter().getRemoteDevice(deviceAddress);
+        device = AppServices.bluetoothAdapter(this).getRemoteDevice(deviceAddress);
         Log.i("INFO", "Got DEVICE at control activity: " + device.getName() + " " + device.getAddress());
 //        setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_LANDSCAPE);
-        try {
-            if (ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                // TODO: Consider calling
-                //    ActivityCompat#requestPermissions
-                // here to request the missing permissions, and then overriding
-                //   public void onRequestPermissionsResult(int requestCode, String[] permissions,
-                //                                          int[] grantResults)
-                // to handle the case where the user grants the permission. See the documentation
-                // for ActivityCompat#requestPermissions for more details.
-                ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.BLUETOOTH_CONNECT}, REQUEST_BLUETOOTH_PERMISSION);
-                return;
-            }
-            socket = device.createRfcommSocketToServiceRecord(ESP32_UUID);
-            socket.connect();
-            outputStream = socket.getOutputStream();
-        } catch (IOException e) {
-            Toast.makeText(this, "Error connecting to device", Toast.LENGTH_SHORT).show();
-            finish();
+        transportType = TransportType.fromName(getIntent().getStringExtra("TRANSPORT"));
+        String protocol = prefs.get().getString("protocol", PROTOCOL_LEGACY);
+        connectionStateView = findViewById(R.id.connection_state);
+        if (prefs.get().getBoolean("showLatencyOverlay", false)) {
+            overlayLabel = deviceAddress + "/" + transportType + "/" + protocol + "/" + Build.MODEL;
+        }
+        showTelemetryPlot = prefs.get().getBoolean("showTelemetryPlot", false);
+
+        if (transportType.isBluetooth() && ActivityCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.BLUETOOTH_CONNECT}, REQUEST_BLUETOOTH_PERMISSION);
+        } else {
+            bindControlService();
         }
-        Log.i("INFO", "connected to device: " + device.getName() + " " + device.getAddress());
 
         DigitalJoystick joystick = findViewById(R.id.joystick);
 
+        if (JOYSTICK_ANALOG.equals(prefs.get().getString("joystickMode", JOYSTICK_DIGITAL))) {
+            joystick.setMode(DigitalJoystick.Mode.ANALOG);
+            joystick.setDeadZone(prefs.get().getFloat("joystickDeadZone", 0.1f));
+            if (prefs.get().getBoolean("joystickExpo", false)) {
+                joystick.setResponseCurve(JoystickMath.ResponseCurve.EXPO, 0.5f);
+            }
+        }
         joystick.setOnJoystickMoveListener((x, y) -> {
-            Toast.makeText(this, "Joystick moved: X=" + x + " Y=" + y, Toast.LENGTH_SHORT).show();
-            if(x == 0 && y == 1) {
-                // up
-                sendCommand('0');
-            } else
-            if(x == 1 && y == 0) {
-                // right
-                sendCommand('2');
-            } else
-            if(x == 0 && y == -1) {
-                // down
-                sendCommand('1');
-            } else
-            if(x == -1 && y == 0) {
-                // left
-                sendCommand('3');
+            cancelManeuver();
+            if (input.setJoystick(x, y, joystick.getMaxOutput())) {
+                sendState();
+            }
+        });
+
+        if (STEERING_TILT.equals(prefs.get().getString("steeringMode", STEERING_JOYSTICK))) {
+            setUpTiltSteering(prefs.get());
+        }
+        Button steeringMode = findViewById(R.id.button_steering_mode);
+        steeringMode.setText(tiltInput != null ? R.string.steer_by_joystick : R.string.steer_by_tilt);
+        steeringMode.setOnClickListener(v -> {
+            if (tiltInput != null) {
+                tearDownTiltSteering();
+            } else {
+                setUpTiltSteering(prefs.get());
+                if (tiltInput != null) {
+                    tiltInput.start(tiltSampleRateHz);
+                }
             }
+            // a phone without an accelerometer stays on the joystick
+            prefs.get().edit().putString("steeringMode", tiltInput != null ? STEERING_TILT : STEERING_JOYSTICK).apply();
+            steeringMode.setText(tiltInput != null ? R.string.steer_by_joystick : R.string.steer_by_tilt);
         });
 
         Button buttonX = findViewById(R.id.button_F);
@@ -126,35 +199,267 @@ public class ControlActivity extends AppCompatActivity {
             editor.apply();
         });
 
-        buttonX.setOnTouchListener((view, event) -> handleButtonTouch(event, '4'));
-        buttonY.setOnTouchListener((view, event) -> handleButtonTouch(event, '5'));
-        buttonB.setOnTouchListener((view, event) -> handleButtonTouch(event, '6'));
-        buttonA.setOnTouchListener((view, event) -> handleButtonTouch(event, '7'));
-        stopButton.setOnTouchListener((view, event) -> handleButtonTouch(event, '9'));
+        buttonX.setOnTouchListener((view, event) -> handleButtonTouch(event, ControlState.BUTTON_F));
+        buttonY.setOnTouchListener((view, event) -> handleButtonTouch(event, ControlState.BUTTON_B));
+        buttonB.setOnTouchListener((view, event) -> handleButtonTouch(event, ControlState.BUTTON_L));
+        buttonA.setOnTouchListener((view, event) -> handleButtonTouch(event, ControlState.BUTTON_R));
+        stopButton.setOnTouchListener((view, event) -> handleButtonTouch(event, ControlState.BUTTON_STOP));
         exitActivity.setOnClickListener(view -> finish());
+        setUpManeuver(prefs.get().getString("maneuverScript", DEFAULT_MANEUVER_SCRIPT));
+    }
+
+    // compiled once here so a bad script is reported before the car is moving
+    private void setUpManeuver(String source) {
+        Button run = findViewById(R.id.button_maneuver);
+        try {
+            maneuverScript = ManeuverScript.compile(source);
+        } catch (IllegalArgumentException e) {
+            Toast.makeText(this, "Bad maneuver script: " + e.getMessage(), Toast.LENGTH_LONG).show();
+            run.setVisibility(View.GONE);
+            return;
+        }
+        run.setOnClickListener(v -> {
+            if (session != null) {
+                session.getManeuvers().run(maneuverScript);
+            }
+        });
+    }
+
+    // any manual input takes the car back from a script
+    private void cancelManeuver() {
+        if (session != null) {
+            session.getManeuvers().cancel();
+        }
+    }
+
+    // the joystick keeps the throttle; tilt takes over its steering
+    private void setUpTiltSteering(SharedPreferences prefs) {
+        tiltSteering = new TiltSteering();
+        if ("lowpass".equals(prefs.getString("tiltFilter", "complementary"))) {
+            tiltSteering.setFilter(TiltSteering.Filter.LOW_PASS);
+        }
+        tiltSteering.setLowPassCutoff(prefs.getFloat("tiltLowPassHz", 5f));
+        tiltSteering.setRange(prefs.getFloat("tiltDeadZone", 3f), prefs.getFloat("tiltFullLock", 35f));
+        tiltSteering.setZero(prefs.getFloat("tiltZero", 0f));
+        // nothing finer than one control tick can reach the car anyway
+        tiltSteering.setOutputRate(prefs.getInt("controlRateHz", ControlService.DEFAULT_CONTROL_RATE_HZ));
+        tiltSampleRateHz = prefs.getInt("tiltSampleRateHz", 100);
+        tiltInput = new TiltInput(getSystemService(SensorManager.class), getDisplay(), tiltSteering, x -> {
+            if (input.setTiltSteering(x, ControlState.AXIS_MAX)) {
+                sendState();
+            }
+        });
+        if (!tiltInput.isAvailable()) {
+            Toast.makeText(this, "No accelerometer, steering with the joystick", Toast.LENGTH_SHORT).show();
+            tiltInput = null;
+            return;
+        }
+        if (input.setTiltSteering(0, ControlState.AXIS_MAX)) {
+            sendState();
+        }
+        Button calibrate = findViewById(R.id.button_calibrate_tilt);
+        calibrate.setVisibility(View.VISIBLE);
+        calibrate.setOnClickListener(v -> tiltSteering.calibrate(TILT_CALIBRATION_SAMPLES));
+    }
+
+    // back to steering with the joystick's X axis
+    private void tearDownTiltSteering() {
+        tiltInput.stop();
+        getSharedPreferences("app_prefs", MODE_PRIVATE).edit().putFloat("tiltZero", tiltSteering.getZero()).apply();
+        tiltInput = null;
+        tiltSteering = null;
+        findViewById(R.id.button_calibrate_tilt).setVisibility(View.GONE);
+        if (input.clearTiltSteering()) {
+            sendState();
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        if (tiltInput != null) {
+            tiltInput.start(tiltSampleRateHz);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (tiltInput != null) {
+            tiltInput.stop();
+            getSharedPreferences("app_prefs", MODE_PRIVATE).edit().putFloat("tiltZero", tiltSteering.getZero()).apply();
+        }
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_BLUETOOTH_PERMISSION) {
+            if (grantResults.length > 0 && grantResults[0] == PackageManager.PERMISSION_GRANTED) {
+                bindControlService();
+            } else {
+                Toast.makeText(this, "Bluetooth permission is required to connect", Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        }
+    }
+
+    // the service must be foreground before binding, and needs the connect permission for that
+    private void bindControlService() {
+        ControlService.start(this);
+        bound = bindService(new Intent(this, ControlService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    private void onSessionAttached(ControlSession attached) {
+        session = attached;
+        // the new joystick starts centred, so the car does too
+        input.reset();
+        sendState();
+        connectionStateView.setText(getString(R.string.connection_state, attached.getConnectionManager().getState().name()));
+        if (overlayLabel != null && overlayUpdater == null) {
+            showLatencyOverlay(overlayLabel);
+        }
+        if (telemetryUpdater == null) {
+            showTelemetry(showTelemetryPlot);
+        }
+        if (healthUpdater == null) {
+            showLinkHealth();
+        }
+    }
+
+    private void showLinkHealth() {
+        TextView view = findViewById(R.id.link_health);
+        healthUpdater = new Runnable() {
+            @Override
+            public void run() {
+                ControlSession s = session;
+                if (s != null) {
+                    LinkQualityMonitor monitor = s.getLinkMonitor();
+                    view.setText(getString(s.getControlLoop().isHoldingStop() ? R.string.link_health_failsafe
+                            : R.string.link_health, monitor.summary()));
+                    switch (monitor.getHealth()) {
+                        case GOOD:
+                            view.setTextColor(Color.BLACK);
+                            break;
+                        case POOR:
+                            view.setTextColor(Color.rgb(0xC0, 0x80, 0x00));
+                            break;
+                        case LOST:
+                            view.setTextColor(Color.RED);
+                            break;
+                    }
+                }
+                overlayHandler.postDelayed(this, OVERLAY_REFRESH_MS);
+            }
+        };
+        overlayHandler.post(healthUpdater);
     }
 
-    private boolean handleButtonTouch(MotionEvent event, char command) {
-        switch (event.getAction()) {
+    private void showLatencyOverlay(String label) {
+        LatencyStats latencyStats = session.getLatencyStats();
+        AdaptiveRateController rateController = session.getRateController();
+        ManeuverScheduler maneuvers = session.getManeuvers();
+        InputMetrics inputMetrics = ((DigitalJoystick) findViewById(R.id.joystick)).getMetrics();
+        TextView overlay = findViewById(R.id.latency_overlay);
+        overlay.setVisibility(View.VISIBLE);
+        overlay.setOnLongClickListener(v -> {
+            exportLatencyCsv(latencyStats, inputMetrics, maneuvers, label);
+            return true;
+        });
+        overlayUpdater = new Runnable() {
+            @Override
+            public void run() {
+                overlay.setText(latencyStats.summary() + "\n" + inputMetrics.summary()
+                        + "\n" + rateController.summary() + "\n" + maneuvers.summary());
+                overlayHandler.postDelayed(this, OVERLAY_REFRESH_MS);
+            }
+        };
+        overlayHandler.post(overlayUpdater);
+    }
+
+    private void showTelemetry(boolean plot) {
+        TelemetryBuffer telemetry = session.getTelemetry();
+        if (plot) {
+            TelemetryPlotView plotView = findViewById(R.id.telemetry_plot);
+            plotView.setBuffer(telemetry);
+            plotView.setWindow(TELEMETRY_WINDOW_MS);
+            plotView.setVisibility(View.VISIBLE);
+        }
+        TextView battery = findViewById(R.id.battery_indicator);
+        TextView signal = findViewById(R.id.signal_strength);
+        telemetryUpdater = new Runnable() {
+            private long shownWriteCount;
+
+            @Override
+            public void run() {
+                long writeCount = telemetry.getWriteCount();
+                if (writeCount != shownWriteCount) {
+                    shownWriteCount = writeCount;
+                    battery.setText(getString(R.string.telemetry_battery, telemetry.getLatest(TelemetryBuffer.CHANNEL_BATTERY)));
+                    signal.setText(getString(R.string.telemetry_signal, (int) telemetry.getLatest(TelemetryBuffer.CHANNEL_RSSI)));
+                }
+                overlayHandler.postDelayed(this, OVERLAY_REFRESH_MS);
+            }
+        };
+        overlayHandler.post(telemetryUpdater);
+    }
+
+    private void exportLatencyCsv(LatencyStats latencyStats, InputMetrics inputMetrics, ManeuverScheduler maneuvers,
+                                  String label) {
+        long now = System.currentTimeMillis();
+        Context app = getApplicationContext();
+        // formatting the trace ring and writing it out takes long enough to drop frames, mid-drive
+        AppServices.fileExecutor().execute(() -> {
+            File dir = app.getExternalFilesDir(null);
+            File file = new File(dir, "latency-" + now + ".csv");
+            String message;
+            try (Writer writer = new FileWriter(file)) {
+                writer.write(LatencyStats.CSV_HEADER);
+                writer.write('\n');
+                latencyStats.writeCsv(writer, label);
+                inputMetrics.writeCsv(writer, label);
+                maneuvers.writeCsv(writer, label);
+                // the trace of the same run, to line the numbers up with what happened when
+                Tracer.global().dumpTo(new File(dir, "trace-" + now + ".txt"));
+                message = "Saved " + file.getName();
+            } catch (IOException e) {
+                message = "Error saving latency stats";
+            }
+            String shown = message;
+            runOnUiThread(() -> Toast.makeText(app, shown, Toast.LENGTH_SHORT).show());
+        });
+    }
+
+    // each button sees only its own pointers, but pointer ids are shared by the whole gesture
+    private boolean handleButtonTouch(MotionEvent event, int button) {
+        boolean changed;
+        switch (event.getActionMasked()) {
             case MotionEvent.ACTION_DOWN:
-                sendCommand(command);
-                return true;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                cancelManeuver();
+                changed = input.pointerDown(event.getPointerId(event.getActionIndex()), button);
+                break;
             case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP:
+                changed = input.pointerUp(event.getPointerId(event.getActionIndex()));
+                break;
             case MotionEvent.ACTION_CANCEL:
-                sendCommand('9');
+                changed = input.cancelButton(button);
+                break;
+            case MotionEvent.ACTION_MOVE:
                 return true;
+            default:
+                return false;
         }
-        return false;
+        if (changed) {
+            sendState();
+        }
+        return true;
     }
 
-    private void sendCommand(char command) {
-        try {
-            if (outputStream != null) {
-                outputStream.write(command);
-                Log.d("SEND", String.valueOf(command));
-            }
-        } catch (IOException e) {
-            Toast.makeText(this, "Error sending command", Toast.LENGTH_SHORT).show();
+    private void sendState() {
+        if (session != null) {
+            session.setState(input.getState());
         }
     }
 
@@ -162,12 +467,22 @@ public class ControlActivity extends AppCompatActivity {
     protected void onDestroy() {
         super.onDestroy();
         setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
-        try {
-            if (socket != null) {
-                socket.close();
+        if (overlayUpdater != null) {
+            overlayHandler.removeCallbacks(overlayUpdater);
+        }
+        if (telemetryUpdater != null) {
+            overlayHandler.removeCallbacks(telemetryUpdater);
+        }
+        if (healthUpdater != null) {
+            overlayHandler.removeCallbacks(healthUpdater);
+        }
+        if (bound) {
+            // the link stays with the service; only this screen goes away
+            if (controlService != null) {
+                controlService.detach(client);
             }
-        } catch (IOException e) {
-            Toast.makeText(this, "Error closing socket", Toast.LENGTH_SHORT).show();
+            unbindService(serviceConnection);
+            bound = false;
         }
     }
 }
\ No newline at end of file
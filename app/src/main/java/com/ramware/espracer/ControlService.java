@@ -0,0 +1,373 @@
+package com.ramware.espracer;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.ServiceInfo;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Owns the {@link ControlSession}, or in fleet mode the {@link FleetController},
+ * so links outlive the activities that drive them. Rotating or backgrounding {@link ControlActivity}, or going back to
+ * the scan screen, only detaches the client; the car is held at neutral and
+ * keeps getting keepalives. The session closes when another car is picked, when
+ * the notification's disconnect action is used, or after
+ * {@link #IDLE_TIMEOUT_MS} without a client.
+ *
+ * <p>Activities start it with {@link #start} and bind to it in the same process;
+ * all binder calls happen on the main thread.
+ */
+public class ControlService extends Service {
+    static final String ACTION_DISCONNECT = "com.ramware.espracer.action.DISCONNECT";
+    private static final String CHANNEL_ID = "control";
+    private static final int NOTIFICATION_ID = 1;
+    private static final long IDLE_TIMEOUT_MS = 120000;
+    static final int DEFAULT_CONTROL_RATE_HZ = 50;
+    private static final long KEEPALIVE_INTERVAL_MS = 250;
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+    private static final long PING_INTERVAL_MS = 500;
+    private static final long HEARTBEAT_INTERVAL_MS = 100;
+    private static final int TELEMETRY_CAPACITY = 1024;
+    private static final long FLEET_STATUS_REFRESH_MS = 1000;
+
+    /** A driving screen. Callbacks run on the main thread and stop once it detaches. */
+    public interface Client {
+        void onStateChanged(ConnectionManager.State state);
+
+        void onSendError();
+    }
+
+    public class LocalBinder extends Binder {
+        ControlService getService() {
+            return ControlService.this;
+        }
+    }
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable idleTimeout = this::disconnect;
+    private ControlSession session;
+    private FleetController fleet;
+    // the protocol the open links speak; switching it in settings needs new links
+    private boolean linksFramed;
+    private final Runnable fleetNotificationUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (fleet != null) {
+                getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, buildNotification(null));
+                handler.postDelayed(this, FLEET_STATUS_REFRESH_MS);
+            }
+        }
+    };
+    private Client client;
+    private String deviceName;
+
+    private long sessionsCreated;
+    private long sessionsReused;
+
+    static void start(Context context) {
+        context.startForegroundService(new Intent(context, ControlService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                getString(R.string.control_channel_name), NotificationManager.IMPORTANCE_LOW);
+        getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        SharedPreferences prefs = getSharedPreferences("app_prefs", MODE_PRIVATE);
+        Tracer.global().setEnabled(prefs.getBoolean("trace", true));
+        Tracer.dumpOnCrash(new File(getExternalFilesDir(null), "trace-crash.txt"));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_DISCONNECT.equals(intent.getAction())) {
+            disconnect();
+            return START_NOT_STICKY;
+        }
+        startForeground(NOTIFICATION_ID, buildNotification(ConnectionManager.State.IDLE),
+                ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+        if (session == null && client == null) {
+            handler.postDelayed(idleTimeout, IDLE_TIMEOUT_MS);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    /**
+     * Makes {@code client} the driving screen for the car, reusing the open
+     * session if it already drives that car over the same transport.
+     */
+    ControlSession attach(BluetoothDevice device, TransportType transportType, Client client) {
+        handler.removeCallbacks(idleTimeout);
+        this.client = client;
+        String address = device.getAddress();
+        SharedPreferences prefs = getSharedPreferences("app_prefs", MODE_PRIVATE);
+        if (session != null && session.isFor(address, transportType) && linksFramed == isFramed(prefs)) {
+            sessionsReused++;
+            updateRecording(prefs);
+            Log.i("INFO", "reusing link to " + address + ", " + session.getConnectionManager().getReconnectCount()
+                    + " reconnects, sessions created " + sessionsCreated + " reused " + sessionsReused);
+        } else {
+            closeLinks();
+            session = createSession(device, transportType);
+            sessionsCreated++;
+            session.start();
+        }
+        return session;
+    }
+
+    /**
+     * Makes {@code client} the driving screen for a fleet of the given cars,
+     * reusing the open fleet if it holds exactly these cars.
+     */
+    FleetController attachFleet(List<BluetoothDevice> devices, List<TransportType> transportTypes, Client client) {
+        handler.removeCallbacks(idleTimeout);
+        this.client = client;
+        SharedPreferences prefs = getSharedPreferences("app_prefs", MODE_PRIVATE);
+        if (fleet != null && isSameFleet(devices) && linksFramed == isFramed(prefs)) {
+            sessionsReused++;
+            Log.i("INFO", "reusing fleet of " + fleet.size() + " cars");
+            return fleet;
+        }
+        closeLinks();
+        String wifiHost = prefs.getString("wifiHost", TransportType.DEFAULT_WIFI_HOST);
+        int wifiPort = prefs.getInt("wifiPort", TransportType.DEFAULT_WIFI_PORT);
+        boolean framed = isFramed(prefs);
+        linksFramed = framed;
+        fleet = new FleetController(prefs.getInt("fleetThreads", FleetController.DEFAULT_THREADS),
+                prefs.getInt("controlRateHz", DEFAULT_CONTROL_RATE_HZ), KEEPALIVE_INTERVAL_MS);
+        fleet.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        if (framed) {
+            fleet.setPingInterval(PING_INTERVAL_MS);
+        }
+        fleet.setListener((car, state) -> Log.i("INFO", "fleet car " + car.getId() + " -> " + state));
+        for (int i = 0; i < devices.size(); i++) {
+            BluetoothDevice device = devices.get(i);
+            TransportType type = transportTypes.get(i);
+            fleet.addCar(device.getAddress(), () -> createTransport(type, device, wifiHost, wifiPort),
+                    framed ? new FrameEncoder() : new LegacyCommandEncoder());
+        }
+        sessionsCreated++;
+        fleet.start();
+        handler.post(fleetNotificationUpdater);
+        return fleet;
+    }
+
+    private boolean isSameFleet(List<BluetoothDevice> devices) {
+        if (fleet.size() != devices.size()) {
+            return false;
+        }
+        for (BluetoothDevice device : devices) {
+            if (fleet.getCar(device.getAddress()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The client is gone for now; the cars stop but the links stay up. */
+    void detach(Client client) {
+        if (this.client != client) {
+            return;
+        }
+        this.client = null;
+        if (session != null) {
+            session.setState(ControlState.NEUTRAL);
+        }
+        if (fleet != null) {
+            fleet.broadcast(ControlState.NEUTRAL);
+        }
+        handler.postDelayed(idleTimeout, IDLE_TIMEOUT_MS);
+    }
+
+    /** Closes the links and stops the service. */
+    void disconnect() {
+        handler.removeCallbacks(idleTimeout);
+        closeLinks();
+        stopForeground(STOP_FOREGROUND_REMOVE);
+        stopSelf();
+    }
+
+    private void closeLinks() {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        if (fleet != null) {
+            handler.removeCallbacks(fleetNotificationUpdater);
+            fleet.close();
+            fleet = null;
+        }
+    }
+
+    ControlSession getSession() {
+        return session;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(idleTimeout);
+        closeLinks();
+    }
+
+    private static boolean isFramed(SharedPreferences prefs) {
+        return ControlActivity.PROTOCOL_FRAMED.equals(prefs.getString("protocol", ControlActivity.PROTOCOL_LEGACY));
+    }
+
+    private ControlSession createSession(BluetoothDevice device, TransportType transportType) {
+        SharedPreferences prefs = getSharedPreferences("app_prefs", MODE_PRIVATE);
+        String wifiHost = prefs.getString("wifiHost", TransportType.DEFAULT_WIFI_HOST);
+        int wifiPort = prefs.getInt("wifiPort", TransportType.DEFAULT_WIFI_PORT);
+        boolean framed = isFramed(prefs);
+        linksFramed = framed;
+        ControlSession created = new ControlSession(device.getAddress(), transportType,
+                () -> createTransport(transportType, device, wifiHost, wifiPort),
+                framed ? new FrameEncoder() : new LegacyCommandEncoder(),
+                prefs.getInt("controlRateHz", DEFAULT_CONTROL_RATE_HZ), KEEPALIVE_INTERVAL_MS, TELEMETRY_CAPACITY);
+        created.getConnectionManager().setConnectTimeout(CONNECT_TIMEOUT_MS);
+        created.setAdaptiveRate(prefs.getBoolean("adaptiveRate", true));
+        if (framed) {
+            // only the framed firmware echoes pings and heartbeats
+            created.getControlLoop().setPingInterval(PING_INTERVAL_MS);
+            created.getControlLoop().setHeartbeatInterval(HEARTBEAT_INTERVAL_MS);
+        }
+        if (prefs.getBoolean("recordSessions", false)) {
+            SessionRecorder recorder = openRecorder();
+            if (recorder != null) {
+                created.setRecorder(recorder);
+            }
+        }
+        deviceName = device.getName();
+        created.setListener(new ControlSession.Listener() {
+            @Override
+            public void onStateChanged(ConnectionManager.State previous, ConnectionManager.State state) {
+                Log.i("INFO", "connection " + previous + " -> " + state);
+                handler.post(() -> {
+                    if (session != created) {
+                        return;
+                    }
+                    getSystemService(NotificationManager.class).notify(NOTIFICATION_ID, buildNotification(state));
+                    if (client != null) {
+                        client.onStateChanged(state);
+                    }
+                });
+            }
+
+            @Override
+            public void onConnected(Transport transport, long connectMs) {
+                AppServices.deviceRegistry(ControlService.this).recordConnect(device.getAddress(), device.getName(),
+                        transportType, System.currentTimeMillis(), connectMs);
+                Log.i("INFO", "connected to device: " + device.getAddress() + " over " + transportType + " in " + connectMs + " ms");
+            }
+
+            @Override
+            public void onSendError(Transport transport, IOException e) {
+                handler.post(() -> {
+                    if (session == created && client != null) {
+                        client.onSendError();
+                    }
+                });
+            }
+        });
+        return created;
+    }
+
+    // a reused link follows the recordSessions pref as it is now
+    private void updateRecording(SharedPreferences prefs) {
+        SessionRecorder current = session.getRecorder();
+        boolean record = prefs.getBoolean("recordSessions", false);
+        if (record && current == null) {
+            SessionRecorder recorder = openRecorder();
+            if (recorder != null) {
+                session.setRecorder(recorder);
+            }
+        } else if (!record && current != null) {
+            session.setRecorder(null);
+            AppServices.fileExecutor().execute(() -> {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    Log.e("ERROR", "cannot finish session recording", e);
+                }
+            });
+        }
+    }
+
+    private SessionRecorder openRecorder() {
+        File dir = new File(getExternalFilesDir(null), "sessions");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e("ERROR", "cannot create " + dir);
+            return null;
+        }
+        try {
+            return SessionRecorder.open(new File(dir, "session-" + System.currentTimeMillis() + ".espr"));
+        } catch (IOException e) {
+            Log.e("ERROR", "cannot record session", e);
+            return null;
+        }
+    }
+
+    private Transport createTransport(TransportType type, BluetoothDevice device, String wifiHost, int wifiPort) throws IOException {
+        switch (type) {
+            case BLE:
+                return new BleGattTransport(this, device);
+            case UDP:
+                return new UdpTransport(wifiHost, wifiPort);
+            case TCP:
+                return new TcpTransport(wifiHost, wifiPort, (int) CONNECT_TIMEOUT_MS);
+            case RFCOMM:
+            default:
+                return new RfcommTransport(device);
+        }
+    }
+
+    /** {@code state} is ignored in fleet mode, which shows how many cars are connected instead. */
+    private Notification buildNotification(ConnectionManager.State state) {
+        Intent disconnect = new Intent(this, ControlService.class).setAction(ACTION_DISCONNECT);
+        PendingIntent disconnectIntent = PendingIntent.getService(this, 0, disconnect, PendingIntent.FLAG_IMMUTABLE);
+        String title;
+        String text;
+        if (fleet != null) {
+            int connected = 0;
+            for (FleetCar car : fleet.getCars()) {
+                if (car.getTransport() != null) {
+                    connected++;
+                }
+            }
+            title = getString(R.string.fleet_notification_title, fleet.size());
+            text = getString(R.string.fleet_connected, connected, fleet.size());
+        } else {
+            String name = session == null ? null : deviceName != null ? deviceName : session.getAddress();
+            title = name != null ? name : getString(R.string.app_name);
+            text = getString(R.string.connection_state, state.name());
+        }
+        return new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(title)
+                .setContentText(text)
+                .setOngoing(true)
+                .addAction(new Notification.Action.Builder(null, getString(R.string.disconnect), disconnectIntent).build())
+                .build();
+    }
+}
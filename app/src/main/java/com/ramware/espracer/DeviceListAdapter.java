@@ -0,0 +1,116 @@
+package com.ramware.espracer;
+
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.util.List;
+
+/**
+ * Scan results for the device list. New snapshots are diffed off the main thread
+ * by {@link ListAdapter}; a device whose signal strength alone changed only gets
+ * its detail line rebound.
+ */
+public class DeviceListAdapter extends ListAdapter<ScannedDevice, DeviceListAdapter.ViewHolder> {
+
+    public interface OnDeviceClickListener {
+        void onDeviceClick(ScannedDevice device);
+    }
+
+    private static final Object PAYLOAD_DETAILS = new Object();
+
+    private static final DiffUtil.ItemCallback<ScannedDevice> DIFF = new DiffUtil.ItemCallback<ScannedDevice>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ScannedDevice oldItem, @NonNull ScannedDevice newItem) {
+            return oldItem.getAddress().equals(newItem.getAddress());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ScannedDevice oldItem, @NonNull ScannedDevice newItem) {
+            return oldItem.equals(newItem);
+        }
+
+        @Override
+        public Object getChangePayload(@NonNull ScannedDevice oldItem, @NonNull ScannedDevice newItem) {
+            boolean sameName = oldItem.getName() == null ? newItem.getName() == null : oldItem.getName().equals(newItem.getName());
+            return sameName ? PAYLOAD_DETAILS : null;
+        }
+    };
+
+    private final OnDeviceClickListener clickListener;
+    private final OnDeviceClickListener longClickListener;
+
+    public DeviceListAdapter(OnDeviceClickListener clickListener, OnDeviceClickListener longClickListener) {
+        super(DIFF);
+        this.clickListener = clickListener;
+        this.longClickListener = longClickListener;
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(android.R.layout.simple_list_item_2, parent, false);
+        ViewHolder holder = new ViewHolder(view);
+        view.setOnClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                clickListener.onDeviceClick(getItem(position));
+            }
+        });
+        view.setOnLongClickListener(v -> {
+            int position = holder.getBindingAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                longClickListener.onDeviceClick(getItem(position));
+            }
+            return true;
+        });
+        return holder;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        ScannedDevice device = getItem(position);
+        holder.name.setText(device.getName() != null ? device.getName() : device.getAddress());
+        bindDetails(holder, device);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.contains(PAYLOAD_DETAILS)) {
+            bindDetails(holder, getItem(position));
+        } else {
+            onBindViewHolder(holder, position);
+        }
+    }
+
+    private static void bindDetails(ViewHolder holder, ScannedDevice device) {
+        StringBuilder details = new StringBuilder(device.getAddress());
+        if (device.getRssi() != ScannedDevice.RSSI_UNKNOWN) {
+            details.append("  ").append(device.getRssi()).append(" dBm");
+        }
+        if (device.isBle()) {
+            details.append("  BLE");
+        }
+        if (device.isBonded()) {
+            details.append("  paired");
+        }
+        holder.details.setText(details);
+    }
+
+    static class ViewHolder extends RecyclerView.ViewHolder {
+        final TextView name;
+        final TextView details;
+
+        ViewHolder(View itemView) {
+            super(itemView);
+            name = itemView.findViewById(android.R.id.text1);
+            details = itemView.findViewById(android.R.id.text2);
+        }
+    }
+}
@@ -5,84 +5,258 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.util.AttributeSet;
+import android.view.Choreographer;
 import android.view.MotionEvent;
 import android.view.View;
 
 import androidx.annotation.NonNull;
 
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-screen joystick. Touch events only quantize their samples, including the
+ * historical ones batched into each move; the result is reported to the
+ * listener and drawn once per display frame from a {@link Choreographer}
+ * callback, and only if the quantized position changed. Input is dispatched
+ * at the start of the frame, so that callback runs in the same frame and
+ * adds no delay.
+ */
+public class DigitalJoystick extends View implements Choreographer.FrameCallback {
+    public enum Mode {
+        /** Four directions, reported as -1, 0 or 1 per axis. */
+        DIGITAL,
+        /** Proportional deflection, reported as signed fixed-point values. */
+        ANALOG
+    }
 
-public class DigitalJoystick extends View {
     private static final int CENTER = 0;
     private static final int EDGE = 1;
+    private static final int NO_POINTER = -1;
     private int joystickX = CENTER;
     private int joystickY = CENTER;
-    private Paint paint;
+    private final Paint basePaint = new Paint();
+    private final Paint knobPaint = new Paint();
     private OnJoystickMoveListener joystickMoveListener;
-    private static final float deadZone = 0.3f;
+    private Mode mode = Mode.DIGITAL;
+    private float deadZone = 0.3f;
+    private JoystickMath.ResponseCurve responseCurve = JoystickMath.ResponseCurve.LINEAR;
+    private float expo = 0.5f;
+    private int resolutionBits = JoystickMath.RESOLUTION_8_BIT;
+    // the finger steering; others landing on the joystick are ignored
+    private int activePointerId = NO_POINTER;
+
+    // what the listener and the last draw have seen
+    private int publishedX = CENTER;
+    private int publishedY = CENTER;
+    private int drawnX = CENTER;
+    private int drawnY = CENTER;
+    // time of the sample that first moved away from the published position, or 0
+    private long pendingSinceNanos;
+    private boolean frameCallbackPosted;
+    private long lastFrameNanos;
+    private final InputMetrics metrics = new InputMetrics();
+
+    // cached in onSizeChanged()
+    private float centerX;
+    private float centerY;
+    private float radius;
+    private float knobRadius;
+    private float travelX;
+    private float travelY;
 
     public DigitalJoystick(Context context, AttributeSet attrs) {
         super(context, attrs);
-        paint = new Paint();
+        basePaint.setColor(Color.GRAY);
+        basePaint.setStyle(Paint.Style.FILL);
+        knobPaint.setColor(Color.BLUE);
+        knobPaint.setStyle(Paint.Style.FILL);
+    }
+
+    public void setMode(Mode mode) {
+        this.mode = mode;
+        joystickX = CENTER;
+        joystickY = CENTER;
+        publishedX = CENTER;
+        publishedY = CENTER;
+        pendingSinceNanos = 0;
+        invalidate();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /** Dead zone as a fraction of the joystick radius; per axis in digital mode, radial in analog mode. */
+    public void setDeadZone(float deadZone) {
+        this.deadZone = Math.max(0f, Math.min(0.95f, deadZone));
+    }
+
+    public void setResponseCurve(JoystickMath.ResponseCurve curve, float expo) {
+        this.responseCurve = curve;
+        this.expo = Math.max(0f, Math.min(1f, expo));
+    }
+
+    /** Fixed-point width of analog output: {@link JoystickMath#RESOLUTION_8_BIT} or {@link JoystickMath#RESOLUTION_16_BIT}. */
+    public void setResolution(int resolutionBits) {
+        JoystickMath.maxValue(resolutionBits);
+        this.resolutionBits = resolutionBits;
+    }
+
+    /** Largest value reported per axis in the current mode. */
+    public int getMaxOutput() {
+        return mode == Mode.ANALOG ? JoystickMath.maxValue(resolutionBits) : EDGE;
+    }
+
+    public InputMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        centerX = w / 2f;
+        centerY = h / 2f;
+        radius = Math.min(w, h) / 2f;
+        knobRadius = Math.min(w, h) / 8f;
+        travelX = centerX - knobRadius;
+        travelY = centerY - knobRadius;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        Choreographer.getInstance().removeFrameCallback(this);
+        frameCallbackPosted = false;
+        lastFrameNanos = 0;
+        super.onDetachedFromWindow();
     }
 
     @Override
     protected  void onDraw(@NonNull Canvas canvas) {
         super.onDraw(canvas);
-        int width = getWidth();
-        int height = getHeight();
-        paint.setColor(Color.GRAY);
-        paint.setStyle(Paint.Style.FILL);
-        canvas.drawCircle(width / 2f, height / 2f, Math.min(width, height) / 2f, paint);
-        paint.setColor(Color.BLUE);
-        float joystickRadius = Math.min(width, height) / 8f;
-        float posX = width / 2f + joystickX * (width / 2f - joystickRadius);
-        float posY = height / 2f - joystickY * (height / 2f - joystickRadius);
-        canvas.drawCircle(posX, posY, joystickRadius, paint);
+        drawnX = joystickX;
+        drawnY = joystickY;
+        canvas.drawCircle(centerX, centerY, radius, basePaint);
+        float max = getMaxOutput();
+        canvas.drawCircle(centerX + drawnX / max * travelX, centerY - drawnY / max * travelY, knobRadius, knobPaint);
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        if(event.getAction() == MotionEvent.ACTION_DOWN || event.getAction() == MotionEvent.ACTION_MOVE) {
-            float x = event.getX();
-            float y = event.getY();
-            float centerX = getWidth() / 2f;
-            float centerY = getHeight() / 2f;
-            float radius = Math.min(getWidth(), getHeight()) / 2f;
-
-            float dx = (x - centerX) /radius;
-            float dy = (y - centerY) / radius;
-
-            if(Math.abs(dx) < deadZone) dx = 0;
-            if(Math.abs(dy) < deadZone) dy = 0;
-
-            if (Math.abs(dx) > Math.abs(dy)) {
-                joystickX = (dx > 0 ? EDGE : (dx < 0 ? -EDGE : CENTER));
-                joystickY = CENTER;
-            } else {
-                joystickY = (dy < 0 ? EDGE : (dy > 0 ? -EDGE : CENTER));
-                joystickX = CENTER;
-            }
-            if(joystickMoveListener != null) {
-                joystickMoveListener.onMove(joystickX, joystickY);
-            }
-            invalidate();
-            return true;
-        } else if(event.getAction() == MotionEvent.ACTION_UP) {
-            joystickX = CENTER;
-            joystickY = CENTER;
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+            case MotionEvent.ACTION_POINTER_DOWN:
+                if (activePointerId == NO_POINTER) {
+                    int index = event.getActionIndex();
+                    activePointerId = event.getPointerId(index);
+                    metrics.recordEvent(0);
+                    sample(event.getX(index), event.getY(index), event.getEventTime());
+                    scheduleFrame();
+                }
+                return true;
+            case MotionEvent.ACTION_MOVE:
+                track(event);
+                return true;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP:
+                if (event.getPointerId(event.getActionIndex()) == activePointerId) {
+                    release(event.getEventTime());
+                }
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                release(event.getEventTime());
+                return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+    // a move event carries every sample since the last frame; walk them oldest first
+    private void track(MotionEvent event) {
+        int index = event.findPointerIndex(activePointerId);
+        if (index < 0) {
+            return;
+        }
+        int history = event.getHistorySize();
+        metrics.recordEvent(history);
+        for (int pos = 0; pos < history; pos++) {
+            sample(event.getHistoricalX(index, pos), event.getHistoricalY(index, pos), event.getHistoricalEventTime(pos));
+        }
+        sample(event.getX(index), event.getY(index), event.getEventTime());
+        scheduleFrame();
+    }
+
+    private void sample(float x, float y, long eventTimeMs) {
+        float dx = (x - centerX) / radius;
+        float dy = (y - centerY) / radius;
+        int packed = mode == Mode.ANALOG
+                ? JoystickMath.quantizeAnalog(dx, dy, deadZone, responseCurve, expo, resolutionBits)
+                : JoystickMath.quantizeDigital(dx, dy, deadZone);
+        moveTo(JoystickMath.unpackX(packed), JoystickMath.unpackY(packed), eventTimeMs);
+    }
+
+    private void release(long eventTimeMs) {
+        activePointerId = NO_POINTER;
+        moveTo(CENTER, CENTER, eventTimeMs);
+        scheduleFrame();
+    }
+
+    // most samples don't change the quantized output, so this is usually a no-op
+    private void moveTo(int x, int y, long eventTimeMs) {
+        if (x == joystickX && y == joystickY) {
+            return;
+        }
+        joystickX = x;
+        joystickY = y;
+        if (x == publishedX && y == publishedY) {
+            pendingSinceNanos = 0;
+        } else if (pendingSinceNanos == 0) {
+            // event times are uptimeMillis, which shares its clock with System.nanoTime()
+            pendingSinceNanos = TimeUnit.MILLISECONDS.toNanos(eventTimeMs);
+        }
+    }
+
+    private void scheduleFrame() {
+        if (!frameCallbackPosted) {
+            frameCallbackPosted = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        frameCallbackPosted = false;
+        if (pendingSinceNanos != 0) {
+            publishedX = joystickX;
+            publishedY = joystickY;
             if (joystickMoveListener != null) {
-                joystickMoveListener.onMove(joystickX, joystickY);
+                joystickMoveListener.onMove(publishedX, publishedY);
             }
+            long now = System.nanoTime();
+            metrics.recordPublish(now - pendingSinceNanos);
+            Tracer.trace(Tracer.INPUT, now, (long) publishedX << 32 | publishedY & 0xFFFFFFFFL, now - pendingSinceNanos);
+            pendingSinceNanos = 0;
+        }
+        boolean redraw = joystickX != drawnX || joystickY != drawnY;
+        if (redraw) {
             invalidate();
-            return true;
         }
-        return super.onTouchEvent(event);
+        if (lastFrameNanos != 0) {
+            metrics.recordFrame(frameTimeNanos - lastFrameNanos, redraw);
+        }
+        // keep sampling frame times while a finger is down
+        if (activePointerId != NO_POINTER) {
+            lastFrameNanos = frameTimeNanos;
+            scheduleFrame();
+        } else {
+            lastFrameNanos = 0;
+        }
     }
+
     public void setOnJoystickMoveListener(OnJoystickMoveListener listener) {
         this.joystickMoveListener = listener;
     }
 
     public interface OnJoystickMoveListener {
+        /** Digital mode reports -1, 0 or 1; analog mode reports up to {@link #getMaxOutput()}. Called once per frame at most. */
         void onMove(int x, int y);
     }
 }
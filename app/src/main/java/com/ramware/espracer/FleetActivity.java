@@ -0,0 +1,154 @@
+package com.ramware.espracer;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.view.MotionEvent;
+import android.widget.Button;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives several cars at once through the {@link FleetController} held by
+ * {@link ControlService}. The joystick drives every car, or the one picked with
+ * the target button, which cycles through the cars.
+ */
+public class FleetActivity extends AppCompatActivity {
+    private static final long STATUS_REFRESH_MS = 500;
+
+    // full state of the current target, only touched on the UI thread
+    private long controlState = ControlState.NEUTRAL;
+    private FleetController fleet;
+    private ControlService controlService;
+    private boolean bound;
+    // index into the fleet's cars, or -1 for all of them
+    private int target = -1;
+    private final List<BluetoothDevice> devices = new ArrayList<>();
+    private final List<TransportType> transportTypes = new ArrayList<>();
+    private final Handler statusHandler = new Handler(Looper.getMainLooper());
+    private Runnable statusUpdater;
+
+    private final ControlService.Client client = new ControlService.Client() {
+        @Override
+        public void onStateChanged(ConnectionManager.State state) {
+        }
+
+        @Override
+        public void onSendError() {
+        }
+    };
+
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            controlService = ((ControlService.LocalBinder) binder).getService();
+            fleet = controlService.attachFleet(devices, transportTypes, client);
+            controlState = ControlState.NEUTRAL;
+            sendState();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            controlService = null;
+            fleet = null;
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_fleet);
+
+        String[] addresses = getIntent().getStringArrayExtra("DEVICE_ADDRESSES");
+        String[] transports = getIntent().getStringArrayExtra("TRANSPORTS");
+        BluetoothAdapter adapter = AppServices.bluetoothAdapter(this);
+        for (int i = 0; i < addresses.length; i++) {
+            devices.add(adapter.getRemoteDevice(addresses[i]));
+            transportTypes.add(TransportType.fromName(transports != null ? transports[i] : null));
+        }
+
+        DigitalJoystick joystick = findViewById(R.id.joystick);
+        joystick.setOnJoystickMoveListener((x, y) -> {
+            controlState = ControlState.fromJoystick(controlState, x, y, joystick.getMaxOutput());
+            sendState();
+        });
+        Button stopButton = findViewById(R.id.button_stop);
+        stopButton.setOnTouchListener((view, event) -> {
+            int action = event.getActionMasked();
+            if (action == MotionEvent.ACTION_DOWN && fleet != null) {
+                fleet.broadcast(ControlState.withButtons(ControlState.NEUTRAL, ControlState.BUTTON_STOP));
+            } else if ((action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) && fleet != null) {
+                fleet.broadcast(ControlState.NEUTRAL);
+            }
+            return false;
+        });
+        Button targetButton = findViewById(R.id.fleet_target);
+        targetButton.setOnClickListener(v -> {
+            // leave the car we were driving at rest before switching
+            controlState = ControlState.NEUTRAL;
+            sendState();
+            target = target + 1 < devices.size() ? target + 1 : -1;
+            targetButton.setText(target < 0 ? getString(R.string.fleet_target_all)
+                    : getString(R.string.fleet_target_car, addresses[target]));
+        });
+
+        TextView status = findViewById(R.id.fleet_status);
+        statusUpdater = new Runnable() {
+            @Override
+            public void run() {
+                FleetController f = fleet;
+                if (f != null) {
+                    StringBuilder text = new StringBuilder();
+                    for (FleetCar car : f.getCars()) {
+                        if (text.length() > 0) {
+                            text.append('\n');
+                        }
+                        text.append(car.summary());
+                    }
+                    status.setText(text);
+                }
+                statusHandler.postDelayed(this, STATUS_REFRESH_MS);
+            }
+        };
+        statusHandler.post(statusUpdater);
+
+        ControlService.start(this);
+        bound = bindService(new Intent(this, ControlService.class), serviceConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    private void sendState() {
+        FleetController f = fleet;
+        if (f == null) {
+            return;
+        }
+        if (target < 0) {
+            f.broadcast(controlState);
+        } else {
+            f.setState(devices.get(target).getAddress(), controlState);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        statusHandler.removeCallbacks(statusUpdater);
+        if (bound) {
+            if (controlService != null) {
+                controlService.detach(client);
+            }
+            unbindService(serviceConnection);
+            bound = false;
+        }
+    }
+}
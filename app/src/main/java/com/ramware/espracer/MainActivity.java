@@ -1,40 +1,39 @@
 package com.ramware.espracer;
 
-import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.widget.ArrayAdapter;
+import android.util.Log;
 import android.widget.Button;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
-import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 public class MainActivity extends AppCompatActivity {
 
-    private final List<BluetoothDevice> discoveredDevices = new ArrayList<>();
-    private ListView deviceListView;
+    private static final int REQUEST_LOCATION_PERMISSION = 1002;
+    private RecyclerView deviceListView;
     private TextView noDevicesTextView;
-    private BluetoothDevice selectedDevice;
+    private ScannedDevice selectedDevice;
+    private final Map<String, ScannedDevice> fleetSelection = new LinkedHashMap<>();
     private boolean deviceSelectedbool = false;
-    private ArrayAdapter<String> deviceListAdapter;
-    private BluetoothScanner bluetoothScanner;
+    private boolean fleetMode;
+    private DeviceListAdapter deviceListAdapter;
+    private CarScanner carScanner;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -42,11 +41,12 @@ public class MainActivity extends AppCompatActivity {
         setContentView(R.layout.activity_main);
 
         Button actionButton = findViewById(R.id.scan_button);
+        findViewById(R.id.settings_button).setOnClickListener(v -> startActivity(new Intent(this, SettingsActivity.class)));
         deviceListView = findViewById(R.id.device_list);
         noDevicesTextView = findViewById(R.id.no_devices_text);
 
-        BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-        BluetoothAdapter bluetoothAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+        // looked up during the splash, see SplashScreen
+        BluetoothAdapter bluetoothAdapter = AppServices.bluetoothAdapter(this);
         SwipeRefreshLayout swipeRefreshLayout = findViewById(R.id.swipe_refresh);
         swipeRefreshLayout.setEnabled(false);
         if (bluetoothAdapter == null || !bluetoothAdapter.isEnabled()) {
@@ -66,47 +66,56 @@ public class MainActivity extends AppCompatActivity {
 //            Toast.makeText(this, "Bluetooth is enabled", Toast.LENGTH_SHORT).show();
             actionButton.setText(R.string.scan);
             if (checkPermissions()) {
-                deviceListAdapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1, new ArrayList<>());
-                deviceListView.setAdapter(deviceListAdapter);
-                Set<BluetoothDevice> pairedDevice = bluetoothAdapter.getBondedDevices();
-                if (pairedDevice != null && !pairedDevice.isEmpty()) {
-                    for (BluetoothDevice device : pairedDevice) {
-                        discoveredDevices.add(device);
-                        deviceListAdapter.add(device.getName() + " (" + device.getAddress() + ")");
+                deviceListAdapter = new DeviceListAdapter(device -> {
+                    if (fleetMode) {
+                        // every tap adds or removes a car from the fleet
+                        if (fleetSelection.remove(device.getAddress()) == null) {
+                            fleetSelection.put(device.getAddress(), device);
+                        }
+                        Toast.makeText(this, fleetSelection.size() + " cars selected", Toast.LENGTH_SHORT).show();
+                        deviceSelectedbool = !fleetSelection.isEmpty();
+                    } else {
+                        selectedDevice = device;
+                        Toast.makeText(this, "Selected: " + device.getName(), Toast.LENGTH_SHORT).show();
+                        deviceSelectedbool = true;
                     }
-                }
+                    actionButton.setText(R.string.connect);
+                }, this::chooseTransport);
+                deviceListView.setLayoutManager(new LinearLayoutManager(this));
+                deviceListView.setAdapter(deviceListAdapter);
 
-                bluetoothScanner = new BluetoothScanner(this, new OnScanResultListener() {
+                String namePrefix = getSharedPreferences("app_prefs", MODE_PRIVATE)
+                        .getString("carNamePrefix", CarScanner.DEFAULT_NAME_PREFIX);
+                carScanner = new CarScanner(this, bluetoothAdapter, namePrefix, new CarScanner.Listener() {
                     @Override
                     public void onScanStarted() {
                         Toast.makeText(MainActivity.this, "Scan started", Toast.LENGTH_SHORT).show();
                         actionButton.setVisibility(Button.GONE);
-                        discoveredDevices.clear();
-                        deviceListAdapter.clear();
                         noDevicesTextView.setVisibility(TextView.GONE);
-                        deviceListView.setVisibility(ListView.VISIBLE);
-                        Set<BluetoothDevice> pairedDevice = bluetoothAdapter.getBondedDevices();
-                        if (pairedDevice != null && !pairedDevice.isEmpty()) {
-                            for (BluetoothDevice device : pairedDevice) {
-                                discoveredDevices.add(device);
-                                deviceListAdapter.add(device.getName() + " (" + device.getAddress() + ")");
+                        deviceListView.setVisibility(RecyclerView.VISIBLE);
+                        swipeRefreshLayout.setRefreshing(false);
+                    }
+
+                    @Override
+                    public void onDevicesChanged(List<ScannedDevice> devices) {
+                        deviceListAdapter.submitList(devices);
+                        DeviceRegistry registry = AppServices.deviceRegistry(MainActivity.this);
+                        for (ScannedDevice device : devices) {
+                            if (device.getRssi() != ScannedDevice.RSSI_UNKNOWN) {
+                                registry.recordSighting(device.getAddress(), device.getName(), device.getRssi());
                             }
                         }
-                        swipeRefreshLayout.setRefreshing(false);
                     }
 
                     @Override
-                    public void onDeviceFound(BluetoothDevice device) {
-//                        Toast.makeText(MainActivity.this, "Device found: " + device.getName(), Toast.LENGTH_SHORT).show();
-                        discoveredDevices.add(device);
-                        deviceListAdapter.add(device.getName() + " (" + device.getAddress() + ")");
+                    public void onFirstCar(ScannedDevice device, long elapsedMs) {
+                        Log.i("INFO", "first car " + device + " found " + elapsedMs + " ms after scan start");
                     }
 
                     @Override
-                    public void onScanFinished(List<BluetoothDevice> devices) {
-//                        Toast.makeText(MainActivity.this, "Scan finished. Found " + devices.size() + " devices.", Toast.LENGTH_SHORT).show();
-                        if (devices.isEmpty()) {
-                            deviceListView.setVisibility(ListView.GONE);
+                    public void onScanFinished(int deviceCount) {
+                        if (deviceCount == 0) {
+                            deviceListView.setVisibility(RecyclerView.GONE);
                             noDevicesTextView.setVisibility(TextView.VISIBLE);
                         }
                         actionButton.setVisibility(Button.VISIBLE);
@@ -116,152 +125,122 @@ public class MainActivity extends AppCompatActivity {
                     @Override
                     public void onScanFailed(String message) {
                         Toast.makeText(MainActivity.this, "Scan failed: " + message, Toast.LENGTH_SHORT).show();
+                        actionButton.setVisibility(Button.VISIBLE);
+                        swipeRefreshLayout.setRefreshing(false);
                     }
                 });
 
-                deviceListView.setOnItemClickListener((parent, view, position, id) -> {
-                    selectedDevice = discoveredDevices.get(position);
-                    Toast.makeText(this, "Selected: " + selectedDevice.getName(), Toast.LENGTH_SHORT).show();
-                    actionButton.setText(R.string.connect);
-                    deviceSelectedbool = true;
-                });
-
                 swipeRefreshLayout.setOnRefreshListener(() -> {
                     if (checkPermissions()) {
-                        bluetoothScanner.startScan();
+                        carScanner.startScan();
                     }
                 });
 
                 actionButton.setOnClickListener(var -> {
                     if ("Scan".contentEquals(actionButton.getText())) {
                         if (checkPermissions()) {
-                            bluetoothScanner.startScan();
+                            carScanner.startScan();
                         }
                     } else if ("Connect".contentEquals(actionButton.getText())) {
 //                            connectToDevice();
-                        if (deviceSelectedbool) {
+                        if (deviceSelectedbool && fleetMode) {
+                            carScanner.stopScan();
+                            startActivity(fleetIntent());
+                        } else if (deviceSelectedbool) {
+                            carScanner.stopScan();
                             Intent intent = new Intent(this, ControlActivity.class);
                             intent.putExtra("DEVICE_ADDRESS", selectedDevice.getAddress());
+                            intent.putExtra("TRANSPORT", getTransportType(selectedDevice).name());
                             startActivity(intent);
                             setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
                         }
                         Toast.makeText(this, "connectToDevice", Toast.LENGTH_SHORT).show();
                     }
                 });
+                carScanner.listBondedDevices(AppServices.takePrefetchedBondedDevices());
             }
         }
     }
 
-
-    private boolean checkPermissions() {
-        if (ContextCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED ||
-                ContextCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED ||
-                ContextCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-
-            ActivityCompat.requestPermissions(this, new String[]{
-                    android.Manifest.permission.ACCESS_FINE_LOCATION,
-                    android.Manifest.permission.BLUETOOTH_SCAN,
-                    android.Manifest.permission.BLUETOOTH_CONNECT
-            }, BluetoothScanner.REQUEST_LOCATION_PERMISSION);
-            return false;
+    @Override
+    protected void onResume() {
+        super.onResume();
+        boolean mode = getSharedPreferences("app_prefs", MODE_PRIVATE).getBoolean("fleetMode", false);
+        if (mode != fleetMode) {
+            // coming back from settings; a selection made in the other mode doesn't carry over
+            fleetMode = mode;
+            fleetSelection.clear();
+            selectedDevice = null;
+            deviceSelectedbool = false;
         }
-        return true;
     }
 
-    public interface OnScanResultListener {
-        void onScanStarted();
-
-        void onDeviceFound(BluetoothDevice device);
-
-        void onScanFinished(List<BluetoothDevice> devices);
-
-        void onScanFailed(String message);
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (carScanner != null) {
+            carScanner.stopScan();
+        }
     }
 
-    public class BluetoothScanner {
-        private static final int REQUEST_LOCATION_PERMISSION = 1002;
-        private final List<BluetoothDevice> discoveredDevices = new ArrayList<>();
-        private final OnScanResultListener scanResultListener;
-        private final Activity activity;
-        private final BluetoothAdapter bluetoothAdapter;
-        private final BroadcastReceiver discoveryReceiver = new BroadcastReceiver() {
-            @Override
-            public void onReceive(Context context, Intent intent) {
-                String action = intent.getAction();
-                if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-                    BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-                    if (device != null && !discoveredDevices.contains(device)) {
-                        discoveredDevices.add(device);
-                        scanResultListener.onDeviceFound(device);
-                    }
-                } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                    scanResultListener.onScanFinished(discoveredDevices);
-                    activity.unregisterReceiver(this);
-                }
-            }
-        };
-
-        public BluetoothScanner(Activity activity, OnScanResultListener scanResultListener) {
-            this.activity = activity;
-            this.scanResultListener = scanResultListener;
-            BluetoothManager bluetoothManager = (BluetoothManager) activity.getSystemService(Context.BLUETOOTH_SERVICE);
-            bluetoothAdapter = bluetoothManager != null ? bluetoothManager.getAdapter() : null;
+    private Intent fleetIntent() {
+        String[] addresses = new String[fleetSelection.size()];
+        String[] transports = new String[fleetSelection.size()];
+        int i = 0;
+        for (ScannedDevice device : fleetSelection.values()) {
+            addresses[i] = device.getAddress();
+            transports[i] = getTransportType(device).name();
+            i++;
         }
+        Intent intent = new Intent(this, FleetActivity.class);
+        intent.putExtra("DEVICE_ADDRESSES", addresses);
+        intent.putExtra("TRANSPORTS", transports);
+        return intent;
+    }
 
-        public void startScan() {
-            if (bluetoothAdapter == null) {
-                scanResultListener.onScanFailed("Bluetooth adapter is not available");
-                return;
-            }
-            if (!bluetoothAdapter.isEnabled()) {
-                scanResultListener.onScanFailed("Bluetooth is not enabled");
-                return;
-            }
-
-            if (!checkPermissions()) {
-                scanResultListener.onScanFailed("Permissions are not granted");
-                return;
-            }
-
-            startDiscovery();
+    private TransportType getTransportType(ScannedDevice device) {
+        SharedPreferences prefs = getSharedPreferences("app_prefs", MODE_PRIVATE);
+        String stored = prefs.getString("transport_" + device.getAddress(), null);
+        KnownDevice known = AppServices.deviceRegistry(this).get(device.getAddress());
+        if (stored == null && known != null) {
+            return known.getLastTransport();
         }
-
-        private void startDiscovery() {
-            discoveredDevices.clear();
-            IntentFilter filter = new IntentFilter();
-            filter.addAction(BluetoothDevice.ACTION_FOUND);
-            filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-            activity.registerReceiver(discoveryReceiver, filter);
-
-            if (ActivityCompat.checkSelfPermission(getApplicationContext(), android.Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-                Toast.makeText(getApplicationContext(), "Permissions are not granted at StartDiscovery", Toast.LENGTH_SHORT).show();
-                return;
-            }
-            if (!bluetoothAdapter.startDiscovery()) {
-                scanResultListener.onScanFailed("Failed to start discovery");
-            } else {
-                scanResultListener.onScanStarted();
-            }
+        // a car only heard over BLE has no serial port to connect to
+        if (stored == null && device.isBle() && !device.isBonded()) {
+            return TransportType.BLE;
         }
+        return TransportType.fromName(stored);
+    }
 
-        public void stopScan() {
-            if (ActivityCompat.checkSelfPermission(getApplicationContext(), android.Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED) {
-                Toast.makeText(getApplicationContext(), "Permissions are not granted at stopScan", Toast.LENGTH_SHORT).show();
-                return;
-            }
-            if (bluetoothAdapter != null && bluetoothAdapter.isDiscovering()) {
-                bluetoothAdapter.cancelDiscovery();
-            }
-            try {
-                activity.unregisterReceiver(discoveryReceiver);
-            } catch (IllegalArgumentException ignored) {
-            }
+    private void chooseTransport(ScannedDevice device) {
+        TransportType[] types = TransportType.values();
+        String[] labels = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            labels[i] = types[i].getLabel();
         }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.choose_transport)
+                .setSingleChoiceItems(labels, getTransportType(device).ordinal(), (dialog, which) -> {
+                    getSharedPreferences("app_prefs", MODE_PRIVATE).edit()
+                            .putString("transport_" + device.getAddress(), types[which].name())
+                            .apply();
+                    dialog.dismiss();
+                })
+                .show();
+    }
 
-        private boolean checkPermissions() {
-            return ContextCompat.checkSelfPermission(activity, android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED &&
-                    ContextCompat.checkSelfPermission(activity, android.Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED &&
-                    ContextCompat.checkSelfPermission(activity, android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
+    private boolean checkPermissions() {
+        if (ContextCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED ||
+                ContextCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_SCAN) != PackageManager.PERMISSION_GRANTED ||
+                ContextCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+
+            ActivityCompat.requestPermissions(this, new String[]{
+                    android.Manifest.permission.ACCESS_FINE_LOCATION,
+                    android.Manifest.permission.BLUETOOTH_SCAN,
+                    android.Manifest.permission.BLUETOOTH_CONNECT
+            }, REQUEST_LOCATION_PERMISSION);
+            return false;
         }
+        return true;
     }
-}
\ No newline at end of file
+}
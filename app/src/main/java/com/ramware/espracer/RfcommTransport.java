@@ -0,0 +1,37 @@
+package com.ramware.espracer;
+
+import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Classic Bluetooth serial (SPP) link to the car. Closing the socket from another
+ * thread is the only way to abort a pending {@link BluetoothSocket#connect()}.
+ */
+public class RfcommTransport extends StreamTransport {
+    public static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothSocket socket;
+
+    @SuppressLint("MissingPermission")
+    public RfcommTransport(BluetoothDevice device) throws IOException {
+        this.socket = device.createRfcommSocketToServiceRecord(SPP_UUID);
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void open() throws IOException {
+        long start = System.nanoTime();
+        socket.connect();
+        setStreams(socket.getInputStream(), socket.getOutputStream());
+        metrics.recordOpen(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
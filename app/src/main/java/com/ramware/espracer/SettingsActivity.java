@@ -0,0 +1,115 @@
+package com.ramware.espracer;
+
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.CompoundButton;
+import android.widget.EditText;
+import android.widget.RadioGroup;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The settings the other screens and {@link ControlService} read from
+ * "app_prefs". Each option's value is the {@code android:tag} of its radio
+ * button in the layout, so a choice is stored exactly as the code compares it.
+ * Changes apply to the next link that is opened. Number fields are written when
+ * the screen is left, clamped to their range; one that doesn't parse keeps its
+ * old value.
+ */
+public class SettingsActivity extends AppCompatActivity {
+    private SharedPreferences prefs;
+    private final List<Runnable> numberWrites = new ArrayList<>();
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_settings);
+        prefs = getSharedPreferences("app_prefs", MODE_PRIVATE);
+
+        bindChoice(R.id.setting_protocol, "protocol", ControlActivity.PROTOCOL_LEGACY);
+        bindChoice(R.id.setting_joystick_mode, "joystickMode", ControlActivity.JOYSTICK_DIGITAL);
+        bindFloat(R.id.setting_joystick_dead_zone, "joystickDeadZone", 0.1f, 0f, 0.95f);
+        bindSwitch(R.id.setting_joystick_expo, "joystickExpo", false);
+        bindChoice(R.id.setting_tilt_filter, "tiltFilter", "complementary");
+        bindFloat(R.id.setting_tilt_low_pass_hz, "tiltLowPassHz", 5f, 0.1f, 50f);
+        bindFloat(R.id.setting_tilt_dead_zone, "tiltDeadZone", 3f, 0f, 30f);
+        bindFloat(R.id.setting_tilt_full_lock, "tiltFullLock", 35f, 5f, 90f);
+        bindInt(R.id.setting_tilt_sample_rate, "tiltSampleRateHz", 100, 10, 500);
+        bindSwitch(R.id.setting_latency_overlay, "showLatencyOverlay", false);
+        bindTelemetryPlot();
+        bindSwitch(R.id.setting_record_sessions, "recordSessions", false);
+        bindSwitch(R.id.setting_fleet_mode, "fleetMode", false);
+        bindInt(R.id.setting_fleet_threads, "fleetThreads", FleetController.DEFAULT_THREADS, 1, 8);
+        findViewById(R.id.settings_done).setOnClickListener(v -> finish());
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        for (Runnable write : numberWrites) {
+            write.run();
+        }
+    }
+
+    // only the framed protocol carries telemetry, so the plot turns it on as well
+    private void bindTelemetryPlot() {
+        CompoundButton toggle = findViewById(R.id.setting_telemetry_plot);
+        RadioGroup protocol = findViewById(R.id.setting_protocol);
+        toggle.setChecked(prefs.getBoolean("showTelemetryPlot", false));
+        toggle.setOnCheckedChangeListener((b, checked) -> {
+            prefs.edit().putBoolean("showTelemetryPlot", checked).apply();
+            if (checked) {
+                protocol.check(R.id.setting_protocol_framed);
+            }
+        });
+    }
+
+    private void bindSwitch(int id, String key, boolean defaultValue) {
+        CompoundButton toggle = findViewById(id);
+        toggle.setChecked(prefs.getBoolean(key, defaultValue));
+        toggle.setOnCheckedChangeListener((b, checked) -> prefs.edit().putBoolean(key, checked).apply());
+    }
+
+    private void bindFloat(int id, String key, float defaultValue, float min, float max) {
+        EditText field = findViewById(id);
+        field.setText(String.valueOf(prefs.getFloat(key, defaultValue)));
+        numberWrites.add(() -> {
+            try {
+                float value = Float.parseFloat(field.getText().toString().trim());
+                prefs.edit().putFloat(key, Math.max(min, Math.min(max, value))).apply();
+            } catch (NumberFormatException ignored) {
+                // keep the stored value
+            }
+        });
+    }
+
+    private void bindInt(int id, String key, int defaultValue, int min, int max) {
+        EditText field = findViewById(id);
+        field.setText(String.valueOf(prefs.getInt(key, defaultValue)));
+        numberWrites.add(() -> {
+            try {
+                int value = Integer.parseInt(field.getText().toString().trim());
+                prefs.edit().putInt(key, Math.max(min, Math.min(max, value))).apply();
+            } catch (NumberFormatException ignored) {
+                // keep the stored value
+            }
+        });
+    }
+
+    private void bindChoice(int groupId, String key, String defaultValue) {
+        RadioGroup group = findViewById(groupId);
+        String current = prefs.getString(key, defaultValue);
+        for (int i = 0; i < group.getChildCount(); i++) {
+            View option = group.getChildAt(i);
+            if (current.equals(option.getTag())) {
+                group.check(option.getId());
+            }
+        }
+        group.setOnCheckedChangeListener((g, checkedId) ->
+                prefs.edit().putString(key, (String) g.findViewById(checkedId).getTag()).apply());
+    }
+}
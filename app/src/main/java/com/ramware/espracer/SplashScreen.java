@@ -1,26 +1,153 @@
 package com.ramware.espracer;
 
 import android.annotation.SuppressLint;
+import android.bluetooth.BluetoothAdapter;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.os.Bundle;
-import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
 
-@SuppressLint("CustomSplashScreen")
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the startup work in a {@link StartupPipeline} while the splash is up and
+ * moves on as soon as it is done, after at least {@link #SPLASH_MIN_DISPLAY_MS}
+ * and at most {@link #SPLASH_MAX_DISPLAY_MS}. Stage timings of every launch are
+ * appended to files/startup.csv.
+ */
+@SuppressLint({"CustomSplashScreen", "MissingPermission"})
 public class SplashScreen extends AppCompatActivity {
 
-    private static final int SPLASH_DISPLAY_TIME_DURATION = 3000; // 3 seconds
+    private static final long SPLASH_MIN_DISPLAY_MS = 600;
+    private static final long SPLASH_MAX_DISPLAY_MS = 3000;
+    private static final int STARTUP_THREADS = 4;
+    static final String RECONNECT_OFF = "off";
+    static final String RECONNECT_LAST = "last";
+    static final String RECONNECT_BEST = "best";
+    private static final long RECONNECT_MAX_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private volatile boolean permissionsGranted;
+    private DeviceRegistry registry;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_splash_screen);
-        new Handler().postDelayed(() -> {
-            Intent mainIntent = new Intent(SplashScreen.this, MainActivity.class);
+        long processStartMs = SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime();
+        registry = AppServices.deviceRegistry(this);
+        boolean warmUp = getSharedPreferences("app_prefs", MODE_PRIVATE).getBoolean("startupWarmup", true);
+
+        ScheduledExecutorService executor = Executors.newScheduledThreadPool(STARTUP_THREADS, r -> {
+            Thread thread = new Thread(r, "StartupPipeline");
+            thread.setDaemon(true);
+            return thread;
+        });
+        StartupPipeline pipeline = new StartupPipeline(executor)
+                .setMinimumDuration(SPLASH_MIN_DISPLAY_MS)
+                .setTimeout(SPLASH_MAX_DISPLAY_MS)
+                .addStage("adapter", () -> AppServices.bluetoothAdapter(this))
+                .addStage("permissions", () -> permissionsGranted = hasPermissions())
+                .addStage("bonded", this::loadBondedDevices)
+                .addStage("registry", this::awaitRegistry);
+        if (warmUp) {
+            pipeline.addStage("warmup", SplashScreen::warmUpTransport);
+        }
+        pipeline.start((finished, timedOut) -> {
+            runOnUiThread(this::proceed);
+            Log.i("INFO", "startup " + (timedOut ? "timed out, " : "") + finished.summary()
+                    + ", process start " + processStartMs + " ms before splash");
+            appendStartupCsv(finished);
+            executor.shutdown();
+        });
+    }
+
+    private void proceed() {
+        if (isFinishing() || isDestroyed()) {
+            return;
+        }
+        Intent mainIntent = new Intent(SplashScreen.this, MainActivity.class);
+        KnownDevice car = permissionsGranted ? pickReconnectCar(registry) : null;
+        if (car != null) {
+            // straight to the car, with the scan screen underneath for the back button
+            Intent controlIntent = new Intent(SplashScreen.this, ControlActivity.class);
+            controlIntent.putExtra("DEVICE_ADDRESS", car.getAddress());
+            controlIntent.putExtra("TRANSPORT", car.getLastTransport().name());
+            startActivities(new Intent[]{mainIntent, controlIntent});
+        } else {
             startActivity(mainIntent);
-            overridePendingTransition(R.anim.fade_in, R.anim.fade_out);
-            finish();
-        }, SPLASH_DISPLAY_TIME_DURATION);
+        }
+        overridePendingTransition(R.anim.fade_in, R.anim.fade_out);
+        finish();
+    }
+
+    private boolean hasPermissions() {
+        return ContextCompat.checkSelfPermission(this, android.Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED
+                && ContextCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_SCAN) == PackageManager.PERMISSION_GRANTED
+                && ContextCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void loadBondedDevices() {
+        BluetoothAdapter adapter = AppServices.bluetoothAdapter(this);
+        if (adapter == null || !adapter.isEnabled()
+                || ContextCompat.checkSelfPermission(this, android.Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        AppServices.setPrefetchedBondedDevices(adapter.getBondedDevices());
+    }
+
+    private void awaitRegistry() throws InterruptedException {
+        CountDownLatch loaded = new CountDownLatch(1);
+        registry.load(r -> loaded.countDown());
+        loaded.await(SPLASH_MAX_DISPLAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Loads and runs the encoder and framing classes once so the first command doesn't pay for it. */
+    private static void warmUpTransport() {
+        byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+        long state = ControlState.fromJoystick(0, 0, 0, 1);
+        new LegacyCommandEncoder().encode(state, frame);
+        int length = new FrameEncoder().encode(state, frame);
+        new FrameDecoder((type, sequence, payload, offset, count) -> {
+        }).feed(frame, 0, length);
+        new CommandQueue(2);
+    }
+
+    private void appendStartupCsv(StartupPipeline pipeline) {
+        File file = new File(getFilesDir(), "startup.csv");
+        boolean writeHeader = !file.exists();
+        try (Writer writer = new FileWriter(file, true)) {
+            if (writeHeader) {
+                writer.write(StartupPipeline.CSV_HEADER);
+                writer.write('\n');
+            }
+            pipeline.writeCsv(writer);
+        } catch (IOException e) {
+            Log.e("ERROR", "cannot save startup timings", e);
+        }
+    }
+
+    private KnownDevice pickReconnectCar(DeviceRegistry registry) {
+        if (!registry.isLoaded()) {
+            return null;
+        }
+        String mode = getSharedPreferences("app_prefs", MODE_PRIVATE).getString("reconnectMode", RECONNECT_LAST);
+        if (RECONNECT_BEST.equals(mode)) {
+            return registry.getBest(System.currentTimeMillis(), RECONNECT_MAX_AGE_MS);
+        } else if (RECONNECT_LAST.equals(mode)) {
+            return registry.getMostRecent();
+        }
+        return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,190 @@
+package com.ramware.espracer;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.Choreographer;
+import android.view.View;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scrolling strip chart of the last few seconds of a {@link TelemetryBuffer}, one
+ * auto-scaled trace per channel. While it is on screen with a buffer, checks for
+ * new samples once per display frame and only redraws when there are some;
+ * drawing reuses preallocated arrays.
+ */
+public class TelemetryPlotView extends View implements Choreographer.FrameCallback {
+    private static final int[] COLORS = {Color.GREEN, Color.YELLOW, Color.CYAN};
+    private static final String[] LABELS = {"V", "A", "dBm"};
+
+    private final Paint[] tracePaints = new Paint[TelemetryBuffer.CHANNEL_COUNT];
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final StringBuilder label = new StringBuilder();
+    private TelemetryBuffer buffer;
+    private long windowNanos = TimeUnit.SECONDS.toNanos(10);
+    private long drawnWriteCount = -1;
+    private boolean attached;
+    // a frame callback is posted while the plot is attached, shown and has a buffer
+    private boolean polling;
+
+    // sized in setBuffer()
+    private long[] sampleTimes = new long[0];
+    private float[] sampleValues = new float[0];
+    private float[] lines = new float[0];
+
+    // cached in onSizeChanged()
+    private float plotWidth;
+    private float laneHeight;
+
+    public TelemetryPlotView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        for (int i = 0; i < tracePaints.length; i++) {
+            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+            paint.setColor(COLORS[i]);
+            paint.setStrokeWidth(2f);
+            tracePaints[i] = paint;
+        }
+        textPaint.setColor(Color.WHITE);
+        textPaint.setTextSize(28f);
+    }
+
+    public void setBuffer(TelemetryBuffer buffer) {
+        this.buffer = buffer;
+        sampleTimes = new long[buffer.capacity()];
+        sampleValues = new float[buffer.capacity()];
+        lines = new float[buffer.capacity() * 4];
+        drawnWriteCount = -1;
+        invalidate();
+        updatePolling();
+    }
+
+    public void setWindow(long windowMs) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        drawnWriteCount = -1;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        attached = true;
+        updatePolling();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        attached = false;
+        updatePolling();
+        super.onDetachedFromWindow();
+    }
+
+    @Override
+    protected void onVisibilityChanged(@NonNull View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updatePolling();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updatePolling();
+    }
+
+    // runs from the View constructor too, before any field of this class is set
+    private void updatePolling() {
+        boolean poll = attached && buffer != null && isShown() && getWindowVisibility() == VISIBLE;
+        if (poll == polling) {
+            return;
+        }
+        polling = poll;
+        if (poll) {
+            drawnWriteCount = -1;
+            Choreographer.getInstance().postFrameCallback(this);
+        } else {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!polling) {
+            return;
+        }
+        if (buffer.getWriteCount() != drawnWriteCount) {
+            invalidate();
+        }
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        plotWidth = w;
+        laneHeight = (float) h / TelemetryBuffer.CHANNEL_COUNT;
+        drawnWriteCount = -1;
+    }
+
+    @Override
+    protected void onDraw(@NonNull Canvas canvas) {
+        super.onDraw(canvas);
+        TelemetryBuffer b = buffer;
+        if (b == null) {
+            return;
+        }
+        drawnWriteCount = b.getWriteCount();
+        // the newest sample sits at the right edge, so the plot stands still while the car is silent
+        long newest = b.getLatestTime();
+        long oldest = newest - windowNanos;
+        for (int channel = 0; channel < TelemetryBuffer.CHANNEL_COUNT; channel++) {
+            int count = b.copy(channel, oldest, sampleTimes, sampleValues);
+            if (count == 0) {
+                continue;
+            }
+            float min = sampleValues[0];
+            float max = min;
+            for (int i = 1; i < count; i++) {
+                min = Math.min(min, sampleValues[i]);
+                max = Math.max(max, sampleValues[i]);
+            }
+            float range = Math.max(max - min, 1e-3f);
+            float top = channel * laneHeight;
+            float xScale = plotWidth / windowNanos;
+            float yScale = (laneHeight - 8f) / range;
+            int n = 0;
+            for (int i = 1; i < count; i++) {
+                lines[n++] = (sampleTimes[i - 1] - oldest) * xScale;
+                lines[n++] = top + 4f + (max - sampleValues[i - 1]) * yScale;
+                lines[n++] = (sampleTimes[i] - oldest) * xScale;
+                lines[n++] = top + 4f + (max - sampleValues[i]) * yScale;
+            }
+            canvas.drawLines(lines, 0, n, tracePaints[channel]);
+
+            label.setLength(0);
+            appendFixed(label, sampleValues[count - 1], channel == TelemetryBuffer.CHANNEL_RSSI ? 0 : 2);
+            label.append(' ').append(LABELS[channel]);
+            canvas.drawText(label, 0, label.length(), 8f, top + textPaint.getTextSize(), textPaint);
+        }
+    }
+
+    // StringBuilder.append(float) allocates, and this runs every frame while samples arrive
+    private static void appendFixed(StringBuilder out, float value, int decimals) {
+        int scale = decimals == 0 ? 1 : (int) Math.pow(10, decimals);
+        long fixed = Math.round(Math.abs(value) * scale);
+        if (value < 0 && fixed != 0) {
+            out.append('-');
+        }
+        out.append(fixed / scale);
+        if (decimals > 0) {
+            out.append('.');
+            long fraction = fixed % scale;
+            for (int s = scale / 10; s > 1 && fraction < s; s /= 10) {
+                out.append('0');
+            }
+            out.append(fraction);
+        }
+    }
+}
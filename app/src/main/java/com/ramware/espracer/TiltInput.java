@@ -0,0 +1,103 @@
+package com.ramware.espracer;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.view.Display;
+import android.view.Surface;
+
+/**
+ * Feeds the accelerometer and gyroscope into a {@link TiltSteering} and reports
+ * its decimated output. Sensor axes are remapped to the screen as it is
+ * currently rotated, so steering works the same in portrait and landscape.
+ * Events arrive on the main thread.
+ */
+public class TiltInput implements SensorEventListener {
+    public interface Listener {
+        /** At most once per output period; -max..max of {@link TiltSteering#setMaxOutput}. */
+        void onSteer(int x);
+    }
+
+    private final SensorManager sensorManager;
+    private final Display display;
+    private final TiltSteering steering;
+    private final Listener listener;
+    private final Sensor accelerometer;
+    private final Sensor gyroscope;
+    private boolean running;
+
+    public TiltInput(SensorManager sensorManager, Display display, TiltSteering steering, Listener listener) {
+        this.sensorManager = sensorManager;
+        this.display = display;
+        this.steering = steering;
+        this.listener = listener;
+        this.accelerometer = sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        this.gyroscope = sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        if (gyroscope == null) {
+            steering.setFilter(TiltSteering.Filter.LOW_PASS);
+        }
+    }
+
+    public boolean isAvailable() {
+        return accelerometer != null;
+    }
+
+    /** Starts sampling both sensors at {@code sampleRateHz}. */
+    public void start(int sampleRateHz) {
+        if (running || accelerometer == null) {
+            return;
+        }
+        running = true;
+        steering.reset();
+        int periodUs = 1000000 / Math.max(1, sampleRateHz);
+        sensorManager.registerListener(this, accelerometer, periodUs);
+        if (gyroscope != null) {
+            sensorManager.registerListener(this, gyroscope, periodUs);
+        }
+    }
+
+    public void stop() {
+        if (running) {
+            running = false;
+            sensorManager.unregisterListener(this);
+        }
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        float[] v = event.values;
+        if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+            // rotation about z is the same whichever way the screen is turned
+            steering.onGyroscope(v[2]);
+            return;
+        }
+        float x;
+        float y;
+        switch (display.getRotation()) {
+            case Surface.ROTATION_90:
+                x = -v[1];
+                y = v[0];
+                break;
+            case Surface.ROTATION_180:
+                x = -v[0];
+                y = -v[1];
+                break;
+            case Surface.ROTATION_270:
+                x = v[1];
+                y = -v[0];
+                break;
+            default:
+                x = v[0];
+                y = v[1];
+                break;
+        }
+        if (steering.onAccelerometer(event.timestamp, x, y)) {
+            listener.onSteer(steering.getOutput());
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+}
@@ -0,0 +1,69 @@
+package com.ramware.espracer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the joystick and button listeners in {@code ControlActivity} do with each
+ * reading: fold it into the packed {@link ControlState}, and for the legacy
+ * protocol pick the single command char.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommandMappingBenchmark {
+    private static final int SAMPLES = JoystickBenchmark.SAMPLES;
+
+    private final float[] dx = new float[SAMPLES];
+    private final float[] dy = new float[SAMPLES];
+    private final int[] buttons = new int[SAMPLES];
+    private final long[] states = new long[SAMPLES];
+    private long state;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        JoystickBenchmark.fillDeflections(random, dx, dy);
+        for (int i = 0; i < SAMPLES; i++) {
+            // mostly no button, now and then one of F/B/L/R/STOP
+            buttons[i] = random.nextInt(4) == 0 ? 1 << random.nextInt(5) : 0;
+            states[i] = ControlState.pack(buttons[i], random.nextInt(255) - 127, random.nextInt(255) - 127);
+        }
+    }
+
+    private int next() {
+        return index = (index + 1) & (SAMPLES - 1);
+    }
+
+    @Benchmark
+    public long joystickToState() {
+        int i = next();
+        int packed = JoystickMath.quantizeAnalog(dx[i], dy[i], 0.1f,
+                JoystickMath.ResponseCurve.LINEAR, 0f, JoystickMath.RESOLUTION_16_BIT);
+        return state = ControlState.fromJoystick(state, JoystickMath.unpackX(packed),
+                JoystickMath.unpackY(packed), JoystickMath.maxValue(JoystickMath.RESOLUTION_16_BIT));
+    }
+
+    @Benchmark
+    public long buttonToState() {
+        return state = ControlState.withButtons(state, buttons[next()]);
+    }
+
+    @Benchmark
+    public char stateToLegacyChar() {
+        return LegacyCommandEncoder.toChar(states[next()]);
+    }
+}
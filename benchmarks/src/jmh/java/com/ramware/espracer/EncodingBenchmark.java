@@ -0,0 +1,62 @@
+package com.ramware.espracer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Turning control states into wire bytes, and framed bytes back into frames. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class EncodingBenchmark {
+    private static final int SAMPLES = JoystickBenchmark.SAMPLES;
+
+    private final long[] states = new long[SAMPLES];
+    private final byte[] out = new byte[Protocol.MAX_FRAME_LENGTH];
+    private final CommandEncoder legacyEncoder = new LegacyCommandEncoder();
+    private final FrameEncoder frameEncoder = new FrameEncoder();
+    private FrameDecoder frameDecoder;
+    private int decodedBytes;
+    private int index;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            states[i] = ControlState.pack(random.nextInt(32), random.nextInt(255) - 127, random.nextInt(255) - 127);
+        }
+        frameDecoder = new FrameDecoder((type, sequence, payload, offset, length) -> decodedBytes += length);
+    }
+
+    private int next() {
+        return index = (index + 1) & (SAMPLES - 1);
+    }
+
+    @Benchmark
+    public int encodeLegacy() {
+        return legacyEncoder.encode(states[next()], out);
+    }
+
+    @Benchmark
+    public int encodeFrame() {
+        return frameEncoder.encode(states[next()], out);
+    }
+
+    @Benchmark
+    public int encodeAndDecodeFrame() {
+        int length = frameEncoder.encode(states[next()], out);
+        frameDecoder.feed(out, 0, length);
+        return decodedBytes;
+    }
+}
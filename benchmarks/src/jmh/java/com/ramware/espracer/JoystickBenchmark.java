@@ -0,0 +1,69 @@
+package com.ramware.espracer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Joystick quantization as done by {@code DigitalJoystick.onTouchEvent} for every
+ * ACTION_MOVE. Deflections come from a fixed random set that also covers the dead
+ * zone and drags past the rim.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class JoystickBenchmark {
+    static final int SAMPLES = 1024;
+
+    private final float[] dx = new float[SAMPLES];
+    private final float[] dy = new float[SAMPLES];
+    private int index;
+
+    @Setup
+    public void setUp() {
+        fillDeflections(new Random(42), dx, dy);
+    }
+
+    /** Uniform deflections in -1.2..1.2 on both axes. */
+    static void fillDeflections(Random random, float[] dx, float[] dy) {
+        for (int i = 0; i < dx.length; i++) {
+            dx[i] = random.nextFloat() * 2.4f - 1.2f;
+            dy[i] = random.nextFloat() * 2.4f - 1.2f;
+        }
+    }
+
+    private int next() {
+        return index = (index + 1) & (SAMPLES - 1);
+    }
+
+    @Benchmark
+    public int quantizeDigital() {
+        int i = next();
+        return JoystickMath.quantizeDigital(dx[i], dy[i], 0.3f);
+    }
+
+    @Benchmark
+    public int quantizeAnalogLinear() {
+        int i = next();
+        return JoystickMath.quantizeAnalog(dx[i], dy[i], 0.1f,
+                JoystickMath.ResponseCurve.LINEAR, 0f, JoystickMath.RESOLUTION_8_BIT);
+    }
+
+    @Benchmark
+    public int quantizeAnalogExpo16() {
+        int i = next();
+        return JoystickMath.quantizeAnalog(dx[i], dy[i], 0.1f,
+                JoystickMath.ResponseCurve.EXPO, 0.5f, JoystickMath.RESOLUTION_16_BIT);
+    }
+}
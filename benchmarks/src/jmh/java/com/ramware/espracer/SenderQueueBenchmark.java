@@ -0,0 +1,120 @@
+package com.ramware.espracer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The hand-off between the control loop and the sender thread: the bare
+ * {@link CommandQueue}, alone and with a live consumer, and {@link CommandSender#send}
+ * feeding a transport that discards everything.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SenderQueueBenchmark {
+
+    @State(Scope.Thread)
+    public static class LocalQueue {
+        final CommandQueue queue = new CommandQueue(64);
+        final long[] polled = new long[2];
+        long command;
+    }
+
+    @State(Scope.Group)
+    public static class SharedQueue {
+        final CommandQueue queue = new CommandQueue(64);
+    }
+
+    @State(Scope.Thread)
+    public static class Consumer {
+        final long[] polled = new long[2];
+    }
+
+    @State(Scope.Benchmark)
+    public static class Sender {
+        @Param({"DROP_OLDEST", "COALESCE_LATEST"})
+        CommandSender.OverflowPolicy policy;
+        CommandSender sender;
+        long command;
+
+        @Setup(Level.Trial)
+        public void start() {
+            sender = new CommandSender(64, policy);
+            sender.setEncoder(new FrameEncoder());
+            sender.setTransport(new NullTransport());
+            sender.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            sender.stop();
+        }
+    }
+
+    @Benchmark
+    public boolean queueOfferPoll(LocalQueue state) {
+        state.queue.offer(state.command++, 0);
+        return state.queue.poll(state.polled);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public boolean offer(SharedQueue shared) {
+        return shared.queue.offer(1, 0);
+    }
+
+    @Benchmark
+    @Group("spsc")
+    @GroupThreads(1)
+    public boolean poll(SharedQueue shared, Consumer consumer) {
+        return shared.queue.poll(consumer.polled);
+    }
+
+    @Benchmark
+    public boolean senderSend(Sender state) {
+        return state.sender.send(ControlState.pack(0, (int) (state.command++ & 0x7F), 0));
+    }
+
+    private static class NullTransport implements Transport {
+        private final TransportMetrics metrics = new TransportMetrics();
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public void send(byte[] data, int offset, int length) {
+        }
+
+        @Override
+        public int receive(byte[] buffer, int offset, int length) throws IOException {
+            return -1;
+        }
+
+        @Override
+        public TransportMetrics getMetrics() {
+            return metrics;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.ramware.espracer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What one trace event costs the hot path: recording into the ring with a
+ * timestamp the caller already has and with a fresh clock read, several
+ * threads sharing one ring, the static call with tracing off, and for
+ * comparison the string a per-command log line would build before it even
+ * reached logd.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TraceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Ring {
+        final Tracer tracer = new Tracer(Tracer.DEFAULT_CAPACITY);
+    }
+
+    @State(Scope.Thread)
+    public static class Command {
+        long command;
+    }
+
+    @State(Scope.Benchmark)
+    public static class GlobalOff {
+        @Setup(Level.Trial)
+        public void disable() {
+            Tracer.global().setEnabled(false);
+        }
+    }
+
+    @Benchmark
+    public void record(Ring ring, Command state) {
+        ring.tracer.record(Tracer.SEND, state.command, state.command++, 1500);
+    }
+
+    @Benchmark
+    public void recordReadingClock(Ring ring, Command state) {
+        ring.tracer.record(Tracer.SEND, state.command++, 1500);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordContended(Ring ring, Command state) {
+        ring.tracer.record(Tracer.SEND, state.command, state.command++, 1500);
+    }
+
+    @Benchmark
+    public long traceDisabled(GlobalOff off, Command state) {
+        Tracer.trace(Tracer.SEND, state.command, 1500);
+        return state.command++;
+    }
+
+    @Benchmark
+    public String logLineString(Command state) {
+        return "SEND " + String.valueOf(state.command++);
+    }
+}
@@ -0,0 +1,14 @@
+plugins {
+    `java-library`
+}
+
+// Android-free protocol, link and control code shared by the app, the benchmarks
+// and anything else that runs on a plain JVM.
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    testImplementation(libs.junit)
+}
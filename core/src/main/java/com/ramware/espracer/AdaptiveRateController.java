@@ -0,0 +1,286 @@
+package com.ramware.espracer;
+
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the time from input to wire bounded when the link can't keep up, at
+ * the cost of update rate. Every interval it looks at how long writes take,
+ * how long commands wait in the {@link CommandSender} and, on framed links,
+ * whether the heartbeat round trip is rising. When any of them says the link
+ * is saturated it halves the {@link ControlLoop} tick rate and has the sender
+ * collapse its backlog to the latest state; while the link stays clear it
+ * adds a few Hz back per interval, up to the configured rate.
+ *
+ * <p>Rate cuts are at least {@link #setDecreaseHold hold} apart so one burst of
+ * congestion, still draining, doesn't halve the rate again and again.
+ */
+public class AdaptiveRateController {
+    public static final long DEFAULT_INTERVAL_MS = 100;
+    public static final int DEFAULT_MIN_RATE_HZ = 5;
+
+    public enum Decision {
+        HOLD,
+        DECREASE,
+        INCREASE
+    }
+
+    /** Why the link counts as saturated, or {@link #NONE}. */
+    public enum Reason {
+        NONE,
+        /** The write in progress has been blocked longer than the latency target. */
+        WRITE_STALL,
+        /** Commands waited longer than the latency target between enqueue and wire. */
+        QUEUE_LATENCY,
+        /** More commands queued than the link should ever hold. */
+        BACKLOG,
+        /** The sender spent most of the interval inside write calls. */
+        LINK_BUSY,
+        /** The heartbeat round trip is rising above its long-run average. */
+        RTT_RISING
+    }
+
+    public interface Listener {
+        /** Called on the controller thread whenever the rate changes. */
+        void onRateChanged(int rateHz, Decision decision, Reason reason);
+    }
+
+    private final ControlLoop controlLoop;
+    private final CommandSender commandSender;
+    private final LinkQualityMonitor monitor;
+    private final int minRateHz;
+    private final int maxRateHz;
+    private volatile Listener listener;
+    private ScheduledExecutorService executor;
+
+    private long latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private int backlogLimit = 4;
+    private double busyLimit = 0.8;
+    private double decreaseFactor = 0.5;
+    private int increaseStepHz = 5;
+    private long decreaseHoldNanos = TimeUnit.MILLISECONDS.toNanos(300);
+    private long recoveryNanos = TimeUnit.SECONDS.toNanos(1);
+
+    // controller thread only
+    private long lastUpdate;
+    private long lastSent;
+    private long lastWriteNanos;
+    private long lastLatencyNanos;
+    private long lastDecrease;
+    private long clearSince;
+
+    private volatile int rateHz;
+    private volatile Decision lastDecision = Decision.HOLD;
+    private volatile Reason lastReason = Reason.NONE;
+    private volatile double busyFraction;
+    private volatile long queueLatencyNanos;
+    private volatile long decreaseCount;
+    private volatile long increaseCount;
+    private volatile long saturatedCount;
+    private volatile int lowestRateHz;
+
+    /** {@code monitor} may be null where the link sends no heartbeats. */
+    public AdaptiveRateController(ControlLoop controlLoop, CommandSender commandSender, LinkQualityMonitor monitor,
+                                  int minRateHz, int maxRateHz) {
+        this.controlLoop = controlLoop;
+        this.commandSender = commandSender;
+        this.monitor = monitor;
+        this.minRateHz = Math.max(ControlLoop.MIN_TICK_RATE_HZ, Math.min(minRateHz, maxRateHz));
+        this.maxRateHz = maxRateHz;
+        this.rateHz = maxRateHz;
+        this.lowestRateHz = maxRateHz;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Queueing or stalls beyond this mean the link is saturated. */
+    public synchronized void setLatencyTarget(long latencyTargetMs) {
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMs);
+    }
+
+    /** Queue depth and fraction of time spent writing beyond which the link is saturated. */
+    public synchronized void setSaturationLimits(int backlogLimit, double busyLimit) {
+        this.backlogLimit = backlogLimit;
+        this.busyLimit = busyLimit;
+    }
+
+    /** Multiplies the rate by {@code factor} on saturation and adds {@code stepHz} per clear interval. */
+    public synchronized void setSteps(double factor, int stepHz) {
+        this.decreaseFactor = factor;
+        this.increaseStepHz = stepHz;
+    }
+
+    /** Minimum time between two rate cuts. */
+    public synchronized void setDecreaseHold(long holdMs) {
+        this.decreaseHoldNanos = TimeUnit.MILLISECONDS.toNanos(holdMs);
+    }
+
+    /** How long the link must stay clear before the sender stops collapsing its backlog. */
+    public synchronized void setRecovery(long recoveryMs) {
+        this.recoveryNanos = TimeUnit.MILLISECONDS.toNanos(recoveryMs);
+    }
+
+    public synchronized void start(long intervalMs) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "AdaptiveRateController");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> update(System.nanoTime()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** Stops adapting and puts the loop back at the full rate. */
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        rateHz = maxRateHz;
+        controlLoop.setTickRate(maxRateHz);
+        commandSender.setCollapseBacklog(false);
+    }
+
+    /** One decision; runs on the controller thread, or directly in tests. */
+    synchronized void update(long nowNanos) {
+        long sent = commandSender.getSentCount();
+        long writeNanos = commandSender.getTotalWriteNanos();
+        long latencyNanos = commandSender.getTotalLatencyNanos();
+        if (lastUpdate == 0) {
+            lastUpdate = nowNanos;
+            lastSent = sent;
+            lastWriteNanos = writeNanos;
+            lastLatencyNanos = latencyNanos;
+            lastDecrease = nowNanos - decreaseHoldNanos;
+            clearSince = nowNanos;
+            return;
+        }
+        long elapsed = Math.max(1, nowNanos - lastUpdate);
+        long writes = sent - lastSent;
+        long stall = commandSender.getCurrentWriteStallNanos(nowNanos);
+        // a write still blocked counts towards this interval's busy time too
+        double busy = (double) (writeNanos - lastWriteNanos + Math.min(stall, elapsed)) / elapsed;
+        long queueLatency = writes == 0 ? 0 : (latencyNanos - lastLatencyNanos) / writes;
+        lastUpdate = nowNanos;
+        lastSent = sent;
+        lastWriteNanos = writeNanos;
+        lastLatencyNanos = latencyNanos;
+        busyFraction = busy;
+        queueLatencyNanos = queueLatency;
+
+        Reason reason;
+        if (stall > latencyTargetNanos) {
+            reason = Reason.WRITE_STALL;
+        } else if (queueLatency > latencyTargetNanos) {
+            reason = Reason.QUEUE_LATENCY;
+        } else if (commandSender.getQueueDepth() > backlogLimit) {
+            reason = Reason.BACKLOG;
+        } else if (busy > busyLimit) {
+            reason = Reason.LINK_BUSY;
+        } else if (monitor != null && monitor.getRttTrendNanos() > latencyTargetNanos) {
+            reason = Reason.RTT_RISING;
+        } else {
+            reason = Reason.NONE;
+        }
+        lastReason = reason;
+
+        int rate = rateHz;
+        Decision decision = Decision.HOLD;
+        if (reason != Reason.NONE) {
+            saturatedCount++;
+            clearSince = 0;
+            commandSender.setCollapseBacklog(true);
+            if (nowNanos - lastDecrease >= decreaseHoldNanos && rate > minRateHz) {
+                rate = Math.max(minRateHz, (int) (rate * decreaseFactor));
+                lastDecrease = nowNanos;
+                decision = Decision.DECREASE;
+                decreaseCount++;
+            }
+        } else {
+            if (clearSince == 0) {
+                clearSince = nowNanos;
+            } else if (rate < maxRateHz) {
+                rate = Math.min(maxRateHz, rate + increaseStepHz);
+                decision = Decision.INCREASE;
+                increaseCount++;
+            }
+            if (clearSince != 0 && nowNanos - clearSince >= recoveryNanos) {
+                commandSender.setCollapseBacklog(false);
+            }
+        }
+        lastDecision = decision;
+        if (decision != Decision.HOLD) {
+            rateHz = rate;
+            if (rate < lowestRateHz) {
+                lowestRateHz = rate;
+            }
+            controlLoop.setTickRate(rate);
+            Tracer.trace(Tracer.SEND_RATE, nowNanos, rate, reason.ordinal());
+            Listener l = listener;
+            if (l != null) {
+                l.onRateChanged(rate, decision, reason);
+            }
+        }
+    }
+
+    /** The tick rate the loop is running at now. */
+    public int getRateHz() {
+        return rateHz;
+    }
+
+    public int getMaxRateHz() {
+        return maxRateHz;
+    }
+
+    public int getLowestRateHz() {
+        return lowestRateHz;
+    }
+
+    public Decision getLastDecision() {
+        return lastDecision;
+    }
+
+    public Reason getLastReason() {
+        return lastReason;
+    }
+
+    public boolean isSaturated() {
+        return lastReason != Reason.NONE;
+    }
+
+    /** Fraction of the last interval the sender spent inside write calls. */
+    public double getBusyFraction() {
+        return busyFraction;
+    }
+
+    /** Average enqueue-to-wire latency over the last interval. */
+    public long getQueueLatencyNanos() {
+        return queueLatencyNanos;
+    }
+
+    public long getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    public long getIncreaseCount() {
+        return increaseCount;
+    }
+
+    /** Intervals in which the link counted as saturated. */
+    public long getSaturatedCount() {
+        return saturatedCount;
+    }
+
+    /** One line for the overlay, e.g. "rate 25/50 Hz QUEUE_LATENCY busy 93% queue 61 ms cuts 2". */
+    public String summary() {
+        return String.format(Locale.US, "rate %d/%d Hz %s busy %.0f%% queue %d ms cuts %d",
+                rateHz, maxRateHz, lastReason, busyFraction * 100,
+                TimeUnit.NANOSECONDS.toMillis(queueLatencyNanos), decreaseCount);
+    }
+}
@@ -0,0 +1,91 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+
+/**
+ * Bounded blocking byte ring between one writer and one reader thread. Writers
+ * wait while it is full, readers while it is empty; after {@link #close()} the
+ * reader drains what is left and then sees -1.
+ */
+class BytePipe {
+    private final byte[] ring;
+    private int head;
+    private int size;
+    private boolean closed;
+
+    BytePipe(int capacity) {
+        ring = new byte[capacity];
+    }
+
+    synchronized void write(byte[] data, int offset, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            while (size == ring.length && !closed) {
+                await();
+            }
+            if (closed) {
+                throw new IOException("pipe closed");
+            }
+            written += copyIn(data, offset + written, length - written);
+            notifyAll();
+        }
+    }
+
+    /** Writes what fits without blocking and returns the number of bytes dropped. */
+    synchronized int offer(byte[] data, int offset, int length) {
+        if (closed) {
+            return length;
+        }
+        int written = 0;
+        while (written < length && size < ring.length) {
+            written += copyIn(data, offset + written, length - written);
+        }
+        notifyAll();
+        return length - written;
+    }
+
+    synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+        while (size == 0 && !closed) {
+            await();
+        }
+        if (size == 0) {
+            return -1;
+        }
+        int chunk = Math.min(length, Math.min(size, ring.length - head));
+        System.arraycopy(ring, head, buffer, offset, chunk);
+        head = (head + chunk) % ring.length;
+        size -= chunk;
+        notifyAll();
+        return chunk;
+    }
+
+    synchronized int available() {
+        return size;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    private int copyIn(byte[] data, int offset, int length) {
+        int tail = (head + size) % ring.length;
+        int chunk = Math.min(length, Math.min(ring.length - size, ring.length - tail));
+        System.arraycopy(data, offset, ring, tail, chunk);
+        size += chunk;
+        return chunk;
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.ramware.espracer;
+
+/** Turns a queued command into the bytes written to the link. Runs on the sender thread only. */
+public interface CommandEncoder {
+    /** Passes the low byte of the command through, for callers that queue raw bytes. */
+    CommandEncoder SINGLE_BYTE = (command, out) -> {
+        out[0] = (byte) command;
+        return 1;
+    };
+
+    /** Writes the encoding of {@code command} into {@code out} and returns its length; 0 skips the command. */
+    int encode(long command, byte[] out);
+}
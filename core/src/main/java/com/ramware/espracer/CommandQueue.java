@@ -0,0 +1,99 @@
+package com.ramware.espracer;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of commands. Every slot keeps the
+ * command word and the time it was enqueued in parallel primitive arrays, so an
+ * offer or a poll never allocates.
+ */
+public class CommandQueue {
+    private final long[] commands;
+    private final long[] enqueueTimes;
+    private final int capacity;
+    private final int mask;
+    // next slot to read; the producer may also advance it when dropping the oldest entry
+    private final AtomicLong head = new AtomicLong();
+    // next slot to write, only ever advanced by the producer
+    private final AtomicLong tail = new AtomicLong();
+
+    public CommandQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.commands = new long[size];
+        this.enqueueTimes = new long[size];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    /** Producer side. Returns false when the ring is full. */
+    public boolean offer(long command, long enqueueTimeNanos) {
+        long t = tail.get();
+        if (t - head.get() >= capacity) {
+            return false;
+        }
+        int index = (int) t & mask;
+        commands[index] = command;
+        enqueueTimes[index] = enqueueTimeNanos;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Producer side. Discards the oldest queued command if the ring is full.
+     * Returns true if an entry was dropped; false means there is room again
+     * (possibly because the consumer got there first).
+     */
+    public boolean dropOldest() {
+        long h = head.get();
+        if (tail.get() - h < capacity) {
+            return false;
+        }
+        return head.compareAndSet(h, h + 1);
+    }
+
+    /**
+     * Consumer side. Copies the oldest command into {@code out[0]} and its enqueue
+     * time into {@code out[1]}. Returns false when the ring is empty.
+     */
+    public boolean poll(long[] out) {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return false;
+            }
+            int index = (int) h & mask;
+            long command = commands[index];
+            long enqueueTime = enqueueTimes[index];
+            // a failed CAS means the producer dropped this slot and may be rewriting it
+            if (head.compareAndSet(h, h + 1)) {
+                out[0] = command;
+                out[1] = enqueueTime;
+                return true;
+            }
+        }
+    }
+
+    /** Consumer side. Discards everything currently queued. */
+    public void clear() {
+        head.set(tail.get());
+    }
+}
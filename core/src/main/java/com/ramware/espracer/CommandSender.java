@@ -0,0 +1,364 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Owns the write side of the link. The UI thread hands commands over through a
+ * {@link CommandQueue} and a dedicated thread does the blocking writes, so a
+ * stalled link can never freeze touch handling.
+ */
+public class CommandSender {
+
+    public enum OverflowPolicy {
+        /** Discard the oldest queued command to make room for the new one. */
+        DROP_OLDEST,
+        /** Keep the queue as is and park the new command in a single slot that later overflows overwrite. */
+        COALESCE_LATEST,
+        /** Wait for room, up to the configured block timeout. */
+        BLOCK
+    }
+
+    public interface Listener {
+        void onSendError(Transport transport, IOException e);
+    }
+
+    private static final long NO_COMMAND = Long.MIN_VALUE;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final CommandQueue queue;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final AtomicLong latestCommand = new AtomicLong(NO_COMMAND);
+    private volatile long latestEnqueueTime;
+
+    private volatile Transport transport;
+    private volatile CommandEncoder encoder = CommandEncoder.SINGLE_BYTE;
+    private volatile Listener listener;
+    private volatile LatencyStats latencyStats;
+    private volatile SessionRecorder recorder;
+    private volatile LinkQualityMonitor linkMonitor;
+    // start of the write in progress, or 0 between writes
+    private volatile long writeStartNanos;
+    private volatile boolean collapseBacklog;
+    private volatile boolean running;
+    private volatile boolean consumerParked;
+    private Thread thread;
+
+    // only touched by the sender thread
+    private final long[] polled = new long[2];
+    private final byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+    private long deferredCommand = NO_COMMAND;
+    private long deferredEnqueueTime;
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    private volatile int maxQueueDepth;
+    private volatile long lastLatencyNanos;
+    private volatile long maxLatencyNanos;
+    private volatile long totalLatencyNanos;
+    private volatile long totalWriteNanos;
+
+    public CommandSender(int capacity, OverflowPolicy overflowPolicy) {
+        this(capacity, overflowPolicy, TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    public CommandSender(int capacity, OverflowPolicy overflowPolicy, long blockTimeoutNanos) {
+        this.queue = new CommandQueue(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = blockTimeoutNanos;
+    }
+
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /** Writes straight to a stream, e.g. an in-memory one in tests. */
+    public void setOutputStream(OutputStream outputStream) {
+        setTransport(outputStream == null ? null : StreamTransport.of(null, outputStream));
+    }
+
+    public void setEncoder(CommandEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /** Optional histograms for enqueue-to-wire and write call times. */
+    public void setLatencyStats(LatencyStats latencyStats) {
+        this.latencyStats = latencyStats;
+    }
+
+    /** Optional log of every command written, for later replay. */
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /** Optional monitor told about every heartbeat sent and every write's duration. */
+    public void setLinkMonitor(LinkQualityMonitor linkMonitor) {
+        this.linkMonitor = linkMonitor;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * While on, a control state still queued behind a newer one is skipped, so a
+     * backlog built up on a saturated link is written as its latest state instead
+     * of replayed in full. Pings and heartbeats are always written.
+     */
+    public void setCollapseBacklog(boolean collapseBacklog) {
+        this.collapseBacklog = collapseBacklog;
+    }
+
+    public boolean isCollapsingBacklog() {
+        return collapseBacklog;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::runLoop, "CommandSender");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    /**
+     * Queues a command for the sender thread. Must only be called from one
+     * producer thread. Returns false if the command was dropped.
+     */
+    public boolean send(long command) {
+        long now = System.nanoTime();
+        boolean accepted = enqueue(command, now);
+        if (accepted) {
+            enqueuedCount.incrementAndGet();
+            int depth = queue.size();
+            if (depth > maxQueueDepth) {
+                maxQueueDepth = depth;
+            }
+        } else {
+            droppedCount.incrementAndGet();
+        }
+        if (consumerParked) {
+            LockSupport.unpark(thread);
+        }
+        return accepted;
+    }
+
+    private boolean enqueue(long command, long now) {
+        // while a coalesced command is pending, newer ones must not overtake it through the queue
+        boolean coalescing = overflowPolicy == OverflowPolicy.COALESCE_LATEST
+                && latestCommand.get() != NO_COMMAND;
+        if (!coalescing && queue.offer(command, now)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                do {
+                    if (queue.dropOldest()) {
+                        droppedCount.incrementAndGet();
+                    }
+                } while (!queue.offer(command, now));
+                return true;
+            case COALESCE_LATEST:
+                latestEnqueueTime = now;
+                if (latestCommand.getAndSet(command) != NO_COMMAND) {
+                    coalescedCount.incrementAndGet();
+                }
+                return true;
+            case BLOCK:
+            default:
+                long deadline = now + blockTimeoutNanos;
+                do {
+                    if (consumerParked) {
+                        LockSupport.unpark(thread);
+                    }
+                    LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                    if (queue.offer(command, now)) {
+                        return true;
+                    }
+                } while (running && System.nanoTime() - deadline < 0);
+                return false;
+        }
+    }
+
+    private void runLoop() {
+        while (running) {
+            if (queue.poll(polled)) {
+                long command = polled[0];
+                if (isControlState(command)) {
+                    if (deferredCommand != NO_COMMAND) {
+                        coalescedCount.incrementAndGet();
+                        deferredCommand = NO_COMMAND;
+                    }
+                    if (collapseBacklog && !queue.isEmpty()) {
+                        // hold it back in case a newer state is queued behind it
+                        deferredCommand = command;
+                        deferredEnqueueTime = polled[1];
+                        continue;
+                    }
+                }
+                write(command, polled[1]);
+                continue;
+            }
+            if (deferredCommand != NO_COMMAND) {
+                long deferred = deferredCommand;
+                deferredCommand = NO_COMMAND;
+                write(deferred, deferredEnqueueTime);
+                continue;
+            }
+            long latest = latestCommand.getAndSet(NO_COMMAND);
+            if (latest != NO_COMMAND) {
+                write(latest, latestEnqueueTime);
+                continue;
+            }
+            consumerParked = true;
+            if (queue.isEmpty() && latestCommand.get() == NO_COMMAND && running) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            consumerParked = false;
+        }
+    }
+
+    private void write(long command, long enqueueTime) {
+        Transport out = transport;
+        if (out == null) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        int length = encoder.encode(command, frame);
+        if (length == 0) {
+            return;
+        }
+        long writeStart = System.nanoTime();
+        writeStartNanos = writeStart;
+        LinkQualityMonitor monitor = linkMonitor;
+        if (monitor != null && ControlState.isHeartbeat(command)) {
+            // before the write: on a fast link the reply can beat the write's return
+            monitor.onHeartbeatSent(ControlState.heartbeatNumber(command), writeStart);
+        }
+        try {
+            out.send(frame, 0, length);
+        } catch (IOException e) {
+            writeStartNanos = 0;
+            errorCount.incrementAndGet();
+            Tracer.trace(Tracer.SEND_ERROR, command, 0);
+            Listener l = listener;
+            if (l != null) {
+                l.onSendError(out, e);
+            }
+            return;
+        }
+        long now = System.nanoTime();
+        writeStartNanos = 0;
+        totalWriteNanos += now - writeStart;
+        Tracer.trace(Tracer.SEND, now, command, now - writeStart);
+        if (monitor != null) {
+            monitor.onWriteCompleted(now - writeStart);
+        }
+        SessionRecorder r = recorder;
+        if (r != null) {
+            r.recordCommand(command);
+        }
+        LatencyStats stats = latencyStats;
+        if (stats != null) {
+            stats.getWriteCall().record(now - writeStart);
+            stats.getEnqueueToWire().record(now - enqueueTime);
+        }
+        long latency = now - enqueueTime;
+        lastLatencyNanos = latency;
+        totalLatencyNanos += latency;
+        if (latency > maxLatencyNanos) {
+            maxLatencyNanos = latency;
+        }
+        sentCount.incrementAndGet();
+    }
+
+    private static boolean isControlState(long command) {
+        return !ControlState.isPing(command) && !ControlState.isHeartbeat(command);
+    }
+
+    /** How long the write in progress has been blocked at {@code nowNanos}, or 0 if none is. */
+    public long getCurrentWriteStallNanos(long nowNanos) {
+        long start = writeStartNanos;
+        return start == 0 ? 0 : Math.max(0, nowNanos - start);
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    public long getErrorCount() {
+        return errorCount.get();
+    }
+
+    /** Enqueue-to-wire latency of the most recent write. */
+    public long getLastLatencyNanos() {
+        return lastLatencyNanos;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /** Enqueue-to-wire latency summed over every write; with {@link #getSentCount()}, averages over any window. */
+    public long getTotalLatencyNanos() {
+        return totalLatencyNanos;
+    }
+
+    /** Time spent inside write calls, summed over every write. */
+    public long getTotalWriteNanos() {
+        return totalWriteNanos;
+    }
+
+    public long getAverageLatencyNanos() {
+        long sent = sentCount.get();
+        return sent == 0 ? 0 : totalLatencyNanos / sent;
+    }
+}
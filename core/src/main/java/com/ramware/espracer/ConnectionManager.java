@@ -0,0 +1,298 @@
+package com.ramware.espracer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the car off the main thread and keeps the link up. A failed or
+ * lost connection is retried with jittered exponential backoff until
+ * {@link #close()} is called or the retry budget runs out.
+ */
+public class ConnectionManager {
+
+    public enum State {
+        IDLE,
+        CONNECTING,
+        CONNECTED,
+        DEGRADED,
+        RECONNECTING,
+        CLOSED
+    }
+
+    /** Creates a fresh, unopened transport for every attempt. */
+    public interface Connector {
+        Transport create() throws IOException;
+    }
+
+    /** Callbacks run on the connection threads with the manager locked, so they must not block. */
+    public interface Listener {
+        void onStateChanged(State previous, State state);
+
+        void onConnected(Transport transport);
+    }
+
+    private final Connector connector;
+    private final ScheduledExecutorService executor;
+    // runs only the connect timeouts, so a hanging open can't hold up the close that aborts it
+    private final ScheduledExecutorService timer;
+    private final boolean ownsExecutor;
+    private final Random random;
+    private volatile Listener listener;
+
+    private long connectTimeoutMs = 5000;
+    private long initialBackoffMs = 250;
+    private long maxBackoffMs = 8000;
+    private double backoffJitter = 0.5;
+    private int maxReconnectAttempts = 0;
+
+    private State state = State.IDLE;
+    private Transport transport;
+    private Transport pendingTransport;
+    private ScheduledFuture<?> pendingAttempt;
+    private int failedAttempts;
+    private boolean everConnected;
+
+    private volatile long lastConnectTimeMs = -1;
+    private volatile long reconnectCount;
+    private volatile long failedAttemptCount;
+
+    public ConnectionManager(Connector connector) {
+        this(connector, new Random());
+    }
+
+    ConnectionManager(Connector connector, Random random) {
+        this.connector = connector;
+        this.random = random;
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread thread = new Thread(r, "ConnectionManager");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        this.executor = scheduler;
+        // one attempt at a time, so the second thread is always free for its timeout
+        this.timer = scheduler;
+        this.ownsExecutor = true;
+    }
+
+    /**
+     * Runs attempts on a scheduler shared with other managers, so many links don't
+     * cost two threads each. A blocking open holds one of its threads. Connect
+     * timeouts run on {@code timer}, which must never run blocking work, or
+     * opens hanging on every thread of {@code executor} would never time out.
+     * {@link #close()} leaves both running.
+     */
+    public ConnectionManager(Connector connector, ScheduledExecutorService executor, ScheduledExecutorService timer) {
+        this.connector = connector;
+        this.random = new Random();
+        this.executor = executor;
+        this.timer = timer;
+        this.ownsExecutor = false;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void setConnectTimeout(long timeoutMs) {
+        this.connectTimeoutMs = timeoutMs;
+    }
+
+    /** Backoff doubles from {@code initialMs} up to {@code maxMs}; jitter is the random fraction taken off each delay. */
+    public synchronized void setBackoff(long initialMs, long maxMs, double jitter) {
+        this.initialBackoffMs = initialMs;
+        this.maxBackoffMs = maxMs;
+        this.backoffJitter = jitter;
+    }
+
+    /** Consecutive failures before giving up and closing; 0 retries forever. */
+    public synchronized void setMaxReconnectAttempts(int attempts) {
+        this.maxReconnectAttempts = attempts;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Transport getTransport() {
+        return state == State.CONNECTED || state == State.DEGRADED ? transport : null;
+    }
+
+    public synchronized void connect() {
+        if (state != State.IDLE) {
+            return;
+        }
+        setState(State.CONNECTING);
+        scheduleAttempt(0);
+    }
+
+    /** Called by whoever uses the link when a read or write fails. */
+    public synchronized void reportLinkError(IOException e) {
+        reportLinkError(transport, e);
+    }
+
+    /** Like {@link #reportLinkError(IOException)}, but ignored if {@code failed} is no longer the current transport. */
+    public synchronized void reportLinkError(Transport failed, IOException e) {
+        if (state != State.CONNECTED && state != State.DEGRADED || failed != transport) {
+            return;
+        }
+        closeQuietly(transport);
+        transport = null;
+        setState(State.RECONNECTING);
+        scheduleAttempt(nextBackoffMs());
+    }
+
+    public synchronized void markDegraded() {
+        if (state == State.CONNECTED) {
+            setState(State.DEGRADED);
+        }
+    }
+
+    public synchronized void markHealthy() {
+        if (state == State.DEGRADED) {
+            setState(State.CONNECTED);
+        }
+    }
+
+    public void close() {
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (pendingAttempt != null) {
+                pendingAttempt.cancel(false);
+            }
+            closeQuietly(pendingTransport);
+            closeQuietly(transport);
+            transport = null;
+            setState(State.CLOSED);
+        }
+        if (ownsExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Duration of the last successful connect, or -1 before the first one. */
+    public long getLastConnectTimeMs() {
+        return lastConnectTimeMs;
+    }
+
+    /** Number of times the link was re-established after being lost. */
+    public long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    public long getFailedAttemptCount() {
+        return failedAttemptCount;
+    }
+
+    private void scheduleAttempt(long delayMs) {
+        pendingAttempt = executor.schedule(this::attempt, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private long nextBackoffMs() {
+        long delay = initialBackoffMs << Math.min(failedAttempts, 20);
+        if (delay <= 0 || delay > maxBackoffMs) {
+            delay = maxBackoffMs;
+        }
+        return delay - (long) (delay * backoffJitter * random.nextDouble());
+    }
+
+    private void attempt() {
+        Transport candidate = null;
+        long timeoutMs;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            timeoutMs = connectTimeoutMs;
+        }
+        long start = System.nanoTime();
+        ScheduledFuture<?> timeout = null;
+        try {
+            candidate = connector.create();
+            synchronized (this) {
+                pendingTransport = candidate;
+            }
+            final Transport pending = candidate;
+            timeout = timer.schedule(() -> closeQuietly(pending), timeoutMs, TimeUnit.MILLISECONDS);
+            candidate.open();
+        } catch (IOException | RuntimeException e) {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            closeQuietly(candidate);
+            synchronized (this) {
+                pendingTransport = null;
+            }
+            onAttemptFailed();
+            return;
+        }
+        timeout.cancel(false);
+
+        synchronized (this) {
+            pendingTransport = null;
+            if (state == State.CLOSED) {
+                closeQuietly(candidate);
+                return;
+            }
+            transport = candidate;
+            failedAttempts = 0;
+            if (everConnected) {
+                reconnectCount++;
+            }
+            everConnected = true;
+            lastConnectTimeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Listener l = listener;
+            if (l != null) {
+                l.onConnected(candidate);
+            }
+            setState(State.CONNECTED);
+        }
+    }
+
+    private void onAttemptFailed() {
+        failedAttemptCount++;
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            failedAttempts++;
+            if (maxReconnectAttempts <= 0 || failedAttempts < maxReconnectAttempts) {
+                setState(State.RECONNECTING);
+                scheduleAttempt(nextBackoffMs());
+                return;
+            }
+        }
+        close();
+    }
+
+    // holding the lock keeps callbacks in the same order as the transitions
+    private synchronized void setState(State next) {
+        State previous = state;
+        if (previous == next || previous == State.CLOSED) {
+            return;
+        }
+        state = next;
+        Tracer.trace(Tracer.LINK_STATE, previous.ordinal(), next.ordinal());
+        Listener l = listener;
+        if (l != null) {
+            l.onStateChanged(previous, next);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
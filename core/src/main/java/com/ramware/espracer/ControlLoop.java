@@ -0,0 +1,249 @@
+package com.ramware.espracer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongConsumer;
+
+/**
+ * Samples the latest control state at a fixed tick rate and forwards it only when
+ * it changed or when the keepalive interval ran out. Input handlers just publish
+ * the state, however often they fire, and the link sees a bounded, regular
+ * cadence.
+ */
+public class ControlLoop {
+    public static final int MIN_TICK_RATE_HZ = 1;
+    public static final int MAX_TICK_RATE_HZ = 200;
+    private static final long NO_OVERRIDE = Long.MIN_VALUE;
+
+    private final LongConsumer sink;
+    private final long keepaliveNanos;
+    private volatile long tickPeriodNanos;
+    private volatile long pingIntervalNanos;
+    private volatile long heartbeatIntervalNanos;
+    private volatile long state = ControlState.NEUTRAL;
+    // bumped by every setState; the failsafe holds until it moves past holdVersion
+    private volatile long stateVersion;
+    private volatile long holdVersion = -1;
+    private volatile long override = NO_OVERRIDE;
+    // set when the override changes, cleared by the loop once it has sent out of turn
+    private volatile boolean overridePending;
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    private volatile long tickCount;
+    private volatile long sentCount;
+    private volatile long lastJitterNanos;
+    private volatile long maxJitterNanos;
+    private volatile long totalJitterNanos;
+    private volatile long failsafeCount;
+
+    public ControlLoop(LongConsumer sink, int tickRateHz, long keepaliveMs) {
+        this.sink = sink;
+        this.keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(keepaliveMs);
+        setTickRate(tickRateHz);
+    }
+
+    /** Publishes the latest state; cheap enough to call from every touch event. Single writer only. */
+    public void setState(long state) {
+        this.state = state;
+        stateVersion++;
+    }
+
+    /** Interleaves {@link ControlState#PING} commands at this interval; 0 disables pinging. */
+    public void setPingInterval(long pingIntervalMs) {
+        this.pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMs);
+    }
+
+    /** Interleaves numbered heartbeat commands at this interval; 0 disables them. */
+    public void setHeartbeatInterval(long heartbeatIntervalMs) {
+        this.heartbeatIntervalNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatIntervalMs);
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    /**
+     * Sends {@code state} instead of the published one until
+     * {@link #clearOverride()}, and sends it right away rather than at the next
+     * tick, for scripted input that has its own timing. The failsafe still wins.
+     */
+    public void setOverride(long state) {
+        override = state;
+        overridePending = true;
+        LockSupport.unpark(thread);
+    }
+
+    /** Goes back to the published state, sending it right away. */
+    public void clearOverride() {
+        override = NO_OVERRIDE;
+        overridePending = true;
+        LockSupport.unpark(thread);
+    }
+
+    public boolean isOverridden() {
+        return override != NO_OVERRIDE;
+    }
+
+    /**
+     * Sends {@link ControlState#FAILSAFE_STOP} instead of the published state,
+     * whatever the input does, until {@link #releaseFailsafe()}.
+     */
+    public void engageFailsafe() {
+        if (holdVersion != Long.MAX_VALUE) {
+            holdVersion = Long.MAX_VALUE;
+            failsafeCount++;
+            Tracer.trace(Tracer.FAILSAFE, 1, failsafeCount);
+        }
+    }
+
+    /**
+     * Ends the failsafe, but the car stays stopped until the input next changes,
+     * so a button held through the outage doesn't drive off on its own.
+     */
+    public void releaseFailsafe() {
+        if (holdVersion == Long.MAX_VALUE) {
+            holdVersion = stateVersion;
+            Tracer.trace(Tracer.FAILSAFE, 0, failsafeCount);
+        }
+    }
+
+    public boolean isFailsafeEngaged() {
+        return holdVersion == Long.MAX_VALUE;
+    }
+
+    /** True while the stop is still held, engaged or waiting for new input after release. */
+    public boolean isHoldingStop() {
+        return stateVersion <= holdVersion;
+    }
+
+    public long getFailsafeCount() {
+        return failsafeCount;
+    }
+
+    public void setTickRate(int tickRateHz) {
+        int hz = Math.max(MIN_TICK_RATE_HZ, Math.min(MAX_TICK_RATE_HZ, tickRateHz));
+        tickPeriodNanos = TimeUnit.SECONDS.toNanos(1) / hz;
+    }
+
+    public int getTickRate() {
+        return (int) (TimeUnit.SECONDS.toNanos(1) / tickPeriodNanos);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::runLoop, "ControlLoop");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    private void runLoop() {
+        long lastSent = 0;
+        long lastSentAt = 0;
+        boolean sentOnce = false;
+        long lastPingAt = System.nanoTime();
+        long lastHeartbeatAt = lastPingAt;
+        int heartbeatNumber = 0;
+        long deadline = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            boolean early = false;
+            while (now - deadline < 0 && running) {
+                if (overridePending) {
+                    early = true;
+                    break;
+                }
+                LockSupport.parkNanos(this, deadline - now);
+                now = System.nanoTime();
+            }
+            if (!running) {
+                return;
+            }
+            if (!early) {
+                recordJitter(now - deadline);
+            }
+            overridePending = false;
+
+            long scripted = override;
+            long current = stateVersion <= holdVersion ? ControlState.FAILSAFE_STOP
+                    : scripted != NO_OVERRIDE ? scripted : state;
+            if (!sentOnce || current != lastSent || now - lastSentAt >= keepaliveNanos) {
+                sink.accept(current);
+                lastSent = current;
+                lastSentAt = now;
+                sentOnce = true;
+                sentCount++;
+            }
+            long pingInterval = pingIntervalNanos;
+            if (pingInterval > 0 && now - lastPingAt >= pingInterval) {
+                sink.accept(ControlState.PING);
+                lastPingAt = now;
+            }
+            long heartbeatInterval = heartbeatIntervalNanos;
+            if (heartbeatInterval > 0 && now - lastHeartbeatAt >= heartbeatInterval) {
+                sink.accept(ControlState.heartbeat(heartbeatNumber));
+                heartbeatNumber = (heartbeatNumber + 1) & 0xFFFF;
+                lastHeartbeatAt = now;
+            }
+
+            if (early) {
+                // an out-of-turn send for the override; the tick cadence is unchanged
+                continue;
+            }
+            long period = tickPeriodNanos;
+            deadline += period;
+            if (now - deadline > period) {
+                // fell more than a tick behind (e.g. the process was paused); skip the missed ticks
+                deadline = now + period;
+            }
+        }
+    }
+
+    private void recordJitter(long jitter) {
+        tickCount++;
+        lastJitterNanos = jitter;
+        totalJitterNanos += jitter;
+        if (jitter > maxJitterNanos) {
+            maxJitterNanos = jitter;
+        }
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /** How late the most recent tick woke up relative to its schedule. */
+    public long getLastJitterNanos() {
+        return lastJitterNanos;
+    }
+
+    public long getMaxJitterNanos() {
+        return maxJitterNanos;
+    }
+
+    public long getAverageJitterNanos() {
+        long ticks = tickCount;
+        return ticks == 0 ? 0 : totalJitterNanos / ticks;
+    }
+}
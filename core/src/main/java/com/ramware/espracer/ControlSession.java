@@ -0,0 +1,238 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+
+/**
+ * Everything that lives as long as the link to one car: the
+ * {@link ConnectionManager}, the {@link CommandSender} and {@link ControlLoop}
+ * on the uplink, the {@link LinkReader} on the downlink, and the latency and
+ * telemetry it feeds, the {@link LinkQualityMonitor} and {@link LinkWatchdog}
+ * that stop the car when the link goes bad, the {@link AdaptiveRateController}
+ * that slows the loop down when the link can't keep up, and the
+ * {@link ManeuverScheduler} that plays scripted runs. UI code only publishes
+ * states through {@link #setState(long)} and reads the stats, so it can come
+ * and go without touching the link.
+ */
+public class ControlSession {
+    public static final int SENDER_QUEUE_CAPACITY = 64;
+
+    /** Callbacks run on the link threads and must not block. */
+    public interface Listener {
+        void onStateChanged(ConnectionManager.State previous, ConnectionManager.State state);
+
+        /** {@code connectMs} is how long the attempt that succeeded took. */
+        void onConnected(Transport transport, long connectMs);
+
+        void onSendError(Transport transport, IOException e);
+    }
+
+    private final String address;
+    private final TransportType transportType;
+    private final ConnectionManager connectionManager;
+    private final CommandSender commandSender =
+            new CommandSender(SENDER_QUEUE_CAPACITY, CommandSender.OverflowPolicy.COALESCE_LATEST);
+    private final ControlLoop controlLoop;
+    private final LatencyStats latencyStats = new LatencyStats();
+    private final TelemetryBuffer telemetry;
+    private final LinkQualityMonitor linkMonitor = new LinkQualityMonitor();
+    private final LinkWatchdog watchdog;
+    private final AdaptiveRateController rateController;
+    private final ManeuverScheduler maneuvers;
+    private boolean adaptiveRate = true;
+    private volatile LinkReader linkReader;
+    private volatile SessionRecorder recorder;
+    private volatile Listener listener;
+    private boolean started;
+    private boolean closed;
+
+    public ControlSession(String address, TransportType transportType, ConnectionManager.Connector connector,
+                          CommandEncoder encoder, int tickRateHz, long keepaliveMs, int telemetryCapacity) {
+        this.address = address;
+        this.transportType = transportType;
+        this.connectionManager = new ConnectionManager(connector);
+        this.controlLoop = new ControlLoop(commandSender::send, tickRateHz, keepaliveMs);
+        this.telemetry = new TelemetryBuffer(telemetryCapacity);
+        commandSender.setEncoder(encoder);
+        commandSender.setLatencyStats(latencyStats);
+        commandSender.setLinkMonitor(linkMonitor);
+        this.watchdog = new LinkWatchdog(linkMonitor, controlLoop, connectionManager, commandSender,
+                LinkWatchdog.DEFAULT_RECOVERY_MS);
+        this.rateController = new AdaptiveRateController(controlLoop, commandSender, linkMonitor,
+                AdaptiveRateController.DEFAULT_MIN_RATE_HZ, tickRateHz);
+        this.maneuvers = new ManeuverScheduler(controlLoop);
+        commandSender.setListener((transport, e) -> {
+            connectionManager.reportLinkError(transport, e);
+            Listener l = listener;
+            if (l != null) {
+                l.onSendError(transport, e);
+            }
+        });
+        connectionManager.setListener(new ConnectionManager.Listener() {
+            @Override
+            public void onStateChanged(ConnectionManager.State previous, ConnectionManager.State state) {
+                if (state != ConnectionManager.State.CONNECTED && state != ConnectionManager.State.DEGRADED) {
+                    commandSender.setTransport(null);
+                }
+                Listener l = listener;
+                if (l != null) {
+                    l.onStateChanged(previous, state);
+                }
+            }
+
+            @Override
+            public void onConnected(Transport transport) {
+                commandSender.setTransport(transport);
+                startLinkReader(transport);
+                Listener l = listener;
+                if (l != null) {
+                    l.onConnected(transport, connectionManager.getLastConnectTimeMs());
+                }
+            }
+        });
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Records every command sent and frame received until the session closes, which also closes the recorder. */
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+        commandSender.setRecorder(recorder);
+    }
+
+    /** Whether the tick rate adapts to the link; on by default. Call before {@link #start()}. */
+    public synchronized void setAdaptiveRate(boolean adaptiveRate) {
+        this.adaptiveRate = adaptiveRate;
+    }
+
+    /** Starts the send path and the first connect attempt. */
+    public synchronized void start() {
+        if (started || closed) {
+            return;
+        }
+        started = true;
+        commandSender.start();
+        controlLoop.start();
+        maneuvers.start();
+        connectionManager.connect();
+        watchdog.start(LinkWatchdog.DEFAULT_CHECK_INTERVAL_MS);
+        if (adaptiveRate) {
+            rateController.start(AdaptiveRateController.DEFAULT_INTERVAL_MS);
+        }
+    }
+
+    /** Publishes the latest control state. */
+    public void setState(long state) {
+        controlLoop.setState(state);
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        watchdog.stop();
+        rateController.stop();
+        maneuvers.stop();
+        controlLoop.stop();
+        connectionManager.close();
+        commandSender.stop();
+        LinkReader reader = linkReader;
+        if (reader != null) {
+            reader.stop();
+        }
+        SessionRecorder r = recorder;
+        if (r != null) {
+            try {
+                r.close();
+            } catch (IOException ignored) {
+                // the recorder keeps its own write error
+            }
+        }
+    }
+
+    private void startLinkReader(Transport transport) {
+        LinkReader previous = linkReader;
+        if (previous != null) {
+            previous.stop();
+        }
+        LinkReader reader = new LinkReader(transport, this::onFrame, connectionManager::reportLinkError);
+        linkReader = reader;
+        reader.start();
+    }
+
+    // runs on the link reader thread
+    private void onFrame(int type, int sequence, byte[] payload, int offset, int length) {
+        SessionRecorder r = recorder;
+        if (r != null) {
+            r.recordFrame(type, payload, offset, length);
+        }
+        if (type == Protocol.TYPE_ECHO) {
+            latencyStats.recordEcho(payload, offset, length, System.nanoTime());
+        } else if (type == Protocol.TYPE_HEARTBEAT) {
+            linkMonitor.onHeartbeatFrame(payload, offset, length, System.nanoTime());
+        } else if (type == Protocol.TYPE_TELEMETRY) {
+            if (telemetry.recordFrame(payload, offset, length, System.nanoTime())) {
+                linkMonitor.recordRssi((int) telemetry.getLatest(TelemetryBuffer.CHANNEL_RSSI));
+            }
+        }
+    }
+
+    /** True if this session drives {@code address} over {@code transportType} and is still open. */
+    public boolean isFor(String address, TransportType transportType) {
+        return this.address.equals(address) && this.transportType == transportType && !isClosed();
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public TransportType getTransportType() {
+        return transportType;
+    }
+
+    public ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public CommandSender getCommandSender() {
+        return commandSender;
+    }
+
+    public ControlLoop getControlLoop() {
+        return controlLoop;
+    }
+
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    public TelemetryBuffer getTelemetry() {
+        return telemetry;
+    }
+
+    public LinkQualityMonitor getLinkMonitor() {
+        return linkMonitor;
+    }
+
+    public LinkWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    public AdaptiveRateController getRateController() {
+        return rateController;
+    }
+
+    public ManeuverScheduler getManeuvers() {
+        return maneuvers;
+    }
+
+    public SessionRecorder getRecorder() {
+        return recorder;
+    }
+}
@@ -0,0 +1,82 @@
+package com.ramware.espracer;
+
+/**
+ * The full vehicle control state packed into a long so it can travel through the
+ * {@link CommandQueue} without boxing: bits 0-7 hold the pressed buttons, bits
+ * 8-15 the signed X axis and bits 16-23 the signed Y axis (both -127..127).
+ */
+public final class ControlState {
+    public static final int BUTTON_F = 1;
+    public static final int BUTTON_B = 1 << 1;
+    public static final int BUTTON_L = 1 << 2;
+    public static final int BUTTON_R = 1 << 3;
+    public static final int BUTTON_STOP = 1 << 4;
+
+    public static final int AXIS_MAX = 127;
+
+    public static final long NEUTRAL = 0;
+
+    /** What the failsafe holds the car at: stop pressed, both axes centred. */
+    public static final long FAILSAFE_STOP = BUTTON_STOP;
+
+    /** Not a state: asks the encoder for a latency ping instead. Never produced by {@link #pack}. */
+    public static final long PING = 1L << 56;
+
+    /** Not a state: a heartbeat, numbered in the low 16 bits. Never produced by {@link #pack}. */
+    public static final long HEARTBEAT = 1L << 57;
+
+    private ControlState() {
+    }
+
+    public static long pack(int buttons, int x, int y) {
+        return (buttons & 0xFF) | (long) (clampAxis(x) & 0xFF) << 8 | (long) (clampAxis(y) & 0xFF) << 16;
+    }
+
+    public static int buttons(long state) {
+        return (int) (state & 0xFF);
+    }
+
+    public static int x(long state) {
+        return (byte) (state >> 8);
+    }
+
+    public static int y(long state) {
+        return (byte) (state >> 16);
+    }
+
+    public static long withButtons(long state, int buttons) {
+        return (state & ~0xFFL) | (buttons & 0xFF);
+    }
+
+    public static long withAxes(long state, int x, int y) {
+        return pack(buttons(state), x, y);
+    }
+
+    /**
+     * Maps a joystick reading whose axes span -{@code max}..{@code max} onto the
+     * axis range, keeping the pressed buttons.
+     */
+    public static long fromJoystick(long state, int x, int y, int max) {
+        return withAxes(state, x * AXIS_MAX / max, y * AXIS_MAX / max);
+    }
+
+    public static boolean isPing(long command) {
+        return command == PING;
+    }
+
+    public static long heartbeat(int number) {
+        return HEARTBEAT | (number & 0xFFFF);
+    }
+
+    public static boolean isHeartbeat(long command) {
+        return (command & ~0xFFFFL) == HEARTBEAT;
+    }
+
+    public static int heartbeatNumber(long command) {
+        return (int) (command & 0xFFFF);
+    }
+
+    public static int clampAxis(int value) {
+        return Math.max(-AXIS_MAX, Math.min(AXIS_MAX, value));
+    }
+}
@@ -0,0 +1,31 @@
+package com.ramware.espracer;
+
+/** Table driven CRC-8 (polynomial 0x07, initial value 0), as used by the ESP32 firmware. */
+public final class Crc8 {
+    private static final byte[] TABLE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            TABLE[i] = (byte) crc;
+        }
+    }
+
+    private Crc8() {
+    }
+
+    public static int update(int crc, int b) {
+        return TABLE[(crc ^ b) & 0xFF] & 0xFF;
+    }
+
+    public static int compute(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = offset; i < offset + length; i++) {
+            crc = TABLE[(crc ^ data[i]) & 0xFF] & 0xFF;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,83 @@
+package com.ramware.espracer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Devices found during a scan, deduplicated by address. Repeated sightings only
+ * update the stored entry in place, keeping the list order stable, and mark the
+ * index dirty so the UI can pick up a batch of changes at its own pace with
+ * {@link #takeSnapshot()}. Not thread-safe; scan callbacks and the UI share one
+ * thread.
+ */
+public class DeviceIndex {
+    private final Map<String, Integer> positions = new HashMap<>();
+    private final List<ScannedDevice> devices = new ArrayList<>();
+    private final String namePrefix;
+    private boolean dirty;
+
+    /** Only names starting with {@code namePrefix} count as cars; null or empty accepts every device. */
+    public DeviceIndex(String namePrefix) {
+        this.namePrefix = namePrefix == null || namePrefix.isEmpty() ? null : namePrefix;
+    }
+
+    /** True if {@code name} passes the name filter. */
+    public boolean matches(String name) {
+        return namePrefix == null || name != null && name.startsWith(namePrefix);
+    }
+
+    /**
+     * Adds or refreshes a device. A device seen over BLE or as bonded stays so,
+     * and a known name is kept when a later sighting has none. Returns true if
+     * the entry is new or changed.
+     */
+    public boolean update(String address, String name, int rssi, boolean bonded, boolean ble) {
+        Integer position = positions.get(address);
+        if (position == null) {
+            positions.put(address, devices.size());
+            devices.add(new ScannedDevice(address, name, rssi, bonded, ble));
+            dirty = true;
+            return true;
+        }
+        ScannedDevice current = devices.get(position);
+        String newName = name != null ? name : current.getName();
+        int newRssi = rssi != ScannedDevice.RSSI_UNKNOWN ? rssi : current.getRssi();
+        boolean newBonded = bonded || current.isBonded();
+        boolean newBle = ble || current.isBle();
+        if (newRssi == current.getRssi() && newBonded == current.isBonded() && newBle == current.isBle()
+                && (newName == null ? current.getName() == null : newName.equals(current.getName()))) {
+            return false;
+        }
+        devices.set(position, new ScannedDevice(address, newName, newRssi, newBonded, newBle));
+        dirty = true;
+        return true;
+    }
+
+    public ScannedDevice get(String address) {
+        Integer position = positions.get(address);
+        return position == null ? null : devices.get(position);
+    }
+
+    public int size() {
+        return devices.size();
+    }
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /** Copy of the current list for the UI; clears the dirty flag. */
+    public List<ScannedDevice> takeSnapshot() {
+        dirty = false;
+        return Collections.unmodifiableList(new ArrayList<>(devices));
+    }
+
+    public void clear() {
+        positions.clear();
+        devices.clear();
+        dirty = true;
+    }
+}
@@ -0,0 +1,199 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Cars the app has connected to, indexed by address in memory and persisted
+ * through a {@link Store}. Loading and saving run on the given executor, never on
+ * the caller's thread. Lookups before the load has finished just see fewer cars.
+ * Updates made in the meantime win over the stored copies. Saves are coalesced,
+ * so bursts of updates cost one write. The executor must run tasks one at a
+ * time in submission order, like a single-thread executor.
+ */
+public class DeviceRegistry {
+
+    /** Persistence for the registry. Called from the executor only. */
+    public interface Store {
+        List<KnownDevice> load() throws IOException;
+
+        void save(Collection<KnownDevice> devices) throws IOException;
+    }
+
+    public interface Listener {
+        /** Runs on the executor once the stored cars are in the index. */
+        void onLoaded(DeviceRegistry registry);
+    }
+
+    private final Store store;
+    private final Executor executor;
+    private final Map<String, KnownDevice> devices = new HashMap<>();
+    private boolean loadStarted;
+    private volatile boolean loaded;
+    private boolean saveScheduled;
+    private volatile IOException lastError;
+
+    public DeviceRegistry(Store store, Executor executor) {
+        this.store = store;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts loading the store on the executor unless that already happened. The
+     * listener, if any, is called once loading has finished, right away if it
+     * already had.
+     */
+    public void load(Listener listener) {
+        boolean start;
+        synchronized (this) {
+            start = !loadStarted;
+            loadStarted = true;
+        }
+        executor.execute(() -> {
+            if (start) {
+                List<KnownDevice> stored;
+                try {
+                    stored = store.load();
+                } catch (IOException e) {
+                    lastError = e;
+                    stored = new ArrayList<>();
+                }
+                synchronized (this) {
+                    for (KnownDevice device : stored) {
+                        if (!devices.containsKey(device.getAddress())) {
+                            devices.put(device.getAddress(), device);
+                        }
+                    }
+                }
+                loaded = true;
+            }
+            if (listener != null) {
+                listener.onLoaded(this);
+            }
+        });
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public synchronized KnownDevice get(String address) {
+        return devices.get(address);
+    }
+
+    public synchronized List<KnownDevice> getAll() {
+        return new ArrayList<>(devices.values());
+    }
+
+    public synchronized int size() {
+        return devices.size();
+    }
+
+    /** The car connected to most recently, or null. */
+    public synchronized KnownDevice getMostRecent() {
+        KnownDevice best = null;
+        for (KnownDevice device : devices.values()) {
+            if (device.getConnectCount() > 0
+                    && (best == null || device.getLastConnectMillis() > best.getLastConnectMillis())) {
+                best = device;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * The car most likely to connect quickly right now: among those connected
+     * within {@code maxAgeMs}, the strongest last signal. Ties, or unknown
+     * signals, are broken by the lower average connect time. Null if no car
+     * qualifies.
+     */
+    public synchronized KnownDevice getBest(long nowMillis, long maxAgeMs) {
+        KnownDevice best = null;
+        for (KnownDevice device : devices.values()) {
+            if (device.getConnectCount() == 0 || nowMillis - device.getLastConnectMillis() > maxAgeMs) {
+                continue;
+            }
+            if (best == null || compareRank(device, best) < 0) {
+                best = device;
+            }
+        }
+        return best;
+    }
+
+    // negative if a ranks before b
+    private static int compareRank(KnownDevice a, KnownDevice b) {
+        if (a.getLastRssi() != b.getLastRssi()) {
+            return a.getLastRssi() > b.getLastRssi() ? -1 : 1;
+        }
+        return Long.compare(a.getAverageConnectMs(), b.getAverageConnectMs());
+    }
+
+    /** Records a successful connect and how long it took. */
+    public void recordConnect(String address, String name, TransportType transport, long nowMillis, long connectMs) {
+        synchronized (this) {
+            KnownDevice device = devices.get(address);
+            if (device == null) {
+                device = new KnownDevice(address, null, ScannedDevice.RSSI_UNKNOWN, transport, 0, 0, 0);
+            }
+            devices.put(address, device.withConnect(name, transport, nowMillis, connectMs));
+        }
+        scheduleSave();
+    }
+
+    /** Updates the name and signal strength of a known car seen in a scan; unknown cars are ignored. */
+    public void recordSighting(String address, String name, int rssi) {
+        synchronized (this) {
+            KnownDevice device = devices.get(address);
+            if (device == null || rssi == device.getLastRssi()
+                    && (name == null || name.equals(device.getName()))) {
+                return;
+            }
+            devices.put(address, device.withSighting(name, rssi));
+        }
+        scheduleSave();
+    }
+
+    public void forget(String address) {
+        synchronized (this) {
+            if (devices.remove(address) == null) {
+                return;
+            }
+        }
+        scheduleSave();
+    }
+
+    /** The last load or save failure, or null. */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    private void scheduleSave() {
+        synchronized (this) {
+            if (saveScheduled) {
+                return;
+            }
+            saveScheduled = true;
+        }
+        // queued behind a pending load, so stored cars are merged before anything is written
+        load(null);
+        executor.execute(this::save);
+    }
+
+    private void save() {
+        List<KnownDevice> snapshot;
+        synchronized (this) {
+            saveScheduled = false;
+            snapshot = new ArrayList<>(devices.values());
+        }
+        try {
+            store.save(snapshot);
+        } catch (IOException e) {
+            lastError = e;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.ramware.espracer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Keeps the {@link DeviceRegistry} in a small tab-separated text file, one car
+ * per line. Saves go to a temporary file that replaces the old one, so a crash
+ * mid-write leaves the previous list intact. Malformed lines are skipped.
+ */
+public class FileDeviceStore implements DeviceRegistry.Store {
+    private static final String HEADER = "espracer-devices 1";
+
+    private final File file;
+
+    public FileDeviceStore(File file) {
+        this.file = file;
+    }
+
+    @Override
+    public List<KnownDevice> load() throws IOException {
+        List<KnownDevice> devices = new ArrayList<>();
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            return devices;
+        }
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                return devices;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                KnownDevice device = parse(line);
+                if (device != null) {
+                    devices.add(device);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return devices;
+    }
+
+    @Override
+    public void save(Collection<KnownDevice> devices) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (KnownDevice device : devices) {
+                writer.write(device.getAddress());
+                writer.write('\t');
+                writer.write(device.getName() == null ? "" : device.getName().replaceAll("[\t\r\n]", " "));
+                writer.write('\t');
+                writer.write(Integer.toString(device.getLastRssi()));
+                writer.write('\t');
+                writer.write(device.getLastTransport().name());
+                writer.write('\t');
+                writer.write(Long.toString(device.getLastConnectMillis()));
+                writer.write('\t');
+                writer.write(Integer.toString(device.getConnectCount()));
+                writer.write('\t');
+                writer.write(Long.toString(device.getAverageConnectMs()));
+                writer.write('\n');
+            }
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("cannot replace " + file);
+        }
+    }
+
+    private static KnownDevice parse(String line) {
+        String[] fields = line.split("\t", -1);
+        if (fields.length < 7 || fields[0].isEmpty()) {
+            return null;
+        }
+        try {
+            return new KnownDevice(fields[0], fields[1].isEmpty() ? null : fields[1],
+                    Integer.parseInt(fields[2]), TransportType.fromName(fields[3]),
+                    Long.parseLong(fields[4]), Integer.parseInt(fields[5]), Long.parseLong(fields[6]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One car of a {@link FleetController}: its link, the latest state routed to it
+ * and its own metrics. Sending, polling and decoding happen only on the fleet
+ * thread that owns the car's shard; everything else may be read from any thread.
+ */
+public class FleetCar {
+    private final String id;
+    private final int slot;
+    private final ConnectionManager connectionManager;
+    private final CommandEncoder encoder;
+    private final byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+    private final FrameDecoder decoder;
+    private final LatencyStats latencyStats = new LatencyStats();
+    private final TelemetryBuffer telemetry;
+    private volatile Transport transport;
+    private volatile boolean resync;
+    private volatile long state = ControlState.NEUTRAL;
+    private volatile int group;
+
+    // fleet thread only
+    private long lastSent;
+    private long lastSentAt;
+    private boolean sentOnce;
+    private long lastPingAt;
+
+    private volatile long sentCount;
+    private volatile long droppedCount;
+    private volatile long errorCount;
+    private volatile long frameCount;
+
+    FleetCar(String id, int slot, ConnectionManager.Connector connector, ScheduledExecutorService connectExecutor,
+             ScheduledExecutorService connectTimer, CommandEncoder encoder, int telemetryCapacity) {
+        this.id = id;
+        this.slot = slot;
+        this.encoder = encoder;
+        this.telemetry = new TelemetryBuffer(telemetryCapacity);
+        this.decoder = new FrameDecoder(this::onFrame);
+        this.connectionManager = new ConnectionManager(connector, connectExecutor, connectTimer);
+    }
+
+    void onConnected(Transport connected) {
+        transport = connected;
+        // the car may have rebooted; resend the current state straight away
+        resync = true;
+    }
+
+    void onDisconnected() {
+        transport = null;
+    }
+
+    /** Sends the state if it changed or the keepalive is due, and a ping if that is due. */
+    void tick(long now, long keepaliveNanos, long pingIntervalNanos) {
+        if (resync) {
+            resync = false;
+            sentOnce = false;
+            decoder.reset();
+        }
+        long current = state;
+        if (!sentOnce || current != lastSent || now - lastSentAt >= keepaliveNanos) {
+            if (write(current)) {
+                lastSent = current;
+                lastSentAt = now;
+                sentOnce = true;
+            }
+        }
+        if (pingIntervalNanos > 0 && now - lastPingAt >= pingIntervalNanos) {
+            write(ControlState.PING);
+            lastPingAt = now;
+        }
+    }
+
+    private boolean write(long command) {
+        Transport out = transport;
+        if (out == null) {
+            droppedCount++;
+            return false;
+        }
+        int length = encoder.encode(command, frame);
+        if (length == 0) {
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            out.send(frame, 0, length);
+        } catch (IOException e) {
+            errorCount++;
+            connectionManager.reportLinkError(out, e);
+            return false;
+        }
+        latencyStats.getWriteCall().record(System.nanoTime() - start);
+        sentCount++;
+        return true;
+    }
+
+    /** Reads whatever already arrived without blocking; returns true if there was anything. */
+    boolean poll(byte[] buffer) {
+        Transport in = transport;
+        if (in == null) {
+            return false;
+        }
+        try {
+            int available = in.available();
+            if (available <= 0) {
+                return false;
+            }
+            int read = in.receive(buffer, 0, Math.min(available, buffer.length));
+            if (read < 0) {
+                connectionManager.reportLinkError(in, new IOException("link closed by peer"));
+                return false;
+            }
+            decoder.feed(buffer, 0, read);
+            return read > 0;
+        } catch (IOException e) {
+            connectionManager.reportLinkError(in, e);
+            return false;
+        }
+    }
+
+    private void onFrame(int type, int sequence, byte[] payload, int offset, int length) {
+        frameCount++;
+        if (type == Protocol.TYPE_ECHO) {
+            latencyStats.recordEcho(payload, offset, length, System.nanoTime());
+        } else if (type == Protocol.TYPE_TELEMETRY) {
+            telemetry.recordFrame(payload, offset, length, System.nanoTime());
+        }
+    }
+
+    void setState(long state) {
+        this.state = state;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    public int getGroup() {
+        return group;
+    }
+
+    void setGroup(int group) {
+        this.group = group;
+    }
+
+    public ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /** The current link, or null while not connected. */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    public LatencyStats getLatencyStats() {
+        return latencyStats;
+    }
+
+    public TelemetryBuffer getTelemetry() {
+        return telemetry;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /** Commands due while the car had no link. */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /** One line for the fleet overview, e.g. "AA:BB CONNECTED g1 sent 120 err 0 rtt p50 4.1 ms". */
+    public String summary() {
+        LatencyHistogram rtt = latencyStats.getRoundTrip();
+        StringBuilder out = new StringBuilder(id).append(' ').append(connectionManager.getState())
+                .append(" g").append(group)
+                .append(" sent ").append(sentCount)
+                .append(" err ").append(errorCount);
+        if (rtt.getCount() > 0) {
+            out.append(String.format(Locale.US, " rtt p50 %.1f ms", rtt.getValueAtPercentile(50) / 1e6));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,282 @@
+package com.ramware.espracer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Keeps links to several cars open at once and drives them from a fixed number
+ * of threads, however many cars there are. Each car belongs to the shard of one
+ * fleet thread. That thread ticks the shard at the control rate, sending each
+ * car's state when it changed or its keepalive is due, and polls the shard's
+ * downlinks in between without blocking. Connect attempts for all cars share
+ * two more threads, and one timer thread aborts the attempts that hang.
+ *
+ * <p>States can go to one car, to a group of cars (so several players can each
+ * drive their own group, and cars can be moved between them) or to every car.
+ * A car whose send blocks holds up the rest of its shard, so transports must
+ * send without waiting on the car. The downlink is read only from transports
+ * that report {@link Transport#available()}; UDP doesn't, so UDP cars are
+ * driven but their telemetry isn't read.
+ */
+public class FleetController {
+    public static final int DEFAULT_THREADS = 2;
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int READ_BUFFER_SIZE = 256;
+    private static final int TELEMETRY_CAPACITY = 256;
+
+    /** Called on connection threads; must not block. */
+    public interface Listener {
+        void onCarStateChanged(FleetCar car, ConnectionManager.State state);
+    }
+
+    private final int threadCount;
+    private final long tickPeriodNanos;
+    private final long keepaliveNanos;
+    private final ScheduledThreadPoolExecutor connectExecutor;
+    private final ScheduledThreadPoolExecutor connectTimer;
+    private final List<FleetCar> cars = new CopyOnWriteArrayList<>();
+    private final Thread[] threads;
+    private volatile long pingIntervalNanos;
+    private volatile long connectTimeoutMs = 5000;
+    private volatile Listener listener;
+    private volatile boolean running;
+    private boolean closed;
+    private int nextSlot;
+
+    private volatile long maxTickLagNanos;
+
+    public FleetController(int threadCount, int tickRateHz, long keepaliveMs) {
+        this.threadCount = Math.max(1, threadCount);
+        int hz = Math.max(ControlLoop.MIN_TICK_RATE_HZ, Math.min(ControlLoop.MAX_TICK_RATE_HZ, tickRateHz));
+        this.tickPeriodNanos = TimeUnit.SECONDS.toNanos(1) / hz;
+        this.keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(keepaliveMs);
+        this.threads = new Thread[this.threadCount];
+        connectExecutor = new ScheduledThreadPoolExecutor(2, r -> {
+            Thread thread = new Thread(r, "FleetConnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        connectExecutor.setRemoveOnCancelPolicy(true);
+        connectTimer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "FleetConnectTimer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        connectTimer.setRemoveOnCancelPolicy(true);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Pings every car at this interval; 0 disables pinging. */
+    public void setPingInterval(long pingIntervalMs) {
+        this.pingIntervalNanos = TimeUnit.MILLISECONDS.toNanos(pingIntervalMs);
+    }
+
+    /** Applies to cars added afterwards. */
+    public void setConnectTimeout(long timeoutMs) {
+        this.connectTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * Adds a car in group 0 and starts connecting to it if the fleet is running.
+     * The encoder belongs to this car alone.
+     */
+    public synchronized FleetCar addCar(String id, ConnectionManager.Connector connector, CommandEncoder encoder) {
+        if (closed) {
+            throw new IllegalStateException("fleet closed");
+        }
+        if (getCar(id) != null) {
+            throw new IllegalArgumentException("car " + id + " already added");
+        }
+        FleetCar car = new FleetCar(id, nextSlot++, connector, connectExecutor, connectTimer, encoder,
+                TELEMETRY_CAPACITY);
+        ConnectionManager manager = car.getConnectionManager();
+        manager.setConnectTimeout(connectTimeoutMs);
+        manager.setListener(new ConnectionManager.Listener() {
+            @Override
+            public void onStateChanged(ConnectionManager.State previous, ConnectionManager.State state) {
+                if (state != ConnectionManager.State.CONNECTED && state != ConnectionManager.State.DEGRADED) {
+                    car.onDisconnected();
+                }
+                Listener l = listener;
+                if (l != null) {
+                    l.onCarStateChanged(car, state);
+                }
+            }
+
+            @Override
+            public void onConnected(Transport transport) {
+                car.onConnected(transport);
+            }
+        });
+        cars.add(car);
+        if (running) {
+            manager.connect();
+        }
+        return car;
+    }
+
+    /** Stops driving the car and closes its link. */
+    public synchronized boolean removeCar(String id) {
+        FleetCar car = getCar(id);
+        if (car == null) {
+            return false;
+        }
+        cars.remove(car);
+        car.getConnectionManager().close();
+        return true;
+    }
+
+    public FleetCar getCar(String id) {
+        for (FleetCar car : cars) {
+            if (car.getId().equals(id)) {
+                return car;
+            }
+        }
+        return null;
+    }
+
+    /** A snapshot of the cars in the order they were added. */
+    public List<FleetCar> getCars() {
+        return new ArrayList<>(cars);
+    }
+
+    public int size() {
+        return cars.size();
+    }
+
+    /** Routes a state to one car; returns false if there is no such car. */
+    public boolean setState(String id, long state) {
+        FleetCar car = getCar(id);
+        if (car == null) {
+            return false;
+        }
+        car.setState(state);
+        return true;
+    }
+
+    /** Sends a state to every car in the group; returns how many there are. */
+    public int setGroupState(int group, long state) {
+        int count = 0;
+        for (FleetCar car : cars) {
+            if (car.getGroup() == group) {
+                car.setState(state);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public void broadcast(long state) {
+        for (FleetCar car : cars) {
+            car.setState(state);
+        }
+    }
+
+    /** Moves a car to another group; it keeps its current state until that group is driven. */
+    public boolean setGroup(String id, int group) {
+        FleetCar car = getCar(id);
+        if (car == null) {
+            return false;
+        }
+        car.setGroup(group);
+        return true;
+    }
+
+    public synchronized void start() {
+        if (running || closed) {
+            return;
+        }
+        running = true;
+        for (FleetCar car : cars) {
+            car.getConnectionManager().connect();
+        }
+        for (int i = 0; i < threadCount; i++) {
+            final int shard = i;
+            Thread thread = new Thread(() -> runLoop(shard), "FleetController-" + i);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            threads[i] = thread;
+            thread.start();
+        }
+    }
+
+    /** Stops the fleet threads and closes every link; the fleet can't be restarted. */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            running = false;
+        }
+        for (Thread thread : threads) {
+            if (thread == null) {
+                continue;
+            }
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (FleetCar car : cars) {
+            car.getConnectionManager().close();
+        }
+        connectExecutor.shutdownNow();
+        connectTimer.shutdownNow();
+    }
+
+    private void runLoop(int shard) {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        long deadline = System.nanoTime();
+        while (running) {
+            long now = System.nanoTime();
+            if (now - deadline >= 0) {
+                long lag = now - deadline;
+                if (lag > maxTickLagNanos) {
+                    maxTickLagNanos = lag;
+                }
+                long keepalive = keepaliveNanos;
+                long ping = pingIntervalNanos;
+                for (FleetCar car : cars) {
+                    if (car.getSlot() % threadCount == shard) {
+                        car.tick(now, keepalive, ping);
+                    }
+                }
+                deadline += tickPeriodNanos;
+                if (now - deadline > tickPeriodNanos) {
+                    // fell more than a tick behind; skip the missed ticks
+                    deadline = now + tickPeriodNanos;
+                }
+            }
+            boolean received = false;
+            for (FleetCar car : cars) {
+                if (car.getSlot() % threadCount == shard) {
+                    received |= car.poll(buffer);
+                }
+            }
+            if (!received && running) {
+                long untilTick = deadline - System.nanoTime();
+                if (untilTick > 0) {
+                    LockSupport.parkNanos(this, Math.min(untilTick, POLL_INTERVAL_NANOS));
+                }
+            }
+        }
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /** The latest any fleet thread started a tick, relative to its schedule. */
+    public long getMaxTickLagNanos() {
+        return maxTickLagNanos;
+    }
+}
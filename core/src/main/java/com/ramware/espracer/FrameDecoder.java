@@ -0,0 +1,92 @@
+package com.ramware.espracer;
+
+/**
+ * Incremental decoder for the framed protocol. Bytes can arrive in any chunking;
+ * complete frames are handed to the listener straight out of the decoder's own
+ * buffer. On a bad header or CRC the decoder drops the sync byte and rescans the
+ * buffered bytes, so one corrupted byte costs at most one frame.
+ */
+public class FrameDecoder {
+
+    public interface Listener {
+        /** {@code payload} is only valid for the duration of the call. */
+        void onFrame(int type, int sequence, byte[] payload, int offset, int length);
+    }
+
+    private final Listener listener;
+    private final byte[] buffer = new byte[Protocol.MAX_FRAME_LENGTH];
+    private int length;
+
+    private long frameCount;
+    private long crcErrorCount;
+    private long discardedByteCount;
+
+    public FrameDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void feed(byte[] data, int offset, int count) {
+        for (int i = offset; i < offset + count; i++) {
+            // drain() always leaves less than one full frame buffered
+            buffer[length++] = data[i];
+            drain();
+        }
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    private void drain() {
+        while (length > 0) {
+            if ((buffer[0] & 0xFF) != Protocol.SYNC) {
+                discard(1);
+                continue;
+            }
+            if (length < Protocol.HEADER_LENGTH) {
+                return;
+            }
+            int version = (buffer[1] & 0xFF) >> 4;
+            int payloadLength = buffer[2] & 0xFF;
+            if (version != Protocol.VERSION || payloadLength > Protocol.MAX_PAYLOAD_LENGTH) {
+                discard(1);
+                continue;
+            }
+            int frameLength = Protocol.HEADER_LENGTH + payloadLength + 1;
+            if (length < frameLength) {
+                return;
+            }
+            int crc = Crc8.compute(buffer, 1, frameLength - 2);
+            if (crc != (buffer[frameLength - 1] & 0xFF)) {
+                crcErrorCount++;
+                discard(1);
+                continue;
+            }
+            frameCount++;
+            listener.onFrame(buffer[1] & 0x0F, buffer[3] & 0xFF, buffer, Protocol.HEADER_LENGTH, payloadLength);
+            consume(frameLength);
+        }
+    }
+
+    private void discard(int count) {
+        discardedByteCount += count;
+        consume(count);
+    }
+
+    private void consume(int count) {
+        System.arraycopy(buffer, count, buffer, 0, length - count);
+        length -= count;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getCrcErrorCount() {
+        return crcErrorCount;
+    }
+
+    public long getDiscardedByteCount() {
+        return discardedByteCount;
+    }
+}
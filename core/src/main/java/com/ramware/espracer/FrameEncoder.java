@@ -0,0 +1,68 @@
+package com.ramware.espracer;
+
+/**
+ * Encodes frames of the versioned binary protocol into caller supplied buffers.
+ * Keeps the running sequence number, so one instance belongs to one link.
+ */
+public class FrameEncoder implements CommandEncoder {
+    private int sequence;
+
+    /**
+     * Encodes a {@link ControlState} as a control frame, {@link ControlState#PING}
+     * as a ping stamped with the current time, or a heartbeat command as a
+     * heartbeat frame.
+     */
+    @Override
+    public int encode(long state, byte[] out) {
+        if (ControlState.isPing(state)) {
+            return encodePing(out, LatencyStats.toWireMicros(System.nanoTime()));
+        }
+        if (ControlState.isHeartbeat(state)) {
+            return encodeHeartbeat(out, ControlState.heartbeatNumber(state));
+        }
+        out[Protocol.HEADER_LENGTH] = (byte) ControlState.buttons(state);
+        out[Protocol.HEADER_LENGTH + 1] = (byte) ControlState.x(state);
+        out[Protocol.HEADER_LENGTH + 2] = (byte) ControlState.y(state);
+        return finish(out, Protocol.TYPE_CONTROL, Protocol.CONTROL_PAYLOAD_LENGTH);
+    }
+
+    public int encodePing(byte[] out, int timestampMicros) {
+        writeInt(out, Protocol.HEADER_LENGTH, timestampMicros);
+        return finish(out, Protocol.TYPE_PING, Protocol.PING_PAYLOAD_LENGTH);
+    }
+
+    public int encodeHeartbeat(byte[] out, int number) {
+        out[Protocol.HEADER_LENGTH] = (byte) (number >>> 8);
+        out[Protocol.HEADER_LENGTH + 1] = (byte) number;
+        return finish(out, Protocol.TYPE_HEARTBEAT, Protocol.HEARTBEAT_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * Writes the header and CRC around a payload the caller already placed at
+     * {@link Protocol#HEADER_LENGTH} and returns the frame length.
+     */
+    public int finish(byte[] out, int type, int payloadLength) {
+        if (payloadLength < 0 || payloadLength > Protocol.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("payload length " + payloadLength);
+        }
+        out[0] = (byte) Protocol.SYNC;
+        out[1] = (byte) (Protocol.VERSION << 4 | (type & 0x0F));
+        out[2] = (byte) payloadLength;
+        out[3] = (byte) sequence;
+        sequence = (sequence + 1) & 0xFF;
+        int end = Protocol.HEADER_LENGTH + payloadLength;
+        out[end] = (byte) Crc8.compute(out, 1, end - 1);
+        return end + 1;
+    }
+
+    static void writeInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+
+    public int nextSequence() {
+        return sequence;
+    }
+}
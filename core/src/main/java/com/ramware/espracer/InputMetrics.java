@@ -0,0 +1,96 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * What the touch input path costs: the time from a touch sample to the control
+ * state it produced being published, the interval between display frames while
+ * a finger is down, and how many samples, publishes and redraws that took.
+ * Written on the UI thread, read by the overlay.
+ */
+public class InputMetrics {
+    private final LatencyHistogram inputToCommand = new LatencyHistogram();
+    private final LatencyHistogram frameInterval = new LatencyHistogram();
+    private volatile long sampleCount;
+    private volatile long historicalSampleCount;
+    private volatile long publishCount;
+    private volatile long redrawCount;
+    private volatile long skippedRedrawCount;
+
+    /** One touch event; {@code historical} of its samples were batched since the last one. */
+    public void recordEvent(int historical) {
+        sampleCount += historical + 1;
+        historicalSampleCount += historical;
+    }
+
+    /** A new state was published {@code latencyNanos} after the sample that produced it. */
+    public void recordPublish(long latencyNanos) {
+        publishCount++;
+        inputToCommand.record(latencyNanos);
+    }
+
+    public void recordFrame(long intervalNanos, boolean redrawn) {
+        frameInterval.record(intervalNanos);
+        if (redrawn) {
+            redrawCount++;
+        } else {
+            skippedRedrawCount++;
+        }
+    }
+
+    public LatencyHistogram getInputToCommand() {
+        return inputToCommand;
+    }
+
+    public LatencyHistogram getFrameInterval() {
+        return frameInterval;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getHistoricalSampleCount() {
+        return historicalSampleCount;
+    }
+
+    public long getPublishCount() {
+        return publishCount;
+    }
+
+    public long getRedrawCount() {
+        return redrawCount;
+    }
+
+    public long getSkippedRedrawCount() {
+        return skippedRedrawCount;
+    }
+
+    public void reset() {
+        inputToCommand.reset();
+        frameInterval.reset();
+        sampleCount = 0;
+        historicalSampleCount = 0;
+        publishCount = 0;
+        redrawCount = 0;
+        skippedRedrawCount = 0;
+    }
+
+    /** Rows in the {@link LatencyStats#CSV_HEADER} format. */
+    public void writeCsv(Appendable out, String label) throws IOException {
+        LatencyStats.writeRow(out, label, "input_to_command", inputToCommand);
+        LatencyStats.writeRow(out, label, "frame_interval", frameInterval);
+    }
+
+    /** One line summary for the on-screen overlay, in milliseconds. */
+    public String summary() {
+        return String.format(Locale.US,
+                "input p50 %.1f p99 %.1f ms  frame p50 %.1f p99 %.1f ms%nsamples %d (%d batched) sent %d drawn %d skipped %d",
+                LatencyStats.millis(inputToCommand.getValueAtPercentile(50)),
+                LatencyStats.millis(inputToCommand.getValueAtPercentile(99)),
+                LatencyStats.millis(frameInterval.getValueAtPercentile(50)),
+                LatencyStats.millis(frameInterval.getValueAtPercentile(99)),
+                sampleCount, historicalSampleCount, publishCount, redrawCount, skippedRedrawCount);
+    }
+}
@@ -0,0 +1,108 @@
+package com.ramware.espracer;
+
+/**
+ * Merges every finger on the driving screen into one {@link ControlState}. Each
+ * touch pointer is bound to the button it went down on, so a button stays
+ * pressed while any pointer still holds it and releasing one button leaves the
+ * others alone. The joystick reports its axes separately. UI thread only.
+ *
+ * <p>Callers publish {@link #getState()} when a touch event returns true; the
+ * {@link ControlLoop} then sends the merged state once per tick, so pressing
+ * forward and steering together is a single update.
+ *
+ * <p>With tilt steering on, the X axis comes from {@link TiltSteering} and the
+ * joystick only sets the throttle.
+ */
+public class InputState {
+    /** Pointer ids at or above this are ignored; Android hands out small ids. */
+    public static final int MAX_POINTERS = 32;
+
+    private final int[] pointerButtons = new int[MAX_POINTERS];
+    private int x;
+    private int y;
+    private boolean tiltSteering;
+    private int tiltX;
+    private long state = ControlState.NEUTRAL;
+
+    /** Pointer {@code pointerId} went down on {@code button}. Returns true if the merged state changed. */
+    public boolean pointerDown(int pointerId, int button) {
+        if (pointerId < 0 || pointerId >= MAX_POINTERS) {
+            return false;
+        }
+        pointerButtons[pointerId] = button;
+        return update();
+    }
+
+    /** Pointer {@code pointerId} lifted. Returns true if the merged state changed. */
+    public boolean pointerUp(int pointerId) {
+        if (pointerId < 0 || pointerId >= MAX_POINTERS) {
+            return false;
+        }
+        pointerButtons[pointerId] = 0;
+        return update();
+    }
+
+    /** Releases every pointer holding {@code button}, as when its gesture is cancelled. */
+    public boolean cancelButton(int button) {
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            if (pointerButtons[i] == button) {
+                pointerButtons[i] = 0;
+            }
+        }
+        return update();
+    }
+
+    /** The joystick moved; axes span -{@code max}..{@code max}. Returns true if the merged state changed. */
+    public boolean setJoystick(int x, int y, int max) {
+        this.x = ControlState.clampAxis(x * ControlState.AXIS_MAX / max);
+        this.y = ControlState.clampAxis(y * ControlState.AXIS_MAX / max);
+        return update();
+    }
+
+    /** Steers from tilt, -{@code max}..{@code max}, instead of the joystick's X axis. Returns true if the merged state changed. */
+    public boolean setTiltSteering(int x, int max) {
+        tiltSteering = true;
+        tiltX = ControlState.clampAxis(x * ControlState.AXIS_MAX / max);
+        return update();
+    }
+
+    /** Hands steering back to the joystick. */
+    public boolean clearTiltSteering() {
+        tiltSteering = false;
+        tiltX = 0;
+        return update();
+    }
+
+    /** Lets go of everything, e.g. when the screen is left or the session changes. */
+    public void reset() {
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            pointerButtons[i] = 0;
+        }
+        x = 0;
+        y = 0;
+        tiltX = 0;
+        state = ControlState.NEUTRAL;
+    }
+
+    public long getState() {
+        return state;
+    }
+
+    /** Buttons currently held by at least one pointer. */
+    public int getButtons() {
+        return ControlState.buttons(state);
+    }
+
+    private boolean update() {
+        int buttons = 0;
+        for (int i = 0; i < MAX_POINTERS; i++) {
+            buttons |= pointerButtons[i];
+        }
+        long next = ControlState.pack(buttons, tiltSteering ? tiltX : x, y);
+        if (next == state) {
+            return false;
+        }
+        state = next;
+        return true;
+    }
+}
@@ -0,0 +1,89 @@
+package com.ramware.espracer;
+
+/**
+ * Pure quantization math behind {@code DigitalJoystick}, kept free of Android types
+ * so it can be unit tested on the JVM. Inputs are offsets from the joystick centre
+ * normalized by its radius, with y growing downwards like screen coordinates.
+ * Results are two signed 16-bit values packed into an int, so nothing is
+ * allocated per touch event.
+ */
+public final class JoystickMath {
+
+    public enum ResponseCurve {
+        LINEAR,
+        /** Blend of linear and cubic response; finer control around the centre. */
+        EXPO
+    }
+
+    public static final int RESOLUTION_8_BIT = 8;
+    public static final int RESOLUTION_16_BIT = 16;
+
+    private JoystickMath() {
+    }
+
+    public static int pack(int x, int y) {
+        return (x & 0xFFFF) | (y << 16);
+    }
+
+    public static int unpackX(int packed) {
+        return (short) packed;
+    }
+
+    public static int unpackY(int packed) {
+        return packed >> 16;
+    }
+
+    /** Largest magnitude produced for the given resolution in bits: 127 or 32767. */
+    public static int maxValue(int resolutionBits) {
+        if (resolutionBits != RESOLUTION_8_BIT && resolutionBits != RESOLUTION_16_BIT) {
+            throw new IllegalArgumentException("unsupported resolution: " + resolutionBits);
+        }
+        return (1 << (resolutionBits - 1)) - 1;
+    }
+
+    /**
+     * Four-way quantization of the original digital joystick: each axis has its own
+     * dead zone, the dominant axis wins and the result is -1, 0 or 1 with y up.
+     */
+    public static int quantizeDigital(float dx, float dy, float deadZone) {
+        if (Math.abs(dx) < deadZone) dx = 0;
+        if (Math.abs(dy) < deadZone) dy = 0;
+        if (Math.abs(dx) > Math.abs(dy)) {
+            return pack(dx > 0 ? 1 : -1, 0);
+        }
+        return pack(0, dy < 0 ? 1 : (dy > 0 ? -1 : 0));
+    }
+
+    /**
+     * Proportional output with a radial dead zone. The deflection is clamped to the
+     * unit circle, the dead zone is cut out and the rest rescaled to 0..1, shaped by
+     * the response curve and scaled to the signed fixed-point range of
+     * {@code resolutionBits}. Y is flipped so that up is positive.
+     */
+    public static int quantizeAnalog(float dx, float dy, float deadZone,
+                                     ResponseCurve curve, float expo, int resolutionBits) {
+        int max = maxValue(resolutionBits);
+        float radius = (float) Math.sqrt(dx * dx + dy * dy);
+        if (radius <= deadZone || radius == 0f) {
+            return 0;
+        }
+        float magnitude = Math.min(radius, 1f);
+        magnitude = (magnitude - deadZone) / (1f - deadZone);
+        magnitude = applyCurve(magnitude, curve, expo);
+        float scale = magnitude * max / radius;
+        int x = clamp(Math.round(dx * scale), max);
+        int y = clamp(Math.round(-dy * scale), max);
+        return pack(x, y);
+    }
+
+    public static float applyCurve(float value, ResponseCurve curve, float expo) {
+        if (curve == ResponseCurve.EXPO) {
+            return (1f - expo) * value + expo * value * value * value;
+        }
+        return value;
+    }
+
+    private static int clamp(int value, int max) {
+        return Math.max(-max, Math.min(max, value));
+    }
+}
@@ -0,0 +1,75 @@
+package com.ramware.espracer;
+
+/**
+ * A car the app has connected to before, as kept by {@link DeviceRegistry}.
+ * Immutable; the registry replaces entries as they change.
+ */
+public final class KnownDevice {
+    private final String address;
+    private final String name;
+    private final int lastRssi;
+    private final TransportType lastTransport;
+    private final long lastConnectMillis;
+    private final int connectCount;
+    private final long averageConnectMs;
+
+    public KnownDevice(String address, String name, int lastRssi, TransportType lastTransport,
+                       long lastConnectMillis, int connectCount, long averageConnectMs) {
+        this.address = address;
+        this.name = name;
+        this.lastRssi = lastRssi;
+        this.lastTransport = lastTransport;
+        this.lastConnectMillis = lastConnectMillis;
+        this.connectCount = connectCount;
+        this.averageConnectMs = averageConnectMs;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /** May be null if the car never reported a name. */
+    public String getName() {
+        return name;
+    }
+
+    /** Last signal strength seen in a scan, or {@link ScannedDevice#RSSI_UNKNOWN}. */
+    public int getLastRssi() {
+        return lastRssi;
+    }
+
+    public TransportType getLastTransport() {
+        return lastTransport;
+    }
+
+    /** Wall clock time of the last successful connect, or 0 if there was none. */
+    public long getLastConnectMillis() {
+        return lastConnectMillis;
+    }
+
+    public int getConnectCount() {
+        return connectCount;
+    }
+
+    /** Mean time a connect took, over all successful connects. */
+    public long getAverageConnectMs() {
+        return averageConnectMs;
+    }
+
+    KnownDevice withConnect(String name, TransportType transport, long nowMillis, long connectMs) {
+        int count = connectCount + 1;
+        // running mean, so the store only needs the count and the mean
+        long average = averageConnectMs + (connectMs - averageConnectMs) / count;
+        return new KnownDevice(address, name != null ? name : this.name, lastRssi, transport, nowMillis, count, average);
+    }
+
+    KnownDevice withSighting(String name, int rssi) {
+        return new KnownDevice(address, name != null ? name : this.name, rssi, lastTransport,
+                lastConnectMillis, connectCount, averageConnectMs);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + address + ")";
+    }
+}
@@ -0,0 +1,84 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The latency figures of one control session: ping round trips, enqueue-to-wire
+ * time in the sender and the duration of each transport write call.
+ */
+public class LatencyStats {
+    public static final String CSV_HEADER = "label,metric,count,mean_us,p50_us,p95_us,p99_us,max_us";
+
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final LatencyHistogram enqueueToWire = new LatencyHistogram();
+    private final LatencyHistogram writeCall = new LatencyHistogram();
+
+    public LatencyHistogram getRoundTrip() {
+        return roundTrip;
+    }
+
+    public LatencyHistogram getEnqueueToWire() {
+        return enqueueToWire;
+    }
+
+    public LatencyHistogram getWriteCall() {
+        return writeCall;
+    }
+
+    /** Handles an echo frame: the payload is the 32-bit microsecond timestamp the ping carried. */
+    public void recordEcho(byte[] payload, int offset, int length, long nowNanos) {
+        if (length < 4) {
+            return;
+        }
+        int sentMicros = (payload[offset] & 0xFF) << 24 | (payload[offset + 1] & 0xFF) << 16
+                | (payload[offset + 2] & 0xFF) << 8 | (payload[offset + 3] & 0xFF);
+        long rttMicros = (toWireMicros(nowNanos) - sentMicros) & 0xFFFFFFFFL;
+        roundTrip.record(TimeUnit.MICROSECONDS.toNanos(rttMicros));
+    }
+
+    /** Monotonic time truncated to the 32-bit microsecond clock carried by ping frames. */
+    public static int toWireMicros(long nanos) {
+        return (int) TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public void reset() {
+        roundTrip.reset();
+        enqueueToWire.reset();
+        writeCall.reset();
+    }
+
+    public void writeCsv(Appendable out, String label) throws IOException {
+        writeRow(out, label, "rtt", roundTrip);
+        writeRow(out, label, "enqueue_to_wire", enqueueToWire);
+        writeRow(out, label, "write_call", writeCall);
+    }
+
+    /** One line summary for the on-screen overlay, in milliseconds. */
+    public String summary() {
+        return String.format(Locale.US,
+                "RTT p50 %.1f p95 %.1f p99 %.1f max %.1f ms%nqueue p99 %.2f  write p99 %.2f ms",
+                millis(roundTrip.getValueAtPercentile(50)), millis(roundTrip.getValueAtPercentile(95)),
+                millis(roundTrip.getValueAtPercentile(99)), millis(roundTrip.getMax()),
+                millis(enqueueToWire.getValueAtPercentile(99)), millis(writeCall.getValueAtPercentile(99)));
+    }
+
+    static void writeRow(Appendable out, String label, String metric, LatencyHistogram histogram) throws IOException {
+        out.append(label).append(',').append(metric).append(',')
+                .append(Long.toString(histogram.getCount())).append(',')
+                .append(Long.toString(micros(histogram.getMean()))).append(',')
+                .append(Long.toString(micros(histogram.getValueAtPercentile(50)))).append(',')
+                .append(Long.toString(micros(histogram.getValueAtPercentile(95)))).append(',')
+                .append(Long.toString(micros(histogram.getValueAtPercentile(99)))).append(',')
+                .append(Long.toString(micros(histogram.getMax()))).append('\n');
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,53 @@
+package com.ramware.espracer;
+
+/**
+ * Maps a {@link ControlState} onto the single-char command set of the original
+ * firmware. Only one action fits in a char, so buttons win over the joystick and
+ * a neutral state becomes a stop.
+ */
+public class LegacyCommandEncoder implements CommandEncoder {
+
+    @Override
+    public int encode(long state, byte[] out) {
+        if (ControlState.isPing(state) || ControlState.isHeartbeat(state)) {
+            // the old firmware cannot echo
+            return 0;
+        }
+        out[0] = (byte) toChar(state);
+        return 1;
+    }
+
+    public static char toChar(long state) {
+        int buttons = ControlState.buttons(state);
+        if ((buttons & ControlState.BUTTON_STOP) != 0) {
+            return Protocol.LEGACY_STOP;
+        }
+        if ((buttons & ControlState.BUTTON_F) != 0) {
+            return Protocol.LEGACY_BUTTON_F;
+        }
+        if ((buttons & ControlState.BUTTON_B) != 0) {
+            return Protocol.LEGACY_BUTTON_B;
+        }
+        if ((buttons & ControlState.BUTTON_L) != 0) {
+            return Protocol.LEGACY_BUTTON_L;
+        }
+        if ((buttons & ControlState.BUTTON_R) != 0) {
+            return Protocol.LEGACY_BUTTON_R;
+        }
+        int x = ControlState.x(state);
+        int y = ControlState.y(state);
+        if (Math.abs(y) >= Math.abs(x)) {
+            if (y > 0) {
+                return Protocol.LEGACY_FORWARD;
+            } else if (y < 0) {
+                return Protocol.LEGACY_BACKWARD;
+            }
+        }
+        if (x > 0) {
+            return Protocol.LEGACY_RIGHT;
+        } else if (x < 0) {
+            return Protocol.LEGACY_LEFT;
+        }
+        return Protocol.LEGACY_STOP;
+    }
+}
@@ -0,0 +1,222 @@
+package com.ramware.espracer;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Judges the health of one link from the heartbeats sent and answered, the
+ * round trip trend, how long writes stall and the signal strength the car
+ * reports. The sender thread records heartbeats and writes, the reader thread
+ * records replies and RSSI, and the watchdog evaluates, so all of it is
+ * thread-safe.
+ *
+ * <p>Heartbeat loss only counts once the car has answered at least one
+ * heartbeat, so firmware without heartbeat support is judged on write stalls
+ * alone.
+ */
+public class LinkQualityMonitor {
+
+    public enum Health {
+        GOOD,
+        /** Worth showing, not worth stopping the car for. */
+        POOR,
+        /** The car can't be trusted to hear us; time to stop it. */
+        LOST
+    }
+
+    private static final int WINDOW = 32;
+    private static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+
+    private final int[] numbers = new int[WINDOW];
+    private final long[] sentAt = new long[WINDOW];
+    private final long[] repliedAt = new long[WINDOW];
+    private int nextSlot;
+
+    private long replyTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(300);
+    private long silenceLostNanos = TimeUnit.MILLISECONDS.toNanos(Protocol.FIRMWARE_LINK_TIMEOUT_MS);
+    private double lossPoor = 0.1;
+    private double lossLost = 0.5;
+    private long rttPoorNanos = TimeUnit.MILLISECONDS.toNanos(150);
+    private long stallPoorNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private long stallLostNanos = TimeUnit.MILLISECONDS.toNanos(400);
+    private int rssiPoor = -85;
+
+    private boolean everReplied;
+    private long lastReplyAt;
+    private long smoothedRttNanos;
+    private long baselineRttNanos;
+    private volatile long maxWriteNanos;
+    private volatile int lastRssi = RSSI_UNKNOWN;
+
+    private volatile Health health = Health.GOOD;
+    private volatile double lossRatio;
+    private volatile long writeStallNanos;
+
+    /** Heartbeats unanswered after {@code replyTimeoutMs} count as lost; no reply at all for {@code silenceMs} means the link is lost. */
+    public synchronized void setHeartbeatTimeouts(long replyTimeoutMs, long silenceMs) {
+        this.replyTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(replyTimeoutMs);
+        this.silenceLostNanos = TimeUnit.MILLISECONDS.toNanos(silenceMs);
+    }
+
+    /** Fractions of the recent heartbeats lost that make the link poor and lost. */
+    public synchronized void setLossThresholds(double poor, double lost) {
+        this.lossPoor = poor;
+        this.lossLost = lost;
+    }
+
+    /** How long a single write may block before the link is poor and lost. */
+    public synchronized void setWriteStallThresholds(long poorMs, long lostMs) {
+        this.stallPoorNanos = TimeUnit.MILLISECONDS.toNanos(poorMs);
+        this.stallLostNanos = TimeUnit.MILLISECONDS.toNanos(lostMs);
+    }
+
+    public synchronized void setRttPoorThreshold(long rttMs) {
+        this.rttPoorNanos = TimeUnit.MILLISECONDS.toNanos(rttMs);
+    }
+
+    public synchronized void setRssiPoorThreshold(int dbm) {
+        this.rssiPoor = dbm;
+    }
+
+    public synchronized void onHeartbeatSent(int number, long nowNanos) {
+        int slot = nextSlot;
+        nextSlot = (slot + 1) % WINDOW;
+        numbers[slot] = number;
+        sentAt[slot] = nowNanos;
+        repliedAt[slot] = 0;
+    }
+
+    /** The car echoed heartbeat {@code number}; unknown or repeated numbers are ignored. */
+    public synchronized void onHeartbeatReply(int number, long nowNanos) {
+        for (int i = 0; i < WINDOW; i++) {
+            if (sentAt[i] != 0 && numbers[i] == number && repliedAt[i] == 0) {
+                repliedAt[i] = nowNanos;
+                long rtt = nowNanos - sentAt[i];
+                if (!everReplied || smoothedRttNanos == 0) {
+                    smoothedRttNanos = rtt;
+                    baselineRttNanos = rtt;
+                } else {
+                    // fast and slow moving averages; their difference is the trend
+                    smoothedRttNanos += (rtt - smoothedRttNanos) / 8;
+                    baselineRttNanos += (rtt - baselineRttNanos) / 64;
+                }
+                everReplied = true;
+                lastReplyAt = nowNanos;
+                Tracer.trace(Tracer.HEARTBEAT_REPLY, nowNanos, number, rtt);
+                return;
+            }
+        }
+    }
+
+    /** A payload from a heartbeat frame the car sent. */
+    public void onHeartbeatFrame(byte[] payload, int offset, int length, long nowNanos) {
+        if (length < Protocol.HEARTBEAT_PAYLOAD_LENGTH) {
+            return;
+        }
+        onHeartbeatReply((payload[offset] & 0xFF) << 8 | payload[offset + 1] & 0xFF, nowNanos);
+    }
+
+    /** Called by the sender thread after every completed write. */
+    public void onWriteCompleted(long durationNanos) {
+        if (durationNanos > maxWriteNanos) {
+            maxWriteNanos = durationNanos;
+        }
+    }
+
+    public void recordRssi(int dbm) {
+        lastRssi = dbm;
+    }
+
+    /** Forgets the heartbeats of the previous link and gives the new one a full silence period. */
+    public synchronized void reset(long nowNanos) {
+        for (int i = 0; i < WINDOW; i++) {
+            sentAt[i] = 0;
+            repliedAt[i] = 0;
+        }
+        lastReplyAt = nowNanos;
+        smoothedRttNanos = 0;
+        baselineRttNanos = 0;
+        lossRatio = 0;
+        health = Health.GOOD;
+    }
+
+    /**
+     * Judges the link now. {@code currentWriteStallNanos} is how long the write in
+     * progress has been blocked, or 0.
+     */
+    public synchronized Health evaluate(long nowNanos, long currentWriteStallNanos) {
+        int considered = 0;
+        int lost = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            if (sentAt[i] == 0 || nowNanos - sentAt[i] < replyTimeoutNanos) {
+                continue;
+            }
+            considered++;
+            if (repliedAt[i] == 0 || repliedAt[i] - sentAt[i] > replyTimeoutNanos) {
+                lost++;
+            }
+        }
+        double loss = everReplied && considered > 0 ? (double) lost / considered : 0;
+        boolean silent = everReplied && nowNanos - lastReplyAt > silenceLostNanos;
+        int rssi = lastRssi;
+
+        Health next;
+        if (silent || loss >= lossLost || currentWriteStallNanos >= stallLostNanos) {
+            next = Health.LOST;
+        } else if (loss >= lossPoor || currentWriteStallNanos >= stallPoorNanos
+                || smoothedRttNanos >= rttPoorNanos || rssi != RSSI_UNKNOWN && rssi < rssiPoor) {
+            next = Health.POOR;
+        } else {
+            next = Health.GOOD;
+        }
+        lossRatio = loss;
+        writeStallNanos = currentWriteStallNanos;
+        health = next;
+        return next;
+    }
+
+    /** The result of the last {@link #evaluate}. */
+    public Health getHealth() {
+        return health;
+    }
+
+    public double getLossRatio() {
+        return lossRatio;
+    }
+
+    public synchronized long getSmoothedRttNanos() {
+        return smoothedRttNanos;
+    }
+
+    /** Positive while the round trip is getting worse than its long-run average. */
+    public synchronized long getRttTrendNanos() {
+        return smoothedRttNanos - baselineRttNanos;
+    }
+
+    public long getMaxWriteNanos() {
+        return maxWriteNanos;
+    }
+
+    public int getLastRssi() {
+        return lastRssi;
+    }
+
+    /** One line for the UI, e.g. "GOOD rtt 42 ms (+3) loss 0% stall 0 ms -61 dBm". */
+    public String summary() {
+        long rtt;
+        long trend;
+        synchronized (this) {
+            rtt = smoothedRttNanos;
+            trend = smoothedRttNanos - baselineRttNanos;
+        }
+        StringBuilder out = new StringBuilder(health.name());
+        out.append(String.format(Locale.US, " rtt %d ms (%+d) loss %.0f%% stall %d ms",
+                TimeUnit.NANOSECONDS.toMillis(rtt), TimeUnit.NANOSECONDS.toMillis(trend),
+                lossRatio * 100, TimeUnit.NANOSECONDS.toMillis(writeStallNanos)));
+        int rssi = lastRssi;
+        if (rssi != RSSI_UNKNOWN) {
+            out.append(' ').append(rssi).append(" dBm");
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,65 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+
+/**
+ * Reads the downlink of one transport on its own thread and feeds it through a
+ * {@link FrameDecoder}. The thread ends when the transport closes; a read error
+ * or an unexpected end of stream is reported to the error listener.
+ */
+public class LinkReader {
+
+    public interface ErrorListener {
+        void onReadError(Transport transport, IOException e);
+    }
+
+    private static final int READ_BUFFER_SIZE = 256;
+
+    private final Transport transport;
+    private final FrameDecoder decoder;
+    private final ErrorListener errorListener;
+    private final byte[] buffer = new byte[READ_BUFFER_SIZE];
+    private final Thread thread;
+    private volatile boolean running;
+
+    public LinkReader(Transport transport, FrameDecoder.Listener frameListener, ErrorListener errorListener) {
+        this.transport = transport;
+        this.decoder = new FrameDecoder(frameListener);
+        this.errorListener = errorListener;
+        this.thread = new Thread(this::runLoop, "LinkReader");
+    }
+
+    public void start() {
+        running = true;
+        thread.start();
+    }
+
+    /** Stops after the current read; closing the transport unblocks it. */
+    public void stop() {
+        running = false;
+        thread.interrupt();
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    private void runLoop() {
+        try {
+            while (running) {
+                int read = transport.receive(buffer, 0, buffer.length);
+                if (read < 0) {
+                    if (running) {
+                        errorListener.onReadError(transport, new IOException("link closed by peer"));
+                    }
+                    return;
+                }
+                decoder.feed(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            if (running) {
+                errorListener.onReadError(transport, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ramware.espracer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops the car when the link can't be trusted. Every check it evaluates the
+ * {@link LinkQualityMonitor}. When the link is lost, or the connection dropped
+ * and is being re-established, it holds the {@link ControlLoop} at
+ * {@link ControlState#FAILSAFE_STOP} and marks the connection degraded. Once the
+ * link has been healthy for the recovery time it marks it healthy again and
+ * releases the failsafe; the car stays stopped until the input changes.
+ *
+ * <p>The car's own timeout (see PROTOCOL.md) covers the case where the stop
+ * can't get through at all.
+ */
+public class LinkWatchdog {
+    public static final long DEFAULT_CHECK_INTERVAL_MS = 50;
+    public static final long DEFAULT_RECOVERY_MS = 1000;
+
+    public interface Listener {
+        /** Called on the watchdog thread. */
+        void onHealthChanged(LinkQualityMonitor.Health health, boolean failsafe);
+    }
+
+    private final LinkQualityMonitor monitor;
+    private final ControlLoop controlLoop;
+    private final ConnectionManager connectionManager;
+    private final CommandSender commandSender;
+    private final long recoveryNanos;
+    private volatile Listener listener;
+    private ScheduledExecutorService executor;
+
+    // watchdog thread only
+    private boolean tripped;
+    private long healthySince;
+    private LinkQualityMonitor.Health lastHealth = LinkQualityMonitor.Health.GOOD;
+    private ConnectionManager.State lastState = ConnectionManager.State.IDLE;
+    private boolean everConnected;
+    private boolean notifiedTripped;
+
+    private volatile long tripCount;
+    private volatile long lastTripNanos;
+
+    public LinkWatchdog(LinkQualityMonitor monitor, ControlLoop controlLoop, ConnectionManager connectionManager,
+                        CommandSender commandSender, long recoveryMs) {
+        this.monitor = monitor;
+        this.controlLoop = controlLoop;
+        this.connectionManager = connectionManager;
+        this.commandSender = commandSender;
+        this.recoveryNanos = TimeUnit.MILLISECONDS.toNanos(recoveryMs);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void start(long checkIntervalMs) {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "LinkWatchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> check(System.nanoTime()), checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /** One check; runs on the watchdog thread, or directly in tests. */
+    void check(long nowNanos) {
+        ConnectionManager.State state = connectionManager.getState();
+        boolean linkUp = state == ConnectionManager.State.CONNECTED || state == ConnectionManager.State.DEGRADED;
+        if (linkUp && !(lastState == ConnectionManager.State.CONNECTED || lastState == ConnectionManager.State.DEGRADED)) {
+            // a fresh link: the old heartbeats mean nothing now
+            monitor.reset(nowNanos);
+            everConnected = true;
+            if (tripped) {
+                // back, but not trusted until it has stayed healthy
+                connectionManager.markDegraded();
+            }
+        }
+        lastState = state;
+
+        LinkQualityMonitor.Health health = monitor.evaluate(nowNanos, commandSender.getCurrentWriteStallNanos(nowNanos));
+        boolean dropped = everConnected && !linkUp && state != ConnectionManager.State.CLOSED;
+        if (health == LinkQualityMonitor.Health.LOST || dropped) {
+            healthySince = 0;
+            if (!tripped) {
+                tripped = true;
+                tripCount++;
+                lastTripNanos = nowNanos;
+                controlLoop.engageFailsafe();
+                connectionManager.markDegraded();
+            }
+        } else if (tripped && linkUp) {
+            if (healthySince == 0) {
+                healthySince = nowNanos;
+            } else if (nowNanos - healthySince >= recoveryNanos) {
+                tripped = false;
+                healthySince = 0;
+                connectionManager.markHealthy();
+                controlLoop.releaseFailsafe();
+            }
+        }
+
+        if (health != lastHealth || tripped != notifiedTripped) {
+            lastHealth = health;
+            notifiedTripped = tripped;
+            Listener l = listener;
+            if (l != null) {
+                l.onHealthChanged(health, tripped);
+            }
+        }
+    }
+
+    public boolean isTripped() {
+        return controlLoop.isFailsafeEngaged();
+    }
+
+    public long getTripCount() {
+        return tripCount;
+    }
+
+    public long getLastTripNanos() {
+        return lastTripNanos;
+    }
+}
@@ -0,0 +1,132 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process transport for tests and host-side tools. Created in connected pairs:
+ * what one end sends, the other end receives. Each direction is a bounded byte
+ * ring, so a slow reader back-pressures the writer like a full socket buffer.
+ *
+ * <p>Each end can impair what it sends, to stand in for a bad radio link: a
+ * delay blocks every send like a congested stack, and loss silently drops
+ * whole sends.
+ */
+public class LoopbackTransport implements Transport {
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private final BytePipe inbound;
+    private final BytePipe outbound;
+    private final TransportMetrics metrics = new TransportMetrics();
+    private LoopbackTransport peer;
+    private volatile long sendDelayNanos;
+    private volatile double sendLoss;
+    private Random lossRandom = new Random();
+
+    private LoopbackTransport(BytePipe inbound, BytePipe outbound) {
+        this.inbound = inbound;
+        this.outbound = outbound;
+    }
+
+    public static LoopbackTransport pair() {
+        return pair(DEFAULT_BUFFER_SIZE);
+    }
+
+    /** Returns one end of a new pair; the other end is {@link #peer()}. */
+    public static LoopbackTransport pair(int bufferSize) {
+        BytePipe up = new BytePipe(bufferSize);
+        BytePipe down = new BytePipe(bufferSize);
+        LoopbackTransport a = new LoopbackTransport(down, up);
+        LoopbackTransport b = new LoopbackTransport(up, down);
+        a.peer = b;
+        b.peer = a;
+        return a;
+    }
+
+    public LoopbackTransport peer() {
+        return peer;
+    }
+
+    /** Blocks every send on this end for {@code delayMs} before it is delivered. */
+    public void setSendDelay(long delayMs) {
+        this.sendDelayNanos = TimeUnit.MILLISECONDS.toNanos(delayMs);
+    }
+
+    /**
+     * Drops each send on this end with probability {@code loss}, 1 losing
+     * everything; the sender still sees the send succeed.
+     */
+    public synchronized void setSendLoss(double loss, Random random) {
+        this.lossRandom = random;
+        this.sendLoss = loss;
+    }
+
+    @Override
+    public void open() throws IOException {
+        if (outbound.isClosed()) {
+            throw new IOException("transport closed");
+        }
+        metrics.recordOpen(0);
+    }
+
+    @Override
+    public void send(byte[] data, int offset, int length) throws IOException {
+        long start = System.nanoTime();
+        long delay = sendDelayNanos;
+        if (delay > 0) {
+            long until = start + delay;
+            for (long left = delay; left > 0 && !outbound.isClosed(); left = until - System.nanoTime()) {
+                LockSupport.parkNanos(this, left);
+            }
+        }
+        if (dropSend()) {
+            metrics.recordSend(length, System.nanoTime() - start);
+            return;
+        }
+        try {
+            outbound.write(data, offset, length);
+        } catch (IOException e) {
+            metrics.recordSendError();
+            throw e;
+        }
+        metrics.recordSend(length, System.nanoTime() - start);
+    }
+
+    private boolean dropSend() {
+        double loss = sendLoss;
+        if (loss <= 0) {
+            return false;
+        }
+        synchronized (this) {
+            return lossRandom.nextDouble() < loss;
+        }
+    }
+
+    @Override
+    public int receive(byte[] buffer, int offset, int length) throws IOException {
+        int read = inbound.read(buffer, offset, length);
+        if (read > 0) {
+            metrics.recordReceive(read);
+        }
+        return read;
+    }
+
+    /** Bytes waiting to be received on this end. */
+    @Override
+    public int available() {
+        return inbound.available();
+    }
+
+    @Override
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        inbound.close();
+        outbound.close();
+    }
+}
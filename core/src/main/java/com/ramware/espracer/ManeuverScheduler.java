@@ -0,0 +1,252 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a {@link ManeuverScript} through the {@link ControlLoop} override on a
+ * thread of its own. Step deadlines are laid out from the moment the script was
+ * started on the monotonic clock, so a late step never pushes back the ones
+ * after it; the thread parks until just short of each deadline and spins the
+ * rest of the way, because a park alone overshoots by a scheduler quantum.
+ *
+ * <p>How late each step went out is recorded, and steps later than the miss
+ * threshold are counted, so timed runs can be compared across phones.
+ *
+ * <p>{@link #cancel()} hands control straight back to the published input and
+ * is cheap enough to call on every touch.
+ */
+public class ManeuverScheduler {
+    public static final long DEFAULT_SPIN_US = 500;
+    public static final long DEFAULT_MISS_THRESHOLD_US = 1000;
+
+    private final ControlLoop controlLoop;
+    private final LatencyHistogram lateness = new LatencyHistogram();
+    private volatile long spinNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_SPIN_US);
+    private volatile long missThresholdNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_MISS_THRESHOLD_US);
+
+    // guarded by this; every run and cancel moves runId on, so a step of an old run can't be issued after it
+    private ManeuverScript script;
+    private long startNanos;
+    private volatile long runId;
+
+    private volatile boolean running;
+    private volatile Thread thread;
+
+    private volatile long runCount;
+    private volatile long completedCount;
+    private volatile long cancelledCount;
+    private volatile long issuedCount;
+    private volatile long missedCount;
+    private volatile long lastLatenessNanos;
+
+    public ManeuverScheduler(ControlLoop controlLoop) {
+        this.controlLoop = controlLoop;
+    }
+
+    /** How far ahead of a deadline the thread stops parking and spins. */
+    public void setSpin(long spinUs) {
+        this.spinNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, spinUs));
+    }
+
+    /** Steps issued later than this count as missed. */
+    public void setMissThreshold(long thresholdUs) {
+        this.missThresholdNanos = TimeUnit.MICROSECONDS.toNanos(thresholdUs);
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::runLoop, "ManeuverScheduler");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        cancel();
+        LockSupport.unpark(t);
+        try {
+            t.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Starts {@code script} from its first step now, cancelling any script still running. */
+    public void run(ManeuverScript script) {
+        synchronized (this) {
+            if (this.script != null) {
+                cancelledCount++;
+            }
+            runId++;
+            this.script = script;
+            startNanos = System.nanoTime();
+            runCount++;
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /** Stops the running script, if any, and returns control to the published state. */
+    public boolean cancel() {
+        synchronized (this) {
+            if (script == null) {
+                return false;
+            }
+            runId++;
+            script = null;
+            controlLoop.clearOverride();
+            cancelledCount++;
+        }
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    public synchronized boolean isActive() {
+        return script != null;
+    }
+
+    private void runLoop() {
+        while (running) {
+            ManeuverScript next;
+            long id;
+            long start;
+            synchronized (this) {
+                next = script;
+                id = runId;
+                start = startNanos;
+            }
+            if (next == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            play(next, id, start);
+        }
+    }
+
+    private void play(ManeuverScript script, long id, long start) {
+        long deadline = start;
+        for (int i = 0; i < script.size(); i++) {
+            long step = script.step(i);
+            if (!waitUntil(deadline, id) || !issue(id, deadline, ManeuverScript.state(step), false)) {
+                return;
+            }
+            long micros = ManeuverScript.durationMicros(step);
+            if (micros == ManeuverScript.HOLD) {
+                // the last state stays until someone cancels
+                while (running && runId == id) {
+                    LockSupport.park(this);
+                }
+                return;
+            }
+            deadline += TimeUnit.MICROSECONDS.toNanos(micros);
+        }
+        if (waitUntil(deadline, id)) {
+            issue(id, deadline, 0, true);
+        }
+    }
+
+    // parks to within spinNanos of the deadline, then spins; false if the run was cancelled meanwhile
+    private boolean waitUntil(long deadline, long id) {
+        while (running && runId == id) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return true;
+            }
+            long spin = spinNanos;
+            if (remaining > spin) {
+                LockSupport.parkNanos(this, remaining - spin);
+            }
+        }
+        return false;
+    }
+
+    private boolean issue(long id, long deadline, long state, boolean end) {
+        long now;
+        synchronized (this) {
+            if (runId != id) {
+                return false;
+            }
+            now = System.nanoTime();
+            if (end) {
+                script = null;
+                controlLoop.clearOverride();
+                completedCount++;
+            } else {
+                controlLoop.setOverride(state);
+            }
+        }
+        long late = now - deadline;
+        lateness.record(late);
+        lastLatenessNanos = late;
+        issuedCount++;
+        if (late > missThresholdNanos) {
+            missedCount++;
+        }
+        Tracer.trace(Tracer.MANEUVER, now, end ? -1 : state, late);
+        return true;
+    }
+
+    /** How late each step went out, in nanoseconds; the end of a script counts as a step. */
+    public LatencyHistogram getLateness() {
+        return lateness;
+    }
+
+    public long getRunCount() {
+        return runCount;
+    }
+
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    public long getCancelledCount() {
+        return cancelledCount;
+    }
+
+    public long getIssuedCount() {
+        return issuedCount;
+    }
+
+    public long getMissedCount() {
+        return missedCount;
+    }
+
+    public long getLastLatenessNanos() {
+        return lastLatenessNanos;
+    }
+
+    public void reset() {
+        lateness.reset();
+        runCount = 0;
+        completedCount = 0;
+        cancelledCount = 0;
+        issuedCount = 0;
+        missedCount = 0;
+        lastLatenessNanos = 0;
+    }
+
+    public void writeCsv(Appendable out, String label) throws IOException {
+        LatencyStats.writeRow(out, label, "maneuver_lateness", lateness);
+    }
+
+    /** One line summary for the on-screen overlay. */
+    public String summary() {
+        return String.format(Locale.US, "maneuver runs %d done %d late p99 %.2f max %.2f ms missed %d/%d",
+                runCount, completedCount, LatencyStats.millis(lateness.getValueAtPercentile(99)),
+                LatencyStats.millis(lateness.getMax()), missedCount, issuedCount);
+    }
+}
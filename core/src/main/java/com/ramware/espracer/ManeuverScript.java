@@ -0,0 +1,159 @@
+package com.ramware.espracer;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A timed sequence of control states compiled from text such as
+ * {@code "forward 800ms, right 300ms, stop"}. Steps are separated by commas or
+ * new lines; each is one or more of {@code forward}, {@code back}, {@code left},
+ * {@code right} and {@code stop} joined by {@code +}, or {@code coast} for no
+ * buttons at all, followed by how long to hold it in {@code ms} or {@code s}
+ * (bare numbers are milliseconds). Only the last step may leave the duration
+ * out, in which case its state is held until the script is cancelled.
+ *
+ * <p>Compiled steps are packed one per long so the scheduler walks a flat array
+ * and allocates nothing while a script runs: the {@link ControlState} in bits
+ * 0 to 23 and the duration in microseconds in bits 24 to 55.
+ */
+public final class ManeuverScript {
+    public static final int MAX_STEPS = 256;
+    /** The duration of a last step that is held until cancelled. */
+    public static final long HOLD = 0xFFFFFFFFL;
+
+    private static final int DURATION_SHIFT = 24;
+    private static final long STATE_MASK = (1L << DURATION_SHIFT) - 1;
+    private static final long MAX_DURATION_MICROS = HOLD - 1;
+
+    private final String source;
+    private final long[] steps;
+
+    private ManeuverScript(String source, long[] steps) {
+        this.source = source;
+        this.steps = steps;
+    }
+
+    /** Compiles {@code source}; throws IllegalArgumentException naming the step that is wrong. */
+    public static ManeuverScript compile(String source) {
+        String[] parts = source.trim().split("\\s*[,\\n]\\s*");
+        if (parts.length == 0 || parts[0].isEmpty()) {
+            throw new IllegalArgumentException("empty maneuver script");
+        }
+        if (parts.length > MAX_STEPS) {
+            throw new IllegalArgumentException("more than " + MAX_STEPS + " steps");
+        }
+        long[] steps = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            // "800 ms" reads as well as "800ms"
+            String[] words = parts[i].trim().toLowerCase(Locale.US).split("\\s+", 2);
+            if (words[0].isEmpty() || words.length == 2 && words[1].split("\\s+").length > 2) {
+                throw new IllegalArgumentException("step " + (i + 1) + ": expected '<action> [duration]', got '" + parts[i] + "'");
+            }
+            long state = parseAction(words[0], i);
+            long micros;
+            if (words.length == 2) {
+                micros = parseDuration(words[1].replaceAll("\\s+", ""), i);
+            } else if (i == parts.length - 1) {
+                micros = HOLD;
+            } else {
+                throw new IllegalArgumentException("step " + (i + 1) + ": only the last step may leave out its duration");
+            }
+            steps[i] = micros << DURATION_SHIFT | state;
+        }
+        return new ManeuverScript(source, steps);
+    }
+
+    private static long parseAction(String action, int index) {
+        if (action.equals("coast")) {
+            return ControlState.NEUTRAL;
+        }
+        int buttons = 0;
+        for (String name : action.split("\\+")) {
+            switch (name) {
+                case "forward":
+                    buttons |= ControlState.BUTTON_F;
+                    break;
+                case "back":
+                    buttons |= ControlState.BUTTON_B;
+                    break;
+                case "left":
+                    buttons |= ControlState.BUTTON_L;
+                    break;
+                case "right":
+                    buttons |= ControlState.BUTTON_R;
+                    break;
+                case "stop":
+                    buttons |= ControlState.BUTTON_STOP;
+                    break;
+                default:
+                    throw new IllegalArgumentException("step " + (index + 1) + ": unknown action '" + name + "'");
+            }
+        }
+        return ControlState.pack(buttons, 0, 0);
+    }
+
+    private static long parseDuration(String text, int index) {
+        double value;
+        long unitMicros;
+        try {
+            if (text.endsWith("ms")) {
+                value = Double.parseDouble(text.substring(0, text.length() - 2));
+                unitMicros = 1000;
+            } else if (text.endsWith("s")) {
+                value = Double.parseDouble(text.substring(0, text.length() - 1));
+                unitMicros = 1000000;
+            } else {
+                value = Double.parseDouble(text);
+                unitMicros = 1000;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("step " + (index + 1) + ": bad duration '" + text + "'");
+        }
+        long micros = Math.round(value * unitMicros);
+        if (micros < 0 || micros > MAX_DURATION_MICROS) {
+            throw new IllegalArgumentException("step " + (index + 1) + ": duration out of range '" + text + "'");
+        }
+        return micros;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public int size() {
+        return steps.length;
+    }
+
+    /** The packed step at {@code index}. */
+    long step(int index) {
+        return steps[index];
+    }
+
+    static long state(long step) {
+        return step & STATE_MASK;
+    }
+
+    /** Microseconds, or {@link #HOLD}. */
+    static long durationMicros(long step) {
+        return step >>> DURATION_SHIFT;
+    }
+
+    public long getState(int index) {
+        return state(steps[index]);
+    }
+
+    /** In nanoseconds; -1 for a last step held until cancelled. */
+    public long getDurationNanos(int index) {
+        long micros = durationMicros(steps[index]);
+        return micros == HOLD ? -1 : TimeUnit.MICROSECONDS.toNanos(micros);
+    }
+
+    /** The time from the first step to the end of the last, not counting a held last step. */
+    public long getTotalNanos() {
+        long total = 0;
+        for (int i = 0; i < steps.length; i++) {
+            total += Math.max(0, getDurationNanos(i));
+        }
+        return total;
+    }
+}
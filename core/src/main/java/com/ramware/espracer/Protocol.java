@@ -0,0 +1,45 @@
+package com.ramware.espracer;
+
+/**
+ * Constants of the framed ESPRacer link protocol. See PROTOCOL.md for the wire layout.
+ *
+ * <pre>
+ * [SYNC][VERSION << 4 | TYPE][LENGTH][SEQ][PAYLOAD x LENGTH][CRC-8]
+ * </pre>
+ */
+public final class Protocol {
+    public static final int SYNC = 0xA5;
+    public static final int VERSION = 1;
+
+    public static final int TYPE_CONTROL = 0x1;
+    public static final int TYPE_PING = 0x2;
+    public static final int TYPE_ECHO = 0x3;
+    public static final int TYPE_TELEMETRY = 0x4;
+    public static final int TYPE_HEARTBEAT = 0x5;
+
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_PAYLOAD_LENGTH = 32;
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH + MAX_PAYLOAD_LENGTH + 1;
+
+    public static final int CONTROL_PAYLOAD_LENGTH = 3;
+    public static final int PING_PAYLOAD_LENGTH = 4;
+    public static final int TELEMETRY_PAYLOAD_LENGTH = 5;
+    public static final int HEARTBEAT_PAYLOAD_LENGTH = 2;
+
+    /** The firmware stops the motors when no valid frame arrived for this long. */
+    public static final int FIRMWARE_LINK_TIMEOUT_MS = 500;
+
+    /** Single-char commands understood by the original firmware. */
+    public static final char LEGACY_FORWARD = '0';
+    public static final char LEGACY_BACKWARD = '1';
+    public static final char LEGACY_RIGHT = '2';
+    public static final char LEGACY_LEFT = '3';
+    public static final char LEGACY_BUTTON_F = '4';
+    public static final char LEGACY_BUTTON_B = '5';
+    public static final char LEGACY_BUTTON_L = '6';
+    public static final char LEGACY_BUTTON_R = '7';
+    public static final char LEGACY_STOP = '9';
+
+    private Protocol() {
+    }
+}
@@ -0,0 +1,75 @@
+package com.ramware.espracer;
+
+/**
+ * One car as last seen by a scan. Immutable, so lists of these can be handed to
+ * the UI and diffed against the previous list; {@link DeviceIndex} swaps in a new
+ * instance when something changes.
+ */
+public final class ScannedDevice {
+    /** RSSI of a device that is bonded but was not heard in this scan. */
+    public static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+
+    private final String address;
+    private final String name;
+    private final int rssi;
+    private final boolean bonded;
+    private final boolean ble;
+
+    public ScannedDevice(String address, String name, int rssi, boolean bonded, boolean ble) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.bonded = bonded;
+        this.ble = ble;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    /** Advertised or bonded name; may be null. */
+    public String getName() {
+        return name;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public boolean isBonded() {
+        return bonded;
+    }
+
+    /** True if the device was heard advertising over Bluetooth LE. */
+    public boolean isBle() {
+        return ble;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ScannedDevice)) {
+            return false;
+        }
+        ScannedDevice other = (ScannedDevice) o;
+        return rssi == other.rssi && bonded == other.bonded && ble == other.ble
+                && address.equals(other.address)
+                && (name == null ? other.name == null : name.equals(other.name));
+    }
+
+    @Override
+    public int hashCode() {
+        int result = address.hashCode();
+        result = 31 * result + (name == null ? 0 : name.hashCode());
+        result = 31 * result + rssi;
+        result = 31 * result + (bonded ? 1 : 0);
+        return 31 * result + (ble ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + address + ")";
+    }
+}
@@ -0,0 +1,142 @@
+package com.ramware.espracer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cursor over a log written by {@link SessionRecorder}. {@link #next()} advances
+ * to the following record and the getters describe it; nothing is allocated per
+ * record. A log cut short by a crash simply ends at the last complete record.
+ */
+public class SessionReader implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final long startTimeMillis;
+    private final byte[] payload = new byte[Protocol.MAX_PAYLOAD_LENGTH];
+    private boolean endOfChannel;
+    private boolean truncated;
+
+    private int kind;
+    private long timeMicros;
+    private long command;
+    private int frameType;
+    private int payloadLength;
+
+    public SessionReader(ReadableByteChannel channel) throws IOException {
+        this.channel = channel;
+        buffer.flip();
+        if (!fill(SessionRecorder.HEADER_LENGTH)
+                || buffer.getInt() != SessionRecorder.MAGIC
+                || buffer.getShort() != SessionRecorder.FORMAT_VERSION) {
+            throw new IOException("not a session log");
+        }
+        buffer.getShort();
+        startTimeMillis = buffer.getLong();
+    }
+
+    public static SessionReader open(File file) throws IOException {
+        return new SessionReader(new FileInputStream(file).getChannel());
+    }
+
+    /** Advances to the next record; false at the end of the log. */
+    public boolean next() throws IOException {
+        if (!fill(SessionRecorder.RECORD_HEADER_LENGTH)) {
+            return false;
+        }
+        int position = buffer.position();
+        int nextKind = buffer.get();
+        long delta = buffer.getInt() & 0xFFFFFFFFL;
+        if (nextKind == SessionRecorder.KIND_COMMAND) {
+            if (!fill(8)) {
+                return false;
+            }
+            command = buffer.getLong();
+        } else if (nextKind == SessionRecorder.KIND_FRAME) {
+            if (!fill(2)) {
+                return false;
+            }
+            int type = buffer.get() & 0xFF;
+            int length = buffer.get() & 0xFF;
+            if (length > Protocol.MAX_PAYLOAD_LENGTH) {
+                throw new IOException("corrupt frame record at offset " + position);
+            }
+            if (!fill(length)) {
+                return false;
+            }
+            buffer.get(payload, 0, length);
+            frameType = type;
+            payloadLength = length;
+        } else {
+            throw new IOException("unknown record kind " + nextKind);
+        }
+        kind = nextKind;
+        timeMicros += delta;
+        return true;
+    }
+
+    // makes sure count more bytes are buffered; false (and truncated if partial) at the end
+    private boolean fill(int count) throws IOException {
+        while (buffer.remaining() < count) {
+            if (endOfChannel) {
+                truncated |= buffer.hasRemaining();
+                return false;
+            }
+            buffer.compact();
+            int read = channel.read(buffer);
+            buffer.flip();
+            if (read < 0) {
+                endOfChannel = true;
+            }
+        }
+        return true;
+    }
+
+    /** {@link SessionRecorder#KIND_COMMAND} or {@link SessionRecorder#KIND_FRAME}. */
+    public int getKind() {
+        return kind;
+    }
+
+    /** Time of the current record since the start of the session. */
+    public long getTimeNanos() {
+        return TimeUnit.MICROSECONDS.toNanos(timeMicros);
+    }
+
+    public long getCommand() {
+        return command;
+    }
+
+    public int getFrameType() {
+        return frameType;
+    }
+
+    /** Payload of the current frame record, valid until the next call to {@link #next()}. */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /** True once the end was reached in the middle of a record. */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,263 @@
+package com.ramware.espracer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends a control session to a compact binary log: every command that went out
+ * and every frame that came in, each stamped with the time since the previous
+ * record. Recording only copies a few bytes into a preallocated buffer; a
+ * background thread swaps the full or aged buffer for a spare and writes it
+ * through the channel, so the sender and reader threads never do file I/O. If
+ * both buffers are busy the record is dropped and counted rather than blocking.
+ *
+ * <p>Layout, big-endian:
+ * <pre>
+ * header:  [MAGIC int][FORMAT_VERSION short][0 short][start wall clock ms long]
+ * command: [KIND_COMMAND][delta us uint32][command long]
+ * frame:   [KIND_FRAME][delta us uint32][type byte][length byte][payload x length]
+ * </pre>
+ * Read it back with {@link SessionReader}.
+ */
+public class SessionRecorder implements Closeable {
+    /** "ESPR" */
+    public static final int MAGIC = 0x45535052;
+    public static final int FORMAT_VERSION = 1;
+    public static final int HEADER_LENGTH = 16;
+    public static final int KIND_COMMAND = 1;
+    public static final int KIND_FRAME = 2;
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    static final int RECORD_HEADER_LENGTH = 5;
+    static final int COMMAND_RECORD_LENGTH = RECORD_HEADER_LENGTH + 8;
+    static final int MAX_RECORD_LENGTH = RECORD_HEADER_LENGTH + 2 + Protocol.MAX_PAYLOAD_LENGTH;
+
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private final WritableByteChannel channel;
+    // held by whoever is writing a buffer out: the writer thread, or close()
+    private final Object flushLock = new Object();
+    private final long startNanos;
+    private final long startMillis;
+    // guarded by this: the buffer records go into, the one being written, and the idle one
+    private ByteBuffer active;
+    private ByteBuffer pending;
+    private ByteBuffer spare;
+    private long lastMicros;
+    private boolean closed;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile long recordedCount;
+    private volatile long droppedCount;
+    private volatile long bytesWritten;
+    private volatile IOException writeError;
+
+    public SessionRecorder(WritableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public SessionRecorder(WritableByteChannel channel, int bufferSize) {
+        if (bufferSize < HEADER_LENGTH + MAX_RECORD_LENGTH) {
+            throw new IllegalArgumentException("buffer too small: " + bufferSize);
+        }
+        this.channel = channel;
+        this.active = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.BIG_ENDIAN);
+        this.spare = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.BIG_ENDIAN);
+        this.startNanos = System.nanoTime();
+        this.startMillis = System.currentTimeMillis();
+        active.putInt(MAGIC);
+        active.putShort((short) FORMAT_VERSION);
+        active.putShort((short) 0);
+        active.putLong(startMillis);
+    }
+
+    /** Creates the file, replacing any existing one, and starts recording into it. */
+    public static SessionRecorder open(File file) throws IOException {
+        SessionRecorder recorder = new SessionRecorder(new FileOutputStream(file).getChannel());
+        recorder.start();
+        return recorder;
+    }
+
+    public synchronized void start() {
+        if (running || closed) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this::runLoop, "SessionRecorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Records a command as it went to the wire. Returns false if it was dropped. */
+    public boolean recordCommand(long command) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (!reserve(COMMAND_RECORD_LENGTH)) {
+                return false;
+            }
+            putRecordHeader(KIND_COMMAND, now);
+            active.putLong(command);
+            recordedCount++;
+        }
+        return true;
+    }
+
+    /** Records a received frame; {@code payload} is copied. Returns false if it was dropped. */
+    public boolean recordFrame(int type, byte[] payload, int offset, int length) {
+        if (length < 0 || length > Protocol.MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("payload length " + length);
+        }
+        long now = System.nanoTime();
+        synchronized (this) {
+            if (!reserve(RECORD_HEADER_LENGTH + 2 + length)) {
+                return false;
+            }
+            putRecordHeader(KIND_FRAME, now);
+            active.put((byte) type);
+            active.put((byte) length);
+            active.put(payload, offset, length);
+            recordedCount++;
+        }
+        return true;
+    }
+
+    // caller holds the lock
+    private boolean reserve(int length) {
+        if (closed || writeError != null) {
+            droppedCount++;
+            return false;
+        }
+        if (active.remaining() >= length) {
+            return true;
+        }
+        if (!swap()) {
+            droppedCount++;
+            return false;
+        }
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    // caller holds the lock
+    private void putRecordHeader(int kind, long nowNanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nowNanos - startNanos);
+        long delta = Math.max(0, Math.min(micros - lastMicros, 0xFFFFFFFFL));
+        lastMicros += delta;
+        active.put((byte) kind);
+        active.putInt((int) delta);
+    }
+
+    // caller holds the lock; hands the active buffer to the writer if the spare is free
+    private boolean swap() {
+        if (pending != null || spare == null) {
+            return false;
+        }
+        active.flip();
+        pending = active;
+        active = spare;
+        spare = null;
+        return true;
+    }
+
+    private void runLoop() {
+        while (running) {
+            LockSupport.parkNanos(this, FLUSH_INTERVAL_NANOS);
+            flush();
+        }
+    }
+
+    /** Writes out everything recorded so far. */
+    private void flush() {
+        synchronized (flushLock) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            ByteBuffer toWrite;
+            synchronized (this) {
+                if (pending == null && active.position() > 0) {
+                    swap();
+                }
+                toWrite = pending;
+            }
+            if (toWrite == null) {
+                return;
+            }
+            try {
+                while (toWrite.hasRemaining()) {
+                    bytesWritten += channel.write(toWrite);
+                }
+            } catch (IOException e) {
+                writeError = e;
+            }
+            toWrite.clear();
+            synchronized (this) {
+                pending = null;
+                spare = toWrite;
+            }
+            if (writeError != null) {
+                return;
+            }
+        }
+    }
+
+    /** Flushes the remaining records and closes the channel. */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            running = false;
+        }
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+        channel.close();
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    /** Wall clock time the session started, as stored in the header. */
+    public long getStartTimeMillis() {
+        return startMillis;
+    }
+
+    public long getRecordedCount() {
+        return recordedCount;
+    }
+
+    /** Records lost because both buffers were busy, the log was closed or writing failed. */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** The first write failure, after which nothing more is recorded; null if none. */
+    public IOException getWriteError() {
+        return writeError;
+    }
+}
@@ -0,0 +1,111 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-emits a recorded session on a {@link Transport}, for repeatable drive
+ * sequences against a car, a simulator or a loopback. Recorded commands are
+ * encoded again with the configured encoder, so a session recorded over the
+ * legacy protocol can also be replayed framed. With {@link #setReplayFrames}
+ * the frames the car sent are replayed too, which plays the car's side of the
+ * session instead.
+ *
+ * <p>Events go out on the calling thread at their recorded offsets divided by
+ * the speed. A speed of 0 sends everything back to back.
+ */
+public class SessionReplayer {
+    private final Transport transport;
+    private final FrameEncoder frameEncoder = new FrameEncoder();
+    private final byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+    private CommandEncoder encoder = new FrameEncoder();
+    private boolean replayCommands = true;
+    private boolean replayFrames;
+    private double speed = 1.0;
+    private volatile boolean cancelled;
+
+    private volatile long sentCount;
+    private volatile long maxLatenessNanos;
+
+    public SessionReplayer(Transport transport) {
+        this.transport = transport;
+    }
+
+    public void setEncoder(CommandEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    public void setReplayCommands(boolean replayCommands) {
+        this.replayCommands = replayCommands;
+    }
+
+    public void setReplayFrames(boolean replayFrames) {
+        this.replayFrames = replayFrames;
+    }
+
+    /** 1 replays in real time, 2 twice as fast; 0 ignores the recorded timing. */
+    public void setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("speed " + speed);
+        }
+        this.speed = speed;
+    }
+
+    /** Stops a running {@link #replay} after the current event. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Replays the rest of the log and returns the number of events sent. Blocks
+     * until the log ends or {@link #cancel()} is called.
+     */
+    public long replay(SessionReader reader) throws IOException {
+        cancelled = false;
+        long sent = 0;
+        long start = System.nanoTime();
+        long firstEventNanos = -1;
+        while (!cancelled && reader.next()) {
+            int length;
+            if (reader.getKind() == SessionRecorder.KIND_COMMAND && replayCommands) {
+                length = encoder.encode(reader.getCommand(), frame);
+            } else if (reader.getKind() == SessionRecorder.KIND_FRAME && replayFrames) {
+                System.arraycopy(reader.getPayload(), 0, frame, Protocol.HEADER_LENGTH, reader.getPayloadLength());
+                length = frameEncoder.finish(frame, reader.getFrameType(), reader.getPayloadLength());
+            } else {
+                continue;
+            }
+            if (length == 0) {
+                continue;
+            }
+            if (firstEventNanos < 0) {
+                firstEventNanos = reader.getTimeNanos();
+            }
+            if (speed > 0) {
+                long deadline = start + (long) ((reader.getTimeNanos() - firstEventNanos) / speed);
+                long now = System.nanoTime();
+                while (now - deadline < 0 && !cancelled) {
+                    LockSupport.parkNanos(this, deadline - now);
+                    now = System.nanoTime();
+                }
+                if (now - deadline > maxLatenessNanos) {
+                    maxLatenessNanos = now - deadline;
+                }
+            }
+            transport.send(frame, 0, length);
+            sent++;
+            sentCount = sent;
+        }
+        return sent;
+    }
+
+    /** Events sent by the current or last replay. */
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    /** Worst delay of an event behind its scaled schedule. */
+    public long getMaxLatenessNanos() {
+        return maxLatenessNanos;
+    }
+}
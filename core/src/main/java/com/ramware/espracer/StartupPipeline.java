@@ -0,0 +1,191 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent startup stages concurrently and reports once they are all
+ * done, but no earlier than a minimum duration, so a splash screen neither
+ * flashes nor waits longer than it has to. After the timeout it reports anyway
+ * and leaves slow stages running. The start offset, duration and outcome of
+ * every stage are kept for cold-start tracking.
+ */
+public class StartupPipeline {
+    public static final String CSV_HEADER = "started_at_ms,stage,offset_ms,duration_ms,status";
+
+    public interface Stage {
+        void run() throws Exception;
+    }
+
+    public interface Listener {
+        /** Called once, on an executor thread. {@code timedOut} means some stage was still running. */
+        void onFinished(StartupPipeline pipeline, boolean timedOut);
+    }
+
+    private static final class StageState {
+        final String name;
+        final Stage stage;
+        volatile long startNanos;
+        volatile long endNanos;
+        volatile Throwable error;
+
+        StageState(String name, Stage stage) {
+            this.name = name;
+            this.stage = stage;
+        }
+
+        boolean isDone() {
+            return endNanos != 0;
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    private final List<StageState> stages = new ArrayList<>();
+    private final AtomicInteger remaining = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private long minimumNanos;
+    private long timeoutNanos = TimeUnit.SECONDS.toNanos(5);
+    private volatile boolean minimumElapsed;
+    private volatile Listener listener;
+    private volatile long startNanos;
+    private volatile long startedAtMillis;
+    private volatile long finishNanos;
+
+    /** The executor needs a thread per stage that may block for stages to really overlap. */
+    public StartupPipeline(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public StartupPipeline addStage(String name, Stage stage) {
+        if (startNanos != 0) {
+            throw new IllegalStateException("already started");
+        }
+        stages.add(new StageState(name, stage));
+        return this;
+    }
+
+    public StartupPipeline setMinimumDuration(long minimumMs) {
+        this.minimumNanos = TimeUnit.MILLISECONDS.toNanos(minimumMs);
+        return this;
+    }
+
+    public StartupPipeline setTimeout(long timeoutMs) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        return this;
+    }
+
+    public void start(Listener listener) {
+        if (startNanos != 0) {
+            throw new IllegalStateException("already started");
+        }
+        this.listener = listener;
+        startedAtMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        remaining.set(stages.size());
+        for (StageState state : stages) {
+            executor.execute(() -> runStage(state));
+        }
+        executor.schedule(() -> {
+            minimumElapsed = true;
+            maybeFinish(false);
+        }, minimumNanos, TimeUnit.NANOSECONDS);
+        executor.schedule(() -> maybeFinish(true), timeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void runStage(StageState state) {
+        state.startNanos = System.nanoTime();
+        try {
+            state.stage.run();
+        } catch (Throwable t) {
+            state.error = t;
+        }
+        state.endNanos = System.nanoTime();
+        remaining.decrementAndGet();
+        maybeFinish(false);
+    }
+
+    private void maybeFinish(boolean timeout) {
+        if (!timeout && (!minimumElapsed || remaining.get() > 0)) {
+            return;
+        }
+        if (finished.compareAndSet(false, true)) {
+            finishNanos = System.nanoTime();
+            listener.onFinished(this, remaining.get() > 0);
+        }
+    }
+
+    public boolean isFinished() {
+        return finished.get();
+    }
+
+    /** Time from {@link #start} to reporting, or 0 before that. */
+    public long getTotalNanos() {
+        long finish = finishNanos;
+        return finish == 0 ? 0 : finish - startNanos;
+    }
+
+    /** How long the named stage took, or -1 if it is unknown or still running. */
+    public long getStageNanos(String name) {
+        StageState state = find(name);
+        return state == null || !state.isDone() ? -1 : state.endNanos - state.startNanos;
+    }
+
+    /** What the named stage threw, or null. */
+    public Throwable getStageError(String name) {
+        StageState state = find(name);
+        return state == null ? null : state.error;
+    }
+
+    private StageState find(String name) {
+        for (StageState state : stages) {
+            if (state.name.equals(name)) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    /** One line, e.g. "total 212 ms: adapter 4 ms, bonded 35 ms, ...". */
+    public String summary() {
+        StringBuilder out = new StringBuilder("total ")
+                .append(TimeUnit.NANOSECONDS.toMillis(getTotalNanos())).append(" ms:");
+        String separator = " ";
+        for (StageState state : stages) {
+            out.append(separator).append(state.name).append(' ');
+            if (!state.isDone()) {
+                out.append("running");
+            } else {
+                out.append(TimeUnit.NANOSECONDS.toMillis(state.endNanos - state.startNanos)).append(" ms");
+                if (state.error != null) {
+                    out.append(" failed");
+                }
+            }
+            separator = ", ";
+        }
+        return out.toString();
+    }
+
+    /** One row per stage plus a "total" row, matching {@link #CSV_HEADER}. */
+    public void writeCsv(Appendable out) throws IOException {
+        for (StageState state : stages) {
+            long offset = state.startNanos == 0 ? -1 : state.startNanos - startNanos;
+            long duration = state.isDone() ? state.endNanos - state.startNanos : -1;
+            String status = !state.isDone() ? "running" : state.error != null ? "failed" : "ok";
+            writeRow(out, state.name, offset, duration, status);
+        }
+        writeRow(out, "total", 0, getTotalNanos(), finished.get() ? "ok" : "running");
+    }
+
+    private void writeRow(Appendable out, String stage, long offsetNanos, long durationNanos, String status) throws IOException {
+        out.append(Long.toString(startedAtMillis)).append(',')
+                .append(stage).append(',')
+                .append(Long.toString(offsetNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(offsetNanos))).append(',')
+                .append(Long.toString(durationNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(durationNanos))).append(',')
+                .append(status).append('\n');
+    }
+}
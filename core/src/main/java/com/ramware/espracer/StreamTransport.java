@@ -0,0 +1,79 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/** Base for transports that end up as a pair of blocking streams (RFCOMM, TCP). */
+public abstract class StreamTransport implements Transport {
+    protected final TransportMetrics metrics = new TransportMetrics();
+    private volatile InputStream inputStream;
+    private volatile OutputStream outputStream;
+
+    /** Wraps already connected streams; {@link #open()} does nothing. Either stream may be null. */
+    public static StreamTransport of(InputStream in, OutputStream out) {
+        StreamTransport transport = new StreamTransport() {
+            @Override
+            public void open() {
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (in != null) {
+                    in.close();
+                }
+                if (out != null) {
+                    out.close();
+                }
+            }
+        };
+        transport.setStreams(in, out);
+        return transport;
+    }
+
+    protected void setStreams(InputStream in, OutputStream out) {
+        this.inputStream = in;
+        this.outputStream = out;
+    }
+
+    @Override
+    public void send(byte[] data, int offset, int length) throws IOException {
+        OutputStream out = outputStream;
+        if (out == null) {
+            throw new IOException("transport is not open");
+        }
+        long start = System.nanoTime();
+        try {
+            out.write(data, offset, length);
+            out.flush();
+        } catch (IOException e) {
+            metrics.recordSendError();
+            throw e;
+        }
+        metrics.recordSend(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public int receive(byte[] buffer, int offset, int length) throws IOException {
+        InputStream in = inputStream;
+        if (in == null) {
+            throw new IOException("transport is not open");
+        }
+        int read = in.read(buffer, offset, length);
+        if (read > 0) {
+            metrics.recordReceive(read);
+        }
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        InputStream in = inputStream;
+        return in == null ? 0 : in.available();
+    }
+
+    @Override
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,33 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** TCP over Wi-Fi to an ESP32 in station or SoftAP mode. Nagle is off so small frames go out at once. */
+public class TcpTransport extends StreamTransport {
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMs;
+    private final Socket socket = new Socket();
+
+    public TcpTransport(String host, int port, int connectTimeoutMs) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMs = connectTimeoutMs;
+    }
+
+    @Override
+    public void open() throws IOException {
+        long start = System.nanoTime();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+        setStreams(socket.getInputStream(), socket.getOutputStream());
+        metrics.recordOpen(System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,129 @@
+package com.ramware.espracer;
+
+/**
+ * Recent telemetry from the car in preallocated primitive rings, one per channel,
+ * so recording a sample never allocates or boxes. One thread records (the link
+ * reader); any thread may copy windows out for display. The newest
+ * {@link #capacity()} samples are kept.
+ */
+public class TelemetryBuffer {
+    /** Battery voltage in volts. */
+    public static final int CHANNEL_BATTERY = 0;
+    /** Motor current in amps. */
+    public static final int CHANNEL_CURRENT = 1;
+    /** Signal strength seen by the car in dBm. */
+    public static final int CHANNEL_RSSI = 2;
+    public static final int CHANNEL_COUNT = 3;
+
+    private final int capacity;
+    private final int mask;
+    private final long[] times;
+    private final float[][] values;
+    // samples ever recorded; the volatile write publishes the slot written before it
+    private volatile long writeCount;
+    private volatile long malformedCount;
+
+    public TelemetryBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.times = new long[size];
+        this.values = new float[CHANNEL_COUNT][size];
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Decodes the payload of a {@link Protocol#TYPE_TELEMETRY} frame and records it.
+     * Returns false and counts the frame as malformed if the payload is too short.
+     */
+    public boolean recordFrame(byte[] payload, int offset, int length, long nowNanos) {
+        if (length < Protocol.TELEMETRY_PAYLOAD_LENGTH) {
+            malformedCount++;
+            return false;
+        }
+        int millivolts = (payload[offset] & 0xFF) << 8 | (payload[offset + 1] & 0xFF);
+        int milliamps = (short) ((payload[offset + 2] & 0xFF) << 8 | (payload[offset + 3] & 0xFF));
+        int rssi = payload[offset + 4];
+        record(nowNanos, millivolts / 1000f, milliamps / 1000f, rssi);
+        return true;
+    }
+
+    /** Writer side. */
+    public void record(long timeNanos, float battery, float current, float rssi) {
+        long n = writeCount;
+        int index = (int) n & mask;
+        times[index] = timeNanos;
+        values[CHANNEL_BATTERY][index] = battery;
+        values[CHANNEL_CURRENT][index] = current;
+        values[CHANNEL_RSSI][index] = rssi;
+        writeCount = n + 1;
+    }
+
+    /** Total samples recorded so far; a reader can compare it to skip redundant work. */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    /** Newest value of {@code channel}, or NaN before the first sample. */
+    public float getLatest(int channel) {
+        long n = writeCount;
+        return n == 0 ? Float.NaN : values[channel][(int) (n - 1) & mask];
+    }
+
+    /** Time of the newest sample, or 0 before the first one. */
+    public long getLatestTime() {
+        long n = writeCount;
+        return n == 0 ? 0 : times[(int) (n - 1) & mask];
+    }
+
+    /**
+     * Copies the samples of {@code channel} recorded at or after {@code sinceNanos},
+     * oldest first, into the start of {@code timesOut} and {@code valuesOut}. At
+     * most {@code valuesOut.length} of the newest samples are copied. Returns the
+     * number of samples copied.
+     */
+    public int copy(int channel, long sinceNanos, long[] timesOut, float[] valuesOut) {
+        long end = writeCount;
+        long start = end;
+        long limit = Math.max(0, end - Math.min(capacity, valuesOut.length));
+        while (start > limit && times[(int) (start - 1) & mask] - sinceNanos >= 0) {
+            start--;
+        }
+        float[] channelValues = values[channel];
+        int count = 0;
+        for (long i = start; i < end; i++) {
+            int index = (int) i & mask;
+            timesOut[count] = times[index];
+            valuesOut[count] = channelValues[index];
+            count++;
+        }
+        // the writer may have lapped the oldest slots while they were being copied
+        long overwritten = writeCount - capacity - start;
+        if (overwritten > 0) {
+            int skip = (int) Math.min(overwritten, count);
+            count -= skip;
+            System.arraycopy(timesOut, skip, timesOut, 0, count);
+            System.arraycopy(valuesOut, skip, valuesOut, 0, count);
+        }
+        return count;
+    }
+
+    /** Writer side, or while nothing is recording. */
+    public void clear() {
+        writeCount = 0;
+        malformedCount = 0;
+    }
+}
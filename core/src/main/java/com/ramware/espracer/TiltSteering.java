@@ -0,0 +1,220 @@
+package com.ramware.espracer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns the phone's tilt into a steering axis, like turning a wheel. Feed it
+ * accelerometer and gyroscope samples in screen coordinates (x to the right
+ * of the screen as held, y up it, z out of it) and it reports a steering value
+ * at most once per output period.
+ *
+ * <p>The pipeline per sample: the tilt angle from gravity, filtered either by a
+ * complementary filter that integrates the gyroscope and leans on gravity only
+ * for drift, or, without a gyroscope, by a first-order low-pass. Then the
+ * calibrated zero is subtracted, the dead zone and full-lock angle applied, and
+ * the result averaged over the output period, which decimates it to the control
+ * rate. All state is primitive fields, so a sample never allocates. Not
+ * thread-safe; sensor callbacks arrive on one thread.
+ */
+public class TiltSteering {
+    public enum Filter {
+        /** Gyroscope integration corrected by gravity; needs both sensors. */
+        COMPLEMENTARY,
+        /** Gravity alone, low-pass filtered; slower but needs only an accelerometer. */
+        LOW_PASS
+    }
+
+    private static final float GRAVITY_MIN = 2f;
+
+    private Filter filter = Filter.COMPLEMENTARY;
+    private float gyroWeight = 0.98f;
+    private float lowPassTimeConstant = 1f / (2f * (float) Math.PI * 5f);
+    private float deadZone = (float) Math.toRadians(3);
+    private float fullLock = (float) Math.toRadians(35);
+    private long outputPeriodNanos = TimeUnit.SECONDS.toNanos(1) / 50;
+    private int maxOutput = ControlState.AXIS_MAX;
+
+    // filter state
+    private boolean hasAngle;
+    private float angle;
+    private long lastSampleNanos;
+    private float gyroRate;
+    private boolean hasGyro;
+
+    // calibration
+    private float zero;
+    private int calibrationRemaining;
+    private int calibrationTotal;
+    private float calibrationSum;
+
+    // decimation
+    private long periodStartNanos;
+    private float periodSum;
+    private int periodCount;
+    private int output;
+    private long sampleCount;
+    private long outputCount;
+
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+        hasAngle = false;
+    }
+
+    /** How much the complementary filter trusts the gyroscope per sample, 0..1. */
+    public void setGyroWeight(float weight) {
+        this.gyroWeight = Math.max(0f, Math.min(1f, weight));
+    }
+
+    /** Cut-off of the low-pass filter in hertz. */
+    public void setLowPassCutoff(float hz) {
+        this.lowPassTimeConstant = 1f / (2f * (float) Math.PI * Math.max(0.1f, hz));
+    }
+
+    /** Tilt in degrees ignored around the calibrated zero, and the tilt that steers fully. */
+    public void setRange(float deadZoneDegrees, float fullLockDegrees) {
+        this.deadZone = (float) Math.toRadians(Math.max(0f, deadZoneDegrees));
+        this.fullLock = (float) Math.toRadians(Math.max(deadZoneDegrees + 1f, fullLockDegrees));
+    }
+
+    /** Reports at most once per period of {@code rateHz}, normally the control loop's rate. */
+    public void setOutputRate(int rateHz) {
+        this.outputPeriodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, rateHz);
+    }
+
+    /** Output spans -{@code max}..{@code max}. */
+    public void setMaxOutput(int max) {
+        this.maxOutput = max;
+    }
+
+    /** Averages the tilt over the next {@code samples} accelerometer samples and takes it as straight ahead. */
+    public void calibrate(int samples) {
+        calibrationRemaining = Math.max(1, samples);
+        calibrationTotal = calibrationRemaining;
+        calibrationSum = 0;
+    }
+
+    public boolean isCalibrating() {
+        return calibrationRemaining > 0;
+    }
+
+    /** Straight ahead, in radians; persisted by the app between sessions. */
+    public float getZero() {
+        return zero;
+    }
+
+    public void setZero(float zeroRadians) {
+        this.zero = zeroRadians;
+    }
+
+    /** Angular rate about the screen normal in rad/s, counter-clockwise positive. */
+    public void onGyroscope(float rateZ) {
+        gyroRate = rateZ;
+        hasGyro = true;
+    }
+
+    /**
+     * Gravity as read by the accelerometer, in screen coordinates. Returns true
+     * if an output period ended and the steering value changed.
+     */
+    public boolean onAccelerometer(long timeNanos, float x, float y) {
+        sampleCount++;
+        if (x * x + y * y < GRAVITY_MIN * GRAVITY_MIN) {
+            // lying flat: gravity says nothing about steering
+            lastSampleNanos = timeNanos;
+            return false;
+        }
+        // turning the phone clockwise, like a wheel to the right, is positive
+        float measured = (float) Math.atan2(-x, y);
+        if (!hasAngle) {
+            angle = measured;
+            hasAngle = true;
+            periodStartNanos = timeNanos;
+        } else {
+            float dt = (timeNanos - lastSampleNanos) / 1e9f;
+            if (dt > 0) {
+                if (filter == Filter.COMPLEMENTARY && hasGyro) {
+                    float predicted = angle - gyroRate * dt;
+                    angle = predicted + (1f - gyroWeight) * wrap(measured - predicted);
+                } else {
+                    angle += wrap(measured - angle) * (dt / (lowPassTimeConstant + dt));
+                }
+                angle = wrap(angle);
+            }
+        }
+        lastSampleNanos = timeNanos;
+
+        if (calibrationRemaining > 0) {
+            calibrationSum += angle;
+            if (--calibrationRemaining == 0) {
+                zero = calibrationSum / calibrationTotal;
+            }
+            return false;
+        }
+
+        periodSum += shape(wrap(angle - zero));
+        periodCount++;
+        if (timeNanos - periodStartNanos < outputPeriodNanos) {
+            return false;
+        }
+        float mean = periodSum / periodCount;
+        periodSum = 0;
+        periodCount = 0;
+        periodStartNanos = timeNanos;
+        int next = Math.round(mean * maxOutput);
+        if (next == output) {
+            return false;
+        }
+        output = next;
+        outputCount++;
+        return true;
+    }
+
+    /** The latest steering value, -max..max, positive to the right. */
+    public int getOutput() {
+        return output;
+    }
+
+    /** The filtered tilt relative to the calibrated zero, in degrees. */
+    public float getAngleDegrees() {
+        return (float) Math.toDegrees(wrap(angle - zero));
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    /** How many times the output changed; well below the sample count when decimating. */
+    public long getOutputCount() {
+        return outputCount;
+    }
+
+    /** Forgets the filter state, keeping the configuration and calibrated zero. */
+    public void reset() {
+        hasAngle = false;
+        hasGyro = false;
+        gyroRate = 0;
+        periodSum = 0;
+        periodCount = 0;
+        output = 0;
+    }
+
+    // -1..1 after the dead zone and full lock
+    private float shape(float tilt) {
+        float magnitude = Math.abs(tilt);
+        if (magnitude <= deadZone) {
+            return 0f;
+        }
+        float scaled = Math.min(1f, (magnitude - deadZone) / (fullLock - deadZone));
+        return tilt < 0 ? -scaled : scaled;
+    }
+
+    private static float wrap(float radians) {
+        if (radians > Math.PI) {
+            return radians - 2f * (float) Math.PI;
+        }
+        if (radians < -Math.PI) {
+            return radians + 2f * (float) Math.PI;
+        }
+        return radians;
+    }
+}
@@ -0,0 +1,219 @@
+package com.ramware.espracer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cheap enough to call at input rate: each event is a timestamp, an event id,
+ * the recording thread and two numeric arguments, written into a preallocated
+ * ring. Nothing is formatted or allocated until the ring is dumped, so the
+ * link threads can trace every write where a log line would cost a string and
+ * a trip to logd.
+ *
+ * <p>Any thread may record. A slot is claimed with one atomic increment and
+ * stamped with its sequence once written; the dump skips slots that are being
+ * overwritten underneath it. When the ring is full the oldest events go.
+ *
+ * <p>Hot paths call the static {@link #trace}, which is a single branch while
+ * tracing is off. Setting {@link #COMPILED_IN} to false removes even that.
+ */
+public final class Tracer {
+    /** False compiles every {@link #trace} call down to nothing. */
+    public static final boolean COMPILED_IN = true;
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /** command, write call nanos */
+    public static final int SEND = 1;
+    /** command, 0 */
+    public static final int SEND_ERROR = 2;
+    /** previous state ordinal, new state ordinal, of {@link ConnectionManager.State} */
+    public static final int LINK_STATE = 3;
+    /** heartbeat number, round trip nanos */
+    public static final int HEARTBEAT_REPLY = 4;
+    /** 1 engaged or 0 released, failsafe count */
+    public static final int FAILSAFE = 5;
+    /** new rate Hz, {@link AdaptiveRateController.Reason} ordinal */
+    public static final int SEND_RATE = 6;
+    /** joystick x << 32 | y, input-to-publish nanos */
+    public static final int INPUT = 7;
+    /** scripted command, or -1 for the end of the script, lateness nanos */
+    public static final int MANEUVER = 8;
+
+    private static final String[][] EVENTS = {
+            {"?", "a", "b"},
+            {"SEND", "command", "write_ns"},
+            {"SEND_ERROR", "command", "-"},
+            {"LINK_STATE", "from", "to"},
+            {"HEARTBEAT_REPLY", "number", "rtt_ns"},
+            {"FAILSAFE", "engaged", "count"},
+            {"SEND_RATE", "hz", "reason"},
+            {"INPUT", "xy", "latency_ns"},
+            {"MANEUVER", "command", "late_ns"},
+    };
+
+    private static final int FIELDS = 4;
+    private static final Tracer GLOBAL = new Tracer(DEFAULT_CAPACITY);
+    private static volatile File crashDumpFile;
+    // guarded by Tracer.class
+    private static boolean crashHandlerInstalled;
+
+    private final int mask;
+    // per slot: timestamp, id << 48 | thread id, a, b
+    private final AtomicLongArray data;
+    // per slot: sequence + 1 once the slot is fully written, 0 while it is being written
+    private final AtomicLongArray stamps;
+    private final AtomicLong cursor = new AtomicLong();
+    private volatile boolean enabled;
+
+    /** {@code capacity} is rounded up to a power of two. */
+    public Tracer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.data = new AtomicLongArray(size * FIELDS);
+        this.stamps = new AtomicLongArray(size);
+    }
+
+    /** The process-wide tracer the static {@link #trace} records into. */
+    public static Tracer global() {
+        return GLOBAL;
+    }
+
+    /** Records into the global tracer if it is on. */
+    public static void trace(int event, long a, long b) {
+        if (COMPILED_IN && GLOBAL.enabled) {
+            GLOBAL.record(event, System.nanoTime(), a, b);
+        }
+    }
+
+    /**
+     * As {@link #trace(int, long, long)}, with a {@link System#nanoTime()} the
+     * caller already has; reading the clock is most of the cost of an event.
+     */
+    public static void trace(int event, long timeNanos, long a, long b) {
+        if (COMPILED_IN && GLOBAL.enabled) {
+            GLOBAL.record(event, timeNanos, a, b);
+        }
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Records one event now, whether or not tracing is on. */
+    public void record(int event, long a, long b) {
+        record(event, System.nanoTime(), a, b);
+    }
+
+    /** Records one event at {@code timeNanos}, whether or not tracing is on. */
+    public void record(int event, long timeNanos, long a, long b) {
+        long sequence = cursor.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        int base = slot * FIELDS;
+        // ordered stores, no fences: the stamp is cleared before and set after the fields
+        stamps.lazySet(slot, 0);
+        data.lazySet(base, timeNanos);
+        data.lazySet(base + 1, (long) event << 48 | Thread.currentThread().getId() & 0xFFFFFFFFFFFFL);
+        data.lazySet(base + 2, a);
+        data.lazySet(base + 3, b);
+        stamps.lazySet(slot, sequence + 1);
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /** Events recorded since the last {@link #clear()}, including ones since overwritten. */
+    public long getRecordedCount() {
+        return cursor.get();
+    }
+
+    public long getOverwrittenCount() {
+        return Math.max(0, cursor.get() - getCapacity());
+    }
+
+    /** Forgets every event. Events recorded during the clear may survive it. */
+    public void clear() {
+        cursor.set(0);
+        for (int i = 0; i <= mask; i++) {
+            stamps.set(i, 0);
+        }
+    }
+
+    /**
+     * Writes the events still in the ring, oldest first, one per line:
+     * microseconds since the oldest, thread id, event name and arguments.
+     * Returns how many were written.
+     */
+    public int dump(Appendable out) throws IOException {
+        long end = cursor.get();
+        long start = Math.max(0, end - getCapacity());
+        long origin = 0;
+        int written = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask);
+            int base = slot * FIELDS;
+            if (stamps.get(slot) != sequence + 1) {
+                continue;
+            }
+            long time = data.get(base);
+            long header = data.get(base + 1);
+            long a = data.get(base + 2);
+            long b = data.get(base + 3);
+            if (stamps.get(slot) != sequence + 1) {
+                // overwritten while we read it
+                continue;
+            }
+            if (written == 0) {
+                origin = time;
+            }
+            int event = (int) (header >>> 48);
+            String[] names = event > 0 && event < EVENTS.length ? EVENTS[event] : EVENTS[0];
+            out.append(String.format(Locale.US, "%12.3f %5d %-16s %s=%s %s=%d%n",
+                    (time - origin) / 1e3, header & 0xFFFFFFFFFFFFL, names[0],
+                    names[1], event == SEND || event == SEND_ERROR || event == INPUT || event == MANEUVER ? "0x" + Long.toHexString(a) : a,
+                    names[2], b));
+            written++;
+        }
+        return written;
+    }
+
+    /** Dumps to {@code file}, replacing it. */
+    public int dumpTo(File file) throws IOException {
+        try (Writer out = new FileWriter(file)) {
+            return dump(out);
+        }
+    }
+
+    /**
+     * Dumps the global tracer to {@code file} if the process dies of an uncaught
+     * exception, then hands the exception on to the handler that was installed.
+     * The handler is installed once per process; calling again only changes the file.
+     */
+    public static synchronized void dumpOnCrash(File file) {
+        crashDumpFile = file;
+        if (crashHandlerInstalled) {
+            return;
+        }
+        crashHandlerInstalled = true;
+        Thread.UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> {
+            try {
+                GLOBAL.dumpTo(crashDumpFile);
+            } catch (IOException | RuntimeException ignored) {
+                // nothing more to do while crashing
+            }
+            if (previous != null) {
+                previous.uncaughtException(thread, e);
+            }
+        });
+    }
+}
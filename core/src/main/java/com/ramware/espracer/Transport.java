@@ -0,0 +1,34 @@
+package com.ramware.espracer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A byte link to the car. Everything above this interface (sender, control loop,
+ * connection manager) works the same over Bluetooth, Wi-Fi or an in-process
+ * loopback.
+ *
+ * <p>{@link #send} is called from a single writer thread and {@link #receive}
+ * from a single reader thread. {@link #close()} may be called from any thread and
+ * must abort a pending {@link #open()} or {@link #receive}.
+ */
+public interface Transport extends Closeable {
+
+    /** Blocks until the link is usable. */
+    void open() throws IOException;
+
+    void send(byte[] data, int offset, int length) throws IOException;
+
+    /** Blocks until at least one byte arrives; returns -1 once the link is closed. */
+    int receive(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * Bytes {@link #receive} can return without blocking, for readers that poll
+     * many links from one thread. Transports that can't tell report 0.
+     */
+    default int available() throws IOException {
+        return 0;
+    }
+
+    TransportMetrics getMetrics();
+}
@@ -0,0 +1,80 @@
+package com.ramware.espracer;
+
+/**
+ * Counters kept by every {@link Transport}. Send figures are written only by the
+ * writer thread and receive figures only by the reader thread, so plain volatile
+ * fields are enough.
+ */
+public class TransportMetrics {
+    private volatile long openNanos = -1;
+    private volatile long bytesSent;
+    private volatile long sendCalls;
+    private volatile long sendErrors;
+    private volatile long lastSendNanos;
+    private volatile long maxSendNanos;
+    private volatile long totalSendNanos;
+    private volatile long bytesReceived;
+    private volatile long receiveCalls;
+
+    public void recordOpen(long nanos) {
+        openNanos = nanos;
+    }
+
+    public void recordSend(int bytes, long nanos) {
+        bytesSent += bytes;
+        sendCalls++;
+        lastSendNanos = nanos;
+        totalSendNanos += nanos;
+        if (nanos > maxSendNanos) {
+            maxSendNanos = nanos;
+        }
+    }
+
+    public void recordSendError() {
+        sendErrors++;
+    }
+
+    public void recordReceive(int bytes) {
+        bytesReceived += bytes;
+        receiveCalls++;
+    }
+
+    /** Time the last successful {@link Transport#open()} took, or -1. */
+    public long getOpenNanos() {
+        return openNanos;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getSendCalls() {
+        return sendCalls;
+    }
+
+    public long getSendErrors() {
+        return sendErrors;
+    }
+
+    /** Duration of the most recent send call. */
+    public long getLastSendNanos() {
+        return lastSendNanos;
+    }
+
+    public long getMaxSendNanos() {
+        return maxSendNanos;
+    }
+
+    public long getAverageSendNanos() {
+        long calls = sendCalls;
+        return calls == 0 ? 0 : totalSendNanos / calls;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getReceiveCalls() {
+        return receiveCalls;
+    }
+}
@@ -0,0 +1,38 @@
+package com.ramware.espracer;
+
+/** The links a car can be driven over, as picked per device on the scan screen. */
+public enum TransportType {
+    RFCOMM("Bluetooth serial"),
+    BLE("Bluetooth LE"),
+    UDP("Wi-Fi UDP"),
+    TCP("Wi-Fi TCP");
+
+    public static final String DEFAULT_WIFI_HOST = "192.168.4.1";
+    public static final int DEFAULT_WIFI_PORT = 4210;
+
+    private final String label;
+
+    TransportType(String label) {
+        this.label = label;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public boolean isBluetooth() {
+        return this == RFCOMM || this == BLE;
+    }
+
+    /** Parses a stored name, falling back to RFCOMM for missing or unknown values. */
+    public static TransportType fromName(String name) {
+        if (name != null) {
+            for (TransportType type : values()) {
+                if (type.name().equals(name)) {
+                    return type;
+                }
+            }
+        }
+        return RFCOMM;
+    }
+}
@@ -0,0 +1,92 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+
+/**
+ * UDP over Wi-Fi, the lowest latency option for an ESP32 SoftAP. Every send is one
+ * datagram, so a frame is never split or delayed behind a lost one. The packets
+ * are reused, so sending does not allocate.
+ */
+public class UdpTransport implements Transport {
+    private final String host;
+    private final int port;
+    private final TransportMetrics metrics = new TransportMetrics();
+    private final DatagramPacket sendPacket = new DatagramPacket(new byte[0], 0);
+    private final DatagramPacket receivePacket = new DatagramPacket(new byte[0], 0);
+    private volatile DatagramSocket socket;
+    private volatile boolean closed;
+
+    public UdpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public void open() throws IOException {
+        long start = System.nanoTime();
+        DatagramSocket datagramSocket = new DatagramSocket();
+        datagramSocket.connect(new InetSocketAddress(host, port));
+        socket = datagramSocket;
+        if (closed) {
+            datagramSocket.close();
+            throw new IOException("transport closed");
+        }
+        metrics.recordOpen(System.nanoTime() - start);
+    }
+
+    @Override
+    public void send(byte[] data, int offset, int length) throws IOException {
+        DatagramSocket s = requireOpen();
+        long start = System.nanoTime();
+        sendPacket.setData(data, offset, length);
+        try {
+            s.send(sendPacket);
+        } catch (IOException e) {
+            metrics.recordSendError();
+            throw e;
+        }
+        metrics.recordSend(length, System.nanoTime() - start);
+    }
+
+    @Override
+    public int receive(byte[] buffer, int offset, int length) throws IOException {
+        DatagramSocket s = requireOpen();
+        receivePacket.setData(buffer, offset, length);
+        try {
+            s.receive(receivePacket);
+        } catch (IOException e) {
+            if (closed) {
+                return -1;
+            }
+            throw e;
+        }
+        int read = receivePacket.getLength();
+        metrics.recordReceive(read);
+        return read;
+    }
+
+    @Override
+    public TransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        DatagramSocket s = socket;
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    private DatagramSocket requireOpen() throws IOException {
+        DatagramSocket s = socket;
+        if (s == null || closed) {
+            throw new IOException("transport is not open");
+        }
+        return s;
+    }
+}
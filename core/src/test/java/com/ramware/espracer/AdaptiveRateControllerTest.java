@@ -0,0 +1,151 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.ramware.espracer.TestUtil.await;
+import static org.junit.Assert.*;
+
+public class AdaptiveRateControllerTest {
+
+    private CommandSender sender;
+    private ControlLoop loop;
+    private AdaptiveRateController controller;
+    private Thread carThread;
+    private volatile boolean publishing;
+    private Thread publisher;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        publishing = false;
+        if (publisher != null) {
+            publisher.join(1000);
+        }
+        if (controller != null) {
+            controller.stop();
+        }
+        if (loop != null) {
+            loop.stop();
+        }
+        if (sender != null) {
+            sender.stop();
+        }
+        if (carThread != null) {
+            carThread.join(1000);
+        }
+    }
+
+    @Test
+    public void aStalledWriteHalvesTheRateOncePerHoldAndClearIntervalsAddItBack() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        sender = new CommandSender(8, CommandSender.OverflowPolicy.COALESCE_LATEST);
+        sender.setTransport(StreamTransport.of(null, new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                entered.countDown();
+                try {
+                    release.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }));
+        loop = new ControlLoop(sender::send, 100, 250);
+        controller = new AdaptiveRateController(loop, sender, null, 5, 100);
+        sender.start();
+
+        long base = System.nanoTime();
+        controller.update(base);
+        sender.send('a');
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        long ms = TimeUnit.MILLISECONDS.toNanos(1);
+
+        controller.update(base + 100 * ms);
+        assertEquals(AdaptiveRateController.Reason.WRITE_STALL, controller.getLastReason());
+        assertEquals(50, controller.getRateHz());
+        assertEquals(50, loop.getTickRate());
+        assertTrue(sender.isCollapsingBacklog());
+
+        // still the same stall, inside the hold
+        controller.update(base + 200 * ms);
+        assertEquals(AdaptiveRateController.Decision.HOLD, controller.getLastDecision());
+        controller.update(base + 500 * ms);
+        assertEquals(25, controller.getRateHz());
+
+        release.countDown();
+        assertTrue(await(() -> sender.getSentCount() == 1, 1000));
+        controller.update(base + 600 * ms);
+        assertFalse(controller.isSaturated());
+        controller.update(base + 700 * ms);
+        assertEquals(AdaptiveRateController.Decision.INCREASE, controller.getLastDecision());
+        assertEquals(30, controller.getRateHz());
+        assertEquals(2, controller.getDecreaseCount());
+        assertEquals(25, controller.getLowestRateHz());
+    }
+
+    @Test
+    public void aThrottledLinkKeepsLatencyBoundedAndTheRateRecoversAfterwards() throws Exception {
+        LoopbackTransport phone = LoopbackTransport.pair();
+        LoopbackTransport car = phone.peer();
+        carThread = new Thread(() -> {
+            byte[] buffer = new byte[256];
+            try {
+                while (car.receive(buffer, 0, buffer.length) >= 0) {
+                    // the car just drains the link
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        }, "SimulatedCar");
+        carThread.setDaemon(true);
+        carThread.start();
+
+        sender = new CommandSender(ControlSession.SENDER_QUEUE_CAPACITY, CommandSender.OverflowPolicy.COALESCE_LATEST);
+        sender.setEncoder(new FrameEncoder());
+        sender.setTransport(phone);
+        loop = new ControlLoop(sender::send, 100, 250);
+        controller = new AdaptiveRateController(loop, sender, null, 5, 100);
+        controller.setLatencyTarget(30);
+        controller.setRecovery(300);
+        // the link takes 25 ms a write, so it manages 40 of the loop's 100 updates a second
+        phone.setSendDelay(25);
+        sender.start();
+        loop.start();
+        controller.start(50);
+        publishing = true;
+        publisher = new Thread(() -> {
+            for (int x = 0; publishing; x = (x + 1) % ControlState.AXIS_MAX) {
+                loop.setState(ControlState.pack(0, x, ControlState.AXIS_MAX));
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Publisher");
+        publisher.start();
+
+        assertTrue("rate " + controller.getRateHz(), await(() -> controller.getRateHz() <= 40, 2000));
+        assertTrue(controller.getDecreaseCount() >= 1);
+        // an unthrottled loop would fill the 64-deep queue, over 1.5 s behind; adapting keeps it short
+        Thread.sleep(500);
+        long worst = 0;
+        for (int i = 0; i < 20; i++) {
+            worst = Math.max(worst, controller.getQueueLatencyNanos());
+            assertTrue("queue " + sender.getQueueDepth(), sender.getQueueDepth() < 16);
+            Thread.sleep(50);
+        }
+        assertTrue("queue latency " + worst, worst < TimeUnit.MILLISECONDS.toNanos(250));
+
+        phone.setSendDelay(0);
+        assertTrue("rate " + controller.getRateHz(), await(() -> controller.getRateHz() == 100, 3000));
+        assertTrue(await(() -> !sender.isCollapsingBacklog(), 1000));
+        assertTrue(controller.getIncreaseCount() > 0);
+    }
+}
@@ -0,0 +1,168 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.ramware.espracer.TestUtil.await;
+import static org.junit.Assert.*;
+
+public class CommandSenderTest {
+
+    private CommandSender sender;
+
+    @After
+    public void tearDown() {
+        if (sender != null) {
+            sender.stop();
+        }
+    }
+
+    @Test
+    public void queue_roundsCapacityUpAndKeepsOrder() {
+        CommandQueue queue = new CommandQueue(3);
+        assertEquals(4, queue.capacity());
+        long[] out = new long[2];
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i, 100 + i));
+        }
+        assertFalse(queue.offer(9, 0));
+        assertTrue(queue.dropOldest());
+        assertTrue(queue.offer(4, 104));
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(queue.poll(out));
+            assertEquals(i, out[0]);
+            assertEquals(100 + i, out[1]);
+        }
+        assertFalse(queue.poll(out));
+    }
+
+    @Test
+    public void send_writesCommandsInOrder() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        sender = new CommandSender(8, CommandSender.OverflowPolicy.DROP_OLDEST);
+        sender.setOutputStream(wire);
+        sender.start();
+        for (char c : "0123".toCharArray()) {
+            assertTrue(sender.send(c));
+        }
+        awaitSent(4);
+        assertEquals("0123", wire.toString("US-ASCII"));
+        assertEquals(0, sender.getDroppedCount());
+        assertTrue(sender.getMaxLatencyNanos() > 0);
+    }
+
+    @Test
+    public void dropOldest_keepsNewestCommandsWhileLinkStalls() throws Exception {
+        StalledStream wire = new StalledStream();
+        sender = new CommandSender(4, CommandSender.OverflowPolicy.DROP_OLDEST);
+        sender.setOutputStream(wire);
+        sender.start();
+        sender.send('a');
+        assertTrue(wire.entered.await(1, TimeUnit.SECONDS));
+        for (char c : "bcdefg".toCharArray()) {
+            sender.send(c);
+        }
+        assertEquals(4, sender.getQueueDepth());
+        wire.release.countDown();
+        awaitSent(5);
+        assertEquals("adefg", wire.toString("US-ASCII"));
+        assertEquals(2, sender.getDroppedCount());
+    }
+
+    @Test
+    public void coalesceLatest_replacesPendingOverflow() throws Exception {
+        StalledStream wire = new StalledStream();
+        sender = new CommandSender(2, CommandSender.OverflowPolicy.COALESCE_LATEST);
+        sender.setOutputStream(wire);
+        sender.start();
+        sender.send('a');
+        assertTrue(wire.entered.await(1, TimeUnit.SECONDS));
+        for (char c : "bcdef".toCharArray()) {
+            sender.send(c);
+        }
+        wire.release.countDown();
+        awaitSent(4);
+        assertEquals("abcf", wire.toString("US-ASCII"));
+        assertEquals(2, sender.getCoalescedCount());
+    }
+
+    @Test
+    public void collapseBacklog_writesOnlyTheLatestQueuedStateButEveryHeartbeat() throws Exception {
+        StalledStream wire = new StalledStream();
+        sender = new CommandSender(8, CommandSender.OverflowPolicy.COALESCE_LATEST);
+        sender.setOutputStream(wire);
+        sender.setCollapseBacklog(true);
+        sender.start();
+        sender.send('a');
+        assertTrue(wire.entered.await(1, TimeUnit.SECONDS));
+        sender.send('b');
+        sender.send('c');
+        sender.send(ControlState.heartbeat('h'));
+        sender.send('d');
+        wire.release.countDown();
+        awaitSent(3);
+        assertEquals("ahd", wire.toString("US-ASCII"));
+        assertEquals(2, sender.getCoalescedCount());
+    }
+
+    @Test
+    public void block_givesUpAfterTimeout() throws Exception {
+        StalledStream wire = new StalledStream();
+        sender = new CommandSender(1, CommandSender.OverflowPolicy.BLOCK, TimeUnit.MILLISECONDS.toNanos(20));
+        sender.setOutputStream(wire);
+        sender.start();
+        sender.send('a');
+        assertTrue(wire.entered.await(1, TimeUnit.SECONDS));
+        assertTrue(sender.send('b'));
+        assertFalse(sender.send('c'));
+        wire.release.countDown();
+        awaitSent(2);
+        assertEquals("ab", wire.toString("US-ASCII"));
+        assertEquals(1, sender.getDroppedCount());
+    }
+
+    @Test
+    public void writeErrors_areReportedToListener() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        sender = new CommandSender(4, CommandSender.OverflowPolicy.DROP_OLDEST);
+        sender.setOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("link down");
+            }
+        });
+        sender.setListener((transport, e) -> failed.countDown());
+        sender.start();
+        sender.send('0');
+        assertTrue(failed.await(1, TimeUnit.SECONDS));
+        assertEquals(1, sender.getErrorCount());
+    }
+
+    private void awaitSent(long count) throws Exception {
+        await(() -> sender.getSentCount() >= count, 2000);
+        assertEquals(count, sender.getSentCount());
+    }
+
+    /** Blocks the first write until released, like an RFCOMM socket with a full buffer. */
+    private static class StalledStream extends ByteArrayOutputStream {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            entered.countDown();
+            try {
+                release.await(2, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionManagerTest {
+
+    private ConnectionManager manager;
+
+    @After
+    public void tearDown() {
+        if (manager != null) {
+            manager.close();
+        }
+    }
+
+    @Test
+    public void retriesWithBackoffUntilConnected() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        manager = new ConnectionManager(() -> new FakeTransport(attempts.incrementAndGet() <= 2), new Random(1));
+        manager.setBackoff(5, 20, 0.5);
+        RecordingListener listener = new RecordingListener();
+        manager.setListener(listener);
+
+        manager.connect();
+
+        assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+        assertEquals(ConnectionManager.State.CONNECTED, manager.getState());
+        assertEquals(2, manager.getFailedAttemptCount());
+        assertEquals(0, manager.getReconnectCount());
+        assertTrue(manager.getLastConnectTimeMs() >= 0);
+        assertEquals(ConnectionManager.State.CONNECTING, listener.states.get(0));
+        assertEquals(ConnectionManager.State.RECONNECTING, listener.states.get(1));
+    }
+
+    @Test
+    public void connectTimeoutAbortsAHangingAttempt() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        manager = new ConnectionManager(() -> attempts.incrementAndGet() == 1
+                ? new HangingTransport() : new FakeTransport(false), new Random(1));
+        manager.setConnectTimeout(50);
+        manager.setBackoff(1, 1, 0);
+        RecordingListener listener = new RecordingListener();
+        manager.setListener(listener);
+
+        manager.connect();
+
+        assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+        assertEquals(2, attempts.get());
+        assertEquals(1, manager.getFailedAttemptCount());
+    }
+
+    @Test
+    public void linkErrorTriggersReconnect() throws Exception {
+        manager = new ConnectionManager(() -> new FakeTransport(false), new Random(1));
+        manager.setBackoff(1, 1, 0);
+        RecordingListener listener = new RecordingListener();
+        manager.setListener(listener);
+        manager.connect();
+        assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+
+        listener.connected = new CountDownLatch(1);
+        manager.reportLinkError(new IOException("broken pipe"));
+
+        assertTrue(listener.connected.await(2, TimeUnit.SECONDS));
+        assertEquals(1, manager.getReconnectCount());
+        assertTrue(listener.states.contains(ConnectionManager.State.RECONNECTING));
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        manager = new ConnectionManager(() -> new FakeTransport(true), new Random(1));
+        manager.setBackoff(1, 1, 0);
+        manager.setMaxReconnectAttempts(3);
+        RecordingListener listener = new RecordingListener();
+        manager.setListener(listener);
+
+        manager.connect();
+
+        assertTrue(listener.closed.await(2, TimeUnit.SECONDS));
+        assertEquals(3, manager.getFailedAttemptCount());
+        assertEquals(ConnectionManager.State.CLOSED, manager.getState());
+    }
+
+    private static class RecordingListener implements ConnectionManager.Listener {
+        final List<ConnectionManager.State> states = new CopyOnWriteArrayList<>();
+        volatile CountDownLatch connected = new CountDownLatch(1);
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void onStateChanged(ConnectionManager.State previous, ConnectionManager.State state) {
+            states.add(state);
+            if (state == ConnectionManager.State.CONNECTED) {
+                connected.countDown();
+            } else if (state == ConnectionManager.State.CLOSED) {
+                closed.countDown();
+            }
+        }
+
+        @Override
+        public void onConnected(Transport transport) {
+        }
+    }
+
+    private static class FakeTransport extends StreamTransport {
+        private final boolean fail;
+
+        FakeTransport(boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void open() throws IOException {
+            if (fail) {
+                throw new IOException("read failed, socket might closed or timeout");
+            }
+            setStreams(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class HangingTransport extends FakeTransport {
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        HangingTransport() {
+            super(false);
+        }
+
+        @Override
+        public void open() throws IOException {
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("socket closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class ControlLoopTest {
+
+    private final List<Long> sent = new CopyOnWriteArrayList<>();
+    private ControlLoop loop;
+
+    @After
+    public void tearDown() {
+        if (loop != null) {
+            loop.stop();
+        }
+    }
+
+    @Test
+    public void sendsOnlyChangesBetweenKeepalives() throws Exception {
+        loop = new ControlLoop(sent::add, 100, 10_000);
+        loop.start();
+        Thread.sleep(50);
+        // a burst of touch events within one tick collapses into the last value
+        for (int x = -100; x <= 50; x++) {
+            loop.setState(ControlState.pack(0, x, 0));
+        }
+        Thread.sleep(50);
+        loop.stop();
+
+        // at most one intermediate value if a tick landed inside the burst
+        assertTrue("sent: " + sent.size(), sent.size() == 2 || sent.size() == 3);
+        assertEquals(ControlState.NEUTRAL, (long) sent.get(0));
+        assertEquals(ControlState.pack(0, 50, 0), (long) sent.get(sent.size() - 1));
+        assertTrue(loop.getTickCount() >= 5);
+        assertTrue(loop.getMaxJitterNanos() >= loop.getAverageJitterNanos());
+    }
+
+    @Test
+    public void repeatsUnchangedStateOnKeepalive() throws Exception {
+        loop = new ControlLoop(sent::add, 200, 20);
+        loop.start();
+        Thread.sleep(110);
+        loop.stop();
+
+        assertTrue("keepalives sent: " + sent.size(), sent.size() >= 3);
+        assertTrue(sent.size() < loop.getTickCount());
+    }
+
+    @Test
+    public void clampsTickRate() {
+        loop = new ControlLoop(sent::add, 10_000, 100);
+        assertEquals(ControlLoop.MAX_TICK_RATE_HZ, loop.getTickRate());
+        loop.setTickRate(0);
+        assertEquals(ControlLoop.MIN_TICK_RATE_HZ, loop.getTickRate());
+    }
+}
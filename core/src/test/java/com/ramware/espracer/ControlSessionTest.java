@@ -0,0 +1,94 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.ramware.espracer.TestUtil.await;
+import static org.junit.Assert.*;
+
+public class ControlSessionTest {
+
+    private ControlSession session;
+
+    @After
+    public void tearDown() {
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    @Test
+    public void drivesTheCarAndCollectsTelemetryOverOneLink() throws Exception {
+        LoopbackTransport phone = LoopbackTransport.pair();
+        LoopbackTransport car = phone.peer();
+        AtomicInteger connects = new AtomicInteger();
+        CountDownLatch connected = new CountDownLatch(1);
+        session = new ControlSession("AA", TransportType.TCP, () -> {
+            connects.incrementAndGet();
+            return phone;
+        }, new FrameEncoder(), 100, 50, 16);
+        session.setListener(new ControlSession.Listener() {
+            @Override
+            public void onStateChanged(ConnectionManager.State previous, ConnectionManager.State state) {
+            }
+
+            @Override
+            public void onConnected(Transport transport, long connectMs) {
+                connected.countDown();
+            }
+
+            @Override
+            public void onSendError(Transport transport, IOException e) {
+            }
+        });
+        session.start();
+        assertTrue(connected.await(2, TimeUnit.SECONDS));
+
+        long forward = ControlState.withButtons(ControlState.NEUTRAL, ControlState.BUTTON_F);
+        AtomicLong seen = new AtomicLong(-1);
+        CountDownLatch driven = new CountDownLatch(1);
+        FrameDecoder decoder = new FrameDecoder((type, sequence, payload, offset, length) -> {
+            if (type == Protocol.TYPE_CONTROL && (payload[offset] & 0xFF) == ControlState.BUTTON_F) {
+                seen.set(payload[offset] & 0xFF);
+                driven.countDown();
+            }
+        });
+        session.setState(forward);
+        byte[] buffer = new byte[256];
+        await(() -> {
+            decoder.feed(buffer, 0, car.receive(buffer, 0, buffer.length));
+            return driven.getCount() == 0;
+        }, 2000);
+        assertEquals(ControlState.BUTTON_F, seen.get());
+
+        byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+        frame[Protocol.HEADER_LENGTH] = 0x1C;
+        frame[Protocol.HEADER_LENGTH + 1] = (byte) 0xF4;
+        int length = new FrameEncoder().finish(frame, Protocol.TYPE_TELEMETRY, Protocol.TELEMETRY_PAYLOAD_LENGTH);
+        car.send(frame, 0, length);
+        assertTrue(await(() -> session.getTelemetry().getWriteCount() > 0, 2000));
+        assertEquals(7.412f, session.getTelemetry().getLatest(TelemetryBuffer.CHANNEL_BATTERY), 1e-6f);
+        assertEquals(1, connects.get());
+        assertTrue(session.isFor("AA", TransportType.TCP));
+        assertFalse(session.isFor("AA", TransportType.UDP));
+    }
+
+    @Test
+    public void closeStopsEverythingAndIsFinal() {
+        session = new ControlSession("AA", TransportType.TCP, LoopbackTransport::pair, new FrameEncoder(), 50, 250, 16);
+        session.start();
+        session.close();
+        session.close();
+        session.start();
+
+        assertTrue(session.isClosed());
+        assertFalse(session.isFor("AA", TransportType.TCP));
+        assertEquals(ConnectionManager.State.CLOSED, session.getConnectionManager().getState());
+    }
+}
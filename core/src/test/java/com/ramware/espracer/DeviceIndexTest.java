@@ -0,0 +1,53 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceIndexTest {
+
+    private final DeviceIndex index = new DeviceIndex("ESPRacer");
+
+    @Test
+    public void matches_filtersByNamePrefix() {
+        assertTrue(index.matches("ESPRacer-7"));
+        assertFalse(index.matches("Pixel Buds"));
+        assertFalse(index.matches(null));
+        assertTrue(new DeviceIndex("").matches(null));
+    }
+
+    @Test
+    public void update_dedupsByAddressAndKeepsOrder() {
+        assertTrue(index.update("AA", "ESPRacer-1", -70, false, true));
+        assertTrue(index.update("BB", "ESPRacer-2", -60, false, false));
+        assertFalse(index.update("AA", "ESPRacer-1", -70, false, true));
+        assertTrue(index.update("AA", null, -50, false, false));
+
+        assertEquals(2, index.size());
+        List<ScannedDevice> devices = index.takeSnapshot();
+        assertEquals("AA", devices.get(0).getAddress());
+        assertEquals(-50, devices.get(0).getRssi());
+        // a sighting without a name, or over the other radio, doesn't lose what was known
+        assertEquals("ESPRacer-1", devices.get(0).getName());
+        assertTrue(devices.get(0).isBle());
+    }
+
+    @Test
+    public void snapshot_isStableWhileIndexChanges() {
+        index.update("AA", "ESPRacer-1", ScannedDevice.RSSI_UNKNOWN, true, false);
+        assertTrue(index.isDirty());
+        List<ScannedDevice> before = index.takeSnapshot();
+        assertFalse(index.isDirty());
+
+        index.update("AA", null, -42, false, false);
+        assertTrue(index.isDirty());
+        List<ScannedDevice> after = index.takeSnapshot();
+
+        assertEquals(ScannedDevice.RSSI_UNKNOWN, before.get(0).getRssi());
+        assertEquals(-42, after.get(0).getRssi());
+        assertTrue(after.get(0).isBonded());
+        assertNotEquals(before.get(0), after.get(0));
+    }
+}
@@ -0,0 +1,150 @@
+package com.ramware.espracer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FakeStore store = new FakeStore();
+    private final QueuedExecutor executor = new QueuedExecutor();
+    private final DeviceRegistry registry = new DeviceRegistry(store, executor);
+
+    @Test
+    public void load_runsOnExecutorAndMergesWithEarlierUpdates() {
+        store.devices.add(new KnownDevice("AA", "ESPRacer-1", -60, TransportType.BLE, 1000, 3, 800));
+        store.devices.add(new KnownDevice("BB", "ESPRacer-2", -80, TransportType.RFCOMM, 500, 1, 2000));
+        List<DeviceRegistry> loaded = new ArrayList<>();
+
+        registry.load(loaded::add);
+        assertEquals(0, store.loadCount);
+        assertFalse(registry.isLoaded());
+        // a connect that lands before the load finishes must survive it
+        registry.recordConnect("BB", null, TransportType.TCP, 9000, 1000);
+
+        executor.runAll();
+        assertTrue(registry.isLoaded());
+        assertEquals(1, loaded.size());
+        assertEquals(1, store.loadCount);
+        assertEquals(2, registry.size());
+        assertEquals(TransportType.TCP, registry.get("BB").getLastTransport());
+        assertEquals(1, registry.get("BB").getConnectCount());
+        assertEquals(2, store.devices.size());
+
+        registry.load(loaded::add);
+        executor.runAll();
+        assertEquals(1, store.loadCount);
+        assertEquals(2, loaded.size());
+    }
+
+    @Test
+    public void recordConnect_keepsRunningAverageAndCoalescesSaves() {
+        registry.load(null);
+        executor.runAll();
+        registry.recordConnect("AA", "ESPRacer-1", TransportType.RFCOMM, 1000, 1200);
+        registry.recordConnect("AA", null, TransportType.BLE, 2000, 600);
+        registry.recordSighting("AA", null, -55);
+        registry.recordSighting("CC", "Headphones", -40);
+        executor.runAll();
+
+        KnownDevice device = registry.get("AA");
+        assertEquals("ESPRacer-1", device.getName());
+        assertEquals(TransportType.BLE, device.getLastTransport());
+        assertEquals(2, device.getConnectCount());
+        assertEquals(900, device.getAverageConnectMs());
+        assertEquals(-55, device.getLastRssi());
+        assertNull(registry.get("CC"));
+        assertEquals(1, store.saveCount);
+    }
+
+    @Test
+    public void ranking_prefersRecentThenStrongAndFast() {
+        registry.recordConnect("AA", "near", TransportType.BLE, 1000, 900);
+        registry.recordConnect("BB", "fast", TransportType.BLE, 2000, 300);
+        registry.recordConnect("CC", "stale", TransportType.BLE, 10, 100);
+        registry.recordSighting("CC", null, -30);
+
+        assertEquals("BB", registry.getMostRecent().getAddress());
+        assertEquals("BB", registry.getBest(2500, 2000).getAddress());
+        registry.recordSighting("AA", null, -50);
+        assertEquals("AA", registry.getBest(2500, 2000).getAddress());
+        assertNull(registry.getBest(100_000, 2000));
+    }
+
+    @Test
+    public void fileStore_roundTripsAndIgnoresGarbage() throws IOException {
+        File file = new File(folder.getRoot(), "devices.tsv");
+        FileDeviceStore fileStore = new FileDeviceStore(file);
+        assertTrue(fileStore.load().isEmpty());
+
+        fileStore.save(Arrays.asList(
+                new KnownDevice("AA", "tab\tname", -61, TransportType.UDP, 1234, 2, 456),
+                new KnownDevice("BB", null, ScannedDevice.RSSI_UNKNOWN, TransportType.RFCOMM, 0, 0, 0)));
+        List<KnownDevice> loaded = fileStore.load();
+
+        assertEquals(2, loaded.size());
+        assertEquals("tab name", loaded.get(0).getName());
+        assertEquals(TransportType.UDP, loaded.get(0).getLastTransport());
+        assertEquals(456, loaded.get(0).getAverageConnectMs());
+        assertNull(loaded.get(1).getName());
+        assertEquals(ScannedDevice.RSSI_UNKNOWN, loaded.get(1).getLastRssi());
+
+        try (Writer writer = new FileWriter(file, true)) {
+            writer.write("CC\tbroken\tnot-a-number\tBLE\t0\t0\t0\n\n");
+        }
+        assertEquals(2, fileStore.load().size());
+    }
+
+    private static class FakeStore implements DeviceRegistry.Store {
+        final List<KnownDevice> devices = new ArrayList<>();
+        int loadCount;
+        int saveCount;
+
+        @Override
+        public List<KnownDevice> load() {
+            loadCount++;
+            return new ArrayList<>(devices);
+        }
+
+        @Override
+        public void save(Collection<KnownDevice> saved) {
+            saveCount++;
+            devices.clear();
+            devices.addAll(saved);
+        }
+    }
+
+    /** Runs tasks only when asked to, so tests can observe what happens before they run. */
+    private static class QueuedExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static com.ramware.espracer.TestUtil.await;
+import static org.junit.Assert.*;
+
+public class FleetControllerTest {
+
+    private static final int CARS = 8;
+
+    private final FleetController fleet = new FleetController(2, 100, 100);
+    private final List<SimulatedCar> cars = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        fleet.close();
+    }
+
+    @Test
+    public void drivesEightCarsFromTwoThreads() throws Exception {
+        addCars();
+        fleet.start();
+        assertTrue(await(() -> connectedCount() == CARS, 5000));
+
+        long forward = ControlState.withButtons(ControlState.NEUTRAL, ControlState.BUTTON_F);
+        long left = ControlState.withButtons(ControlState.NEUTRAL, ControlState.BUTTON_L);
+        fleet.broadcast(forward);
+        fleet.setState("car-3", left);
+        assertTrue(await(() -> allReceived(forward, "car-3", left), 5000));
+
+        for (SimulatedCar car : cars) {
+            car.sendTelemetry(7000 + car.index);
+        }
+        assertTrue(await(() -> {
+            for (FleetCar car : fleet.getCars()) {
+                if (car.getTelemetry().getWriteCount() == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }, 5000));
+        for (int i = 0; i < CARS; i++) {
+            FleetCar car = fleet.getCar("car-" + i);
+            assertEquals((7000 + i) / 1000f, car.getTelemetry().getLatest(TelemetryBuffer.CHANNEL_BATTERY), 1e-6f);
+            assertTrue(car.getSentCount() > 0);
+            assertEquals(0, car.getErrorCount());
+        }
+        // two fleet threads, at most two shared connect threads and the connect timer, not one per car
+        int fleetThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("Fleet")) {
+                fleetThreads++;
+            }
+        }
+        assertTrue(fleetThreads <= 5);
+    }
+
+    @Test
+    public void timesOutMoreHangingConnectsThanThereAreConnectThreads() throws Exception {
+        fleet.setConnectTimeout(200);
+        for (int i = 0; i < 3; i++) {
+            fleet.addCar("hung-" + i, HangingTransport::new, new FrameEncoder());
+        }
+        fleet.start();
+        // every open hangs, so only the timeouts can free the connect threads for the next car
+        assertTrue(await(() -> {
+            for (FleetCar car : fleet.getCars()) {
+                if (car.getConnectionManager().getFailedAttemptCount() == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }, 5000));
+    }
+
+    @Test
+    public void routesStatesByGroup() throws Exception {
+        addCars();
+        for (int i = 0; i < CARS; i += 2) {
+            fleet.setGroup("car-" + i, 1);
+        }
+        fleet.start();
+        assertTrue(await(() -> connectedCount() == CARS, 5000));
+
+        long reverse = ControlState.withButtons(ControlState.NEUTRAL, ControlState.BUTTON_B);
+        assertEquals(CARS / 2, fleet.setGroupState(1, reverse));
+        assertTrue(await(() -> {
+            for (SimulatedCar car : cars) {
+                car.drain();
+                int expected = car.index % 2 == 0 ? ControlState.BUTTON_B : 0;
+                if (car.lastButtons != expected) {
+                    return false;
+                }
+            }
+            return true;
+        }, 5000));
+
+        // hand car-0 over to group 0 and drive that group
+        fleet.setGroup("car-0", 0);
+        long right = ControlState.withButtons(ControlState.NEUTRAL, ControlState.BUTTON_R);
+        assertEquals(CARS / 2 + 1, fleet.setGroupState(0, right));
+        assertTrue(await(() -> {
+            cars.get(0).drain();
+            return cars.get(0).lastButtons == ControlState.BUTTON_R;
+        }, 5000));
+
+        assertTrue(fleet.removeCar("car-7"));
+        assertEquals(CARS - 1, fleet.size());
+        assertFalse(fleet.setState("car-7", right));
+    }
+
+    private void addCars() {
+        for (int i = 0; i < CARS; i++) {
+            SimulatedCar car = new SimulatedCar(i);
+            cars.add(car);
+            fleet.addCar("car-" + i, () -> car.phone, new FrameEncoder());
+        }
+    }
+
+    private int connectedCount() {
+        int count = 0;
+        for (FleetCar car : fleet.getCars()) {
+            if (car.getTransport() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean allReceived(long broadcast, String routedId, long routed) throws IOException {
+        for (SimulatedCar car : cars) {
+            car.drain();
+            long expected = ("car-" + car.index).equals(routedId) ? routed : broadcast;
+            if (car.lastButtons != ControlState.buttons(expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** An unreachable car: opening blocks until the attempt is closed. */
+    private static class HangingTransport extends StreamTransport {
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void open() throws IOException {
+            try {
+                closed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IOException("socket closed");
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    /** The car end of a loopback link, decoding control frames and sending telemetry. */
+    private static class SimulatedCar {
+        final int index;
+        final LoopbackTransport phone = LoopbackTransport.pair();
+        final LoopbackTransport car = phone.peer();
+        final FrameEncoder encoder = new FrameEncoder();
+        final byte[] buffer = new byte[512];
+        volatile int lastButtons = -1;
+        final FrameDecoder decoder = new FrameDecoder((type, sequence, payload, offset, length) -> {
+            if (type == Protocol.TYPE_CONTROL) {
+                lastButtons = payload[offset] & 0xFF;
+            }
+        });
+
+        SimulatedCar(int index) {
+            this.index = index;
+        }
+
+        void drain() throws IOException {
+            int available;
+            while ((available = car.available()) > 0) {
+                decoder.feed(buffer, 0, car.receive(buffer, 0, Math.min(available, buffer.length)));
+            }
+        }
+
+        void sendTelemetry(int millivolts) throws IOException {
+            byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+            frame[Protocol.HEADER_LENGTH] = (byte) (millivolts >> 8);
+            frame[Protocol.HEADER_LENGTH + 1] = (byte) millivolts;
+            car.send(frame, 0, encoder.finish(frame, Protocol.TYPE_TELEMETRY, Protocol.TELEMETRY_PAYLOAD_LENGTH));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameCodecTest {
+
+    private final List<long[]> frames = new ArrayList<>();
+    private final FrameDecoder decoder = new FrameDecoder((type, sequence, payload, offset, length) -> {
+        assertEquals(Protocol.TYPE_CONTROL, type);
+        assertEquals(Protocol.CONTROL_PAYLOAD_LENGTH, length);
+        frames.add(new long[]{sequence, ControlState.pack(payload[offset], payload[offset + 1], payload[offset + 2])});
+    });
+
+    @Test
+    public void crc8_matchesReferenceVector() {
+        byte[] data = "123456789".getBytes();
+        assertEquals(0xF4, Crc8.compute(data, 0, data.length));
+    }
+
+    @Test
+    public void controlState_packsSignedAxes() {
+        long state = ControlState.pack(ControlState.BUTTON_F | ControlState.BUTTON_L, -127, 64);
+        assertEquals(ControlState.BUTTON_F | ControlState.BUTTON_L, ControlState.buttons(state));
+        assertEquals(-127, ControlState.x(state));
+        assertEquals(64, ControlState.y(state));
+        assertEquals(127, ControlState.x(ControlState.pack(0, 500, 0)));
+    }
+
+    @Test
+    public void encodeDecode_roundTripsFullState() {
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] out = new byte[Protocol.MAX_FRAME_LENGTH];
+        long state = ControlState.pack(ControlState.BUTTON_R, 100, -50);
+        int length = encoder.encode(state, out);
+
+        assertEquals(8, length);
+        assertEquals((byte) Protocol.SYNC, out[0]);
+        decoder.feed(out, 0, length);
+
+        assertEquals(1, frames.size());
+        assertEquals(0, frames.get(0)[0]);
+        assertEquals(state, frames.get(0)[1]);
+        assertEquals(1, encoder.nextSequence());
+    }
+
+    @Test
+    public void decoder_handlesPartialFrames() {
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] out = new byte[Protocol.MAX_FRAME_LENGTH];
+        int length = encoder.encode(ControlState.pack(0, 1, 2), out);
+        for (int i = 0; i < length; i++) {
+            decoder.feed(out, i, 1);
+        }
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    public void decoder_resynchronizesAfterCorruption() {
+        FrameEncoder encoder = new FrameEncoder();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(0x13);
+        stream.write(Protocol.SYNC);
+        append(stream, encoder, ControlState.pack(0, 10, 10));
+        int corrupted = stream.size();
+        append(stream, encoder, ControlState.pack(0, 20, 20));
+        append(stream, encoder, ControlState.pack(0, 30, 30));
+        byte[] bytes = stream.toByteArray();
+        bytes[corrupted + 5] ^= 0x40;
+
+        decoder.feed(bytes, 0, bytes.length);
+
+        assertEquals(2, frames.size());
+        assertEquals(10, ControlState.x(frames.get(0)[1]));
+        assertEquals(30, ControlState.x(frames.get(1)[1]));
+        assertEquals(2, frames.get(1)[0]);
+        assertEquals(1, decoder.getCrcErrorCount());
+    }
+
+    @Test
+    public void legacyEncoder_mapsStateToSingleChars() {
+        assertEquals(Protocol.LEGACY_STOP, LegacyCommandEncoder.toChar(ControlState.NEUTRAL));
+        assertEquals(Protocol.LEGACY_FORWARD, LegacyCommandEncoder.toChar(ControlState.pack(0, 0, 127)));
+        assertEquals(Protocol.LEGACY_BACKWARD, LegacyCommandEncoder.toChar(ControlState.pack(0, 0, -127)));
+        assertEquals(Protocol.LEGACY_RIGHT, LegacyCommandEncoder.toChar(ControlState.pack(0, 127, 0)));
+        assertEquals(Protocol.LEGACY_LEFT, LegacyCommandEncoder.toChar(ControlState.pack(0, -127, 0)));
+        assertEquals(Protocol.LEGACY_BUTTON_L, LegacyCommandEncoder.toChar(ControlState.pack(ControlState.BUTTON_L, 0, 127)));
+        assertEquals(Protocol.LEGACY_STOP, LegacyCommandEncoder.toChar(ControlState.pack(ControlState.BUTTON_STOP | ControlState.BUTTON_F, 0, 0)));
+    }
+
+    private static void append(ByteArrayOutputStream stream, FrameEncoder encoder, long state) {
+        byte[] out = new byte[Protocol.MAX_FRAME_LENGTH];
+        stream.write(out, 0, encoder.encode(state, out));
+    }
+}
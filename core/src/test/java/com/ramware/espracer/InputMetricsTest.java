@@ -0,0 +1,40 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class InputMetricsTest {
+
+    @Test
+    public void countsSamplesPublishesAndFrames() throws Exception {
+        InputMetrics metrics = new InputMetrics();
+        metrics.recordEvent(0);
+        metrics.recordEvent(3);
+        metrics.recordPublish(TimeUnit.MILLISECONDS.toNanos(4));
+        metrics.recordFrame(TimeUnit.MILLISECONDS.toNanos(8), true);
+        metrics.recordFrame(TimeUnit.MILLISECONDS.toNanos(8), false);
+        metrics.recordFrame(TimeUnit.MILLISECONDS.toNanos(8), false);
+
+        assertEquals(5, metrics.getSampleCount());
+        assertEquals(3, metrics.getHistoricalSampleCount());
+        assertEquals(1, metrics.getPublishCount());
+        assertEquals(1, metrics.getRedrawCount());
+        assertEquals(2, metrics.getSkippedRedrawCount());
+        assertEquals(3, metrics.getFrameInterval().getCount());
+
+        StringBuilder csv = new StringBuilder();
+        metrics.writeCsv(csv, "test");
+        String[] rows = csv.toString().split("\n");
+        assertEquals(2, rows.length);
+        assertTrue(rows[0].startsWith("test,input_to_command,1,"));
+        assertTrue(rows[1].startsWith("test,frame_interval,3,"));
+        assertTrue(metrics.summary().contains("samples 5 (3 batched) sent 1 drawn 1 skipped 2"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getSampleCount());
+        assertEquals(0, metrics.getInputToCommand().getCount());
+    }
+}
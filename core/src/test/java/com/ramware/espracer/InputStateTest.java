@@ -0,0 +1,71 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class InputStateTest {
+
+    @Test
+    public void simultaneousButtonsAndJoystickMergeIntoOneState() {
+        InputState input = new InputState();
+        assertTrue(input.pointerDown(0, ControlState.BUTTON_F));
+        assertTrue(input.pointerDown(1, ControlState.BUTTON_L));
+        assertTrue(input.setJoystick(1, 0, 1));
+
+        long state = input.getState();
+        assertEquals(ControlState.BUTTON_F | ControlState.BUTTON_L, ControlState.buttons(state));
+        assertEquals(ControlState.AXIS_MAX, ControlState.x(state));
+        assertEquals(0, ControlState.y(state));
+    }
+
+    @Test
+    public void releasingOneButtonKeepsTheOthers() {
+        InputState input = new InputState();
+        input.pointerDown(0, ControlState.BUTTON_F);
+        input.pointerDown(1, ControlState.BUTTON_R);
+        assertTrue(input.pointerUp(0));
+        assertEquals(ControlState.BUTTON_R, input.getButtons());
+        assertTrue(input.pointerUp(1));
+        assertEquals(ControlState.NEUTRAL, input.getState());
+    }
+
+    @Test
+    public void aButtonStaysHeldUntilItsLastPointerLifts() {
+        InputState input = new InputState();
+        assertTrue(input.pointerDown(2, ControlState.BUTTON_B));
+        assertFalse(input.pointerDown(5, ControlState.BUTTON_B));
+        assertFalse(input.pointerUp(2));
+        assertEquals(ControlState.BUTTON_B, input.getButtons());
+        assertTrue(input.pointerUp(5));
+        assertEquals(0, input.getButtons());
+    }
+
+    @Test
+    public void cancelReleasesOnlyThatButton() {
+        InputState input = new InputState();
+        input.pointerDown(0, ControlState.BUTTON_F);
+        input.pointerDown(1, ControlState.BUTTON_F);
+        input.pointerDown(2, ControlState.BUTTON_STOP);
+        assertTrue(input.cancelButton(ControlState.BUTTON_F));
+        assertEquals(ControlState.BUTTON_STOP, input.getButtons());
+
+        assertFalse(input.pointerDown(InputState.MAX_POINTERS, ControlState.BUTTON_L));
+        input.reset();
+        assertEquals(ControlState.NEUTRAL, input.getState());
+    }
+
+    @Test
+    public void tiltSteersWhileTheJoystickKeepsTheThrottle() {
+        InputState input = new InputState();
+        input.setJoystick(-1, 1, 1);
+        assertTrue(input.setTiltSteering(500, 1000));
+        assertEquals(63, ControlState.x(input.getState()));
+        assertEquals(ControlState.AXIS_MAX, ControlState.y(input.getState()));
+        // the joystick's own steering is ignored meanwhile
+        assertFalse(input.setJoystick(1, 1, 1));
+
+        assertTrue(input.clearTiltSteering());
+        assertEquals(ControlState.AXIS_MAX, ControlState.x(input.getState()));
+    }
+}
@@ -0,0 +1,80 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JoystickMathTest {
+
+    private static final float EPSILON = 1e-6f;
+
+    @Test
+    public void pack_roundTripsSignedValues() {
+        int packed = JoystickMath.pack(-32767, 32767);
+        assertEquals(-32767, JoystickMath.unpackX(packed));
+        assertEquals(32767, JoystickMath.unpackY(packed));
+        assertEquals(0, JoystickMath.pack(0, 0));
+    }
+
+    @Test
+    public void digital_matchesOriginalFourWayQuantization() {
+        assertDigital(0, 0, JoystickMath.quantizeDigital(0.2f, -0.25f, 0.3f));
+        assertDigital(0, 1, JoystickMath.quantizeDigital(0.1f, -0.9f, 0.3f));
+        assertDigital(0, -1, JoystickMath.quantizeDigital(0.5f, 0.6f, 0.3f));
+        assertDigital(1, 0, JoystickMath.quantizeDigital(0.7f, 0.6f, 0.3f));
+        assertDigital(-1, 0, JoystickMath.quantizeDigital(-0.8f, 0.2f, 0.3f));
+    }
+
+    @Test
+    public void analog_radialDeadZoneSuppressesSmallDeflection() {
+        assertEquals(0, JoystickMath.quantizeAnalog(0.05f, 0.05f, 0.1f,
+                JoystickMath.ResponseCurve.LINEAR, 0f, JoystickMath.RESOLUTION_8_BIT));
+        // outside a radial dead zone both axes survive, unlike the per-axis digital one
+        int packed = JoystickMath.quantizeAnalog(0.08f, -0.6f, 0.1f,
+                JoystickMath.ResponseCurve.LINEAR, 0f, JoystickMath.RESOLUTION_8_BIT);
+        assertTrue(JoystickMath.unpackX(packed) > 0);
+        assertTrue(JoystickMath.unpackY(packed) > 0);
+    }
+
+    @Test
+    public void analog_rescalesPastDeadZoneAndClampsToUnitCircle() {
+        int full = JoystickMath.quantizeAnalog(2f, 0f, 0.2f,
+                JoystickMath.ResponseCurve.LINEAR, 0f, JoystickMath.RESOLUTION_8_BIT);
+        assertEquals(127, JoystickMath.unpackX(full));
+        assertEquals(0, JoystickMath.unpackY(full));
+
+        int half = JoystickMath.quantizeAnalog(0f, -0.6f, 0.2f,
+                JoystickMath.ResponseCurve.LINEAR, 0f, JoystickMath.RESOLUTION_8_BIT);
+        assertEquals(64, JoystickMath.unpackY(half));
+
+        int wide = JoystickMath.quantizeAnalog(0f, 0.6f, 0.2f,
+                JoystickMath.ResponseCurve.LINEAR, 0f, JoystickMath.RESOLUTION_16_BIT);
+        assertEquals(-16384, JoystickMath.unpackY(wide));
+    }
+
+    @Test
+    public void analog_diagonalKeepsDirection() {
+        int packed = JoystickMath.quantizeAnalog(1f, -1f, 0f,
+                JoystickMath.ResponseCurve.LINEAR, 0f, JoystickMath.RESOLUTION_8_BIT);
+        assertEquals(90, JoystickMath.unpackX(packed));
+        assertEquals(90, JoystickMath.unpackY(packed));
+    }
+
+    @Test
+    public void expoCurve_softensCentreAndKeepsEndpoints() {
+        assertEquals(0f, JoystickMath.applyCurve(0f, JoystickMath.ResponseCurve.EXPO, 0.7f), EPSILON);
+        assertEquals(1f, JoystickMath.applyCurve(1f, JoystickMath.ResponseCurve.EXPO, 0.7f), EPSILON);
+        assertEquals(0.3125f, JoystickMath.applyCurve(0.5f, JoystickMath.ResponseCurve.EXPO, 0.5f), EPSILON);
+        assertEquals(0.5f, JoystickMath.applyCurve(0.5f, JoystickMath.ResponseCurve.LINEAR, 0.5f), EPSILON);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxValue_rejectsUnsupportedResolution() {
+        JoystickMath.maxValue(12);
+    }
+
+    private static void assertDigital(int x, int y, int packed) {
+        assertEquals(x, JoystickMath.unpackX(packed));
+        assertEquals(y, JoystickMath.unpackY(packed));
+    }
+}
@@ -0,0 +1,68 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsKeepValuesWithinThreePercent() {
+        for (long value : new long[]{0, 1, 31, 32, 33, 1000, 123_456, 5_000_000_000L, Long.MAX_VALUE}) {
+            long equivalent = LatencyHistogram.highestEquivalentValue(LatencyHistogram.indexOf(value));
+            assertTrue(value + " -> " + equivalent, equivalent >= value);
+            assertTrue(value + " -> " + equivalent, equivalent - value <= value / 32);
+        }
+    }
+
+    @Test
+    public void percentilesOfUniformDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10_000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(10_000, histogram.getCount());
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(10_000), histogram.getMax());
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(5_000), histogram.getValueAtPercentile(50));
+        assertWithin(TimeUnit.MICROSECONDS.toNanos(9_900), histogram.getValueAtPercentile(99));
+        assertEquals(histogram.getMax(), histogram.getValueAtPercentile(100));
+
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void echoOfPingYieldsRoundTrip() {
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+        long sentAt = TimeUnit.SECONDS.toNanos(1234);
+        int length = encoder.encodePing(frame, LatencyStats.toWireMicros(sentAt));
+        assertEquals(Protocol.HEADER_LENGTH + Protocol.PING_PAYLOAD_LENGTH + 1, length);
+
+        LatencyStats stats = new LatencyStats();
+        stats.recordEcho(frame, Protocol.HEADER_LENGTH, Protocol.PING_PAYLOAD_LENGTH,
+                sentAt + TimeUnit.MILLISECONDS.toNanos(18));
+
+        assertEquals(1, stats.getRoundTrip().getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(18), stats.getRoundTrip().getMax());
+    }
+
+    @Test
+    public void csvHasOneRowPerMetric() throws Exception {
+        LatencyStats stats = new LatencyStats();
+        stats.getWriteCall().record(2_000);
+        StringBuilder csv = new StringBuilder();
+        stats.writeCsv(csv, "pixel/UDP");
+        String[] rows = csv.toString().split("\n");
+        assertEquals(3, rows.length);
+        assertEquals("pixel/UDP,write_call,1,2,2,2,2,2", rows[2]);
+        assertEquals(LatencyStats.CSV_HEADER.split(",").length, rows[0].split(",").length);
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected ~" + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 32);
+    }
+}
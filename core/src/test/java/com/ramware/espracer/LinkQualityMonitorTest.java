@@ -0,0 +1,84 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LinkQualityMonitorTest {
+
+    private static long ms(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Test
+    public void answeredHeartbeatsAreGood() {
+        LinkQualityMonitor monitor = new LinkQualityMonitor();
+        monitor.reset(ms(1));
+        for (int i = 0; i < 20; i++) {
+            monitor.onHeartbeatSent(i, ms(100 + i * 100));
+            monitor.onHeartbeatReply(i, ms(120 + i * 100));
+        }
+        assertEquals(LinkQualityMonitor.Health.GOOD, monitor.evaluate(ms(2150), 0));
+        assertEquals(0.0, monitor.getLossRatio(), 1e-9);
+        assertEquals(ms(20), monitor.getSmoothedRttNanos());
+        assertEquals(0, monitor.getRttTrendNanos());
+    }
+
+    @Test
+    public void lossAndSilenceDegradeThenLoseTheLink() {
+        LinkQualityMonitor monitor = new LinkQualityMonitor();
+        monitor.reset(ms(1));
+        // every fifth heartbeat goes unanswered
+        for (int i = 0; i < 20; i++) {
+            monitor.onHeartbeatSent(i, ms(100 + i * 100));
+            if (i % 5 != 4) {
+                monitor.onHeartbeatReply(i, ms(110 + i * 100));
+            }
+        }
+        assertEquals(LinkQualityMonitor.Health.POOR, monitor.evaluate(ms(2100), 0));
+        assertEquals(0.2, monitor.getLossRatio(), 0.05);
+
+        // then nothing comes back
+        for (int i = 20; i < 30; i++) {
+            monitor.onHeartbeatSent(i, ms(100 + i * 100));
+        }
+        assertEquals(LinkQualityMonitor.Health.LOST, monitor.evaluate(ms(3100), 0));
+    }
+
+    @Test
+    public void firmwareWithoutHeartbeatsIsJudgedOnWritesAlone() {
+        LinkQualityMonitor monitor = new LinkQualityMonitor();
+        monitor.reset(ms(1));
+        for (int i = 0; i < 20; i++) {
+            monitor.onHeartbeatSent(i, ms(100 + i * 100));
+        }
+        assertEquals(LinkQualityMonitor.Health.GOOD, monitor.evaluate(ms(5000), 0));
+        assertEquals(LinkQualityMonitor.Health.POOR, monitor.evaluate(ms(5000), ms(150)));
+        assertEquals(LinkQualityMonitor.Health.LOST, monitor.evaluate(ms(5000), ms(450)));
+    }
+
+    @Test
+    public void risingRoundTripShowsAsTrendAndWeakSignalAsPoor() {
+        LinkQualityMonitor monitor = new LinkQualityMonitor();
+        monitor.reset(ms(1));
+        for (int i = 0; i < 16; i++) {
+            long sent = ms(100 + i * 100);
+            monitor.onHeartbeatSent(i, sent);
+            monitor.onHeartbeatReply(i, sent + ms(10 + i * 5));
+        }
+        assertTrue(monitor.getRttTrendNanos() > 0);
+        // replies to unknown or already answered heartbeats are ignored
+        long rtt = monitor.getSmoothedRttNanos();
+        monitor.onHeartbeatReply(15, ms(9000));
+        monitor.onHeartbeatReply(999, ms(9000));
+        assertEquals(rtt, monitor.getSmoothedRttNanos());
+
+        assertEquals(LinkQualityMonitor.Health.GOOD, monitor.evaluate(ms(1700), 0));
+        monitor.recordRssi(-90);
+        assertEquals(LinkQualityMonitor.Health.POOR, monitor.evaluate(ms(1700), 0));
+        assertTrue(monitor.summary().startsWith("POOR rtt "));
+        assertTrue(monitor.summary().endsWith(" -90 dBm"));
+    }
+}
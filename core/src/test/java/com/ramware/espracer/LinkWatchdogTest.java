@@ -0,0 +1,117 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static com.ramware.espracer.TestUtil.await;
+import static org.junit.Assert.*;
+
+public class LinkWatchdogTest {
+
+    private ControlSession session;
+    private Thread carThread;
+    private volatile int lastButtons = -1;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (session != null) {
+            session.close();
+        }
+        if (carThread != null) {
+            carThread.join(1000);
+        }
+    }
+
+    /** A car that answers heartbeats and remembers the last buttons it was sent. */
+    private void startCar(LoopbackTransport car) {
+        FrameEncoder replies = new FrameEncoder();
+        byte[] reply = new byte[Protocol.MAX_FRAME_LENGTH];
+        FrameDecoder decoder = new FrameDecoder((type, sequence, payload, offset, length) -> {
+            if (type == Protocol.TYPE_CONTROL) {
+                lastButtons = payload[offset] & 0xFF;
+            } else if (type == Protocol.TYPE_HEARTBEAT) {
+                int number = (payload[offset] & 0xFF) << 8 | payload[offset + 1] & 0xFF;
+                try {
+                    car.send(reply, 0, replies.encodeHeartbeat(reply, number));
+                } catch (IOException ignored) {
+                    // the phone end closed
+                }
+            }
+        });
+        carThread = new Thread(() -> {
+            byte[] buffer = new byte[256];
+            try {
+                int read;
+                while ((read = car.receive(buffer, 0, buffer.length)) >= 0) {
+                    decoder.feed(buffer, 0, read);
+                }
+            } catch (IOException ignored) {
+                // closed
+            }
+        }, "SimulatedCar");
+        carThread.setDaemon(true);
+        carThread.start();
+    }
+
+    @Test
+    public void lostHeartbeatsStopTheCarUntilTheLinkRecoversAndInputChanges() throws Exception {
+        LoopbackTransport phone = LoopbackTransport.pair();
+        LoopbackTransport car = phone.peer();
+        session = new ControlSession("AA", TransportType.TCP, () -> phone, new FrameEncoder(), 100, 50, 16);
+        session.getControlLoop().setHeartbeatInterval(20);
+        session.getLinkMonitor().setHeartbeatTimeouts(60, 150);
+        startCar(car);
+        session.start();
+        long forward = ControlState.withButtons(ControlState.NEUTRAL, ControlState.BUTTON_F);
+        session.setState(forward);
+
+        ConnectionManager manager = session.getConnectionManager();
+        LinkQualityMonitor monitor = session.getLinkMonitor();
+        assertTrue(await(() -> lastButtons == ControlState.BUTTON_F && monitor.getSmoothedRttNanos() > 0, 2000));
+        assertEquals(ConnectionManager.State.CONNECTED, manager.getState());
+        assertEquals(0, session.getWatchdog().getTripCount());
+
+        // the car still hears us, but its answers vanish
+        car.setSendLoss(1.0, new Random(1));
+        assertTrue(await(() -> manager.getState() == ConnectionManager.State.DEGRADED, 2000));
+        assertTrue(await(() -> lastButtons == ControlState.BUTTON_STOP, 1000));
+        assertEquals(1, session.getWatchdog().getTripCount());
+        assertTrue(session.getControlLoop().isFailsafeEngaged());
+
+        // input during the outage is overridden
+        session.setState(ControlState.withButtons(ControlState.NEUTRAL, ControlState.BUTTON_B));
+        Thread.sleep(50);
+        assertEquals(ControlState.BUTTON_STOP, lastButtons);
+
+        car.setSendLoss(0, new Random(1));
+        assertTrue(await(() -> manager.getState() == ConnectionManager.State.CONNECTED, 3000));
+        assertFalse(session.getControlLoop().isFailsafeEngaged());
+        // still stopped until the input changes
+        assertTrue(session.getControlLoop().isHoldingStop());
+        Thread.sleep(50);
+        assertEquals(ControlState.BUTTON_STOP, lastButtons);
+
+        session.setState(forward);
+        assertTrue(await(() -> lastButtons == ControlState.BUTTON_F, 1000));
+        assertEquals(1, session.getControlLoop().getFailsafeCount());
+    }
+
+    @Test
+    public void stalledWritesTripTheWatchdog() throws Exception {
+        LoopbackTransport phone = LoopbackTransport.pair();
+        LoopbackTransport car = phone.peer();
+        session = new ControlSession("AA", TransportType.TCP, () -> phone, new FrameEncoder(), 100, 50, 16);
+        session.getLinkMonitor().setWriteStallThresholds(20, 80);
+        startCar(car);
+        session.start();
+        assertTrue(await(() -> session.getConnectionManager().getState() == ConnectionManager.State.CONNECTED, 2000));
+
+        phone.setSendDelay(200);
+        assertTrue(await(() -> session.getWatchdog().getTripCount() == 1, 2000));
+        assertEquals(ConnectionManager.State.DEGRADED, session.getConnectionManager().getState());
+        assertTrue(session.getControlLoop().isHoldingStop());
+    }
+}
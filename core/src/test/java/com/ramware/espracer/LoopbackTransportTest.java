@@ -0,0 +1,106 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class LoopbackTransportTest {
+
+    @Test
+    public void bytesFlowBothWays() throws IOException {
+        LoopbackTransport app = LoopbackTransport.pair(16);
+        LoopbackTransport car = app.peer();
+        app.open();
+        car.open();
+
+        app.send(new byte[]{1, 2, 3}, 0, 3);
+        byte[] buffer = new byte[8];
+        assertEquals(3, car.receive(buffer, 0, buffer.length));
+        assertArrayEquals(new byte[]{1, 2, 3}, Arrays.copyOf(buffer, 3));
+
+        car.send(new byte[]{9}, 0, 1);
+        assertEquals(1, app.receive(buffer, 0, buffer.length));
+        assertEquals(9, buffer[0]);
+        assertEquals(3, app.getMetrics().getBytesSent());
+        assertEquals(1, app.getMetrics().getBytesReceived());
+    }
+
+    @Test
+    public void closeSignalsEndOfStreamToPeer() throws IOException {
+        LoopbackTransport app = LoopbackTransport.pair();
+        app.send(new byte[]{7}, 0, 1);
+        app.close();
+        byte[] buffer = new byte[4];
+        assertEquals(1, app.peer().receive(buffer, 0, 4));
+        assertEquals(-1, app.peer().receive(buffer, 0, 4));
+        try {
+            app.peer().send(buffer, 0, 1);
+            fail("send on a closed pipe must fail");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void controlStackRunsUnchangedOverLoopback() throws Exception {
+        LoopbackTransport app = LoopbackTransport.pair();
+        LoopbackTransport car = app.peer();
+        AtomicLong lastState = new AtomicLong(-1);
+        CountDownLatch received = new CountDownLatch(1);
+        long expected = ControlState.pack(ControlState.BUTTON_F, 40, 127);
+        FrameDecoder decoder = new FrameDecoder((type, sequence, payload, offset, length) -> {
+            long state = ControlState.pack(payload[offset], payload[offset + 1], payload[offset + 2]);
+            lastState.set(state);
+            if (state == expected) {
+                received.countDown();
+            }
+        });
+        Thread firmware = new Thread(() -> {
+            byte[] buffer = new byte[64];
+            try {
+                int n;
+                while ((n = car.receive(buffer, 0, buffer.length)) > 0) {
+                    decoder.feed(buffer, 0, n);
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        firmware.start();
+
+        CommandSender sender = new CommandSender(16, CommandSender.OverflowPolicy.COALESCE_LATEST);
+        sender.setEncoder(new FrameEncoder());
+        ConnectionManager manager = new ConnectionManager(() -> app);
+        CountDownLatch connected = new CountDownLatch(1);
+        manager.setListener(new ConnectionManager.Listener() {
+            @Override
+            public void onStateChanged(ConnectionManager.State previous, ConnectionManager.State state) {
+            }
+
+            @Override
+            public void onConnected(Transport transport) {
+                sender.setTransport(transport);
+                connected.countDown();
+            }
+        });
+        ControlLoop loop = new ControlLoop(sender::send, 100, 250);
+        sender.start();
+        loop.start();
+        manager.connect();
+        assertTrue(connected.await(1, TimeUnit.SECONDS));
+
+        loop.setState(expected);
+
+        assertTrue(received.await(1, TimeUnit.SECONDS));
+        assertEquals(expected, lastState.get());
+        loop.stop();
+        sender.stop();
+        manager.close();
+        firmware.join(1000);
+        assertFalse(firmware.isAlive());
+    }
+}
@@ -0,0 +1,133 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static com.ramware.espracer.TestUtil.await;
+import static org.junit.Assert.*;
+
+public class ManeuverSchedulerTest {
+    private static final long FORWARD = ControlState.pack(ControlState.BUTTON_F, 0, 0);
+    private static final long RIGHT = ControlState.pack(ControlState.BUTTON_R, 0, 0);
+    private static final long PUBLISHED = ControlState.pack(0, 40, 0);
+
+    // each send as {nanoTime, state}
+    private final List<long[]> sent = new CopyOnWriteArrayList<>();
+    private ControlLoop loop;
+    private ManeuverScheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.stop();
+        }
+        if (loop != null) {
+            loop.stop();
+        }
+    }
+
+    private void startAt(int tickRateHz) {
+        loop = new ControlLoop(state -> sent.add(new long[]{System.nanoTime(), state}), tickRateHz, 10_000);
+        loop.setState(PUBLISHED);
+        loop.start();
+        scheduler = new ManeuverScheduler(loop);
+        scheduler.start();
+    }
+
+    private long lastSent() {
+        return sent.isEmpty() ? -1 : sent.get(sent.size() - 1)[1];
+    }
+
+    private long firstSentAt(long state) {
+        for (long[] send : sent) {
+            if (send[1] == state) {
+                return send[0];
+            }
+        }
+        return -1;
+    }
+
+    @Test
+    public void issuesEachStepAtItsDeadlineBetweenTicksThenHandsBack() throws Exception {
+        // a 5 Hz loop: steps going out on time can only be the override sending out of turn
+        startAt(5);
+        assertTrue(await(() -> lastSent() == PUBLISHED, 1000));
+
+        scheduler.run(ManeuverScript.compile("forward 60ms, right 40ms"));
+        assertTrue(await(() -> scheduler.getCompletedCount() == 1, 2000));
+        assertTrue(await(() -> lastSent() == PUBLISHED, 200));
+
+        long forwardAt = firstSentAt(FORWARD);
+        long rightAt = firstSentAt(RIGHT);
+        assertTrue(forwardAt > 0 && rightAt > forwardAt);
+        long stepMs = TimeUnit.NANOSECONDS.toMillis(rightAt - forwardAt);
+        // measured at the sink, so either send may trail its step by a wake-up of the loop thread
+        assertTrue("forward lasted " + stepMs + " ms", stepMs >= 40 && stepMs < 120);
+
+        assertFalse(scheduler.isActive());
+        assertFalse(loop.isOverridden());
+        assertEquals(1, scheduler.getRunCount());
+        // both steps and the hand back
+        assertEquals(3, scheduler.getIssuedCount());
+        assertEquals(3, scheduler.getLateness().getCount());
+        assertTrue(scheduler.getLateness().getMax() >= 0);
+        assertTrue(scheduler.getMissedCount() <= scheduler.getIssuedCount());
+    }
+
+    @Test
+    public void cancellingReturnsToThePublishedStateRightAway() throws Exception {
+        startAt(5);
+        scheduler.run(ManeuverScript.compile("forward 5s, right 1s"));
+        assertTrue(await(() -> lastSent() == FORWARD, 1000));
+
+        long cancelledAt = System.nanoTime();
+        assertTrue(scheduler.cancel());
+        assertTrue(await(() -> lastSent() == PUBLISHED, 1000));
+        assertTrue(firstSentAfter(cancelledAt) - cancelledAt < TimeUnit.MILLISECONDS.toNanos(100));
+
+        assertFalse(scheduler.cancel());
+        assertEquals(1, scheduler.getCancelledCount());
+        assertEquals(0, scheduler.getCompletedCount());
+        Thread.sleep(50);
+        assertEquals(PUBLISHED, lastSent());
+        assertEquals(-1, firstSentAt(RIGHT));
+    }
+
+    @Test
+    public void holdsAnUntimedLastStepUntilCancelled() throws Exception {
+        startAt(50);
+        scheduler.run(ManeuverScript.compile("forward 10ms, stop"));
+        assertTrue(await(() -> lastSent() == ControlState.FAILSAFE_STOP, 1000));
+        Thread.sleep(50);
+        assertTrue(scheduler.isActive());
+        assertEquals(ControlState.FAILSAFE_STOP, lastSent());
+
+        scheduler.cancel();
+        assertTrue(await(() -> lastSent() == PUBLISHED, 1000));
+    }
+
+    @Test
+    public void aNewRunReplacesTheOneInProgress() throws Exception {
+        startAt(50);
+        scheduler.run(ManeuverScript.compile("forward 5s"));
+        assertTrue(await(() -> lastSent() == FORWARD, 1000));
+        scheduler.run(ManeuverScript.compile("right 20ms"));
+        assertTrue(await(() -> scheduler.getCompletedCount() == 1, 1000));
+        assertTrue(await(() -> lastSent() == PUBLISHED, 1000));
+        assertEquals(2, scheduler.getRunCount());
+        assertEquals(1, scheduler.getCancelledCount());
+    }
+
+    private long firstSentAfter(long time) {
+        for (long[] send : sent) {
+            if (send[0] >= time) {
+                return send[0];
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
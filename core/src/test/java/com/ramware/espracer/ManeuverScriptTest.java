@@ -0,0 +1,48 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ManeuverScriptTest {
+
+    @Test
+    public void compilesStepsIntoStatesAndDurations() {
+        ManeuverScript script = ManeuverScript.compile("Forward 800ms, right+forward 300 ms\ncoast 1.5s, back 20, stop");
+
+        assertEquals(5, script.size());
+        assertEquals(ControlState.pack(ControlState.BUTTON_F, 0, 0), script.getState(0));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(800), script.getDurationNanos(0));
+        assertEquals(ControlState.pack(ControlState.BUTTON_F | ControlState.BUTTON_R, 0, 0), script.getState(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(300), script.getDurationNanos(1));
+        assertEquals(ControlState.NEUTRAL, script.getState(2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1500), script.getDurationNanos(2));
+        assertEquals(ControlState.pack(ControlState.BUTTON_B, 0, 0), script.getState(3));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), script.getDurationNanos(3));
+        // no duration on the last step holds it
+        assertEquals(ControlState.FAILSAFE_STOP, script.getState(4));
+        assertEquals(-1, script.getDurationNanos(4));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(2620), script.getTotalNanos());
+    }
+
+    @Test
+    public void rejectsBadScriptsNamingTheStep() {
+        assertRejected("", "empty");
+        assertRejected("forward 1s, jump 2s", "step 2: unknown action 'jump'");
+        assertRejected("forward, stop", "step 1: only the last step");
+        assertRejected("forward 1s, left 3h", "step 2: bad duration");
+        assertRejected("forward -5ms", "step 1: duration out of range");
+        assertRejected("forward 1s,, stop", "step 2: expected");
+    }
+
+    private static void assertRejected(String source, String message) {
+        try {
+            ManeuverScript.compile(source);
+            fail("compiled: " + source);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SessionRecorderTest {
+
+    @Test
+    public void recordsCommandsAndFramesInOrder() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(Channels.newChannel(log));
+        recorder.start();
+        recorder.recordCommand(ControlState.pack(ControlState.BUTTON_F, 0, 0));
+        Thread.sleep(20);
+        recorder.recordFrame(Protocol.TYPE_TELEMETRY, new byte[]{9, 1, 2, 3, 4, 5}, 1, 5);
+        recorder.recordCommand(ControlState.PING);
+        recorder.close();
+        assertEquals(3, recorder.getRecordedCount());
+        assertEquals(log.size(), recorder.getBytesWritten());
+
+        SessionReader reader = reader(log.toByteArray());
+        assertTrue(reader.next());
+        assertEquals(SessionRecorder.KIND_COMMAND, reader.getKind());
+        assertEquals(ControlState.pack(ControlState.BUTTON_F, 0, 0), reader.getCommand());
+        long first = reader.getTimeNanos();
+
+        assertTrue(reader.next());
+        assertEquals(SessionRecorder.KIND_FRAME, reader.getKind());
+        assertEquals(Protocol.TYPE_TELEMETRY, reader.getFrameType());
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, Arrays.copyOf(reader.getPayload(), reader.getPayloadLength()));
+        assertTrue(reader.getTimeNanos() - first >= TimeUnit.MILLISECONDS.toNanos(20));
+
+        assertTrue(reader.next());
+        assertEquals(ControlState.PING, reader.getCommand());
+        assertFalse(reader.next());
+        assertFalse(reader.isTruncated());
+        assertEquals(recorder.getStartTimeMillis(), reader.getStartTimeMillis());
+    }
+
+    @Test
+    public void smallBuffersSwapWithoutLosingRecords() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(Channels.newChannel(log), 64);
+        recorder.start();
+        int recorded = 0;
+        for (int i = 0; i < 1000; i++) {
+            while (!recorder.recordCommand(i)) {
+                // both buffers busy; a real caller would just lose the record
+                Thread.sleep(1);
+            }
+            recorded++;
+        }
+        recorder.close();
+
+        SessionReader reader = reader(log.toByteArray());
+        for (int i = 0; i < recorded; i++) {
+            assertTrue(reader.next());
+            assertEquals(i, reader.getCommand());
+        }
+        assertFalse(reader.next());
+    }
+
+    @Test
+    public void truncatedLogEndsAtLastCompleteRecord() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(Channels.newChannel(log));
+        recorder.recordCommand(1);
+        recorder.recordCommand(2);
+        recorder.close();
+        byte[] bytes = log.toByteArray();
+
+        SessionReader reader = reader(Arrays.copyOf(bytes, bytes.length - 3));
+        assertTrue(reader.next());
+        assertFalse(reader.next());
+        assertTrue(reader.isTruncated());
+
+        try {
+            reader(new byte[SessionRecorder.HEADER_LENGTH]);
+            fail("accepted a log without magic");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void replay_reemitsCommandsOverLoopbackWithScaledTiming() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        SessionRecorder recorder = new SessionRecorder(Channels.newChannel(log));
+        for (int i = 0; i < 5; i++) {
+            recorder.recordCommand(ControlState.pack(0, i * 10, 0));
+            recorder.recordFrame(Protocol.TYPE_ECHO, new byte[4], 0, 4);
+            Thread.sleep(20);
+        }
+        recorder.close();
+
+        LoopbackTransport link = LoopbackTransport.pair();
+        SessionReplayer replayer = new SessionReplayer(link);
+        replayer.setSpeed(2);
+        long start = System.nanoTime();
+        assertEquals(5, replayer.replay(reader(log.toByteArray())));
+        long elapsed = System.nanoTime() - start;
+        // four 20 ms gaps at double speed
+        assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(38));
+
+        List<Integer> axes = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder((type, sequence, payload, offset, length) -> {
+            assertEquals(Protocol.TYPE_CONTROL, type);
+            axes.add((int) payload[offset + 1]);
+        });
+        byte[] received = new byte[256];
+        int count = link.peer().receive(received, 0, received.length);
+        decoder.feed(received, 0, count);
+        assertEquals(Arrays.asList(0, 10, 20, 30, 40), axes);
+    }
+
+    private static SessionReader reader(byte[] bytes) throws IOException {
+        return new SessionReader(Channels.newChannel(new ByteArrayInputStream(bytes)));
+    }
+}
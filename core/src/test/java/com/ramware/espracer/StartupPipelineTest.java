@@ -0,0 +1,95 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class StartupPipelineTest {
+
+    private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(4);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile boolean timedOut;
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private void finished(StartupPipeline pipeline, boolean timedOut) {
+        this.timedOut = timedOut;
+        calls.incrementAndGet();
+        done.countDown();
+    }
+
+    @Test
+    public void stagesOverlapAndFailuresAreRecorded() throws Exception {
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        StartupPipeline pipeline = new StartupPipeline(executor)
+                .addStage("a", () -> {
+                    bothRunning.countDown();
+                    assertTrue(bothRunning.await(1, TimeUnit.SECONDS));
+                })
+                .addStage("b", () -> {
+                    bothRunning.countDown();
+                    assertTrue(bothRunning.await(1, TimeUnit.SECONDS));
+                    throw new IOException("no adapter");
+                });
+        pipeline.start(this::finished);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertFalse(timedOut);
+        assertNull(pipeline.getStageError("a"));
+        assertTrue(pipeline.getStageError("b") instanceof IOException);
+        assertTrue(pipeline.getStageNanos("a") >= 0);
+        assertEquals(-1, pipeline.getStageNanos("missing"));
+        assertTrue(pipeline.summary().contains("b "));
+        assertTrue(pipeline.summary().endsWith("failed"));
+    }
+
+    @Test
+    public void waitsForMinimumDuration() throws Exception {
+        StartupPipeline pipeline = new StartupPipeline(executor)
+                .setMinimumDuration(150)
+                .addStage("quick", () -> {
+                });
+        pipeline.start(this::finished);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertFalse(timedOut);
+        assertTrue(pipeline.getTotalNanos() >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertTrue(pipeline.getStageNanos("quick") < pipeline.getTotalNanos());
+    }
+
+    @Test
+    public void reportsOnceAtTimeoutWithSlowStageStillRunning() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        StartupPipeline pipeline = new StartupPipeline(executor)
+                .setTimeout(100)
+                .addStage("slow", release::await);
+        pipeline.start(this::finished);
+
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue(timedOut);
+        assertEquals(-1, pipeline.getStageNanos("slow"));
+        StringBuilder csv = new StringBuilder();
+        pipeline.writeCsv(csv);
+        String slowRow = csv.toString().split("\n")[0];
+        assertTrue(slowRow.contains(",slow,"));
+        assertTrue(slowRow.endsWith(",-1,running"));
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertTrue(pipeline.getStageNanos("slow") >= 0);
+    }
+}
@@ -0,0 +1,94 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TelemetryBufferTest {
+
+    private final TelemetryBuffer buffer = new TelemetryBuffer(8);
+    private final long[] times = new long[16];
+    private final float[] values = new float[16];
+
+    @Test
+    public void recordFrame_decodesBigEndianFields() {
+        byte[] payload = telemetryPayload(7412, -1500, -67);
+        assertTrue(buffer.recordFrame(payload, 0, payload.length, 42));
+
+        assertEquals(7.412f, buffer.getLatest(TelemetryBuffer.CHANNEL_BATTERY), 1e-6f);
+        assertEquals(-1.5f, buffer.getLatest(TelemetryBuffer.CHANNEL_CURRENT), 1e-6f);
+        assertEquals(-67f, buffer.getLatest(TelemetryBuffer.CHANNEL_RSSI), 0f);
+        assertEquals(42, buffer.getLatestTime());
+
+        assertFalse(buffer.recordFrame(payload, 0, 3, 43));
+        assertEquals(1, buffer.getMalformedCount());
+        assertEquals(1, buffer.getWriteCount());
+    }
+
+    @Test
+    public void copy_returnsNewestWindowOldestFirst() {
+        assertTrue(Float.isNaN(buffer.getLatest(TelemetryBuffer.CHANNEL_RSSI)));
+        for (int i = 0; i < 20; i++) {
+            buffer.record(i * 10, 0, 0, i);
+        }
+        // only the newest 8 survive the wrap
+        assertEquals(8, buffer.copy(TelemetryBuffer.CHANNEL_RSSI, 0, times, values));
+        assertEquals(12f, values[0], 0f);
+        assertEquals(19f, values[7], 0f);
+        assertEquals(190, times[7]);
+
+        assertEquals(3, buffer.copy(TelemetryBuffer.CHANNEL_RSSI, 170, times, values));
+        assertEquals(170, times[0]);
+
+        float[] small = new float[2];
+        assertEquals(2, buffer.copy(TelemetryBuffer.CHANNEL_RSSI, 0, times, small));
+        assertEquals(18f, small[0], 0f);
+    }
+
+    @Test
+    public void stream_survivesCorruptionAndArbitraryChunking() {
+        FrameEncoder encoder = new FrameEncoder();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+        for (int i = 0; i < 200; i++) {
+            byte[] payload = telemetryPayload(7000 + i, i, -40 - (i % 50));
+            System.arraycopy(payload, 0, frame, Protocol.HEADER_LENGTH, payload.length);
+            int length = encoder.finish(frame, Protocol.TYPE_TELEMETRY, payload.length);
+            if (i % 10 == 5) {
+                // flip a payload bit so the CRC fails
+                frame[Protocol.HEADER_LENGTH] ^= 0x10;
+            }
+            wire.write(frame, 0, length);
+            if (i % 25 == 0) {
+                // line noise that happens to contain a sync byte
+                wire.write(new byte[]{(byte) Protocol.SYNC, 0x13, 0x7F}, 0, 3);
+            }
+        }
+        TelemetryBuffer received = new TelemetryBuffer(256);
+        FrameDecoder decoder = new FrameDecoder((type, sequence, payload, offset, length) -> {
+            assertEquals(Protocol.TYPE_TELEMETRY, type);
+            received.recordFrame(payload, offset, length, sequence);
+        });
+        byte[] bytes = wire.toByteArray();
+        Random random = new Random(3);
+        for (int offset = 0; offset < bytes.length; ) {
+            int count = Math.min(bytes.length - offset, 1 + random.nextInt(12));
+            decoder.feed(bytes, offset, count);
+            offset += count;
+        }
+
+        assertEquals(180, received.getWriteCount());
+        assertEquals(20, decoder.getCrcErrorCount());
+        assertEquals(7.199f, received.getLatest(TelemetryBuffer.CHANNEL_BATTERY), 1e-6f);
+    }
+
+    private static byte[] telemetryPayload(int millivolts, int milliamps, int rssi) {
+        return new byte[]{
+                (byte) (millivolts >> 8), (byte) millivolts,
+                (byte) (milliamps >> 8), (byte) milliamps,
+                (byte) rssi};
+    }
+}
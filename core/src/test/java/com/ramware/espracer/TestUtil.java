@@ -0,0 +1,27 @@
+package com.ramware.espracer;
+
+import java.util.concurrent.TimeUnit;
+
+/** Helpers shared by the tests that wait on other threads. */
+final class TestUtil {
+
+    private TestUtil() {
+    }
+
+    /** A condition to poll; whatever it throws fails the test. */
+    interface Condition {
+        boolean test() throws Exception;
+    }
+
+    /** Polls {@code condition} until it holds, or returns false after {@code timeoutMs}. */
+    static boolean await(Condition condition, long timeoutMs) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!condition.test()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,122 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TiltSteeringTest {
+
+    private static final float G = 9.81f;
+    private static final long SAMPLE_NANOS = TimeUnit.SECONDS.toNanos(1) / 200;
+
+    private long time;
+
+    /** Feeds {@code count} samples of the phone turned {@code degrees} clockwise, turning at {@code rate} rad/s. */
+    private int feed(TiltSteering tilt, float degrees, float rate, int count, Random noise, float noiseLevel) {
+        int changes = 0;
+        double theta = Math.toRadians(degrees);
+        for (int i = 0; i < count; i++) {
+            time += SAMPLE_NANOS;
+            float nx = noise == null ? 0 : (float) noise.nextGaussian() * noiseLevel;
+            float ny = noise == null ? 0 : (float) noise.nextGaussian() * noiseLevel;
+            tilt.onGyroscope(-rate);
+            if (tilt.onAccelerometer(time, (float) (-G * Math.sin(theta)) + nx, (float) (G * Math.cos(theta)) + ny)) {
+                changes++;
+            }
+            theta += rate * SAMPLE_NANOS / 1e9;
+        }
+        return changes;
+    }
+
+    @Test
+    public void steadyTiltMapsThroughDeadZoneAndFullLock() {
+        TiltSteering tilt = new TiltSteering();
+        tilt.setRange(5, 35);
+        feed(tilt, 20, 0, 400, null, 0);
+        assertEquals(ControlState.AXIS_MAX / 2, tilt.getOutput(), 1);
+
+        feed(tilt, -60, 0, 400, null, 0);
+        assertEquals(-ControlState.AXIS_MAX, tilt.getOutput());
+
+        feed(tilt, 4, 0, 400, null, 0);
+        assertEquals(0, tilt.getOutput());
+    }
+
+    @Test
+    public void calibrationTakesTheHeldTiltAsStraightAhead() {
+        TiltSteering tilt = new TiltSteering();
+        tilt.calibrate(50);
+        feed(tilt, 12, 0, 50, null, 0);
+        assertFalse(tilt.isCalibrating());
+        assertEquals(Math.toRadians(12), tilt.getZero(), 1e-3);
+
+        feed(tilt, 12, 0, 200, null, 0);
+        assertEquals(0, tilt.getOutput());
+        assertEquals(0, tilt.getAngleDegrees(), 0.5);
+        feed(tilt, 47, 0, 400, null, 0);
+        assertEquals(ControlState.AXIS_MAX, tilt.getOutput());
+    }
+
+    @Test
+    public void complementaryFilterRejectsVibrationBetterThanRawGravity() {
+        TiltSteering tilt = new TiltSteering();
+        tilt.setRange(0, 45);
+        tilt.setMaxOutput(1000);
+        Random noise = new Random(7);
+        feed(tilt, 15, 0, 200, noise, 3f);
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < 20; i++) {
+            feed(tilt, 15, 0, 20, noise, 3f);
+            min = Math.min(min, tilt.getOutput());
+            max = Math.max(max, tilt.getOutput());
+        }
+        // 15 of 45 degrees is 333; 3 m/s^2 of noise is about 17 degrees, or 380, per raw sample
+        assertEquals(333, (min + max) / 2, 50);
+        assertTrue("spread " + (max - min), max - min < 200);
+    }
+
+    @Test
+    public void gyroscopeTracksAFastTurnThatTheLowPassLags() {
+        TiltSteering complementary = new TiltSteering();
+        TiltSteering lowPass = new TiltSteering();
+        lowPass.setFilter(TiltSteering.Filter.LOW_PASS);
+        lowPass.setLowPassCutoff(1);
+        for (TiltSteering tilt : new TiltSteering[] {complementary, lowPass}) {
+            time = 0;
+            feed(tilt, 0, 0, 100, null, 0);
+            // 30 degrees in 100 ms
+            feed(tilt, 0, (float) Math.toRadians(300), 20, null, 0);
+        }
+        assertTrue(complementary.getAngleDegrees() > 25);
+        assertTrue(lowPass.getAngleDegrees() < 20);
+    }
+
+    @Test
+    public void outputIsDecimatedToTheControlRate() {
+        TiltSteering tilt = new TiltSteering();
+        tilt.setOutputRate(50);
+        tilt.setMaxOutput(1000);
+        // a slow sweep changes the value on nearly every sample at 200 Hz
+        int changes = feed(tilt, -30, (float) Math.toRadians(60), 400, null, 0);
+        assertEquals(400, tilt.getSampleCount());
+        assertTrue("changes " + changes, changes <= 2 * 50 + 1);
+        assertTrue(changes > 50);
+        assertEquals(changes, tilt.getOutputCount());
+    }
+
+    @Test
+    public void flatPhoneIsIgnored() {
+        TiltSteering tilt = new TiltSteering();
+        feed(tilt, 20, 0, 200, null, 0);
+        int before = tilt.getOutput();
+        for (int i = 0; i < 100; i++) {
+            time += SAMPLE_NANOS;
+            assertFalse(tilt.onAccelerometer(time, 0.1f, 0.2f));
+        }
+        assertEquals(before, tilt.getOutput());
+    }
+}
@@ -0,0 +1,117 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+
+    @Test
+    public void dumpsEventsOldestFirstWithNamesAndArguments() throws Exception {
+        Tracer tracer = new Tracer(16);
+        tracer.record(Tracer.SEND, 0x1F, 1500);
+        tracer.record(Tracer.LINK_STATE, 1, 2);
+
+        StringBuilder out = new StringBuilder();
+        assertEquals(2, tracer.dump(out));
+        String[] lines = out.toString().split("\n");
+        assertTrue(lines[0], lines[0].contains("SEND") && lines[0].contains("command=0x1f write_ns=1500"));
+        assertTrue(lines[1], lines[1].contains("LINK_STATE") && lines[1].contains("from=1 to=2"));
+        assertTrue(lines[0].trim().startsWith("0.000"));
+    }
+
+    @Test
+    public void keepsOnlyTheNewestEventsOnceFull() throws Exception {
+        Tracer tracer = new Tracer(10);
+        assertEquals(16, tracer.getCapacity());
+        for (int i = 0; i < 40; i++) {
+            tracer.record(Tracer.SEND_RATE, i, 0);
+        }
+        assertEquals(24, tracer.getOverwrittenCount());
+        StringBuilder out = new StringBuilder();
+        assertEquals(16, tracer.dump(out));
+        assertTrue(out.toString().split("\n")[0].contains("hz=24 "));
+
+        tracer.clear();
+        assertEquals(0, tracer.dump(new StringBuilder()));
+    }
+
+    @Test
+    public void theStaticTraceRecordsNothingWhileOff() {
+        Tracer global = Tracer.global();
+        boolean was = global.isEnabled();
+        try {
+            global.setEnabled(false);
+            long before = global.getRecordedCount();
+            Tracer.trace(Tracer.SEND, 1, 2);
+            assertEquals(before, global.getRecordedCount());
+            global.setEnabled(true);
+            Tracer.trace(Tracer.SEND, 1, 2);
+            assertEquals(before + 1, global.getRecordedCount());
+        } finally {
+            global.setEnabled(was);
+        }
+    }
+
+    @Test
+    public void theCrashHandlerIsInstalledOnceAndDumpsToTheLatestFile() throws Exception {
+        Thread.UncaughtExceptionHandler original = Thread.getDefaultUncaughtExceptionHandler();
+        File first = File.createTempFile("trace-crash", ".txt");
+        File second = File.createTempFile("trace-crash", ".txt");
+        try {
+            Tracer.dumpOnCrash(first);
+            Thread.UncaughtExceptionHandler installed = Thread.getDefaultUncaughtExceptionHandler();
+            // a recreated service asks again
+            Tracer.dumpOnCrash(second);
+            assertSame(installed, Thread.getDefaultUncaughtExceptionHandler());
+
+            Tracer.global().record(Tracer.FAILSAFE, 1, 1);
+            installed.uncaughtException(Thread.currentThread(), new RuntimeException("boom"));
+            assertEquals(0, first.length());
+            String dump = new String(Files.readAllBytes(second.toPath()), StandardCharsets.UTF_8);
+            assertTrue(dump, dump.contains("FAILSAFE"));
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(original);
+            first.delete();
+            second.delete();
+        }
+    }
+
+    @Test
+    public void concurrentWritersNeverProduceTornEvents() throws Exception {
+        Tracer tracer = new Tracer(64);
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            int id = t;
+            writers[t] = new Thread(() -> {
+                for (long i = 0; i < 20000; i++) {
+                    long value = id * 1000000L + i;
+                    tracer.record(99, value, value);
+                }
+            });
+            writers[t].start();
+        }
+        Pattern event = Pattern.compile("a=(\\d+) b=(\\d+)");
+        int checked = 0;
+        while (checked < 200) {
+            StringBuilder out = new StringBuilder();
+            tracer.dump(out);
+            Matcher m = event.matcher(out);
+            while (m.find()) {
+                assertEquals(m.group(1), m.group(2));
+                checked++;
+            }
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertEquals(80000, tracer.getRecordedCount());
+        assertEquals(64, tracer.dump(new StringBuilder()));
+    }
+}
@@ -21,3 +21,6 @@ dependencyResolutionManagement {
 
 rootProject.name = "ESPRacer"
 include(":app")
+include(":core")
+include(":benchmarks")
+include(":simulator")
@@ -0,0 +1,20 @@
+plugins {
+    application
+}
+
+// Stands in for the ESP32 so the link and control code can be load tested on a
+// plain JVM, with no car on the bench.
+java {
+    sourceCompatibility = JavaVersion.VERSION_1_8
+    targetCompatibility = JavaVersion.VERSION_1_8
+}
+
+dependencies {
+    implementation(project(":core"))
+    testImplementation(libs.junit)
+}
+
+// ./gradlew :simulator:run --args="load --protocol framed --rates 100,500,1000"
+application {
+    mainClass.set("com.ramware.espracer.SimulatorMain")
+}
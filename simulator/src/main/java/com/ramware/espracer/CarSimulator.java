@@ -0,0 +1,500 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The ESP32 side of the link, on a plain JVM. It speaks either the legacy
+ * single-char commands or the framed protocol over any {@link Transport}, so it
+ * can sit at the far end of a {@link LoopbackTransport} in a test or behind a
+ * TCP port the app connects to.
+ *
+ * <p>Received commands go into a bounded receive buffer, like the firmware's
+ * UART buffer, and are handled one at a time by a worker thread. Each command
+ * is delayed by the processing delay plus a random jitter, takes the service
+ * time to handle, and is lost on the way in with the configured probability. A
+ * full buffer drops new commands as an overrun. Pings and heartbeats are
+ * echoed, telemetry is streamed at its own rate, and the motors stop when no
+ * command arrives for {@link Protocol#FIRMWARE_LINK_TIMEOUT_MS}, as PROTOCOL.md
+ * requires of the firmware.
+ */
+public class CarSimulator {
+
+    public enum Mode {
+        LEGACY,
+        FRAMED
+    }
+
+    /** Called on the worker thread for every decoded command, in the order they arrived. */
+    public interface Listener {
+        /**
+         * {@code index} counts every decoded command from 0, including lost ones.
+         * {@code state} is the command as a {@link ControlState}, {@link ControlState#PING}
+         * or a heartbeat.
+         */
+        void onCommand(long index, long state, long handledAtNanos, boolean lost);
+    }
+
+    private static final int READ_BUFFER_SIZE = 256;
+
+    private final Mode mode;
+    // replies from the worker and telemetry must not interleave on the link
+    private final Object sendLock = new Object();
+    // worker thread only
+    private final FrameEncoder replyEncoder = new FrameEncoder();
+    private final byte[] replyFrame = new byte[Protocol.MAX_FRAME_LENGTH];
+
+    private volatile long processingDelayNanos;
+    private volatile long jitterNanos;
+    private volatile long serviceTimeNanos = TimeUnit.MICROSECONDS.toNanos(200);
+    private volatile double loss;
+    private volatile int telemetryRateHz;
+    private volatile int rssi = -60;
+    private Random random = new Random();
+    private volatile Listener listener;
+
+    // receive buffer: written by the reader thread, drained by the worker
+    private final Object bufferLock = new Object();
+    // serialises the accept thread's hand-over with close(); never held by the link threads
+    private final Object serveLock = new Object();
+    private boolean closed;
+    private long[] bufferStates;
+    private long[] bufferArrivals;
+    private long[] bufferIndexes;
+    private int bufferHead;
+    private int bufferSize;
+
+    private volatile Transport transport;
+    private volatile boolean running;
+    private Thread readerThread;
+    private Thread workerThread;
+    private Thread telemetryThread;
+    private ServerSocket serverSocket;
+
+    private volatile long state = ControlState.NEUTRAL;
+    private volatile long lastCommandNanos;
+    private long decodedCount;
+    private volatile long handledCount;
+    private volatile long lostCount;
+    private volatile long overrunCount;
+    private volatile long echoCount;
+    private volatile long telemetryCount;
+    private volatile long timeoutStopCount;
+    private volatile long maxBufferDepth;
+
+    public CarSimulator(Mode mode) {
+        this.mode = mode;
+        setReceiveBuffer(128);
+    }
+
+    /** Fixed delay from receiving a command to acting on it. */
+    public void setProcessingDelay(long delayMicros) {
+        this.processingDelayNanos = TimeUnit.MICROSECONDS.toNanos(delayMicros);
+    }
+
+    /** Uniform random extra delay of up to {@code jitterMicros}. */
+    public void setJitter(long jitterMicros) {
+        this.jitterNanos = TimeUnit.MICROSECONDS.toNanos(jitterMicros);
+    }
+
+    /** How long the car is busy with each command; caps the rate it can keep up with. */
+    public void setServiceTime(long serviceMicros) {
+        this.serviceTimeNanos = TimeUnit.MICROSECONDS.toNanos(serviceMicros);
+    }
+
+    /** Probability that a command is lost on the way in, 0..1. */
+    public synchronized void setLoss(double loss, Random random) {
+        this.random = random;
+        this.loss = loss;
+    }
+
+    /** Streams telemetry frames at this rate in framed mode; 0 turns telemetry off. */
+    public void setTelemetryRate(int rateHz) {
+        this.telemetryRateHz = rateHz;
+    }
+
+    public void setRssi(int dbm) {
+        this.rssi = dbm;
+    }
+
+    /** Commands the car can hold before it starts dropping them. Set before {@link #attach}. */
+    public void setReceiveBuffer(int commands) {
+        bufferStates = new long[commands];
+        bufferArrivals = new long[commands];
+        bufferIndexes = new long[commands];
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Starts serving one already open link. */
+    public synchronized void attach(Transport transport) {
+        if (running) {
+            throw new IllegalStateException("already attached");
+        }
+        this.transport = transport;
+        synchronized (bufferLock) {
+            bufferHead = 0;
+            bufferSize = 0;
+        }
+        running = true;
+        lastCommandNanos = System.nanoTime();
+        readerThread = new Thread(this::readLoop, "CarSimulator-reader");
+        workerThread = new Thread(this::workLoop, "CarSimulator-worker");
+        readerThread.setDaemon(true);
+        workerThread.setDaemon(true);
+        readerThread.start();
+        workerThread.start();
+        if (mode == Mode.FRAMED && telemetryRateHz > 0) {
+            telemetryThread = new Thread(this::telemetryLoop, "CarSimulator-telemetry");
+            telemetryThread.setDaemon(true);
+            telemetryThread.start();
+        }
+    }
+
+    /**
+     * Listens on {@code port} (0 picks a free one) and serves one client at a
+     * time, like the ESP32's TCP server: a new client closes the one before and
+     * takes over the car. Returns the port.
+     */
+    public int serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        synchronized (this) {
+            serverSocket = server;
+        }
+        Thread acceptThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket client = server.accept();
+                    client.setTcpNoDelay(true);
+                    synchronized (serveLock) {
+                        if (closed) {
+                            client.close();
+                            return;
+                        }
+                        detach();
+                        attach(StreamTransport.of(client.getInputStream(), client.getOutputStream()));
+                    }
+                }
+            } catch (IOException e) {
+                // the server was closed
+            }
+        }, "CarSimulator-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return server.getLocalPort();
+    }
+
+    public void close() {
+        ServerSocket server;
+        synchronized (this) {
+            server = serverSocket;
+        }
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        synchronized (serveLock) {
+            closed = true;
+            detach();
+        }
+    }
+
+    // stops serving the current link and closes it, so another one can be attached
+    private void detach() {
+        Transport t;
+        synchronized (this) {
+            running = false;
+            t = transport;
+        }
+        try {
+            if (t != null) {
+                t.close();
+            }
+        } catch (IOException ignored) {
+            // closing anyway
+        }
+        join(readerThread);
+        join(workerThread);
+        join(telemetryThread);
+    }
+
+    private static void join(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void readLoop() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        FrameDecoder decoder = new FrameDecoder((type, sequence, payload, offset, length) -> {
+            if (type == Protocol.TYPE_CONTROL && length >= Protocol.CONTROL_PAYLOAD_LENGTH) {
+                receive(ControlState.pack(payload[offset] & 0xFF, payload[offset + 1], payload[offset + 2]));
+            } else if (type == Protocol.TYPE_PING && length >= Protocol.PING_PAYLOAD_LENGTH) {
+                // the ping's timestamp rides in the low bits so the echo can return it
+                receive(ControlState.PING | readInt(payload, offset) & 0xFFFFFFFFL);
+            } else if (type == Protocol.TYPE_HEARTBEAT && length >= Protocol.HEARTBEAT_PAYLOAD_LENGTH) {
+                receive(ControlState.heartbeat((payload[offset] & 0xFF) << 8 | payload[offset + 1] & 0xFF));
+            }
+        });
+        Transport t = transport;
+        try {
+            while (running) {
+                int read = t.receive(buffer, 0, buffer.length);
+                if (read < 0) {
+                    return;
+                }
+                if (mode == Mode.FRAMED) {
+                    decoder.feed(buffer, 0, read);
+                } else {
+                    for (int i = 0; i < read; i++) {
+                        long command = fromLegacy((char) buffer[i]);
+                        if (command != -1) {
+                            receive(command);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // link closed
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+    }
+
+    /** The state the original firmware acts on for a command char, or -1 for a byte it ignores. */
+    static long fromLegacy(char c) {
+        switch (c) {
+            case Protocol.LEGACY_FORWARD:
+                return ControlState.pack(0, 0, ControlState.AXIS_MAX);
+            case Protocol.LEGACY_BACKWARD:
+                return ControlState.pack(0, 0, -ControlState.AXIS_MAX);
+            case Protocol.LEGACY_RIGHT:
+                return ControlState.pack(0, ControlState.AXIS_MAX, 0);
+            case Protocol.LEGACY_LEFT:
+                return ControlState.pack(0, -ControlState.AXIS_MAX, 0);
+            case Protocol.LEGACY_BUTTON_F:
+                return ControlState.BUTTON_F;
+            case Protocol.LEGACY_BUTTON_B:
+                return ControlState.BUTTON_B;
+            case Protocol.LEGACY_BUTTON_L:
+                return ControlState.BUTTON_L;
+            case Protocol.LEGACY_BUTTON_R:
+                return ControlState.BUTTON_R;
+            case Protocol.LEGACY_STOP:
+                return ControlState.FAILSAFE_STOP;
+            default:
+                return -1;
+        }
+    }
+
+    // reader thread
+    private void receive(long command) {
+        long now = System.nanoTime();
+        long index = decodedCount++;
+        double p = loss;
+        if (p > 0 && nextRandom() < p) {
+            lostCount++;
+            notifyListener(index, command, now, true);
+            return;
+        }
+        // only what gets through keeps the failsafe away; an overrun command still arrived
+        lastCommandNanos = now;
+        synchronized (bufferLock) {
+            int capacity = bufferStates.length;
+            if (bufferSize == capacity) {
+                overrunCount++;
+                notifyListener(index, command, now, true);
+                return;
+            }
+            int slot = (bufferHead + bufferSize) % capacity;
+            bufferStates[slot] = command;
+            bufferArrivals[slot] = now;
+            bufferIndexes[slot] = index;
+            bufferSize++;
+            if (bufferSize > maxBufferDepth) {
+                maxBufferDepth = bufferSize;
+            }
+        }
+        LockSupport.unpark(workerThread);
+    }
+
+    private synchronized double nextRandom() {
+        return random.nextDouble();
+    }
+
+    private void workLoop() {
+        long busyUntil = 0;
+        long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Protocol.FIRMWARE_LINK_TIMEOUT_MS);
+        boolean timedOut = false;
+        while (running) {
+            long command;
+            long arrival;
+            long index;
+            synchronized (bufferLock) {
+                if (bufferSize == 0) {
+                    command = -1;
+                    arrival = 0;
+                    index = 0;
+                } else {
+                    command = bufferStates[bufferHead];
+                    arrival = bufferArrivals[bufferHead];
+                    index = bufferIndexes[bufferHead];
+                    bufferHead = (bufferHead + 1) % bufferStates.length;
+                    bufferSize--;
+                }
+            }
+            long now = System.nanoTime();
+            if (command == -1) {
+                if (!timedOut && now - lastCommandNanos > timeoutNanos) {
+                    // the firmware's own failsafe
+                    timedOut = true;
+                    state = ControlState.FAILSAFE_STOP;
+                    timeoutStopCount++;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+                continue;
+            }
+            timedOut = false;
+            long jitter = jitterNanos;
+            long due = arrival + processingDelayNanos + (jitter > 0 ? (long) (nextRandom() * jitter) : 0);
+            long start = Math.max(due, busyUntil);
+            busyUntil = start + serviceTimeNanos;
+            sleepUntil(busyUntil);
+            handle(command);
+            handledCount++;
+            notifyListener(index, command, System.nanoTime(), false);
+        }
+    }
+
+    private void sleepUntil(long deadline) {
+        for (long left = deadline - System.nanoTime(); left > 0 && running; left = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(this, left);
+        }
+    }
+
+    private void handle(long command) {
+        if (ControlState.isHeartbeat(command)) {
+            reply(replyEncoder.encodeHeartbeat(replyFrame, ControlState.heartbeatNumber(command)));
+        } else if ((command & ~0xFFFFFFFFL) == ControlState.PING) {
+            int timestamp = (int) command;
+            replyFrame[Protocol.HEADER_LENGTH] = (byte) (timestamp >>> 24);
+            replyFrame[Protocol.HEADER_LENGTH + 1] = (byte) (timestamp >>> 16);
+            replyFrame[Protocol.HEADER_LENGTH + 2] = (byte) (timestamp >>> 8);
+            replyFrame[Protocol.HEADER_LENGTH + 3] = (byte) timestamp;
+            reply(replyEncoder.finish(replyFrame, Protocol.TYPE_ECHO, Protocol.PING_PAYLOAD_LENGTH));
+        } else {
+            state = command;
+        }
+    }
+
+    private void reply(int length) {
+        synchronized (sendLock) {
+            try {
+                transport.send(replyFrame, 0, length);
+                echoCount++;
+            } catch (IOException e) {
+                // the phone went away; the reader notices
+            }
+        }
+    }
+
+    private void telemetryLoop() {
+        byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+        FrameEncoder encoder = new FrameEncoder();
+        long started = System.nanoTime();
+        long next = started;
+        while (running) {
+            int rate = telemetryRateHz;
+            if (rate <= 0) {
+                return;
+            }
+            next += TimeUnit.SECONDS.toNanos(1) / rate;
+            sleepUntil(next);
+            long s = state;
+            // a 2S pack sagging slowly, current following the throttle
+            int millivolts = (int) Math.max(6600, 8400 - TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - started));
+            int milliamps = Math.abs(ControlState.y(s)) * 12;
+            frame[Protocol.HEADER_LENGTH] = (byte) (millivolts >> 8);
+            frame[Protocol.HEADER_LENGTH + 1] = (byte) millivolts;
+            frame[Protocol.HEADER_LENGTH + 2] = (byte) (milliamps >> 8);
+            frame[Protocol.HEADER_LENGTH + 3] = (byte) milliamps;
+            frame[Protocol.HEADER_LENGTH + 4] = (byte) rssi;
+            int length = encoder.finish(frame, Protocol.TYPE_TELEMETRY, Protocol.TELEMETRY_PAYLOAD_LENGTH);
+            synchronized (sendLock) {
+                try {
+                    transport.send(frame, 0, length);
+                    telemetryCount++;
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void notifyListener(long index, long command, long now, boolean lost) {
+        Listener l = listener;
+        if (l != null) {
+            l.onCommand(index, command, now, lost);
+        }
+    }
+
+    /** What the motors are doing now. */
+    public long getState() {
+        return state;
+    }
+
+    public long getHandledCount() {
+        return handledCount;
+    }
+
+    /** Commands lost on the way in, by the configured loss. */
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    /** Commands dropped because the receive buffer was full. */
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    public long getEchoCount() {
+        return echoCount;
+    }
+
+    public long getTelemetryCount() {
+        return telemetryCount;
+    }
+
+    /** How often the link timeout stopped the motors. */
+    public long getTimeoutStopCount() {
+        return timeoutStopCount;
+    }
+
+    public long getMaxBufferDepth() {
+        return maxBufferDepth;
+    }
+
+    public String summary() {
+        return "handled " + handledCount + " lost " + lostCount + " overrun " + overrunCount
+                + " echoed " + echoCount + " telemetry " + telemetryCount + " timeout stops " + timeoutStopCount
+                + " max buffer " + maxBufferDepth;
+    }
+}
@@ -0,0 +1,276 @@
+package com.ramware.espracer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Drives a {@link CarSimulator} through the app's own send path at a series of
+ * increasing input rates and reports, per rate, how many commands per second
+ * the car kept up with, how many were dropped on the way and the latency from
+ * publishing a state to the car acting on it.
+ *
+ * <p>Each rate runs against a fresh simulator and link. States go either
+ * straight into a {@link CommandSender}, which measures the send path alone, or
+ * through a {@link ControlLoop}, which measures what the app does end to end.
+ * To tell which published state the car is handling, every state carries a
+ * sequence number in its unused upper bits; the encoder strips it and notes the
+ * order in which states reached the wire, and the simulator reports commands
+ * in that same order.
+ */
+public class LoadHarness {
+    public static final String CSV_HEADER = "protocol,link,via,offered_hz,offered,sent,handled,lost,overrun,"
+            + "sender_dropped,drop_rate,sustained_per_s,p50_us,p95_us,p99_us,max_us";
+    public static final int[] DEFAULT_RATES = {50, 100, 200, 500, 1000, 2000, 5000};
+
+    public enum Link {
+        LOOPBACK,
+        TCP
+    }
+
+    public enum Via {
+        /** Straight into the command sender: the send path alone. */
+        SENDER,
+        /** Through the control loop at its tick rate, as the app does. */
+        LOOP
+    }
+
+    private static final int SEQUENCE_SHIFT = 24;
+    private static final long SEQUENCE_MASK = (1L << 24) - 1;
+    private static final long STATE_MASK = (1L << SEQUENCE_SHIFT) - 1;
+    private static final int RING = 1 << 16;
+    private static final int SENDER_QUEUE_CAPACITY = 64;
+
+    /** What one rate achieved. */
+    public static final class Result {
+        public final int offeredHz;
+        public final long offered;
+        public final long sent;
+        public final long handled;
+        public final long lost;
+        public final long overrun;
+        public final long senderDropped;
+        public final double seconds;
+        public final LatencyHistogram latency;
+
+        Result(int offeredHz, long offered, long sent, long handled, long lost, long overrun, long senderDropped,
+               double seconds, LatencyHistogram latency) {
+            this.offeredHz = offeredHz;
+            this.offered = offered;
+            this.sent = sent;
+            this.handled = handled;
+            this.lost = lost;
+            this.overrun = overrun;
+            this.senderDropped = senderDropped;
+            this.seconds = seconds;
+            this.latency = latency;
+        }
+
+        /** Fraction of the published states the car never acted on. */
+        public double getDropRate() {
+            return offered == 0 ? 0 : 1 - (double) handled / offered;
+        }
+
+        /** Distinct states the car acted on per second. */
+        public double getSustainedPerSecond() {
+            return handled / seconds;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%7d Hz  %8.0f/s  drop %5.1f%%  p50 %7.2f  p95 %7.2f  p99 %7.2f  max %7.2f ms",
+                    offeredHz, getSustainedPerSecond(), getDropRate() * 100,
+                    latency.getValueAtPercentile(50) / 1e6, latency.getValueAtPercentile(95) / 1e6,
+                    latency.getValueAtPercentile(99) / 1e6, latency.getMax() / 1e6);
+        }
+    }
+
+    private final CarSimulator.Mode mode;
+    private Link link = Link.LOOPBACK;
+    private Via via = Via.SENDER;
+    private int tickRateHz = 100;
+    private int[] rates = DEFAULT_RATES;
+    private long stepNanos = TimeUnit.SECONDS.toNanos(2);
+    private long drainNanos = TimeUnit.SECONDS.toNanos(1);
+    private Consumer<CarSimulator> simulatorSetup = simulator -> { };
+    private final List<Result> results = new ArrayList<>();
+
+    public LoadHarness(CarSimulator.Mode mode) {
+        this.mode = mode;
+    }
+
+    public void setLink(Link link) {
+        this.link = link;
+    }
+
+    /** With {@link Via#LOOP}, the loop ticks at {@code tickRateHz}. */
+    public void setVia(Via via, int tickRateHz) {
+        this.via = via;
+        this.tickRateHz = tickRateHz;
+    }
+
+    public void setRates(int... rates) {
+        this.rates = rates.clone();
+    }
+
+    public void setStepDuration(long stepMs) {
+        this.stepNanos = TimeUnit.MILLISECONDS.toNanos(stepMs);
+    }
+
+    /** Applied to each step's fresh simulator before it is attached, to set delay, jitter, loss and so on. */
+    public void setSimulatorSetup(Consumer<CarSimulator> simulatorSetup) {
+        this.simulatorSetup = simulatorSetup;
+    }
+
+    /** Runs every rate in order; the results are also kept for {@link #writeCsv}. */
+    public List<Result> run() throws IOException {
+        results.clear();
+        for (int rate : rates) {
+            results.add(runStep(rate));
+        }
+        return new ArrayList<>(results);
+    }
+
+    private Result runStep(int rateHz) throws IOException {
+        CarSimulator simulator = new CarSimulator(mode);
+        simulatorSetup.accept(simulator);
+        Transport phone;
+        if (link == Link.TCP) {
+            int port = simulator.serve(0);
+            phone = new TcpTransport("127.0.0.1", port, 1000);
+            phone.open();
+        } else {
+            LoopbackTransport pair = LoopbackTransport.pair();
+            simulator.attach(pair.peer());
+            phone = pair;
+        }
+        // echoes and telemetry must be read or they back up into the simulator
+        LinkReader reader = new LinkReader(phone, (type, sequence, payload, offset, length) -> { }, (t, e) -> { });
+        reader.start();
+
+        long[] publishedAt = new long[RING];
+        long[] wireSequence = new long[RING];
+        long[] wireCount = new long[1];
+        Object wireLock = new Object();
+        CommandEncoder base = mode == CarSimulator.Mode.FRAMED ? new FrameEncoder() : new LegacyCommandEncoder();
+        CommandEncoder tracking = (command, out) -> {
+            int length = base.encode(command & STATE_MASK, out);
+            if (length > 0) {
+                synchronized (wireLock) {
+                    wireSequence[(int) (wireCount[0] % RING)] = command >>> SEQUENCE_SHIFT & SEQUENCE_MASK;
+                    wireCount[0]++;
+                }
+            }
+            return length;
+        };
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long[] handled = new long[1];
+        long[] lastSequence = {-1};
+        simulator.setListener((index, state, handledAtNanos, lost) -> {
+            if (lost) {
+                return;
+            }
+            long sequence;
+            synchronized (wireLock) {
+                if (index >= wireCount[0]) {
+                    return;
+                }
+                sequence = wireSequence[(int) (index % RING)];
+            }
+            // the control loop repeats states as keepalives; count each state once
+            if (sequence == lastSequence[0]) {
+                return;
+            }
+            lastSequence[0] = sequence;
+            handled[0]++;
+            latency.record(handledAtNanos - publishedAt[(int) (sequence % RING)]);
+        });
+
+        CommandSender sender = new CommandSender(SENDER_QUEUE_CAPACITY, CommandSender.OverflowPolicy.COALESCE_LATEST);
+        sender.setEncoder(tracking);
+        sender.setTransport(phone);
+        sender.start();
+        ControlLoop loop = null;
+        if (via == Via.LOOP) {
+            loop = new ControlLoop(sender::send, tickRateHz, 250);
+            loop.start();
+        }
+
+        long period = TimeUnit.SECONDS.toNanos(1) / rateHz;
+        long start = System.nanoTime();
+        long end = start + stepNanos;
+        long next = start;
+        long offered = 0;
+        while (next < end) {
+            for (long left = next - System.nanoTime(); left > 0; left = next - System.nanoTime()) {
+                LockSupport.parkNanos(left);
+            }
+            long sequence = ++offered & SEQUENCE_MASK;
+            long command = pattern(offered) | sequence << SEQUENCE_SHIFT;
+            publishedAt[(int) (sequence % RING)] = System.nanoTime();
+            if (loop != null) {
+                loop.setState(command);
+            } else {
+                sender.send(command);
+            }
+            next += period;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (loop != null) {
+            loop.stop();
+        }
+        long drainEnd = System.nanoTime() + drainNanos;
+        while (System.nanoTime() < drainEnd) {
+            long sent;
+            synchronized (wireLock) {
+                sent = wireCount[0];
+            }
+            if (sender.getQueueDepth() == 0 && simulator.getHandledCount() + simulator.getLostCount()
+                    + simulator.getOverrunCount() >= sent) {
+                break;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+        }
+        sender.stop();
+        reader.stop();
+        simulator.close();
+        phone.close();
+
+        long sent;
+        synchronized (wireLock) {
+            sent = wireCount[0];
+        }
+        return new Result(rateHz, offered, sent, handled[0], simulator.getLostCount(), simulator.getOverrunCount(),
+                sender.getDroppedCount() + sender.getCoalescedCount(), seconds, latency);
+    }
+
+    // full throttle with the steering sweeping, plus a button now and then so the legacy chars vary too
+    private static long pattern(long n) {
+        int x = (int) (n % (2 * ControlState.AXIS_MAX + 1)) - ControlState.AXIS_MAX;
+        int buttons = n % 16 == 0 ? ControlState.BUTTON_L : 0;
+        return ControlState.pack(buttons, x, ControlState.AXIS_MAX);
+    }
+
+    public List<Result> getResults() {
+        return new ArrayList<>(results);
+    }
+
+    public void writeCsv(Appendable out) throws IOException {
+        for (Result r : results) {
+            out.append(String.format(Locale.US, "%s,%s,%s,%d,%d,%d,%d,%d,%d,%d,%.4f,%.1f,%d,%d,%d,%d%n",
+                    mode.name().toLowerCase(Locale.US), link.name().toLowerCase(Locale.US),
+                    via.name().toLowerCase(Locale.US), r.offeredHz, r.offered, r.sent, r.handled, r.lost,
+                    r.overrun, r.senderDropped, r.getDropRate(), r.getSustainedPerSecond(),
+                    TimeUnit.NANOSECONDS.toMicros(r.latency.getValueAtPercentile(50)),
+                    TimeUnit.NANOSECONDS.toMicros(r.latency.getValueAtPercentile(95)),
+                    TimeUnit.NANOSECONDS.toMicros(r.latency.getValueAtPercentile(99)),
+                    TimeUnit.NANOSECONDS.toMicros(r.latency.getMax())));
+        }
+    }
+}
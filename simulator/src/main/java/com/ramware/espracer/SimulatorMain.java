@@ -0,0 +1,169 @@
+package com.ramware.espracer;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line entry point.
+ *
+ * <pre>
+ * serve [--port 4210] [--protocol legacy|framed] [car options]
+ *     stands in for the car so the app can connect to this machine over Wi-Fi
+ * load [--protocol legacy|framed] [--link loopback|tcp] [--via sender|loop] [--tick 100]
+ *      [--rates 50,100,200,500,1000] [--step 2000] [--csv results.csv] [car options]
+ *     sweeps the send path through increasing rates and prints what the car kept up with
+ * replay --file session.espr [--speed 1] [--protocol legacy|framed] [--link loopback|tcp]
+ *        [--host 192.168.4.1] [--port 4210] [car options]
+ *     sends the commands of a session recorded by the app, to a simulated car over loopback
+ *     or to a car or simulator over TCP; speed 0 sends them back to back
+ *
+ * car options: --delay us, --jitter us, --service us, --loss 0..1, --seed n,
+ *              --buffer commands, --telemetry hz
+ * </pre>
+ */
+public final class SimulatorMain {
+    private static final int DEFAULT_PORT = 4210;
+
+    private SimulatorMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || (!args[0].equals("serve") && !args[0].equals("load") && !args[0].equals("replay"))) {
+            System.err.println("usage: serve|load|replay [options], see SimulatorMain");
+            System.exit(2);
+        }
+        Map<String, String> options = parseOptions(args);
+        if (args[0].equals("serve")) {
+            serve(options);
+        } else if (args[0].equals("load")) {
+            load(options);
+        } else {
+            replay(options);
+        }
+    }
+
+    private static void serve(Map<String, String> options) throws IOException, InterruptedException {
+        CarSimulator simulator = new CarSimulator(protocol(options));
+        configure(simulator, options);
+        int port = simulator.serve(Integer.parseInt(option(options, "port", String.valueOf(DEFAULT_PORT))));
+        System.out.println("Simulated car listening on port " + port);
+        while (true) {
+            Thread.sleep(1000);
+            System.out.println(simulator.summary());
+        }
+    }
+
+    private static void load(Map<String, String> options) throws IOException {
+        LoadHarness harness = new LoadHarness(protocol(options));
+        harness.setLink(LoadHarness.Link.valueOf(option(options, "link", "loopback").toUpperCase(Locale.US)));
+        harness.setVia(LoadHarness.Via.valueOf(option(options, "via", "sender").toUpperCase(Locale.US)),
+                Integer.parseInt(option(options, "tick", "100")));
+        if (options.containsKey("rates")) {
+            String[] parts = options.get("rates").split(",");
+            int[] rates = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                rates[i] = Integer.parseInt(parts[i].trim());
+            }
+            harness.setRates(rates);
+        }
+        harness.setStepDuration(Long.parseLong(option(options, "step", "2000")));
+        harness.setSimulatorSetup(simulator -> configure(simulator, options));
+
+        System.out.println("   offered   sustained  dropped     latency");
+        for (LoadHarness.Result result : harness.run()) {
+            System.out.println(result);
+        }
+        if (options.containsKey("csv")) {
+            try (Writer out = new FileWriter(options.get("csv"))) {
+                out.write(LoadHarness.CSV_HEADER + "\n");
+                harness.writeCsv(out);
+            }
+        }
+    }
+
+    private static void replay(Map<String, String> options) throws IOException, InterruptedException {
+        if (!options.containsKey("file")) {
+            throw new IllegalArgumentException("replay needs --file");
+        }
+        CarSimulator.Mode mode = protocol(options);
+        CarSimulator simulator = null;
+        Transport link;
+        if (option(options, "link", "loopback").equals("tcp")) {
+            link = new TcpTransport(option(options, "host", TransportType.DEFAULT_WIFI_HOST),
+                    Integer.parseInt(option(options, "port", String.valueOf(DEFAULT_PORT))), 1000);
+            link.open();
+        } else {
+            simulator = new CarSimulator(mode);
+            configure(simulator, options);
+            LoopbackTransport pair = LoopbackTransport.pair();
+            simulator.attach(pair.peer());
+            link = pair;
+        }
+        // echoes and telemetry must be read or they back up into the car
+        LinkReader reader = new LinkReader(link, (type, sequence, payload, offset, length) -> { }, (t, e) -> { });
+        reader.start();
+
+        SessionReplayer replayer = new SessionReplayer(link);
+        replayer.setEncoder(mode == CarSimulator.Mode.FRAMED ? new FrameEncoder() : new LegacyCommandEncoder());
+        replayer.setSpeed(Double.parseDouble(option(options, "speed", "1")));
+        try (SessionReader session = SessionReader.open(new File(options.get("file")))) {
+            long start = System.nanoTime();
+            long sent = replayer.replay(session);
+            System.out.println(String.format(Locale.US, "Replayed %d commands in %.1f s, worst %.2f ms behind schedule%s",
+                    sent, (System.nanoTime() - start) / 1e9, replayer.getMaxLatenessNanos() / 1e6,
+                    session.isTruncated() ? ", log was cut short" : ""));
+        }
+        if (simulator != null) {
+            // let the car work through what is still buffered
+            Thread.sleep(TimeUnit.SECONDS.toMillis(1));
+            System.out.println(simulator.summary());
+            simulator.close();
+        }
+        reader.stop();
+        link.close();
+    }
+
+    private static void configure(CarSimulator simulator, Map<String, String> options) {
+        simulator.setProcessingDelay(Long.parseLong(option(options, "delay", "0")));
+        simulator.setJitter(Long.parseLong(option(options, "jitter", "0")));
+        if (options.containsKey("service")) {
+            simulator.setServiceTime(Long.parseLong(options.get("service")));
+        }
+        if (options.containsKey("loss")) {
+            Random random = options.containsKey("seed")
+                    ? new Random(Long.parseLong(options.get("seed"))) : new Random();
+            simulator.setLoss(Double.parseDouble(options.get("loss")), random);
+        }
+        if (options.containsKey("buffer")) {
+            simulator.setReceiveBuffer(Integer.parseInt(options.get("buffer")));
+        }
+        simulator.setTelemetryRate(Integer.parseInt(option(options, "telemetry", "0")));
+    }
+
+    private static CarSimulator.Mode protocol(Map<String, String> options) {
+        return CarSimulator.Mode.valueOf(option(options, "protocol", "legacy").toUpperCase(Locale.US));
+    }
+
+    private static String option(Map<String, String> options, String name, String fallback) {
+        String value = options.get(name);
+        return value != null ? value : fallback;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 >= args.length) {
+                throw new IllegalArgumentException("expected --name value at " + args[i]);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        return options;
+    }
+}
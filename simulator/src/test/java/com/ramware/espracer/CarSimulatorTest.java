@@ -0,0 +1,152 @@
+package com.ramware.espracer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class CarSimulatorTest {
+
+    private CarSimulator simulator;
+    private LoopbackTransport phone;
+
+    @After
+    public void tearDown() {
+        if (simulator != null) {
+            simulator.close();
+        }
+    }
+
+    private void attach(CarSimulator.Mode mode) {
+        simulator = new CarSimulator(mode);
+        phone = LoopbackTransport.pair();
+        simulator.attach(phone.peer());
+    }
+
+    private static boolean await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    @Test
+    public void legacyCharsDriveTheMotorsAndOtherBytesAreIgnored() throws Exception {
+        attach(CarSimulator.Mode.LEGACY);
+        byte[] bytes = {'x', Protocol.LEGACY_LEFT};
+        phone.send(bytes, 0, bytes.length);
+        assertTrue(await(() -> simulator.getHandledCount() == 1, 1000));
+        assertEquals(-ControlState.AXIS_MAX, ControlState.x(simulator.getState()));
+        assertEquals(-1, CarSimulator.fromLegacy('8'));
+    }
+
+    @Test
+    public void framedControlIsAppliedAndPingsAreEchoed() throws Exception {
+        attach(CarSimulator.Mode.FRAMED);
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] frame = new byte[Protocol.MAX_FRAME_LENGTH];
+        long forward = ControlState.pack(ControlState.BUTTON_F, 10, 100);
+        phone.send(frame, 0, encoder.encode(forward, frame));
+        phone.send(frame, 0, encoder.encodePing(frame, 0x12345678));
+
+        int[] echoed = new int[1];
+        LinkReader reader = new LinkReader(phone, (type, sequence, payload, offset, length) -> {
+            if (type == Protocol.TYPE_ECHO) {
+                echoed[0] = (payload[offset] & 0xFF) << 24 | (payload[offset + 1] & 0xFF) << 16
+                        | (payload[offset + 2] & 0xFF) << 8 | payload[offset + 3] & 0xFF;
+            }
+        }, (t, e) -> { });
+        reader.start();
+        try {
+            assertTrue(await(() -> simulator.getEchoCount() == 1, 1000));
+            assertEquals(forward, simulator.getState());
+            assertTrue(await(() -> echoed[0] == 0x12345678, 1000));
+        } finally {
+            reader.stop();
+        }
+    }
+
+    @Test
+    public void lossDropsCommandsBeforeTheCarSeesThem() throws Exception {
+        simulator = new CarSimulator(CarSimulator.Mode.LEGACY);
+        simulator.setServiceTime(0);
+        simulator.setLoss(0.5, new Random(1));
+        phone = LoopbackTransport.pair();
+        simulator.attach(phone.peer());
+        byte[] bytes = new byte[200];
+        Arrays.fill(bytes, (byte) Protocol.LEGACY_FORWARD);
+        phone.send(bytes, 0, bytes.length);
+
+        assertTrue(await(() -> simulator.getHandledCount() + simulator.getLostCount() == 200, 1000));
+        assertTrue(simulator.getLostCount() > 60);
+        assertTrue(simulator.getLostCount() < 140);
+    }
+
+    @Test
+    public void theCarStopsItselfWhenCommandsStop() throws Exception {
+        attach(CarSimulator.Mode.LEGACY);
+        byte[] bytes = {Protocol.LEGACY_FORWARD};
+        phone.send(bytes, 0, bytes.length);
+        assertTrue(await(() -> simulator.getHandledCount() == 1, 1000));
+        assertEquals(ControlState.AXIS_MAX, ControlState.y(simulator.getState()));
+
+        assertTrue(await(() -> simulator.getTimeoutStopCount() == 1, 2 * Protocol.FIRMWARE_LINK_TIMEOUT_MS));
+        assertEquals(ControlState.FAILSAFE_STOP, simulator.getState());
+    }
+
+    @Test
+    public void commandsLostOnTheWayInDontHoldOffTheFailsafe() throws Exception {
+        simulator = new CarSimulator(CarSimulator.Mode.LEGACY);
+        simulator.setLoss(1, new Random(1));
+        phone = LoopbackTransport.pair();
+        simulator.attach(phone.peer());
+        byte[] bytes = {Protocol.LEGACY_FORWARD};
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(2 * Protocol.FIRMWARE_LINK_TIMEOUT_MS);
+        // the phone keeps sending, but nothing gets through
+        while (simulator.getTimeoutStopCount() == 0 && System.nanoTime() < end) {
+            phone.send(bytes, 0, bytes.length);
+            Thread.sleep(20);
+        }
+        assertEquals(1, simulator.getTimeoutStopCount());
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(Protocol.FIRMWARE_LINK_TIMEOUT_MS));
+        assertEquals(ControlState.FAILSAFE_STOP, simulator.getState());
+        assertEquals(0, simulator.getHandledCount());
+        assertTrue(simulator.getLostCount() > 0);
+    }
+
+    @Test
+    public void aNewClientTakesOverFromTheLastOne() throws Exception {
+        simulator = new CarSimulator(CarSimulator.Mode.LEGACY);
+        int port = simulator.serve(0);
+        TcpTransport first = new TcpTransport("127.0.0.1", port, 1000);
+        TcpTransport second = new TcpTransport("127.0.0.1", port, 1000);
+        try {
+            first.open();
+            byte[] forward = {Protocol.LEGACY_FORWARD};
+            first.send(forward, 0, forward.length);
+            assertTrue(await(() -> simulator.getHandledCount() == 1, 1000));
+
+            second.open();
+            byte[] left = {Protocol.LEGACY_LEFT};
+            second.send(left, 0, left.length);
+            assertTrue(await(() -> simulator.getHandledCount() == 2, 1000));
+            assertEquals(-ControlState.AXIS_MAX, ControlState.x(simulator.getState()));
+            // the car hung up on the first phone
+            byte[] buffer = new byte[16];
+            assertEquals(-1, first.receive(buffer, 0, buffer.length));
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+}
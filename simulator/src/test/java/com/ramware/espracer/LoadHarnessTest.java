@@ -0,0 +1,47 @@
+package com.ramware.espracer;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LoadHarnessTest {
+
+    @Test
+    public void aRateTheCarKeepsUpWithLosesNothing() throws Exception {
+        LoadHarness harness = new LoadHarness(CarSimulator.Mode.FRAMED);
+        harness.setRates(100);
+        harness.setStepDuration(300);
+        harness.setSimulatorSetup(simulator -> simulator.setProcessingDelay(2000));
+
+        LoadHarness.Result result = harness.run().get(0);
+        assertEquals(result.offered, result.handled);
+        assertEquals(0, result.getDropRate(), 0);
+        // nothing reaches the car sooner than its processing delay
+        assertTrue(result.latency.getValueAtPercentile(50) >= 2000000);
+
+        StringBuilder csv = new StringBuilder();
+        harness.writeCsv(csv);
+        assertTrue(csv.toString().startsWith("framed,loopback,sender,100,"));
+    }
+
+    @Test
+    public void aRateAboveTheCarsServiceTimeIsShedAndReported() throws Exception {
+        LoadHarness harness = new LoadHarness(CarSimulator.Mode.LEGACY);
+        harness.setRates(100, 4000);
+        harness.setStepDuration(300);
+        // the car manages 1000 commands a second and buffers 16
+        harness.setSimulatorSetup(simulator -> {
+            simulator.setServiceTime(1000);
+            simulator.setReceiveBuffer(16);
+        });
+
+        List<LoadHarness.Result> results = harness.run();
+        assertEquals(0, results.get(0).getDropRate(), 0);
+        LoadHarness.Result overloaded = results.get(1);
+        assertTrue(overloaded.getDropRate() > 0.3);
+        assertTrue(overloaded.getSustainedPerSecond() < 1500);
+        assertEquals(overloaded.offered, overloaded.handled + overloaded.overrun + overloaded.senderDropped);
+    }
+}